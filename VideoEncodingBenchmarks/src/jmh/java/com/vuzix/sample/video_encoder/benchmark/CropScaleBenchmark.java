@@ -0,0 +1,101 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.benchmark;
+
+import com.vuzix.sample.video_encoder.engine.CropRegion;
+import com.vuzix.sample.video_encoder.engine.YuvFrame;
+import com.vuzix.sample.video_encoder.engine.YuvPacker;
+import com.vuzix.sample.video_encoder.engine.YuvScaler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of packing a 720p camera frame into the codec input with a digital zoom, on the capture
+ * thread: the centre 1/zoom of the frame is cropped and enlarged back to 720p. Zoom 1 packs the
+ * whole frame with YuvPacker, the cost without a zoom, so the difference is what the zoom adds.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CropScaleBenchmark {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+
+    @Param({"1", "1.5", "2", "4"})
+    public float zoom;
+
+    @Param({"nv12", "i420"})
+    public String layout;
+
+    @Param({"box", "bilinear"})
+    public String filter;
+
+    private YuvFrame mFrame;
+    private CropRegion mCrop;
+    private ByteBuffer mPacked;
+    private int mFilter;
+
+    @Setup
+    public void setUp() {
+        mFrame = YuvPackerBenchmark.createFrame(WIDTH, HEIGHT, layout);
+        mCrop = CropRegion.zoom(WIDTH, HEIGHT, zoom, 0.5f, 0.5f);
+        mPacked = ByteBuffer.allocateDirect(YuvPacker.packedSize(WIDTH, HEIGHT));
+        mFilter = "bilinear".equals(filter) ? YuvScaler.FILTER_BILINEAR : YuvScaler.FILTER_BOX;
+    }
+
+    @Benchmark
+    public int pack() {
+        mPacked.clear();
+        if (mCrop.isFullFrame(WIDTH, HEIGHT)) {
+            return YuvPacker.pack(mFrame, mPacked);
+        }
+        return YuvScaler.scale(mFrame, mCrop, WIDTH, HEIGHT, mPacked, mFilter);
+    }
+}
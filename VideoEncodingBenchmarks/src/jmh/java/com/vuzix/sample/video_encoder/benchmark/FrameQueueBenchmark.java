@@ -0,0 +1,185 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.benchmark;
+
+import com.vuzix.sample.video_encoder.engine.FrameBufferPool;
+import com.vuzix.sample.video_encoder.engine.FrameDropPolicy;
+import com.vuzix.sample.video_encoder.engine.FrameDropStats;
+import com.vuzix.sample.video_encoder.engine.FrameRing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hand-off of frames from the camera thread to the codec thread, as done by AsyncEncoderDriver.
+ *
+ * The handoff group measures throughput with the producer leasing a pooled frame and offering it
+ * through the drop policy while the consumer polls it and gives it back. The pingPong group
+ * measures latency: a frame is bounced between the two threads through a pair of rings, so each
+ * sample is the time of two hand-offs.
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameQueueBenchmark {
+
+    private static final int QUEUE_CAPACITY = 8;
+
+    @State(Scope.Group)
+    public static class Handoff {
+
+        @Param({"dropNewest", "dropOldest"})
+        public String policy;
+
+        FrameBufferPool mPool;
+        FrameRing<FrameBufferPool.Frame> mRing;
+        FrameDropPolicy mPolicy;
+        final FrameDropStats mStats = new FrameDropStats();
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            // small frames, the copy is measured by YuvPackerBenchmark
+            mPool = new FrameBufferPool(16, 16, QUEUE_CAPACITY + 2);
+            mRing = new FrameRing<FrameBufferPool.Frame>(QUEUE_CAPACITY);
+            mPolicy = "dropOldest".equals(policy) ? FrameDropPolicy.dropOldest() : FrameDropPolicy.dropNewest();
+            mStats.reset();
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            FrameBufferPool.Frame frame;
+            while ((frame = mRing.poll()) != null) {
+                mPool.release(frame);
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean offer(Handoff state) {
+        FrameBufferPool.Frame frame = state.mPool.acquire();
+        if (frame == null) {
+            return false;
+        }
+        FrameBufferPool.Frame dropped = state.mPolicy.offer(state.mRing, frame, state.mStats);
+        state.mPool.release(dropped);
+        return dropped != frame;
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean poll(Handoff state) {
+        FrameBufferPool.Frame frame = state.mRing.poll();
+        if (frame == null) {
+            return false;
+        }
+        state.mPool.release(frame);
+        return true;
+    }
+
+    @State(Scope.Group)
+    public static class PingPong {
+
+        final FrameRing<Object> mPing = new FrameRing<Object>(QUEUE_CAPACITY);
+        final FrameRing<Object> mPong = new FrameRing<Object>(QUEUE_CAPACITY);
+        final Object mToken = new Object();
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            while (mPing.poll() != null) {
+                // drain
+            }
+            while (mPong.poll() != null) {
+                // drain
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("pingPong")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Object ping(PingPong state, Control control) {
+        state.mPing.offer(state.mToken);
+        return await(state.mPong, control);
+    }
+
+    @Benchmark
+    @Group("pingPong")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Object pong(PingPong state, Control control) {
+        Object token = await(state.mPing, control);
+        if (token != null) {
+            state.mPong.offer(token);
+        }
+        return token;
+    }
+
+    /**
+     * Spins until an element arrives, or the iteration ends and the other thread stops answering
+     */
+    private static Object await(FrameRing<Object> ring, Control control) {
+        Object element;
+        while ((element = ring.poll()) == null) {
+            if (control.stopMeasurement) {
+                return null;
+            }
+        }
+        return element;
+    }
+}
@@ -0,0 +1,87 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.benchmark;
+
+import com.vuzix.sample.video_encoder.engine.MotionGate;
+import com.vuzix.sample.video_encoder.engine.YuvFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a static 720p frame costs the capture thread when a MotionGate keeps it out of the
+ * encoder: the motion analysis alone without pre-roll, plus one frame copy with it. The same
+ * frame is offered at 24 fps presentation times, so the gate stays static and lets one
+ * keep-alive frame through per second, as in a recording of an empty room.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MotionGateBenchmark {
+
+    private static final long FRAME_INTERVAL_US = 1000000 / 24;
+
+    @Param({"0", "12"})
+    public int preRollFrames;
+
+    private MotionGate mGate;
+    private YuvFrame mFrame;
+    private long mPresentationTimeUs;
+
+    @Setup
+    public void setUp() {
+        mGate = new MotionGate(MotionGate.DEFAULT_SENSITIVITY, MotionGate.DEFAULT_BLOCK_THRESHOLD, 0,
+                MotionGate.DEFAULT_KEEP_ALIVE_US, preRollFrames);
+        mFrame = YuvPackerBenchmark.createFrame(1280, 720, "nv12");
+    }
+
+    @Benchmark
+    public int staticFrame() {
+        mPresentationTimeUs += FRAME_INTERVAL_US;
+        return mGate.onFrame(mFrame, mPresentationTimeUs);
+    }
+}
@@ -0,0 +1,98 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.benchmark;
+
+import com.vuzix.sample.video_encoder.engine.PresentationClock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of mapping a sensor timestamp to a presentation time.
+ *
+ * The timestamps follow the nominal frame rate with up to 2ms of jitter, and one frame in a
+ * hundred is skipped so the gap handling is part of the measurement.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PresentationClockBenchmark {
+
+    private static final int TIMESTAMP_COUNT = 4096;
+    private static final long JITTER_NS = 2000000;
+
+    @Param({"24", "30"})
+    public int frameRate;
+
+    private PresentationClock mClock;
+    private final long[] mTimestampsNs = new long[TIMESTAMP_COUNT];
+    // time covered by the timestamp table, added each time it wraps around
+    private long mCycleNs;
+    private long mIndex;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(frameRate);
+        long intervalNs = 1000000000L / frameRate;
+        long timestampNs = 0;
+        for (int i = 0; i < TIMESTAMP_COUNT; i++) {
+            timestampNs += random.nextInt(100) == 0 ? 2 * intervalNs : intervalNs;
+            mTimestampsNs[i] = timestampNs + (long) (random.nextGaussian() * JITTER_NS / 3);
+        }
+        mCycleNs = timestampNs + intervalNs;
+        mClock = new PresentationClock(frameRate);
+        mIndex = 0;
+    }
+
+    @Benchmark
+    public long toPresentationTimeUs() {
+        long index = mIndex++;
+        long timestampNs = mTimestampsNs[(int) (index % TIMESTAMP_COUNT)] + (index / TIMESTAMP_COUNT) * mCycleNs;
+        return mClock.toPresentationTimeUs(timestampNs);
+    }
+}
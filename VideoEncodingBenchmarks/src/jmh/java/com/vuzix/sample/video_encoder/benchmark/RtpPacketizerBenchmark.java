@@ -0,0 +1,157 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.benchmark;
+
+import com.vuzix.sample.video_encoder.engine.RtpH264Packetizer;
+import com.vuzix.sample.video_encoder.engine.RtpOutputWriter;
+import com.vuzix.sample.video_encoder.engine.SampleInfo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning one encoded sample into RTP packets, and of sending them over UDP.
+ *
+ * The sample is a single slice NAL unit in Annex B form, so the large one is cut into FU-A
+ * fragments. The packetize case measures the packetizer alone, the send case RtpOutputWriter
+ * sending to a socket on the loopback interface, which is drained once per sample.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RtpPacketizerBenchmark {
+
+    /** Typical P-frame and I-frame sizes at 720p and 6Mbps */
+    @Param({"8192", "131072"})
+    public int sampleSize;
+
+    @Param({"packetize", "send"})
+    public String target;
+
+    private ByteBuffer mSample;
+    private final SampleInfo mInfo = new SampleInfo();
+    private long mPresentationTimeUs;
+
+    private RtpH264Packetizer mPacketizer;
+    private ByteBuffer mPacket;
+
+    private DatagramChannel mReceiver;
+    private RtpOutputWriter mWriter;
+    private ByteBuffer mReceived;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] content = new byte[sampleSize];
+        new Random(sampleSize).nextBytes(content);
+        for (int i = 0; i < content.length; i++) {
+            // no start code can appear inside the NAL unit
+            if (content[i] == 0) {
+                content[i] = 1;
+            }
+        }
+        content[0] = 0;
+        content[1] = 0;
+        content[2] = 0;
+        content[3] = 1;
+        content[4] = 0x41;                  // non-IDR slice
+        mSample = ByteBuffer.allocateDirect(sampleSize);
+        mSample.put(content);
+        mSample.flip();
+
+        mPacketizer = new RtpH264Packetizer();
+        mPacket = ByteBuffer.allocateDirect(mPacketizer.getMaxPacketSize());
+        if ("send".equals(target)) {
+            mReceiver = DatagramChannel.open();
+            mReceiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            mReceiver.configureBlocking(false);
+            mReceived = ByteBuffer.allocateDirect(mPacketizer.getMaxPacketSize());
+            mWriter = new RtpOutputWriter((InetSocketAddress) mReceiver.getLocalAddress());
+            ByteBuffer sps = ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda});
+            ByteBuffer pps = ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80});
+            mWriter.addAvcTrack(sps, pps);
+            mWriter.start();
+        }
+        mPresentationTimeUs = 0;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (mWriter != null) {
+            mWriter.release();
+            mReceiver.close();
+        }
+    }
+
+    @Benchmark
+    public int writeSample() throws IOException {
+        mPresentationTimeUs += 33333;
+        mInfo.set(0, sampleSize, mPresentationTimeUs, 0);
+        if (mWriter != null) {
+            mWriter.writeSampleData(0, mSample, mInfo);
+            int received = 0;
+            mReceived.clear();
+            while (mReceiver.receive(mReceived) != null) {
+                mReceived.clear();
+                received++;
+            }
+            return received;
+        }
+        int packets = 0;
+        mPacketizer.begin(mSample, mInfo);
+        while (mPacketizer.next(mPacket)) {
+            packets++;
+        }
+        return packets;
+    }
+}
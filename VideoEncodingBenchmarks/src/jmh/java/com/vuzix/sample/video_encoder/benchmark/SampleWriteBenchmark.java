@@ -0,0 +1,374 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.benchmark;
+
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import com.vuzix.sample.video_encoder.engine.EncoderCodec;
+import com.vuzix.sample.video_encoder.engine.EncoderDriver;
+import com.vuzix.sample.video_encoder.engine.FrameDropPolicy;
+import com.vuzix.sample.video_encoder.engine.OutputWriter;
+import com.vuzix.sample.video_encoder.engine.SampleInfo;
+import com.vuzix.sample.video_encoder.engine.TsOutputWriter;
+import com.vuzix.sample.video_encoder.engine.YuvFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of moving one encoded sample from a codec output buffer to an OutputWriter through the
+ * EncoderDriver output path.
+ *
+ * The codec is a stand-in returning the same output buffer every time. The discard writer
+ * measures the driver overhead alone, the copy writer an in-memory buffer and the file writer
+ * a FileChannel, which is what a muxer ends up doing. The ts writer is TsOutputWriter muxing
+ * into a file, batched writes included.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SampleWriteBenchmark {
+
+    // the file is rewritten from the start once it reaches this size
+    private static final long MAX_FILE_SIZE = 64L * 1024 * 1024;
+
+    /** Typical P-frame and I-frame sizes at 720p and 6Mbps */
+    @Param({"8192", "131072"})
+    public int sampleSize;
+
+    @Param({"discard", "copy", "file", "ts"})
+    public String writer;
+
+    private OutputDriver mDriver;
+    private OutputWriter mWriter;
+    private final SampleInfo mInfo = new SampleInfo();
+    private long mPresentationTimeUs;
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteBuffer encoded = ByteBuffer.allocateDirect(sampleSize);
+        byte[] content = new byte[sampleSize];
+        new Random(sampleSize).nextBytes(content);
+        encoded.put(content);
+
+        if ("file".equals(writer)) {
+            mWriter = new FileWriter(File.createTempFile("samples", ".bin"));
+        } else if ("ts".equals(writer)) {
+            mWriter = new TsWriter(new FileWriter(File.createTempFile("samples", ".ts")));
+        } else if ("copy".equals(writer)) {
+            mWriter = new CopyWriter(sampleSize);
+        } else {
+            mWriter = new DiscardWriter();
+        }
+        mDriver = new OutputDriver(new OutputOnlyCodec(encoded), mWriter);
+        mDriver.startOutput();
+        mPresentationTimeUs = 0;
+    }
+
+    @TearDown
+    public void tearDown() {
+        mWriter.release();
+    }
+
+    @Benchmark
+    public boolean writeSample() {
+        mPresentationTimeUs += 33333;
+        mInfo.set(0, sampleSize, mPresentationTimeUs, 0);
+        return mDriver.writeOutput(mInfo);
+    }
+
+    /**
+     * Exposes the output path of EncoderDriver
+     */
+    static class OutputDriver extends EncoderDriver {
+
+        OutputDriver(EncoderCodec codec, OutputWriter writer) {
+            super(codec, writer, FrameDropPolicy.dropNewest(), 30);
+        }
+
+        void startOutput() {
+            handleOutputFormatChanged(null);
+        }
+
+        boolean writeOutput(SampleInfo info) {
+            return handleOutputBuffer(0, info);
+        }
+
+        @Override
+        protected void encodeFrame(YuvFrame frame, long presentationTimeUs) {
+        }
+
+        @Override
+        public void onEndOfStream() {
+        }
+    }
+
+    /**
+     * Codec that only has one output buffer
+     */
+    static class OutputOnlyCodec implements EncoderCodec {
+
+        private final ByteBuffer mOutputBuffer;
+
+        OutputOnlyCodec(ByteBuffer outputBuffer) {
+            mOutputBuffer = outputBuffer;
+        }
+
+        @Override
+        public void setCallback(Callback callback) {
+        }
+
+        @Override
+        public void configure(MediaFormat format) {
+        }
+
+        @Override
+        public Surface createInputSurface() {
+            return null;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public void signalEndOfInputStream() {
+        }
+
+        @Override
+        public void requestSyncFrame() {
+        }
+
+        @Override
+        public void setVideoBitrate(int bitRate) {
+        }
+
+        @Override
+        public int dequeueInputBuffer(long timeoutUs) {
+            return INFO_TRY_AGAIN_LATER;
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            return null;
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        }
+
+        @Override
+        public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+            return INFO_TRY_AGAIN_LATER;
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            mOutputBuffer.clear();
+            return mOutputBuffer;
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {
+        }
+
+        @Override
+        public MediaFormat getOutputFormat() {
+            return null;
+        }
+    }
+
+    static class DiscardWriter implements OutputWriter {
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+            data.position(data.limit());
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    static class CopyWriter implements OutputWriter {
+
+        private final ByteBuffer mBuffer;
+
+        CopyWriter(int sampleSize) {
+            mBuffer = ByteBuffer.allocate(sampleSize * 16);
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+            if (mBuffer.remaining() < data.remaining()) {
+                mBuffer.clear();
+            }
+            mBuffer.put(data);
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /**
+     * TsOutputWriter with a fixed track, as the stand-in codec has no output format, writing
+     * through a FileWriter so that the file size stays bounded
+     */
+    static class TsWriter extends TsOutputWriter {
+
+        private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda};
+        private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+        TsWriter(final FileWriter file) {
+            super(new WritableByteChannel() {
+                private final SampleInfo mInfo = new SampleInfo();
+
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    int size = src.remaining();
+                    file.writeSampleData(0, src, mInfo);
+                    return size;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                    file.release();
+                }
+            }, DEFAULT_BATCH_PACKETS, DEFAULT_FLUSH_INTERVAL_US);
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return addAvcTrack(ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+        }
+    }
+
+    static class FileWriter implements OutputWriter {
+
+        private final File mFile;
+        private final RandomAccessFile mOutput;
+        private final FileChannel mChannel;
+
+        FileWriter(File file) throws IOException {
+            mFile = file;
+            mOutput = new RandomAccessFile(file, "rw");
+            mChannel = mOutput.getChannel();
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) throws IOException {
+            if (mChannel.position() >= MAX_FILE_SIZE) {
+                mChannel.position(0);
+            }
+            while (data.hasRemaining()) {
+                mChannel.write(data);
+            }
+        }
+
+        @Override
+        public void release() {
+            try {
+                mOutput.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (!mFile.delete()) {
+                mFile.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.benchmark;
+
+import com.vuzix.sample.video_encoder.engine.YuvFrame;
+import com.vuzix.sample.video_encoder.engine.YuvPacker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of packing one camera frame into NV12, for the plane layouts camera HALs report, against
+ * the copy the samples made before YuvPacker.
+ *
+ * The planes are direct buffers laid out like the ones an ImageReader hands out: the chroma
+ * planes of the semi-planar layouts alias one buffer offset by a byte, and the padded layout
+ * rounds every row up to 512 bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YuvPackerBenchmark {
+
+    private static final int PADDED_ROW_ALIGNMENT = 512;
+
+    @Param({"1280x720", "1920x1080"})
+    public String resolution;
+
+    @Param({"nv12", "nv12-padded", "nv21", "i420"})
+    public String layout;
+
+    private YuvFrame mFrame;
+    private ByteBuffer mPacked;
+    // what the copy by capacity() writes, padding included
+    private ByteBuffer mCopied;
+
+    @Setup
+    public void setUp() {
+        String[] size = resolution.split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = Integer.parseInt(size[1]);
+        mFrame = createFrame(width, height, layout);
+        mPacked = ByteBuffer.allocateDirect(YuvPacker.packedSize(width, height));
+        mCopied = ByteBuffer.allocateDirect(mFrame.y.capacity() + mFrame.u.capacity());
+    }
+
+    @Benchmark
+    public int pack() {
+        mPacked.clear();
+        return YuvPacker.pack(mFrame, mPacked);
+    }
+
+    /**
+     * The samples before YuvPacker: the Y and U planes copied whole into a new array by their
+     * capacity, then the array put into the codec input buffer. Only right for tightly packed
+     * NV12, but it is the baseline pack() replaces
+     */
+    @Benchmark
+    public int doubleCopy() {
+        ByteBuffer bufferY = mFrame.y;
+        ByteBuffer bufferU = mFrame.u;
+        byte[] bytes = new byte[bufferY.capacity() + bufferU.capacity()];
+        bufferY.get(bytes, 0, bufferY.capacity());
+        bufferU.get(bytes, bufferY.capacity(), bufferU.capacity());
+        bufferY.rewind();
+        bufferU.rewind();
+        mCopied.clear();
+        mCopied.put(bytes);
+        return bytes.length;
+    }
+
+    /**
+     * Builds a frame with random content in the given layout
+     * @param width int width of the frame in pixels
+     * @param height int height of the frame in pixels
+     * @param layout String one of the layout parameter values
+     * @return YuvFrame describing the planes
+     */
+    static YuvFrame createFrame(int width, int height, String layout) {
+        Random random = new Random(width * 31L + height);
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+
+        if ("i420".equals(layout)) {
+            ByteBuffer y = filledPlane(width * height, random);
+            ByteBuffer u = filledPlane(chromaWidth * chromaHeight, random);
+            ByteBuffer v = filledPlane(chromaWidth * chromaHeight, random);
+            return new YuvFrame().set(y, width, u, v, chromaWidth, 1, width, height, 0);
+        }
+
+        int rowStride = width;
+        if ("nv12-padded".equals(layout)) {
+            rowStride = (width + PADDED_ROW_ALIGNMENT - 1) / PADDED_ROW_ALIGNMENT * PADDED_ROW_ALIGNMENT;
+        }
+        ByteBuffer y = filledPlane(rowStride * height, random);
+        // both chroma planes view one interleaved buffer, the last row is one byte short
+        int chromaSize = rowStride * (chromaHeight - 1) + chromaWidth * 2;
+        ByteBuffer chroma = filledPlane(chromaSize, random);
+        ByteBuffer first = slice(chroma, 0, chromaSize - 1);
+        ByteBuffer second = slice(chroma, 1, chromaSize - 1);
+        if ("nv21".equals(layout)) {
+            return new YuvFrame().set(y, rowStride, second, first, rowStride, 2, width, height, 0);
+        }
+        return new YuvFrame().set(y, rowStride, first, second, rowStride, 2, width, height, 0);
+    }
+
+    private static ByteBuffer filledPlane(int size, Random random) {
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        ByteBuffer plane = ByteBuffer.allocateDirect(size);
+        plane.put(content);
+        plane.flip();
+        return plane;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+}
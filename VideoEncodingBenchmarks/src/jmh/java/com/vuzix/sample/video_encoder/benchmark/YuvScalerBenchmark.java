@@ -0,0 +1,108 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.benchmark;
+
+import com.vuzix.sample.video_encoder.engine.ParallelYuvScaler;
+import com.vuzix.sample.video_encoder.engine.YuvFrame;
+import com.vuzix.sample.video_encoder.engine.YuvPacker;
+import com.vuzix.sample.video_encoder.engine.YuvScaler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of downscaling one NV12 camera frame for a secondary stream, per filter and number of
+ * threads. One thread scales on the benchmark thread; more use the fork/join pool of
+ * ParallelYuvScaler, so the difference between them is the speed-up net of the hand-off.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YuvScalerBenchmark {
+
+    @Param({"1280x720>640x360", "1920x1080>854x480"})
+    public String scaling;
+
+    @Param({"box", "bilinear"})
+    public String filter;
+
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    private YuvFrame mFrame;
+    private ByteBuffer mScaled;
+    private ParallelYuvScaler mScaler;
+    private int mWidth;
+    private int mHeight;
+    private int mFilter;
+
+    @Setup
+    public void setUp() {
+        String[] sizes = scaling.split(">");
+        String[] source = sizes[0].split("x");
+        String[] target = sizes[1].split("x");
+        mFrame = YuvPackerBenchmark.createFrame(Integer.parseInt(source[0]), Integer.parseInt(source[1]), "nv12");
+        mWidth = Integer.parseInt(target[0]);
+        mHeight = Integer.parseInt(target[1]);
+        mScaled = ByteBuffer.allocateDirect(YuvPacker.packedSize(mWidth, mHeight));
+        mFilter = "bilinear".equals(filter) ? YuvScaler.FILTER_BILINEAR : YuvScaler.FILTER_BOX;
+        mScaler = new ParallelYuvScaler(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mScaler.close();
+    }
+
+    @Benchmark
+    public int scale() {
+        mScaled.clear();
+        return mScaler.scale(mFrame, mWidth, mHeight, mScaled, mFilter);
+    }
+}
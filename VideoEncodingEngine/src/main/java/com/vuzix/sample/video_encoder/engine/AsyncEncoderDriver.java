@@ -0,0 +1,348 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * EncoderDriver using the asynchronous codec API.
+ *
+ * The frame source packs each frame once into a pooled buffer and hands it to the codec thread
+ * through a FrameRing, so the camera never waits on the codec. Input buffers offered by the codec
+ * are parked until a frame is available to fill them, and end of stream is queued once the ring
+ * has drained. The codec callbacks and the executor must run on the same single thread.
+ *
+ * A frame shared by a FrameFanout is retained instead of packed again, and scaled to the size of
+ * the video on the codec thread when it is larger, so the capture thread only pays for one copy
+ * whatever the number of outputs. The crop region is taken on the capture thread either way, and
+ * queued along with a shared frame.
+ */
+public class AsyncEncoderDriver extends EncoderDriver {
+
+    private static final String TAG = "MediaCodec_App";
+    // more input buffers than any codec offers, each index is parked at most once at a time
+    private static final int MAX_INPUT_BUFFERS = 64;
+
+    private final Executor mCodecExecutor;
+    private final FrameBufferPool mFramePool;
+    private final FrameRing<QueuedFrame> mFrameQueue;
+    // free queue entries, given back by the codec thread and taken by the capture thread
+    private final FrameRing<QueuedFrame> mFreeEntries;
+    // an entry the capture thread got back from a dropped frame, reused before the free ring
+    private QueuedFrame mSpareEntry;
+    // describes shared frames for scaling, only touched on the codec thread
+    private final YuvFrame mScaleSource = new YuvFrame();
+
+    // codec input buffers waiting for a frame, only touched on the codec thread
+    private final int[] mParkedInputIndices = new int[MAX_INPUT_BUFFERS];
+    private int mParkedInputHead;
+    private int mParkedInputCount;
+
+    private volatile boolean mCaptureSessionStopped;
+    private boolean mEndOfStreamQueued;
+    // presentation time of the last frame queued to the encoder, only touched on the codec thread
+    private long mLastQueuedPtsUs;
+
+    /**
+     * @param codec EncoderCodec encoding the frames, its callback is set by the driver
+     * @param writer OutputWriter storing the encoded samples
+     * @param dropPolicy FrameDropPolicy deciding what to give up when the queue is full
+     * @param frameRate int nominal frame rate of the camera
+     * @param width int width of the video in pixels
+     * @param height int height of the video in pixels
+     * @param queueCapacity int number of frames that may wait for the codec
+     * @param codecExecutor Executor running tasks on the thread of the codec callbacks, throwing
+     *                      RejectedExecutionException once that thread has quit
+     */
+    public AsyncEncoderDriver(EncoderCodec codec, OutputWriter writer, FrameDropPolicy dropPolicy, int frameRate,
+                              int width, int height, int queueCapacity, Executor codecExecutor) {
+        super(codec, writer, dropPolicy, frameRate);
+        mCodecExecutor = codecExecutor;
+        mWidth = width;
+        mHeight = height;
+        // one buffer per queue slot, plus the frame being captured and the frame being encoded
+        mFramePool = new FrameBufferPool(width, height, queueCapacity + 2);
+        mFrameQueue = new FrameRing<QueuedFrame>(queueCapacity);
+        mFreeEntries = new FrameRing<QueuedFrame>(queueCapacity + 2);
+        for (int i = 0; i < queueCapacity + 2; i++) {
+            mFreeEntries.offer(new QueuedFrame());
+        }
+        mCodec.setCallback(mCodecCallback);
+    }
+
+    /**
+     * A frame waiting for the codec. The presentation time is kept here rather than in the frame,
+     * which may be shared with outputs that are not in step with this one
+     */
+    private static class QueuedFrame {
+        FrameBufferPool.Frame frame;
+        long presentationTimeUs;
+        // region of a shared frame to encode, null for the whole frame or a frame already packed
+        CropRegion crop;
+    }
+
+    private final EncoderCodec.Callback mCodecCallback = new EncoderCodec.Callback() {
+
+        @Override
+        public void onInputBufferAvailable(int index) {
+            // park the buffer until a frame is queued, never wait on the codec thread
+            parkInputIndex(index);
+            feedEncoder();
+        }
+
+        @Override
+        public void onOutputBufferAvailable(int index, SampleInfo info) {
+            if (handleOutputBuffer(index, info)) {
+                release();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            handleOutputFormatChanged(format);
+        }
+
+        @Override
+        public void onError(Exception e) {
+            notifyError(e);
+        }
+    };
+
+    private final Runnable mFeedEncoderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            feedEncoder();
+        }
+    };
+
+    @Override
+    protected void encodeFrame(YuvFrame frame, long presentationTimeUs) {
+        QueuedFrame queued = acquireEntry();
+        FrameBufferPool.Frame pooled = frame.shared;
+        if (pooled != null) {
+            // shared by the fan-out, scaled if needed when the codec thread copies it
+            pooled.getPool().retain(pooled);
+        } else {
+            pooled = mFramePool.acquire();
+        }
+        if (queued == null || pooled == null) {
+            mDropStats.record(FrameDropStats.STAGE_CAPTURE, FrameDropStats.REASON_NO_BUFFER);
+            mLatencyTracker.discard(presentationTimeUs);
+            recycleDroppedEntry(queued);
+            if (pooled != null) {
+                pooled.getPool().release(pooled);
+            }
+            return;
+        }
+        CropRegion crop = getCrop();
+        if (frame.shared == null) {
+            // the image has to be given back before the codec asks for input, so it is
+            // packed once into the pooled buffer and copied in bulk by the codec thread
+            pooled.size = packFrame(frame, crop, pooled.buffer);
+            crop = null;
+        }
+        queued.frame = pooled;
+        queued.crop = crop;
+        queued.presentationTimeUs = presentationTimeUs;
+        mLatencyTracker.stamp(presentationTimeUs, LatencyTracker.STAMP_ENQUEUED, System.nanoTime());
+
+        // the policy decides what to give up when the queue is full, only
+        // blockWithDeadline() ever waits and then for a bounded time
+        QueuedFrame dropped = mDropPolicy.offer(mFrameQueue, queued, mDropStats);
+        BitrateController controller = mBitrateController;
+        if (controller != null) {
+            controller.reportQueueFill(mFrameQueue.size(), mFrameQueue.capacity());
+        }
+        if (dropped != queued) {
+            scheduleFeedEncoder();
+        }
+        if (dropped != null) {
+            mLatencyTracker.discard(dropped.presentationTimeUs);
+            recycleDroppedEntry(dropped);
+        }
+    }
+
+    @Override
+    public void onEndOfStream() {
+        onCaptureEnded();
+        mCaptureSessionStopped = true;
+        // end of stream is queued by the codec thread once the frame queue has drained
+        scheduleFeedEncoder();
+    }
+
+    private void scheduleFeedEncoder() {
+        try {
+            mCodecExecutor.execute(mFeedEncoderRunnable);
+        } catch (RejectedExecutionException e) {
+            // the codec thread has quit, the stop timeout releases the codec and the queued frames
+        }
+    }
+
+    /**
+     * Pairs queued frames with parked codec input buffers. Runs on the codec thread only.
+     * Once the capture session is closed and the queue is empty, end of stream is queued.
+     */
+    private void feedEncoder() {
+        if (mEndOfStreamQueued || isReleased()) {
+            return;
+        }
+
+        while (mParkedInputCount > 0) {
+            QueuedFrame queued = mFrameQueue.poll();
+            if (queued == null) {
+                if (mCaptureSessionStopped) {
+                    mCodec.queueInputBuffer(unparkInputIndex(), 0, 0, mLastQueuedPtsUs + 1, SampleInfo.FLAG_END_OF_STREAM);
+                    mEndOfStreamQueued = true;
+                }
+                return;
+            }
+
+            long ptsUs = queued.presentationTimeUs;
+            mLatencyTracker.stamp(ptsUs, LatencyTracker.STAMP_DEQUEUED, System.nanoTime());
+            int index = unparkInputIndex();
+            ByteBuffer input = mCodec.getInputBuffer(index);
+            input.clear();
+            int size = packFrame(queued.frame.describe(mScaleSource), queued.crop, input);
+            mScaleSource.clear();
+            mLatencyTracker.stamp(ptsUs, LatencyTracker.STAMP_CODEC_INPUT, System.nanoTime());
+            requestScheduledSyncFrame(ptsUs);
+            mCodec.queueInputBuffer(index, 0, size, ptsUs, 0);
+            mLastQueuedPtsUs = ptsUs;
+            releaseFrame(queued);
+            mFreeEntries.offer(queued);
+        }
+    }
+
+    /**
+     * @return QueuedFrame a free queue entry, or null if every entry is in use. Capture thread only
+     */
+    private QueuedFrame acquireEntry() {
+        QueuedFrame queued = mSpareEntry;
+        if (queued != null) {
+            mSpareEntry = null;
+            return queued;
+        }
+        return mFreeEntries.poll();
+    }
+
+    /**
+     * Gives back the frame of an entry dropped on the capture thread, and keeps the entry as the
+     * spare of the capture thread: only the codec thread gives entries back to the free ring. A
+     * call gets at most one entry back after acquireEntry() took the spare
+     * @param queued QueuedFrame dropped on the capture thread, may be null
+     */
+    private void recycleDroppedEntry(QueuedFrame queued) {
+        if (queued == null) {
+            return;
+        }
+        releaseFrame(queued);
+        mSpareEntry = queued;
+    }
+
+    /**
+     * Gives the frame of a queue entry back to the pool it came from
+     * @param queued QueuedFrame holding the frame
+     */
+    private static void releaseFrame(QueuedFrame queued) {
+        FrameBufferPool.Frame frame = queued.frame;
+        queued.frame = null;
+        queued.crop = null;
+        if (frame != null) {
+            frame.getPool().release(frame);
+        }
+    }
+
+    /**
+     * Utility to remember a codec input buffer that has no frame to fill it yet
+     * @param index int index of the input buffer reported by the codec
+     */
+    private void parkInputIndex(int index) {
+        if (mParkedInputCount == mParkedInputIndices.length) {
+            throw new IllegalStateException("more than " + MAX_INPUT_BUFFERS + " codec input buffers parked");
+        }
+        mParkedInputIndices[(mParkedInputHead + mParkedInputCount) % mParkedInputIndices.length] = index;
+        mParkedInputCount++;
+    }
+
+    /**
+     * @return int the oldest parked codec input buffer index
+     */
+    private int unparkInputIndex() {
+        int index = mParkedInputIndices[mParkedInputHead];
+        mParkedInputHead = (mParkedInputHead + 1) % mParkedInputIndices.length;
+        mParkedInputCount--;
+        return index;
+    }
+
+    /**
+     * Releases the codec on its callback thread after a stop timeout, where the frames are fed, or
+     * on the calling thread if that thread has quit and nothing calls into the codec anymore
+     * @param task Runnable to run
+     */
+    @Override
+    protected void runOnCodecThread(Runnable task) {
+        try {
+            mCodecExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * Gives the frames still queued back to the pool, and reports the frames never returned
+     */
+    @Override
+    protected void onRelease() {
+        QueuedFrame queued;
+        while ((queued = mFrameQueue.poll()) != null) {
+            releaseFrame(queued);
+        }
+        int leaked = mFramePool.close();
+        if (leaked != 0) {
+            Log.w(TAG, leaked + " frame buffers never returned to the pool: " + mFramePool);
+        }
+        mParkedInputCount = 0;
+    }
+
+    /**
+     * @return FrameBufferPool holding the frames waiting for the codec
+     */
+    public FrameBufferPool getFramePool() {
+        return mFramePool;
+    }
+}
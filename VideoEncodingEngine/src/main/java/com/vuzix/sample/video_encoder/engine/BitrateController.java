@@ -0,0 +1,251 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+/**
+ * Closed loop control of the encoder bitrate from the health of the pipeline.
+ *
+ * The stages report what they see: the fill of the frame and writer queues, the time frames spend
+ * in the codec, how fast the storage writes and, when streaming, what the sink manages to send.
+ * evaluate() turns the reports of the last interval into a target bitrate within [min, max]:
+ *
+ * - congestion, any queue more than HIGH_FILL full, the codec slower than the target latency or
+ *   the storage or sink unable to keep up with the bitrate plus a margin, cuts the bitrate by
+ *   DECREASE_FACTOR, or straight to the measured capacity when that is lower. No further cut is
+ *   made for DECREASE_HOLD_NS, the time the encoder rate control needs to follow.
+ * - a clear pipeline, every queue below LOW_FILL and the codec and outputs well within their
+ *   limits, raises the bitrate by INCREASE_STEP of the maximum once it has stayed clear for
+ *   INCREASE_DELAY_NS.
+ * - anything in between, the hysteresis band, keeps the bitrate.
+ *
+ * Signals that were not reported during an interval are left out, so a pipeline without a writer
+ * queue or a sink is controlled by the others. The controller has no android dependency and
+ * takes the time as a parameter, so it can be driven by recorded or simulated metrics.
+ *
+ * Thread safe, the stages report from their own threads.
+ */
+public class BitrateController {
+
+    // queue fill above which the pipeline is congested, and below which it is clear
+    private static final double HIGH_FILL = 0.5;
+    private static final double LOW_FILL = 0.2;
+    // capacity the storage or sink must have over the bitrate, when congested and when clear
+    private static final double CONGESTED_MARGIN = 1.1;
+    private static final double CLEAR_MARGIN = 1.5;
+    // fraction of the measured capacity used when cutting to it
+    private static final double CAPACITY_SHARE = 0.8;
+
+    private static final double DECREASE_FACTOR = 0.75;
+    private static final double INCREASE_STEP = 0.05;
+    private static final long EVALUATE_INTERVAL_NS = 500000000L;
+    private static final long DECREASE_HOLD_NS = 1000000000L;
+    private static final long INCREASE_DELAY_NS = 5000000000L;
+
+    private static final long DEFAULT_TARGET_LATENCY_NS = 100000000L;
+
+    private final int mMinBitRate;
+    private final int mMaxBitRate;
+    private long mTargetLatencyNs = DEFAULT_TARGET_LATENCY_NS;
+    private int mBitRate;
+
+    // reports of the current interval
+    private double mQueueFill = -1;
+    private long mLatencyNs = -1;
+    private long mWriteBytes;
+    private long mWriteNs;
+    private long mSinkBitRate = -1;
+
+    private long mIntervalStartNs = -1;
+    private long mHoldUntilNs;
+    private long mClearSinceNs = -1;
+
+    private long mDecreaseCount;
+    private long mIncreaseCount;
+
+    /**
+     * @param minBitRate int lowest bitrate the controller goes down to
+     * @param maxBitRate int highest bitrate, usually the one the encoder was configured with
+     * @param initialBitRate int bitrate the encoder starts with
+     */
+    public BitrateController(int minBitRate, int maxBitRate, int initialBitRate) {
+        if (minBitRate <= 0 || maxBitRate < minBitRate) {
+            throw new IllegalArgumentException("invalid bitrate range " + minBitRate + "-" + maxBitRate);
+        }
+        mMinBitRate = minBitRate;
+        mMaxBitRate = maxBitRate;
+        mBitRate = Math.max(minBitRate, Math.min(maxBitRate, initialBitRate));
+    }
+
+    /**
+     * @param targetLatencyNs long time a frame may spend in the codec before the pipeline counts as congested
+     */
+    public synchronized void setTargetLatencyNs(long targetLatencyNs) {
+        mTargetLatencyNs = targetLatencyNs;
+    }
+
+    /**
+     * Reports the fill of a queue, the fullest queue of the interval counts
+     * @param size int elements in the queue
+     * @param capacity int capacity of the queue
+     */
+    public synchronized void reportQueueFill(int size, int capacity) {
+        if (capacity > 0) {
+            mQueueFill = Math.max(mQueueFill, (double) size / capacity);
+        }
+    }
+
+    /**
+     * Reports the time one frame spent in the codec, the slowest frame of the interval counts
+     * @param latencyNs long nanoseconds from codec input to codec output
+     */
+    public synchronized void reportEncodeLatency(long latencyNs) {
+        mLatencyNs = Math.max(mLatencyNs, latencyNs);
+    }
+
+    /**
+     * Reports a write to the storage, the capacity of the storage is the bytes over the time
+     * spent writing during the interval
+     * @param bytes long bytes written
+     * @param durationNs long time the write took
+     */
+    public synchronized void reportWrite(long bytes, long durationNs) {
+        mWriteBytes += bytes;
+        mWriteNs += durationNs;
+    }
+
+    /**
+     * Reports the rate a streaming sink achieves, the lowest report of the interval counts
+     * @param bitRate long bits per second sent
+     */
+    public synchronized void reportSinkBitRate(long bitRate) {
+        mSinkBitRate = mSinkBitRate < 0 ? bitRate : Math.min(mSinkBitRate, bitRate);
+    }
+
+    /**
+     * Ends the current interval if it is over and updates the bitrate from its reports. Can be
+     * called for every frame, it only evaluates every EVALUATE_INTERVAL_NS
+     * @param nowNs long current time in nanoseconds
+     * @return true if the bitrate changed and has to be applied to the encoder
+     */
+    public synchronized boolean evaluate(long nowNs) {
+        if (mIntervalStartNs < 0) {
+            mIntervalStartNs = nowNs;
+            return false;
+        }
+        if (nowNs - mIntervalStartNs < EVALUATE_INTERVAL_NS) {
+            return false;
+        }
+        mIntervalStartNs = nowNs;
+
+        long capacity = -1;
+        if (mWriteNs > 0) {
+            capacity = (long) (mWriteBytes * 8 * 1e9 / mWriteNs);
+        }
+        if (mSinkBitRate >= 0) {
+            capacity = capacity < 0 ? mSinkBitRate : Math.min(capacity, mSinkBitRate);
+        }
+
+        boolean congested = mQueueFill > HIGH_FILL
+                || mLatencyNs > mTargetLatencyNs
+                || (capacity >= 0 && capacity < mBitRate * CONGESTED_MARGIN);
+        boolean clear = mQueueFill < LOW_FILL
+                && mLatencyNs < mTargetLatencyNs / 2
+                && (capacity < 0 || capacity >= mBitRate * CLEAR_MARGIN);
+
+        mQueueFill = -1;
+        mLatencyNs = -1;
+        mWriteBytes = 0;
+        mWriteNs = 0;
+        mSinkBitRate = -1;
+
+        int bitRate = mBitRate;
+        if (congested) {
+            mClearSinceNs = -1;
+            if (nowNs >= mHoldUntilNs) {
+                long target = (long) (mBitRate * DECREASE_FACTOR);
+                if (capacity >= 0) {
+                    target = Math.min(target, (long) (capacity * CAPACITY_SHARE));
+                }
+                bitRate = (int) Math.max(mMinBitRate, target);
+                mHoldUntilNs = nowNs + DECREASE_HOLD_NS;
+            }
+        } else if (clear) {
+            if (mClearSinceNs < 0) {
+                mClearSinceNs = nowNs;
+            } else if (nowNs - mClearSinceNs >= INCREASE_DELAY_NS) {
+                bitRate = (int) Math.min(mMaxBitRate, mBitRate + (long) (mMaxBitRate * INCREASE_STEP));
+                mClearSinceNs = nowNs;
+            }
+        } else {
+            mClearSinceNs = -1;
+        }
+
+        if (bitRate == mBitRate) {
+            return false;
+        }
+        if (bitRate < mBitRate) {
+            mDecreaseCount++;
+        } else {
+            mIncreaseCount++;
+        }
+        mBitRate = bitRate;
+        return true;
+    }
+
+    /**
+     * @return int current target bitrate in bits per second
+     */
+    public synchronized int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * @return long number of times the bitrate was lowered
+     */
+    public synchronized long getDecreaseCount() {
+        return mDecreaseCount;
+    }
+
+    /**
+     * @return long number of times the bitrate was raised
+     */
+    public synchronized long getIncreaseCount() {
+        return mIncreaseCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mBitRate / 1000 + "kbps (" + mMinBitRate / 1000 + "-" + mMaxBitRate / 1000 + "), "
+                + mDecreaseCount + " decreases, " + mIncreaseCount + " increases";
+    }
+}
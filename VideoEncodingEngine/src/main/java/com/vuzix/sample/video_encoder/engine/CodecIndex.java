@@ -0,0 +1,365 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The capabilities of the encoders installed on the device, gathered once and kept as plain data.
+ *
+ * Enumerating MediaCodecList and asking every codec for its capabilities takes tens to hundreds
+ * of milliseconds and used to happen each time a recording started. CodecSelector builds the
+ * index once, saves it in the app storage with write() and later loads it back with read(),
+ * which is only a small file read. The index is tagged with the build fingerprint of the OS,
+ * since the codecs only change with a system update. This class has no android dependency.
+ *
+ * The frame rates measured by EncoderCalibration are kept and saved along with the entries, so
+ * rankEncoders() can prefer the encoders that actually keep up. The entries are immutable and
+ * measurements may be added from any thread, so the index is safe to share between threads.
+ */
+public class CodecIndex {
+
+    private static final String HEADER = "codec-index 2";
+    private static final String CALIBRATION = "calibration";
+
+    /**
+     * What one encoder supports for one mime type
+     */
+    public static class Entry {
+        /** Name to create the codec with */
+        public final String name;
+        /** Mime type the capabilities apply to */
+        public final String mimeType;
+        /** True if the codec runs on dedicated hardware */
+        public final boolean hardware;
+        /** Supported values of MediaFormat.KEY_COLOR_FORMAT */
+        public final int[] colorFormats;
+        /** Supported profiles and levels, as pairs: profile, level, profile, level... */
+        public final int[] profileLevels;
+        /** Supported MediaFormat.KEY_BITRATE_MODE values, bit n set for mode n */
+        public final int bitrateModes;
+        /** Largest supported width in pixels */
+        public final int maxWidth;
+        /** Largest supported height in pixels */
+        public final int maxHeight;
+        /** Highest supported frame rate */
+        public final int maxFrameRate;
+        /** Highest supported bitrate in bits per second */
+        public final int maxBitRate;
+
+        /**
+         * Describes one encoder, each parameter sets the field of the same name
+         */
+        public Entry(String name, String mimeType, boolean hardware, int[] colorFormats, int[] profileLevels,
+                     int bitrateModes, int maxWidth, int maxHeight, int maxFrameRate, int maxBitRate) {
+            this.name = name;
+            this.mimeType = mimeType;
+            this.hardware = hardware;
+            this.colorFormats = colorFormats;
+            this.profileLevels = profileLevels;
+            this.bitrateModes = bitrateModes;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.maxFrameRate = maxFrameRate;
+            this.maxBitRate = maxBitRate;
+        }
+
+        /**
+         * @param colorFormat int MediaFormat.KEY_COLOR_FORMAT value
+         * @return true if the encoder accepts it
+         */
+        public boolean supportsColorFormat(int colorFormat) {
+            for (int supported : colorFormats) {
+                if (supported == colorFormat) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @param bitrateMode int MediaFormat.KEY_BITRATE_MODE value
+         * @return true if the encoder supports it
+         */
+        public boolean supportsBitrateMode(int bitrateMode) {
+            return (bitrateModes & (1 << bitrateMode)) != 0;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + mimeType + (hardware ? " hw " : " sw ") + maxWidth + "x" + maxHeight
+                    + "@" + maxFrameRate + " " + maxBitRate / 1000 + "kbps";
+        }
+    }
+
+    private final String mFingerprint;
+    private final List<Entry> mEntries;
+    // measured frame rates by encoder name and size
+    private final Map<String, Float> mMeasuredFrameRates = new HashMap<>();
+
+    /**
+     * @param fingerprint String build fingerprint of the OS the index describes
+     * @param entries List of the encoder capabilities
+     */
+    public CodecIndex(String fingerprint, List<Entry> entries) {
+        mFingerprint = fingerprint;
+        mEntries = Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    /**
+     * @return String build fingerprint of the OS the index describes
+     */
+    public String getFingerprint() {
+        return mFingerprint;
+    }
+
+    /**
+     * @return List of every encoder and mime type pair
+     */
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Looks up an encoder by name
+     * @param mimeType String mime type to encode
+     * @param encoderName String name of the wanted encoder
+     * @return Entry matching both, ignoring case, or null
+     */
+    public Entry find(String mimeType, String encoderName) {
+        for (Entry entry : mEntries) {
+            if (entry.mimeType.equalsIgnoreCase(mimeType) && entry.name.equalsIgnoreCase(encoderName)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param mimeType String mime type to encode
+     * @return List of the encoders of the mime type, in the order of MediaCodecList
+     */
+    public List<Entry> findEncoders(String mimeType) {
+        List<Entry> encoders = new ArrayList<>();
+        for (Entry entry : mEntries) {
+            if (entry.mimeType.equalsIgnoreCase(mimeType)) {
+                encoders.add(entry);
+            }
+        }
+        return encoders;
+    }
+
+    /**
+     * Records the frame rate an encoder sustained at a size
+     * @param encoderName String name of the encoder
+     * @param width int width of the frames in pixels
+     * @param height int height of the frames in pixels
+     * @param frameRate float frames per second measured, 0 if the encoder failed
+     */
+    public synchronized void setMeasuredFrameRate(String encoderName, int width, int height, float frameRate) {
+        mMeasuredFrameRates.put(calibrationKey(encoderName, width, height), frameRate);
+    }
+
+    /**
+     * @param encoderName String name of the encoder
+     * @param width int width of the frames in pixels
+     * @param height int height of the frames in pixels
+     * @return float frames per second measured at that size, or -1 if never measured
+     */
+    public synchronized float getMeasuredFrameRate(String encoderName, int width, int height) {
+        Float frameRate = mMeasuredFrameRates.get(calibrationKey(encoderName, width, height));
+        return frameRate != null ? frameRate : -1;
+    }
+
+    private static String calibrationKey(String encoderName, int width, int height) {
+        return encoderName + "\t" + width + "\t" + height;
+    }
+
+    /**
+     * Orders the encoders of a mime type from the most to the least suitable for a recording:
+     * the ones supporting the color format, size and frame rate first, then the ones measured to
+     * keep up with the frame rate, then the ones not yet measured, then hardware ones, then the
+     * fastest measured. Encoders equal on all of these keep the order of MediaCodecList
+     * @param mimeType String mime type to encode
+     * @param width int width of the video in pixels
+     * @param height int height of the video in pixels
+     * @param frameRate int frame rate of the recording
+     * @param colorFormat int MediaFormat.KEY_COLOR_FORMAT the frames are delivered in
+     * @return List of the encoders of the mime type, the best first
+     */
+    public List<Entry> rankEncoders(String mimeType, final int width, final int height, final int frameRate,
+                                    final int colorFormat) {
+        List<Entry> encoders = findEncoders(mimeType);
+        final Map<Entry, Float> measured = new HashMap<>();
+        for (Entry entry : encoders) {
+            measured.put(entry, getMeasuredFrameRate(entry.name, width, height));
+        }
+        Collections.sort(encoders, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                int result = Boolean.compare(supports(b), supports(a));
+                if (result == 0) {
+                    result = Integer.compare(speed(b), speed(a));
+                }
+                if (result == 0) {
+                    result = Boolean.compare(b.hardware, a.hardware);
+                }
+                if (result == 0) {
+                    result = Float.compare(measured.get(b), measured.get(a));
+                }
+                return result;
+            }
+
+            private boolean supports(Entry entry) {
+                // either orientation, the limits of some encoders are given for landscape only
+                boolean fits = (width <= entry.maxWidth && height <= entry.maxHeight)
+                        || (height <= entry.maxWidth && width <= entry.maxHeight);
+                return fits && entry.maxFrameRate >= frameRate && entry.supportsColorFormat(colorFormat);
+            }
+
+            /**
+             * @return int 2 if measured to keep up, 1 if not measured, 0 if measured too slow
+             */
+            private int speed(Entry entry) {
+                float frameRateMeasured = measured.get(entry);
+                if (frameRateMeasured < 0) {
+                    return 1;
+                }
+                return frameRateMeasured >= frameRate ? 2 : 0;
+            }
+        });
+        return encoders;
+    }
+
+    /**
+     * Saves the index, one line per entry with tab separated fields, followed by one line per
+     * measured frame rate
+     * @param writer Writer receiving the index
+     * @throws IOException if the index cannot be written
+     */
+    public synchronized void write(Writer writer) throws IOException {
+        writer.write(HEADER + "\n");
+        writer.write(mFingerprint + "\n");
+        for (Entry entry : mEntries) {
+            writer.write(entry.name + "\t" + entry.mimeType + "\t" + (entry.hardware ? 1 : 0)
+                    + "\t" + join(entry.colorFormats) + "\t" + join(entry.profileLevels)
+                    + "\t" + entry.bitrateModes + "\t" + entry.maxWidth + "\t" + entry.maxHeight
+                    + "\t" + entry.maxFrameRate + "\t" + entry.maxBitRate + "\n");
+        }
+        for (Map.Entry<String, Float> calibration : mMeasuredFrameRates.entrySet()) {
+            writer.write(CALIBRATION + "\t" + calibration.getKey() + "\t" + calibration.getValue() + "\n");
+        }
+    }
+
+    /**
+     * Loads an index saved by write()
+     * @param reader Reader providing the index
+     * @return CodecIndex read, or null if the data is not a complete index
+     * @throws IOException if the index cannot be read
+     */
+    public static CodecIndex read(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        if (!HEADER.equals(lines.readLine())) {
+            return null;
+        }
+        String fingerprint = lines.readLine();
+        if (fingerprint == null) {
+            return null;
+        }
+        List<Entry> entries = new ArrayList<>();
+        Map<String, Float> calibrations = new HashMap<>();
+        String line;
+        while ((line = lines.readLine()) != null) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length == 5 && CALIBRATION.equals(fields[0])) {
+                try {
+                    calibrations.put(calibrationKey(fields[1], Integer.parseInt(fields[2]), Integer.parseInt(fields[3])),
+                            Float.parseFloat(fields[4]));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                continue;
+            }
+            if (fields.length != 10) {
+                return null;
+            }
+            try {
+                entries.add(new Entry(fields[0], fields[1], "1".equals(fields[2]), split(fields[3]),
+                        split(fields[4]), Integer.parseInt(fields[5]), Integer.parseInt(fields[6]),
+                        Integer.parseInt(fields[7]), Integer.parseInt(fields[8]), Integer.parseInt(fields[9])));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        CodecIndex index = new CodecIndex(fingerprint, entries);
+        index.mMeasuredFrameRates.putAll(calibrations);
+        return index;
+    }
+
+    private static String join(int[] values) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(values[i]);
+        }
+        return builder.toString();
+    }
+
+    private static int[] split(String values) {
+        if (values.isEmpty()) {
+            return new int[0];
+        }
+        String[] fields = values.split(",");
+        int[] result = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            result[i] = Integer.parseInt(fields[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mEntries.size() + " encoders, " + mMeasuredFrameRates.size() + " calibrations for " + mFingerprint;
+    }
+}
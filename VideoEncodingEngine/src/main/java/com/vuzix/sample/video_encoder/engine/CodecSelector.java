@@ -0,0 +1,252 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Looks up the encoders installed on the device.
+ *
+ * getIndex() keeps a CodecIndex for the whole process, loaded from the app storage when it was
+ * saved on the same OS build, and otherwise built from MediaCodecList and saved for the next
+ * start. Call it early, off the UI thread, so that starting a recording never enumerates codecs.
+ * calibrate() then measures the encoders at the recording size once per OS build, so that
+ * CodecIndex.rankEncoders() can pick the encoder instead of a hard-coded name.
+ */
+public class CodecSelector {
+
+    private static final String TAG = "MediaCodec_App";
+    private static final String INDEX_FILE = "codec_index.txt";
+    // about a second of video, enough for the encoder to settle
+    private static final int CALIBRATION_FRAMES = 30;
+    private static final long CALIBRATION_TIMEOUT_MS = 3000;
+
+    private static CodecIndex sIndex;
+    private static final Object sCalibrationLock = new Object();
+
+    private CodecSelector() {
+    }
+
+    /**
+     * Returns the codec index of the process, loading or building it on the first call
+     * @param context Context giving access to the app storage
+     * @return CodecIndex of the encoders installed on the device
+     */
+    public static synchronized CodecIndex getIndex(Context context) {
+        if (sIndex != null) {
+            return sIndex;
+        }
+        long startNs = System.nanoTime();
+        File file = new File(context.getFilesDir(), INDEX_FILE);
+        CodecIndex index = loadIndex(file);
+        if (index != null && Build.FINGERPRINT.equals(index.getFingerprint())) {
+            Log.d(TAG, "codec index loaded in " + (System.nanoTime() - startNs) / 1000 + "us: " + index);
+        } else {
+            index = buildIndex();
+            Log.d(TAG, "codec index built in " + (System.nanoTime() - startNs) / 1000 + "us: " + index);
+            saveIndex(index, file);
+        }
+        sIndex = index;
+        return index;
+    }
+
+    /**
+     * Measures the frame rate of the encoders of a mime type that have not been measured at this
+     * size on this OS build, and saves the results with the index. The first time this takes up
+     * to a few seconds per encoder, call it from a background thread, before the app creates any
+     * other encoder: a rate measured while another encoder runs is kept until the next system
+     * update. An encoder that cannot be created or fails the run is left unmeasured and tried
+     * again next time, since it may only have been busy
+     * @param context Context giving access to the app storage
+     * @param mimeType String mime type to encode
+     * @param width int width of the video in pixels
+     * @param height int height of the video in pixels
+     * @param frameRate int frame rate of the recording
+     * @param bitRate int bitrate of the recording in bits per second
+     */
+    public static void calibrate(Context context, String mimeType, int width, int height, int frameRate, int bitRate) {
+        CodecIndex index = getIndex(context);
+        synchronized (sCalibrationLock) {
+            boolean measured = false;
+            for (CodecIndex.Entry entry : index.findEncoders(mimeType)) {
+                if (index.getMeasuredFrameRate(entry.name, width, height) >= 0
+                        || !entry.supportsColorFormat(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar)
+                        || width > entry.maxWidth || height > entry.maxHeight) {
+                    continue;
+                }
+                MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
+                format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar);
+                format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+                format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+                format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+                EncoderCodec codec = null;
+                try {
+                    codec = new MediaCodecEncoder(entry.name, null);
+                    float measuredFrameRate = EncoderCalibration.measureFrameRate(codec, format, width, height,
+                            CALIBRATION_FRAMES, CALIBRATION_TIMEOUT_MS);
+                    Log.d(TAG, "calibrated " + entry.name + " at " + width + "x" + height + ": "
+                            + measuredFrameRate + "fps");
+                    index.setMeasuredFrameRate(entry.name, width, height, measuredFrameRate);
+                    measured = true;
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "can not calibrate " + entry.name, e);
+                } finally {
+                    if (codec != null) {
+                        codec.release();
+                    }
+                }
+            }
+            if (measured) {
+                saveIndex(index, new File(context.getFilesDir(), INDEX_FILE));
+            }
+        }
+    }
+
+    /**
+     * Enumerates the encoders and their capabilities, walking MediaCodecList
+     * @return CodecIndex of every video encoder installed on the device
+     */
+    public static CodecIndex buildIndex() {
+        List<CodecIndex.Entry> entries = new ArrayList<>();
+        for (MediaCodecInfo codecInfo : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (!codecInfo.isEncoder()) {
+                continue;
+            }
+            for (String type : codecInfo.getSupportedTypes()) {
+                MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(type);
+                MediaCodecInfo.VideoCapabilities video = capabilities.getVideoCapabilities();
+                if (video == null) {
+                    continue;
+                }
+                int[] profileLevels = new int[capabilities.profileLevels.length * 2];
+                for (int i = 0; i < capabilities.profileLevels.length; i++) {
+                    profileLevels[2 * i] = capabilities.profileLevels[i].profile;
+                    profileLevels[2 * i + 1] = capabilities.profileLevels[i].level;
+                }
+                int bitrateModes = 0;
+                MediaCodecInfo.EncoderCapabilities encoder = capabilities.getEncoderCapabilities();
+                for (int mode = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ;
+                     mode <= MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR; mode++) {
+                    if (encoder != null && encoder.isBitrateModeSupported(mode)) {
+                        bitrateModes |= 1 << mode;
+                    }
+                }
+                Range<Integer> frameRates = video.getSupportedFrameRates();
+                entries.add(new CodecIndex.Entry(codecInfo.getName(), type, isHardware(codecInfo),
+                        capabilities.colorFormats.clone(), profileLevels, bitrateModes,
+                        video.getSupportedWidths().getUpper(), video.getSupportedHeights().getUpper(),
+                        frameRates.getUpper(), video.getBitrateRange().getUpper()));
+            }
+        }
+        return new CodecIndex(Build.FINGERPRINT, entries);
+    }
+
+    private static boolean isHardware(MediaCodecInfo codecInfo) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return codecInfo.isHardwareAccelerated();
+        }
+        String name = codecInfo.getName().toLowerCase();
+        return !name.startsWith("omx.google.") && !name.startsWith("c2.android.");
+    }
+
+    private static CodecIndex loadIndex(File file) {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            return CodecIndex.read(reader);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "can not read the codec index", e);
+            return null;
+        }
+    }
+
+    private static void saveIndex(CodecIndex index, File file) {
+        // written aside and renamed, so that a crash never leaves a truncated index behind
+        File temporary = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), StandardCharsets.UTF_8)) {
+            index.write(writer);
+        } catch (IOException e) {
+            Log.e(TAG, "can not save the codec index", e);
+            return;
+        }
+        if (!temporary.renameTo(file)) {
+            Log.e(TAG, "can not save the codec index to " + file);
+        }
+    }
+
+    /**
+     * Utility to converts the mime type string into a codec info class. Walks the whole codec
+     * list, getIndex() is the fast path
+     * @param mimeType String codec identifier
+     * @param encoderName String name of the wanted encoder
+     * @return MediaCodecInfo matching selected mimeType and name, or null
+     */
+    public static MediaCodecInfo selectCodec(String mimeType, String encoderName) {
+        int numCodecs = MediaCodecList.getCodecCount();
+        for (int i = 0; i < numCodecs; i++) {
+            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+
+            if (!codecInfo.isEncoder()) {
+                continue;
+            }
+
+            String[] types = codecInfo.getSupportedTypes();
+            String codecName = codecInfo.getName();
+            for (String type : types) {
+                if (type.equalsIgnoreCase(mimeType) && codecName.equalsIgnoreCase(encoderName)) {
+                    return codecInfo;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,116 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+/**
+ * A rectangle of the camera frame to encode in place of the whole frame, for digital zoom and
+ * regions of interest. The region is scaled to the size of the video, so one with another
+ * aspect ratio than the video is stretched; zoom() keeps the aspect ratio of the frame.
+ *
+ * The edges are rounded down to even coordinates so the region starts and ends on whole chroma
+ * samples. Instances are immutable: a new region is handed from the UI thread to the capture
+ * thread by replacing a reference, see EncoderDriver.setCrop().
+ */
+public final class CropRegion {
+
+    /** Left edge in pixels, even */
+    public final int x;
+    /** Top edge in pixels, even */
+    public final int y;
+    /** Width in pixels, even */
+    public final int width;
+    /** Height in pixels, even */
+    public final int height;
+
+    /**
+     * @param x int left edge in pixels, rounded down to even
+     * @param y int top edge in pixels, rounded down to even
+     * @param width int width in pixels, rounded down to even, at least 2
+     * @param height int height in pixels, rounded down to even, at least 2
+     */
+    public CropRegion(int x, int y, int width, int height) {
+        this.x = x & ~1;
+        this.y = y & ~1;
+        this.width = width & ~1;
+        this.height = height & ~1;
+        if (this.x < 0 || this.y < 0 || this.width < 2 || this.height < 2) {
+            throw new IllegalArgumentException("invalid crop " + width + "x" + height + "+" + x + "+" + y);
+        }
+    }
+
+    /**
+     * Creates the region shown by a digital zoom, with the aspect ratio of the frame. The region
+     * is moved inside the frame when the centre is too close to an edge for the zoom
+     * @param frameWidth int width of the camera frames in pixels
+     * @param frameHeight int height of the camera frames in pixels
+     * @param factor float magnification, 1 for the whole frame
+     * @param centreX float horizontal centre of the region, 0 to 1 across the frame
+     * @param centreY float vertical centre of the region, 0 to 1 down the frame
+     * @return CropRegion region of the frame to encode
+     */
+    public static CropRegion zoom(int frameWidth, int frameHeight, float factor, float centreX, float centreY) {
+        if (factor < 1) {
+            throw new IllegalArgumentException("invalid zoom " + factor);
+        }
+        int width = Math.max(2, Math.round(frameWidth / factor)) & ~1;
+        int height = Math.max(2, Math.round(frameHeight / factor)) & ~1;
+        int x = Math.round(centreX * frameWidth - width / 2f);
+        int y = Math.round(centreY * frameHeight - height / 2f);
+        x = Math.max(0, Math.min(frameWidth - width, x));
+        y = Math.max(0, Math.min(frameHeight - height, y));
+        return new CropRegion(x, y, width, height);
+    }
+
+    /**
+     * @param frameWidth int width of a frame in pixels
+     * @param frameHeight int height of a frame in pixels
+     * @return true if the region lies within a frame of that size
+     */
+    public boolean fits(int frameWidth, int frameHeight) {
+        return x + width <= frameWidth && y + height <= frameHeight;
+    }
+
+    /**
+     * @param frameWidth int width of a frame in pixels
+     * @param frameHeight int height of a frame in pixels
+     * @return true if the region is the whole of a frame of that size
+     */
+    public boolean isFullFrame(int frameWidth, int frameHeight) {
+        return x == 0 && y == 0 && width == frameWidth && height == frameHeight;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + "+" + x + "+" + y;
+    }
+}
@@ -0,0 +1,122 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Measures how many frames per second an encoder sustains at a given size.
+ *
+ * The encoder is configured for ByteBuffer input and fed synthetic NV12 frames as fast as it
+ * takes them, through the synchronous API, until all of them have come out or the time limit is
+ * reached. The frames are noise shifted by a few pixels each time, so motion search and entropy
+ * coding do real work rather than skipping identical frames. The result is what the encoder
+ * manages on its own, an upper bound for a recording that also captures and writes.
+ */
+public final class EncoderCalibration {
+
+    // presentation time step of the synthetic frames
+    private static final long FRAME_INTERVAL_US = 1000000 / 30;
+    private static final long INPUT_TIMEOUT_USEC = 1000;
+    private static final long OUTPUT_TIMEOUT_USEC = 1000;
+    // horizontal shift between two frames
+    private static final int MOTION_PIXELS = 8;
+
+    private EncoderCalibration() {
+    }
+
+    /**
+     * Encodes frameCount frames and measures the throughput. The codec is configured, started and
+     * stopped, releasing it is up to the caller
+     * @param codec EncoderCodec to measure, not configured, used without a callback
+     * @param format MediaFormat of the measurement, with COLOR_FormatYUV420SemiPlanar input
+     * @param width int width of the frames in pixels
+     * @param height int height of the frames in pixels
+     * @param frameCount int number of frames to encode
+     * @param timeoutMs long time after which the measurement ends with the frames encoded so far
+     * @return float frames encoded per second
+     */
+    public static float measureFrameRate(EncoderCodec codec, MediaFormat format, int width, int height,
+                                         int frameCount, long timeoutMs) {
+        int frameSize = YuvPacker.packedSize(width, height);
+        // one frame of noise plus the shift of every frame, each frame is a window into it
+        byte[] pattern = new byte[frameSize + MOTION_PIXELS * frameCount];
+        new Random(frameSize).nextBytes(pattern);
+
+        codec.configure(format);
+        codec.start();
+        try {
+            SampleInfo info = new SampleInfo();
+            long startNs = System.nanoTime();
+            long deadlineNs = startNs + timeoutMs * 1000000;
+            int queued = 0;
+            int encoded = 0;
+            boolean endOfStreamQueued = false;
+            while (System.nanoTime() < deadlineNs) {
+                if (!endOfStreamQueued) {
+                    int index = codec.dequeueInputBuffer(INPUT_TIMEOUT_USEC);
+                    if (index >= 0) {
+                        ByteBuffer input = codec.getInputBuffer(index);
+                        input.clear();
+                        if (queued < frameCount) {
+                            input.put(pattern, queued * MOTION_PIXELS, frameSize);
+                            codec.queueInputBuffer(index, 0, frameSize, queued * FRAME_INTERVAL_US, 0);
+                            queued++;
+                        } else {
+                            codec.queueInputBuffer(index, 0, 0, queued * FRAME_INTERVAL_US,
+                                    SampleInfo.FLAG_END_OF_STREAM);
+                            endOfStreamQueued = true;
+                        }
+                    }
+                }
+                int index = codec.dequeueOutputBuffer(info, OUTPUT_TIMEOUT_USEC);
+                if (index >= 0) {
+                    if (info.size > 0 && (info.flags & SampleInfo.FLAG_CODEC_CONFIG) == 0) {
+                        encoded++;
+                    }
+                    codec.releaseOutputBuffer(index);
+                    if ((info.flags & SampleInfo.FLAG_END_OF_STREAM) != 0) {
+                        break;
+                    }
+                }
+            }
+            long elapsedNs = Math.max(1, System.nanoTime() - startNs);
+            return encoded * 1e9f / elapsedNs;
+        } finally {
+            codec.stop();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The part of MediaCodec used by the encoder drivers.
+ *
+ * MediaCodecEncoder forwards to the platform codec; a stand-in implementation lets the drivers run
+ * and be measured on a plain JVM. As with MediaCodec, the callback is either set before configure()
+ * to use the codec asynchronously, or not at all and the buffers are dequeued by polling.
+ */
+public interface EncoderCodec {
+
+    /** dequeueOutputBuffer() timed out, same value as MediaCodec.INFO_TRY_AGAIN_LATER */
+    int INFO_TRY_AGAIN_LATER = -1;
+    /** The output format changed, same value as MediaCodec.INFO_OUTPUT_FORMAT_CHANGED */
+    int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    /** Deprecated output buffers change, same value as MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED */
+    int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+    /**
+     * Receives the codec events in asynchronous mode
+     */
+    interface Callback {
+
+        /**
+         * @param index int index of an input buffer the codec can accept
+         */
+        void onInputBufferAvailable(int index);
+
+        /**
+         * @param index int index of an output buffer holding an encoded sample
+         * @param info SampleInfo describing the sample, only valid during the call
+         */
+        void onOutputBufferAvailable(int index, SampleInfo info);
+
+        /**
+         * @param format MediaFormat of the encoded stream, including the codec specific data
+         */
+        void onOutputFormatChanged(MediaFormat format);
+
+        /**
+         * @param e Exception reported by the codec
+         */
+        void onError(Exception e);
+    }
+
+    /**
+     * Switches the codec to asynchronous mode. Must be called before configure()
+     * @param callback Callback receiving the codec events
+     */
+    void setCallback(Callback callback);
+
+    /**
+     * Configures the codec for encoding
+     * @param format MediaFormat describing the video to encode
+     */
+    void configure(MediaFormat format);
+
+    /**
+     * Creates the surface to render the input frames into, between configure() and start()
+     * @return Surface owned by the caller
+     */
+    Surface createInputSurface();
+
+    void start();
+
+    void stop();
+
+    void release();
+
+    /**
+     * Signals end of stream when the input comes from the input surface
+     */
+    void signalEndOfInputStream();
+
+    /**
+     * Asks the encoder to make one of the next frames a sync frame
+     */
+    void requestSyncFrame();
+
+    /**
+     * Changes the target bitrate of the running encoder
+     * @param bitRate int bits per second
+     */
+    void setVideoBitrate(int bitRate);
+
+    /**
+     * @param timeoutUs long microseconds to wait, negative to wait forever
+     * @return int index of an input buffer, or INFO_TRY_AGAIN_LATER
+     */
+    int dequeueInputBuffer(long timeoutUs);
+
+    /**
+     * @param index int index of a dequeued input buffer
+     * @return ByteBuffer to write the frame into
+     */
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    /**
+     * @param info SampleInfo filled in when a sample is returned
+     * @param timeoutUs long microseconds to wait, negative to wait forever
+     * @return int index of an output buffer, or one of the INFO_* values
+     */
+    int dequeueOutputBuffer(SampleInfo info, long timeoutUs);
+
+    /**
+     * @param index int index of an output buffer
+     * @return ByteBuffer holding the encoded sample
+     */
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index);
+
+    /**
+     * @return MediaFormat of the encoded stream, valid after the format has changed
+     */
+    MediaFormat getOutputFormat();
+}
@@ -0,0 +1,826 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Moves frames from a FrameSource through an EncoderCodec into an OutputWriter.
+ *
+ * The capture side is the same for every driver: each frame gets its presentation time from the
+ * PresentationClock, may be held back by a MotionGate, and is then admitted or dropped by the
+ * FrameDropPolicy. So is the output side: the format change starts the writer and every encoded
+ * sample is written until end of stream, after which the writer is finalized and the codec
+ * released. Subclasses only decide how frames reach the codec, by polling it (SyncEncoderDriver)
+ * or from its callbacks (AsyncEncoderDriver).
+ *
+ * When the camera renders into the codec input surface no frames pass through the driver, and it
+ * only handles the output.
+ *
+ * Stopping follows the states below, in order only. The end of capture starts a deadline: a codec
+ * that has not reached end of stream within three quarters of the stop timeout is abandoned. It
+ * is released first, then the writer is finalized with the samples it already has, and both fit
+ * in the last quarter. A write stuck in the writer is not waited for past the timeout; the thread
+ * doing it finalizes the writer when it returns. The codec is also released before the writer
+ * after a normal end of stream, so it is not held while the file is finalized.
+ */
+public abstract class EncoderDriver implements FrameSink {
+
+    /** Configured, frames are accepted once started */
+    public static final int STATE_CONFIGURED = 0;
+    /** Encoding the captured frames */
+    public static final int STATE_RUNNING = 1;
+    /** Capture ended, the codec drains its last frames to end of stream; new frames are ignored */
+    public static final int STATE_STOPPING = 2;
+    /** The codec is being released, the writer is finalized after it */
+    public static final int STATE_FINALIZING = 3;
+    /** Writer closed and codec released */
+    public static final int STATE_RELEASED = 4;
+
+    public static final long DEFAULT_STOP_TIMEOUT_MS = 3000;
+
+    /**
+     * Notified when the encoding session ends
+     */
+    public interface Listener {
+
+        /**
+         * Called once the end of stream has been written, or the stop timeout has passed, and the
+         * writer and codec are released
+         * @param driver EncoderDriver that finished
+         */
+        void onEncoderReleased(EncoderDriver driver);
+
+        /**
+         * Called when the codec or the writer fails. The driver keeps its resources, call release()
+         * @param driver EncoderDriver that failed
+         * @param e Exception describing the failure
+         */
+        void onEncoderError(EncoderDriver driver, Exception e);
+    }
+
+    protected final EncoderCodec mCodec;
+    protected final OutputWriter mWriter;
+    protected final FrameDropPolicy mDropPolicy;
+    protected final FrameDropStats mDropStats = new FrameDropStats();
+    protected final LatencyTracker mLatencyTracker = new LatencyTracker();
+    protected BitrateController mBitrateController;
+    // size of the encoded video, 0 until known; larger frames are scaled down to it
+    protected int mWidth;
+    protected int mHeight;
+    private ParallelYuvScaler mScaler;
+    private int mScaleFilter = YuvScaler.FILTER_BOX;
+    private GopScheduler mGopScheduler;
+    private MotionGate mMotionGate;
+    // region of the frames to encode, null for the whole frame; set from any thread
+    private volatile CropRegion mCrop;
+    // describes the pre-roll frames of the motion gate, only touched on the capture thread
+    private final YuvFrame mPreRollFrame = new YuvFrame();
+    // presentation time of the frame a sync frame was scheduled for, -1 for none
+    private volatile long mSyncFramePtsUs = -1;
+    private final PresentationClock mPresentationClock;
+    private Listener mListener;
+
+    private int mTrackIndex = -1;
+    private long mFirstSampleNs;
+    // held while the writer is used, a stop timeout only waits for it until the deadline
+    private final ReentrantLock mWriterLock = new ReentrantLock();
+    private boolean mWriterStarted;
+    private boolean mWriterReleased;
+    // set without the lock, no sample is written once it is
+    private volatile boolean mWriterClosed;
+    // set when a stop timeout found the writer busy, whoever gives up the lock next finalizes it
+    private volatile boolean mWriterFinalizeLate;
+    // the codec and the writer, released in either order; the last one notifies the listener
+    private final AtomicInteger mPendingReleases = new AtomicInteger(2);
+    private volatile boolean mCodecReleased;
+
+    // changed under the lock of the driver, waited on by the stop deadline
+    private volatile int mState = STATE_CONFIGURED;
+    private long mStopTimeoutMs = DEFAULT_STOP_TIMEOUT_MS;
+    private volatile long mStopRequestNs;
+    private volatile long mWriterClosedNs;
+    private volatile boolean mStopForced;
+
+    /**
+     * @param codec EncoderCodec encoding the frames
+     * @param writer OutputWriter storing the encoded samples
+     * @param dropPolicy FrameDropPolicy deciding what to give up when the codec falls behind
+     * @param frameRate int nominal frame rate of the camera
+     */
+    protected EncoderDriver(EncoderCodec codec, OutputWriter writer, FrameDropPolicy dropPolicy, int frameRate) {
+        mCodec = codec;
+        mWriter = writer;
+        mDropPolicy = dropPolicy;
+        mDropPolicy.reset();
+        mPresentationClock = new PresentationClock(frameRate);
+    }
+
+    /**
+     * @param listener Listener notified when the session ends, may be null
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Lets a controller adjust the bitrate while recording. The driver reports the codec latency
+     * of every frame and applies the bitrate the controller decides on. Call before start()
+     * @param controller BitrateController, null to keep the configured bitrate
+     */
+    public void setBitrateController(BitrateController controller) {
+        mBitrateController = controller;
+    }
+
+    /**
+     * Chooses how frames larger than the video are scaled down. By default they are box filtered
+     * on the thread packing them. Call before start()
+     * @param scaler ParallelYuvScaler spreading the work over several threads, null for the packing thread only
+     * @param filter int YuvScaler.FILTER_BOX or YuvScaler.FILTER_BILINEAR
+     */
+    public void setScaler(ParallelYuvScaler scaler, int filter) {
+        mScaler = scaler;
+        mScaleFilter = filter;
+    }
+
+    /**
+     * Lets a scheduler start GOPs on scene changes. Each admitted frame is analyzed on the
+     * thread of the frame source, and a sync frame is requested right before the chosen frame
+     * is queued to the codec. Only frames delivered through onFrame() are analyzed, not those
+     * rendered into an input surface. Call before start()
+     * @param scheduler GopScheduler, null to leave the GOPs to the encoder
+     */
+    public void setGopScheduler(GopScheduler scheduler) {
+        mGopScheduler = scheduler;
+        if (scheduler != null) {
+            scheduler.reset();
+        }
+    }
+
+    /**
+     * Lets a gate keep static scenes out of the encoder. Each frame is analyzed on the thread of
+     * the frame source before the drop policy sees it; frames of a static scene are counted as
+     * dropped, and when motion resumes the pre-roll frames are encoded first, starting with a
+     * sync frame. They are handed over in one burst, so an AsyncEncoderDriver whose frame queue
+     * is shorter than the pre-roll drops some of them. Only frames delivered through onFrame()
+     * are gated. Call before start()
+     * @param gate MotionGate, null to encode every frame
+     */
+    public void setMotionGate(MotionGate gate) {
+        mMotionGate = gate;
+        if (gate != null) {
+            gate.reset();
+        }
+    }
+
+    /**
+     * Encodes a region of the frames, scaled to the size of the video, instead of the whole
+     * frames: a digital zoom. The region is taken once per frame, when it is packed from the
+     * camera planes, so it may be changed at any time from any thread without reconfiguring the
+     * codec. Frames too small for the region are encoded whole, as are frames rendered into an
+     * input surface
+     * @param crop CropRegion in the coordinates of the camera frames, null for the whole frame
+     */
+    public void setCrop(CropRegion crop) {
+        mCrop = crop;
+    }
+
+    /**
+     * @return CropRegion encoded in place of the whole frames, null for the whole frame
+     */
+    public CropRegion getCrop() {
+        return mCrop;
+    }
+
+    /**
+     * Bounds the time from the end of capture to the file being closed. Call before start()
+     * @param timeoutMs long time allowed for the codec to reach end of stream and the writer to
+     *                  be finalized, in milliseconds
+     */
+    public void setStopTimeout(long timeoutMs) {
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("invalid stop timeout " + timeoutMs);
+        }
+        mStopTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Configures the codec. An input surface can be created once this returns
+     * @param format MediaFormat describing the video to encode
+     */
+    public void configure(MediaFormat format) {
+        if (format.containsKey(MediaFormat.KEY_WIDTH) && format.containsKey(MediaFormat.KEY_HEIGHT)) {
+            mWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+            mHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+        }
+        mCodec.configure(format);
+    }
+
+    /**
+     * Starts the codec, frames may be delivered from then on
+     */
+    public void start() {
+        mCodec.start();
+        moveTo(STATE_RUNNING);
+    }
+
+    /**
+     * Ends the session once the capture has stopped: the input signals end of stream, through
+     * onEndOfStream() for frames passing through the driver or to the codec for an input
+     * surface. The codec drains into the writer, then everything is released and the listener
+     * notified, within the stop timeout
+     * @param input EncoderInput the frames come from
+     */
+    public void stop(EncoderInput input) {
+        beginStop();
+        input.signalEndOfStream(mCodec);
+    }
+
+    /**
+     * Maps the frame to its presentation time and hands it to encodeFrame() if the motion gate
+     * and the policy admit it. Frames skipped by the camera are counted even though they never
+     * arrive.
+     * @param frame YuvFrame captured by the camera
+     */
+    @Override
+    public final void onFrame(YuvFrame frame) {
+        if (mState >= STATE_STOPPING) {
+            // still in flight when the capture ended, it would follow the end of stream
+            return;
+        }
+        // map every frame, including dropped ones, so gaps only reflect the camera
+        long missingFrames = mPresentationClock.getMissingFrameCount();
+        long ptsUsec = mPresentationClock.toPresentationTimeUs(frame.timestampNs);
+        missingFrames = mPresentationClock.getMissingFrameCount() - missingFrames;
+        if (missingFrames > 0) {
+            mDropStats.record(FrameDropStats.STAGE_CAPTURE, FrameDropStats.REASON_READER_SKIPPED, missingFrames);
+        }
+        MotionGate gate = mMotionGate;
+        if (gate != null) {
+            long skippedFrames = gate.getSkippedCount();
+            int decision = gate.onFrame(frame, ptsUsec);
+            skippedFrames = gate.getSkippedCount() - skippedFrames;
+            if (skippedFrames > 0) {
+                mDropStats.record(FrameDropStats.STAGE_CAPTURE, FrameDropStats.REASON_STATIC_SCENE, skippedFrames);
+            }
+            if (decision == MotionGate.DECISION_SKIP) {
+                return;
+            }
+            if (decision == MotionGate.DECISION_KEEP_ALIVE) {
+                submitFrame(mPreRollFrame, gate.describeKeepAlive(mPreRollFrame));
+                gate.releaseKeepAlive();
+                return;
+            }
+            if (decision == MotionGate.DECISION_RESUME) {
+                // the motion starts with a sync frame, so it can be cut out of the recording
+                int preRollCount = gate.getPreRollCount();
+                mSyncFramePtsUs = preRollCount > 0 ? gate.describePreRoll(0, mPreRollFrame) : ptsUsec;
+                for (int i = 0; i < preRollCount; i++) {
+                    submitFrame(mPreRollFrame, gate.describePreRoll(i, mPreRollFrame));
+                }
+                gate.releasePreRoll();
+            }
+        }
+        submitFrame(frame, ptsUsec);
+    }
+
+    private void submitFrame(YuvFrame frame, long ptsUsec) {
+        if (!mDropPolicy.admit(ptsUsec, mDropStats)) {
+            return;
+        }
+        long availableNs = frame.arrivalTimeNs != 0 ? frame.arrivalTimeNs : System.nanoTime();
+        mLatencyTracker.begin(ptsUsec, frame.captureTimeNs, availableNs);
+        GopScheduler scheduler = mGopScheduler;
+        if (scheduler != null && scheduler.onFrame(frame, ptsUsec) != GopScheduler.DECISION_NONE) {
+            mSyncFramePtsUs = ptsUsec;
+        }
+        encodeFrame(frame, ptsUsec);
+    }
+
+    /**
+     * Starts the stop deadline and gives back the frames the capture side still holds.
+     * Subclasses call it first in onEndOfStream(), on the thread of the frame source
+     */
+    protected void onCaptureEnded() {
+        beginStop();
+        MotionGate gate = mMotionGate;
+        if (gate != null) {
+            long skippedFrames = gate.getSkippedCount();
+            gate.discardPreRoll();
+            skippedFrames = gate.getSkippedCount() - skippedFrames;
+            if (skippedFrames > 0) {
+                mDropStats.record(FrameDropStats.STAGE_CAPTURE, FrameDropStats.REASON_STATIC_SCENE, skippedFrames);
+            }
+        }
+    }
+
+    /**
+     * Moves to STATE_STOPPING and starts the thread enforcing the stop timeout, once
+     */
+    private void beginStop() {
+        if (!moveTo(STATE_STOPPING)) {
+            return;
+        }
+        mStopRequestNs = System.nanoTime();
+        final long deadlineNs = mStopRequestNs + mStopTimeoutMs * 1000000L;
+        // the last quarter of the timeout is kept for releasing the codec and finalizing the writer
+        final long drainDeadlineNs = deadlineNs - mStopTimeoutMs * 1000000L / 4;
+        Thread watchdog = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (EncoderDriver.this) {
+                    long remainingNs;
+                    while (mState < STATE_FINALIZING && (remainingNs = drainDeadlineNs - System.nanoTime()) > 0) {
+                        try {
+                            EncoderDriver.this.wait(remainingNs / 1000000 + 1);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (mState >= STATE_FINALIZING) {
+                        return;
+                    }
+                    mStopForced = true;
+                    moveTo(STATE_FINALIZING);
+                }
+                // the codec never reached end of stream: nothing more is written, the codec is
+                // released by the thread that drives it in case a call into it is stuck, and the
+                // writer is finalized once it is, or halfway to the deadline without it
+                mWriterClosed = true;
+                runOnCodecThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        releaseCodec();
+                    }
+                });
+                long codecDeadlineNs = drainDeadlineNs + (deadlineNs - drainDeadlineNs) / 2;
+                synchronized (EncoderDriver.this) {
+                    long remainingNs;
+                    while (!mCodecReleased && (remainingNs = codecDeadlineNs - System.nanoTime()) > 0) {
+                        try {
+                            EncoderDriver.this.wait(remainingNs / 1000000 + 1);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                closeWriter(deadlineNs - System.nanoTime());
+            }
+        }, "Encoder Stop");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    /**
+     * Moves the session forward to a state, never back
+     * @param state int one of the STATE_ constants
+     * @return true if the state changed
+     */
+    private synchronized boolean moveTo(int state) {
+        if (state <= mState) {
+            return false;
+        }
+        mState = state;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Runs a task on the thread that calls into the codec, the calling thread by default. Used to
+     * release the codec after a stop timeout
+     * @param task Runnable to run
+     */
+    protected void runOnCodecThread(Runnable task) {
+        task.run();
+    }
+
+    /**
+     * Hands an admitted frame to the codec, on the thread of the frame source. A frame that is
+     * dropped instead has to be discarded from the LatencyTracker
+     * @param frame YuvFrame only valid during the call
+     * @param presentationTimeUs long presentation time of the frame
+     */
+    protected abstract void encodeFrame(YuvFrame frame, long presentationTimeUs);
+
+    /**
+     * Requests a sync frame from the codec if one was scheduled for this frame, or for an
+     * earlier one that was dropped. Call right before queueing the frame to the codec
+     * @param presentationTimeUs long presentation time of the frame about to be queued
+     */
+    protected void requestScheduledSyncFrame(long presentationTimeUs) {
+        long syncFramePtsUs = mSyncFramePtsUs;
+        if (syncFramePtsUs >= 0 && presentationTimeUs >= syncFramePtsUs) {
+            mSyncFramePtsUs = -1;
+            mCodec.requestSyncFrame();
+        }
+    }
+
+    /**
+     * Packs a frame at the current position of dst at the size of the encoded video, scaling it
+     * down when the frame is larger. A frame shared with other outputs is copied from its packed
+     * buffer, so its planes are never moved
+     * @param frame YuvFrame to pack
+     * @param dst ByteBuffer receiving the NV12 frame, its position is advanced
+     * @return int number of bytes written
+     */
+    protected int packFrame(YuvFrame frame, ByteBuffer dst) {
+        boolean scaled = mWidth != 0 && (mWidth != frame.width || mHeight != frame.height);
+        if (scaled) {
+            ParallelYuvScaler scaler = mScaler;
+            if (scaler != null) {
+                return scaler.scale(frame, mWidth, mHeight, dst, mScaleFilter);
+            }
+            return YuvScaler.scale(frame, mWidth, mHeight, dst, mScaleFilter);
+        }
+        FrameBufferPool.Frame shared = frame.shared;
+        if (shared != null) {
+            dst.put(shared.data, 0, shared.size);
+            return shared.size;
+        }
+        return YuvPacker.pack(frame, dst);
+    }
+
+    /**
+     * Packs a region of a frame at the current position of dst, scaled to the size of the video.
+     * A region smaller than the video is enlarged bilinearly, the box filter would only repeat
+     * samples. The planes are read in place, a shared frame from its packed buffer
+     * @param frame YuvFrame to pack
+     * @param crop CropRegion of the frame, null or not fitting the frame for the whole frame
+     * @param dst ByteBuffer receiving the NV12 frame, its position is advanced
+     * @return int number of bytes written
+     */
+    protected int packFrame(YuvFrame frame, CropRegion crop, ByteBuffer dst) {
+        if (crop == null || !crop.fits(frame.width, frame.height) || crop.isFullFrame(frame.width, frame.height)) {
+            return packFrame(frame, dst);
+        }
+        int width = mWidth != 0 ? mWidth : frame.width;
+        int height = mWidth != 0 ? mHeight : frame.height;
+        int filter = crop.width < width || crop.height < height ? YuvScaler.FILTER_BILINEAR : mScaleFilter;
+        ParallelYuvScaler scaler = mScaler;
+        if (scaler != null) {
+            return scaler.scale(frame, crop, width, height, dst, filter);
+        }
+        return YuvScaler.scale(frame, crop, width, height, dst, filter);
+    }
+
+    /**
+     * Adds the encoded track to the writer and starts it
+     * @param format MediaFormat reported by the codec
+     */
+    protected void handleOutputFormatChanged(MediaFormat format) {
+        mWriterLock.lock();
+        try {
+            if (mWriterClosed) {
+                return;
+            }
+            if (mWriterStarted) {
+                throw new RuntimeException("format changed twice");
+            }
+            mTrackIndex = mWriter.addTrack(format);
+            mWriter.start();
+            mWriterStarted = true;
+        } finally {
+            mWriterLock.unlock();
+            finalizeLateWriter();
+        }
+    }
+
+    /**
+     * Writes an encoded sample and gives the buffer back to the codec
+     * @param index int index of the codec output buffer
+     * @param info SampleInfo describing the sample
+     * @return true once the end of stream has been reached
+     */
+    protected boolean handleOutputBuffer(int index, SampleInfo info) {
+        if (mCodecReleased) {
+            // left over from a codec released after a stop timeout
+            return true;
+        }
+        long outputNs = System.nanoTime();
+        if ((info.flags & SampleInfo.FLAG_CODEC_CONFIG) != 0) {
+            // The codec config data was pulled out and fed to the writer when the
+            // output format changed.  Ignore it.
+            info.size = 0;
+        }
+        if (info.size != 0) {
+            ByteBuffer encodedData = mCodec.getOutputBuffer(index);
+            encodedData.position(info.offset);
+            encodedData.limit(info.offset + info.size);
+            GopScheduler scheduler = mGopScheduler;
+            if (scheduler != null && (info.flags & SampleInfo.FLAG_KEY_FRAME) != 0) {
+                scheduler.onSyncFrame(info.presentationTimeUs);
+            }
+            try {
+                if (writeSample(encodedData, info)) {
+                    long writtenNs = System.nanoTime();
+                    if (mFirstSampleNs == 0) {
+                        mFirstSampleNs = writtenNs;
+                    }
+                    long encodeNs = mLatencyTracker.complete(info.presentationTimeUs, outputNs, writtenNs);
+                    MotionGate gate = mMotionGate;
+                    if (gate != null) {
+                        gate.onSampleWritten(info.size, encodeNs);
+                    }
+                    BitrateController controller = mBitrateController;
+                    if (controller != null) {
+                        if (encodeNs >= 0) {
+                            controller.reportEncodeLatency(encodeNs);
+                        }
+                        if (controller.evaluate(writtenNs)) {
+                            mCodec.setVideoBitrate(controller.getBitRate());
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                notifyError(e);
+            }
+        }
+        mCodec.releaseOutputBuffer(index);
+        return (info.flags & SampleInfo.FLAG_END_OF_STREAM) != 0;
+    }
+
+    /**
+     * Writes a sample unless the writer is closed by a stop timeout. A write that outlasted the
+     * deadline finalizes the writer when it returns
+     * @param data ByteBuffer holding the sample between its position and limit
+     * @param info SampleInfo describing the sample
+     * @return true if the sample was written
+     * @throws IOException if the sample cannot be stored
+     */
+    private boolean writeSample(ByteBuffer data, SampleInfo info) throws IOException {
+        mWriterLock.lock();
+        try {
+            if (mWriterClosed) {
+                return false;
+            }
+            if (!mWriterStarted) {
+                throw new RuntimeException("muxer hasn't started");
+            }
+            mWriter.writeSampleData(mTrackIndex, data, info);
+            return true;
+        } finally {
+            mWriterLock.unlock();
+            finalizeLateWriter();
+        }
+    }
+
+    /**
+     * Reports a failure to the listener
+     * @param e Exception describing the failure
+     */
+    protected void notifyError(Exception e) {
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onEncoderError(this, e);
+        }
+    }
+
+    /**
+     * Stops and releases the codec, then finalizes the writer. Safe to call more than once, and
+     * after a stop timeout has released the driver
+     */
+    public void release() {
+        if (!moveTo(STATE_FINALIZING)) {
+            return;
+        }
+        mWriterClosed = true;
+        releaseCodec();
+        closeWriter(Long.MAX_VALUE);
+    }
+
+    /**
+     * Finalizes the writer, waiting for a sample being written at most waitNs. A write that takes
+     * longer finalizes the writer itself when it returns
+     * @param waitNs long time to wait for the writer, in nanoseconds
+     */
+    private void closeWriter(long waitNs) {
+        mWriterClosed = true;
+        boolean locked;
+        try {
+            locked = mWriterLock.tryLock(Math.max(0, waitNs), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            locked = false;
+        }
+        if (!locked) {
+            mWriterFinalizeLate = true;
+            // the write may have returned before it could see the flag
+            finalizeLateWriter();
+            return;
+        }
+        try {
+            finalizeWriter();
+        } finally {
+            mWriterLock.unlock();
+        }
+    }
+
+    /**
+     * Finalizes the writer left busy by a stop timeout, if the lock is free. Called after the
+     * writer lock is given up, so one of the threads involved sees both the flag and a free lock
+     */
+    private void finalizeLateWriter() {
+        if (mWriterFinalizeLate && mWriterLock.tryLock()) {
+            try {
+                finalizeWriter();
+            } finally {
+                mWriterLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Releases the writer once, with its lock held
+     */
+    private void finalizeWriter() {
+        if (mWriterReleased) {
+            return;
+        }
+        mWriterReleased = true;
+        mWriterStarted = false;
+        try {
+            mWriter.release();
+        } catch (RuntimeException e) {
+            // the codec and the listener are still released
+            notifyError(e);
+        }
+        if (mStopRequestNs != 0) {
+            mWriterClosedNs = System.nanoTime();
+        }
+        onReleased();
+    }
+
+    /**
+     * Stops and releases the codec, ahead of the writer
+     */
+    private void releaseCodec() {
+        try {
+            mCodec.stop();
+        } catch (IllegalStateException e) {
+            // never started, or failed to configure or start
+        }
+        mCodec.release();
+        onRelease();
+        synchronized (this) {
+            mCodecReleased = true;
+            notifyAll();
+        }
+        onReleased();
+    }
+
+    /**
+     * Notifies the listener once both the codec and the writer are released
+     */
+    private void onReleased() {
+        if (mPendingReleases.decrementAndGet() != 0) {
+            return;
+        }
+        moveTo(STATE_RELEASED);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onEncoderReleased(this);
+        }
+    }
+
+    /**
+     * Called once the codec is released, on the thread releasing it and before the listener is
+     * notified. Subclasses free the resources of their input path here
+     */
+    protected void onRelease() {
+    }
+
+    /**
+     * @return true once release() has been called, or the stop timeout has passed
+     */
+    protected boolean isReleased() {
+        return mState >= STATE_FINALIZING;
+    }
+
+    /**
+     * @return int current STATE_ of the session
+     */
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * @return boolean true if the codec missed the stop timeout and the writer was finalized
+     *         without its end of stream
+     */
+    public boolean isStopForced() {
+        return mStopForced;
+    }
+
+    /**
+     * @return long System.nanoTime() when the capture ended, 0 if it has not
+     */
+    public long getStopTimeNs() {
+        return mStopRequestNs;
+    }
+
+    /**
+     * @return long System.nanoTime() when the writer was closed after the capture ended, 0 if it
+     *         has not been
+     */
+    public long getWriterClosedTimeNs() {
+        return mWriterClosedNs;
+    }
+
+    /**
+     * @return EncoderCodec encoding the frames
+     */
+    public EncoderCodec getCodec() {
+        return mCodec;
+    }
+
+    /**
+     * @return PresentationClock mapping the camera timestamps
+     */
+    public PresentationClock getPresentationClock() {
+        return mPresentationClock;
+    }
+
+    /**
+     * @return FrameDropPolicy in use
+     */
+    public FrameDropPolicy getDropPolicy() {
+        return mDropPolicy;
+    }
+
+    /**
+     * @return FrameDropStats counting the frames dropped during this session
+     */
+    public FrameDropStats getDropStats() {
+        return mDropStats;
+    }
+
+    /**
+     * @return LatencyTracker timing the frames of this session
+     */
+    public LatencyTracker getLatencyTracker() {
+        return mLatencyTracker;
+    }
+
+    /**
+     * @return long System.nanoTime() when the first encoded frame was written, 0 if none was
+     */
+    public long getFirstSampleTimeNs() {
+        return mFirstSampleNs;
+    }
+
+    /**
+     * @return MotionGate keeping static scenes out of the encoder, null if there is none
+     */
+    public MotionGate getMotionGate() {
+        return mMotionGate;
+    }
+
+    /**
+     * @return BitrateController adjusting the bitrate, null if there is none
+     */
+    public BitrateController getBitrateController() {
+        return mBitrateController;
+    }
+
+    /**
+     * @return GopScheduler starting GOPs on scene changes, null if there is none
+     */
+    public GopScheduler getGopScheduler() {
+        return mGopScheduler;
+    }
+}
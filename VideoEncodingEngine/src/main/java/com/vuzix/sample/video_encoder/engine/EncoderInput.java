@@ -0,0 +1,73 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.view.Surface;
+
+/**
+ * The way captured frames reach the encoder.
+ *
+ * The activity drives the encoder and the camera session through this interface only, so the
+ * ByteBuffer path (frames copied through the CPU) and the Surface path (the camera renders
+ * straight into the encoder) can be swapped at record time, or replaced by a fake.
+ */
+public interface EncoderInput {
+
+    /**
+     * Picks the color format the encoder is configured with
+     * @param codec CodecIndex.Entry describing the selected encoder for the mime type being encoded
+     * @return int value for MediaFormat.KEY_COLOR_FORMAT, 0 on failure
+     */
+    int selectColorFormat(CodecIndex.Entry codec);
+
+    /**
+     * Creates the surface the camera renders into. Called after the encoder has been configured
+     * and before it is started
+     * @param encoder EncoderCodec configured for encoding
+     * @param width int width of the video in pixels
+     * @param height int height of the video in pixels
+     * @return Surface to add as a target of the capture session
+     */
+    Surface createCaptureSurface(EncoderCodec encoder, int width, int height);
+
+    /**
+     * Signals that no more frames will be captured
+     * @param encoder EncoderCodec receiving the frames
+     */
+    void signalEndOfStream(EncoderCodec encoder);
+
+    /**
+     * Releases the capture surface. Safe to call more than once
+     */
+    void release();
+}
@@ -0,0 +1,667 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.media.MediaFormat;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * OutputWriter storing an H.264 track as fragmented MP4, without MediaMuxer.
+ *
+ * MediaMuxer writes the moov box, and with it the whole sample table, only when it is stopped:
+ * a crash, a battery pull or a teardown that skips stop() leaves an unplayable file. Here ftyp
+ * and an empty moov are written by start(), then every GOP, or time slice of a long GOP, is
+ * written as a moof/mdat pair as soon as the next one begins. Everything written before a crash
+ * stays playable, and memory is bounded by one fragment: the sample data is staged in a direct
+ * buffer of maxFragmentBytes and the sample table in arrays of maxFragmentSamples entries, both
+ * allocated up front. A fragment is closed early when either is full, and a sample larger than
+ * the whole staging buffer is written as a fragment of its own straight from the codec buffer.
+ *
+ * The samples arrive from the encoder in Annex B form and are rewritten with 4 byte NAL lengths,
+ * as MP4 requires. Decode order is taken to be presentation order, which holds for the B frame
+ * free streams MediaCodec produces with the default profiles. The only android dependency is
+ * addTrack(MediaFormat); addAvcTrack() takes the parameter sets directly so the writer can run on
+ * a desktop JVM.
+ *
+ * Not thread safe, all methods are called on the output thread.
+ */
+public class FragmentedMp4OutputWriter implements OutputWriter {
+
+    public static final int DEFAULT_MAX_FRAGMENT_BYTES = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_FRAGMENT_SAMPLES = 300;
+    public static final long DEFAULT_MAX_FRAGMENT_DURATION_US = 2000000;
+
+    private static final int TIMESCALE = 90000;
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int TRACK_ID = 1;
+    // default duration of the last sample while only one sample has been seen, 1/30 s
+    private static final int DEFAULT_SAMPLE_DURATION = TIMESCALE / 30;
+
+    // sample_depends_on = 2 (sync frame), and sample_depends_on = 1 with sample_is_non_sync_sample
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int TRUN_DATA_OFFSET = 0x000001;
+    private static final int TRUN_SAMPLE_DURATION = 0x000100;
+    private static final int TRUN_SAMPLE_SIZE = 0x000200;
+    private static final int TRUN_SAMPLE_FLAGS = 0x000400;
+
+    private final FileChannel mChannel;
+    private final int mOrientationHint;
+    private final long mMaxFragmentDurationUs;
+    private boolean mForceEachFragment;
+
+    private int mWidth;
+    private int mHeight;
+    private final List<byte[]> mSps = new ArrayList<>();
+    private final List<byte[]> mPps = new ArrayList<>();
+    private boolean mTrackAdded;
+    private boolean mStarted;
+    private boolean mReleased;
+
+    // the fragment being collected: sample data in mStaging, sample table in the arrays
+    private final ByteBuffer mStaging;
+    private final long[] mDecodeTimes;
+    private final int[] mSizes;
+    private final boolean[] mSyncSamples;
+    private int mSampleCount;
+    private long mFragmentStartUs;
+
+    private final ByteBuffer mHeader;
+    private int mTrafStart;
+    private int mTrunStart;
+    private final ByteBuffer mLength = ByteBuffer.allocate(4);
+    private final ByteBuffer[] mGather = new ByteBuffer[2];
+
+    // NAL units of the sample being written
+    private final NalUnitParser mNalUnits = new NalUnitParser();
+
+    private long mFirstPresentationTimeUs = -1;
+    private long mLastDecodeTime = -1;
+    private int mLastDuration = DEFAULT_SAMPLE_DURATION;
+    private int mSequenceNumber;
+
+    private long mFragmentCount;
+    private long mBytesWritten;
+
+    /**
+     * Creates a writer with the default fragment limits
+     * @param path String path of the MP4 file to create
+     * @param orientationHint int rotation in degrees the video is played back with
+     * @throws IOException if the file cannot be created
+     */
+    public FragmentedMp4OutputWriter(String path, int orientationHint) throws IOException {
+        this(new FileOutputStream(path).getChannel(), orientationHint, DEFAULT_MAX_FRAGMENT_BYTES,
+                DEFAULT_MAX_FRAGMENT_SAMPLES, DEFAULT_MAX_FRAGMENT_DURATION_US);
+    }
+
+    /**
+     * @param channel FileChannel the file is written through, closed by release()
+     * @param orientationHint int rotation in degrees the video is played back with, 0, 90, 180 or 270
+     * @param maxFragmentBytes int size of the staging buffer holding the data of one fragment
+     * @param maxFragmentSamples int number of samples one fragment can hold
+     * @param maxFragmentDurationUs long duration after which a fragment is closed even without a sync frame
+     */
+    public FragmentedMp4OutputWriter(FileChannel channel, int orientationHint, int maxFragmentBytes,
+                                     int maxFragmentSamples, long maxFragmentDurationUs) {
+        if (orientationHint % 90 != 0) {
+            throw new IllegalArgumentException("unsupported orientation " + orientationHint);
+        }
+        mChannel = channel;
+        mOrientationHint = ((orientationHint % 360) + 360) % 360;
+        mMaxFragmentDurationUs = maxFragmentDurationUs;
+        mStaging = ByteBuffer.allocateDirect(maxFragmentBytes);
+        mDecodeTimes = new long[maxFragmentSamples];
+        mSizes = new int[maxFragmentSamples];
+        mSyncSamples = new boolean[maxFragmentSamples];
+        mHeader = ByteBuffer.allocate(128 + 12 * maxFragmentSamples);
+    }
+
+    /**
+     * Forces every fragment to the storage device once written, so that it survives a power loss
+     * and not only a crash of the app. Costs a flush of the device cache per fragment
+     * @param force boolean true to force each fragment
+     */
+    public void setForceEachFragment(boolean force) {
+        mForceEachFragment = force;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (!MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            throw new IllegalArgumentException("unsupported track " + mime);
+        }
+        return addAvcTrack(format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT),
+                format.getByteBuffer("csd-0"), format.getByteBuffer("csd-1"));
+    }
+
+    /**
+     * Adds the H.264 track from its codec specific data
+     * @param width int width of the video
+     * @param height int height of the video
+     * @param csd0 ByteBuffer csd-0 of the encoder output format, the SPS in Annex B form
+     * @param csd1 ByteBuffer csd-1 of the encoder output format, the PPS in Annex B form, may be null
+     * @return int index of the track, always 0
+     */
+    public int addAvcTrack(int width, int height, ByteBuffer csd0, ByteBuffer csd1) {
+        if (mTrackAdded) {
+            throw new IllegalStateException("only one track is supported");
+        }
+        addParameterSets(csd0);
+        if (csd1 != null) {
+            addParameterSets(csd1);
+        }
+        if (mSps.isEmpty() || mPps.isEmpty()) {
+            throw new IllegalArgumentException("codec specific data without SPS or PPS");
+        }
+        mWidth = width;
+        mHeight = height;
+        mTrackAdded = true;
+        return 0;
+    }
+
+    private void addParameterSets(ByteBuffer csd) {
+        int count = mNalUnits.parse(csd);
+        for (int i = 0; i < count; i++) {
+            byte[] nal = new byte[mNalUnits.getSize(i)];
+            for (int j = 0; j < nal.length; j++) {
+                nal[j] = csd.get(mNalUnits.getOffset(i) + j);
+            }
+            int type = nal[0] & 0x1f;
+            if (type == NalUnitParser.NAL_TYPE_SPS) {
+                mSps.add(nal);
+            } else if (type == NalUnitParser.NAL_TYPE_PPS) {
+                mPps.add(nal);
+            }
+        }
+    }
+
+    /**
+     * Writes ftyp and moov, the file is playable, though empty, from here on
+     */
+    @Override
+    public void start() {
+        if (!mTrackAdded) {
+            throw new IllegalStateException("no track added");
+        }
+        int parameterSetBytes = 0;
+        for (byte[] nal : mSps) {
+            parameterSetBytes += nal.length + 2;
+        }
+        for (byte[] nal : mPps) {
+            parameterSetBytes += nal.length + 2;
+        }
+        ByteBuffer header = ByteBuffer.allocate(1024 + parameterSetBytes);
+        writeFileType(header);
+        writeMovie(header);
+        header.flip();
+        try {
+            write(header, null);
+        } catch (IOException e) {
+            throw new IllegalStateException("can not write the MP4 header", e);
+        }
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("writer hasn't started");
+        }
+        if ((info.flags & SampleInfo.FLAG_CODEC_CONFIG) != 0 || data.remaining() == 0) {
+            // the parameter sets are in the moov already, and the end of stream carries no data
+            return;
+        }
+
+        if (mFirstPresentationTimeUs < 0) {
+            mFirstPresentationTimeUs = info.presentationTimeUs;
+        }
+        long decodeTime = (info.presentationTimeUs - mFirstPresentationTimeUs) * TIMESCALE / 1000000;
+        if (decodeTime <= mLastDecodeTime) {
+            decodeTime = mLastDecodeTime + 1;
+        }
+        boolean sync = (info.flags & SampleInfo.FLAG_KEY_FRAME) != 0;
+
+        int nalCount = mNalUnits.parse(data);
+        int size = 0;
+        for (int i = 0; i < nalCount; i++) {
+            size += 4 + mNalUnits.getSize(i);
+        }
+
+        if (mSampleCount > 0 && (sync || size > mStaging.remaining() || mSampleCount == mDecodeTimes.length
+                || info.presentationTimeUs - mFragmentStartUs >= mMaxFragmentDurationUs)) {
+            writeFragment(decodeTime);
+        }
+
+        if (size > mStaging.capacity()) {
+            writeLargeSample(data, decodeTime, size, sync);
+        } else {
+            if (mSampleCount == 0) {
+                mFragmentStartUs = info.presentationTimeUs;
+            }
+            for (int i = 0; i < nalCount; i++) {
+                mStaging.putInt(mNalUnits.getSize(i));
+                mNalUnits.put(mStaging, data, i);
+            }
+            mDecodeTimes[mSampleCount] = decodeTime;
+            mSizes[mSampleCount] = size;
+            mSyncSamples[mSampleCount] = sync;
+            mSampleCount++;
+        }
+        mLastDecodeTime = decodeTime;
+    }
+
+    /**
+     * Writes the fragment being collected and closes the file
+     * @throws IllegalStateException if the last fragment cannot be written
+     */
+    @Override
+    public void release() {
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+        try {
+            if (mSampleCount > 0) {
+                writeFragment(-1);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("can not write the last fragment", e);
+        } finally {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // nothing left to do with the file
+            }
+        }
+    }
+
+    /**
+     * @return long number of moof/mdat pairs written
+     */
+    public long getFragmentCount() {
+        return mFragmentCount;
+    }
+
+    /**
+     * @return long number of bytes written to the file
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    @Override
+    public String toString() {
+        return mFragmentCount + " fragments, " + mBytesWritten + " bytes";
+    }
+
+    /**
+     * Writes the collected samples as one moof/mdat pair
+     * @param nextDecodeTime long decode time of the sample following the fragment, -1 if unknown
+     */
+    private void writeFragment(long nextDecodeTime) throws IOException {
+        int last = mSampleCount - 1;
+        long end = nextDecodeTime >= 0 ? nextDecodeTime : mDecodeTimes[last] + mLastDuration;
+
+        ByteBuffer header = mHeader;
+        header.clear();
+        int dataOffsetPosition = writeFragmentHeader(header, mDecodeTimes[0], mSampleCount);
+        for (int i = 0; i < mSampleCount; i++) {
+            long sampleEnd = i < last ? mDecodeTimes[i + 1] : end;
+            header.putInt((int) (sampleEnd - mDecodeTimes[i]));
+            header.putInt(mSizes[i]);
+            header.putInt(mSyncSamples[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        }
+        if (mSampleCount > 1) {
+            mLastDuration = (int) (mDecodeTimes[last] - mDecodeTimes[last - 1]);
+        }
+        mStaging.flip();
+        finishFragmentHeader(header, dataOffsetPosition, mStaging.remaining());
+
+        write(header, mStaging);
+        mStaging.clear();
+        mSampleCount = 0;
+        mFragmentCount++;
+        forceIfNeeded();
+    }
+
+    /**
+     * Writes a sample that does not fit the staging buffer as a fragment of its own, NAL unit by
+     * NAL unit from the codec buffer. Its duration is the one of the previous sample
+     */
+    private void writeLargeSample(ByteBuffer data, long decodeTime, int size, boolean sync) throws IOException {
+        ByteBuffer header = mHeader;
+        header.clear();
+        int dataOffsetPosition = writeFragmentHeader(header, decodeTime, 1);
+        header.putInt(mLastDuration);
+        header.putInt(size);
+        header.putInt(sync ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        finishFragmentHeader(header, dataOffsetPosition, size);
+
+        write(header, null);
+        ByteBuffer nal = data.duplicate();
+        for (int i = 0; i < mNalUnits.getCount(); i++) {
+            mLength.clear();
+            mLength.putInt(mNalUnits.getSize(i));
+            mLength.flip();
+            nal.limit(mNalUnits.getOffset(i) + mNalUnits.getSize(i));
+            nal.position(mNalUnits.getOffset(i));
+            write(mLength, nal);
+        }
+        mFragmentCount++;
+        forceIfNeeded();
+    }
+
+    /**
+     * Writes moof up to the trun sample entries, moof starting at the beginning of header
+     * @return int position of the trun data offset, filled in by finishFragmentHeader()
+     */
+    private int writeFragmentHeader(ByteBuffer header, long baseDecodeTime, int sampleCount) {
+        beginBox(header, "moof");
+        int mfhd = beginFullBox(header, "mfhd", 0, 0);
+        header.putInt(++mSequenceNumber);
+        endBox(header, mfhd);
+        mTrafStart = beginBox(header, "traf");
+        int tfhd = beginFullBox(header, "tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+        header.putInt(TRACK_ID);
+        endBox(header, tfhd);
+        int tfdt = beginFullBox(header, "tfdt", 1, 0);
+        header.putLong(baseDecodeTime);
+        endBox(header, tfdt);
+        mTrunStart = beginFullBox(header, "trun", 0,
+                TRUN_DATA_OFFSET | TRUN_SAMPLE_DURATION | TRUN_SAMPLE_SIZE | TRUN_SAMPLE_FLAGS);
+        header.putInt(sampleCount);
+        int dataOffsetPosition = header.position();
+        header.putInt(0);
+        return dataOffsetPosition;
+    }
+
+    /**
+     * Closes trun, traf and moof after the sample entries and appends the mdat header
+     */
+    private void finishFragmentHeader(ByteBuffer header, int dataOffsetPosition, int dataSize) {
+        endBox(header, mTrunStart);
+        endBox(header, mTrafStart);
+        endBox(header, 0);
+        // the samples start right after the mdat header, the offset is relative to moof
+        header.putInt(dataOffsetPosition, header.position() + 8);
+        header.putInt(8 + dataSize);
+        header.putInt(fourcc("mdat"));
+        header.flip();
+    }
+
+    private void writeFileType(ByteBuffer out) {
+        int ftyp = beginBox(out, "ftyp");
+        out.putInt(fourcc("isom"));
+        out.putInt(0x200);
+        out.putInt(fourcc("isom"));
+        out.putInt(fourcc("iso5"));
+        out.putInt(fourcc("iso6"));
+        out.putInt(fourcc("avc1"));
+        out.putInt(fourcc("mp41"));
+        endBox(out, ftyp);
+    }
+
+    private void writeMovie(ByteBuffer out) {
+        int moov = beginBox(out, "moov");
+
+        int mvhd = beginFullBox(out, "mvhd", 0, 0);
+        out.putInt(0);                      // creation time
+        out.putInt(0);                      // modification time
+        out.putInt(MOVIE_TIMESCALE);
+        out.putInt(0);                      // duration, given by the fragments
+        out.putInt(0x00010000);             // rate 1.0
+        out.putShort((short) 0x0100);       // volume 1.0
+        putZeros(out, 10);
+        putMatrix(out, 0);
+        putZeros(out, 24);                  // pre_defined
+        out.putInt(TRACK_ID + 1);           // next track id
+        endBox(out, mvhd);
+
+        int trak = beginBox(out, "trak");
+        int tkhd = beginFullBox(out, "tkhd", 0, 3);     // enabled, in movie
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(TRACK_ID);
+        out.putInt(0);
+        out.putInt(0);                      // duration
+        putZeros(out, 8);
+        out.putShort((short) 0);            // layer
+        out.putShort((short) 0);            // alternate group
+        out.putShort((short) 0);            // volume, 0 for video
+        out.putShort((short) 0);
+        putMatrix(out, mOrientationHint);
+        out.putInt(mWidth << 16);
+        out.putInt(mHeight << 16);
+        endBox(out, tkhd);
+
+        int mdia = beginBox(out, "mdia");
+        int mdhd = beginFullBox(out, "mdhd", 0, 0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(TIMESCALE);
+        out.putInt(0);
+        out.putShort((short) 0x55c4);       // language "und"
+        out.putShort((short) 0);
+        endBox(out, mdhd);
+
+        int hdlr = beginFullBox(out, "hdlr", 0, 0);
+        out.putInt(0);
+        out.putInt(fourcc("vide"));
+        putZeros(out, 12);
+        putString(out, "VideoHandler");
+        endBox(out, hdlr);
+
+        int minf = beginBox(out, "minf");
+        int vmhd = beginFullBox(out, "vmhd", 0, 1);
+        putZeros(out, 8);                   // graphics mode and op color
+        endBox(out, vmhd);
+        int dinf = beginBox(out, "dinf");
+        int dref = beginFullBox(out, "dref", 0, 0);
+        out.putInt(1);
+        int url = beginFullBox(out, "url ", 0, 1);      // data in this file
+        endBox(out, url);
+        endBox(out, dref);
+        endBox(out, dinf);
+
+        int stbl = beginBox(out, "stbl");
+        int stsd = beginFullBox(out, "stsd", 0, 0);
+        out.putInt(1);
+        writeSampleEntry(out);
+        endBox(out, stsd);
+        // the sample tables are empty, the samples are described by the fragments
+        int stts = beginFullBox(out, "stts", 0, 0);
+        out.putInt(0);
+        endBox(out, stts);
+        int stsc = beginFullBox(out, "stsc", 0, 0);
+        out.putInt(0);
+        endBox(out, stsc);
+        int stsz = beginFullBox(out, "stsz", 0, 0);
+        out.putInt(0);
+        out.putInt(0);
+        endBox(out, stsz);
+        int stco = beginFullBox(out, "stco", 0, 0);
+        out.putInt(0);
+        endBox(out, stco);
+        endBox(out, stbl);
+        endBox(out, minf);
+        endBox(out, mdia);
+        endBox(out, trak);
+
+        int mvex = beginBox(out, "mvex");
+        int trex = beginFullBox(out, "trex", 0, 0);
+        out.putInt(TRACK_ID);
+        out.putInt(1);                      // sample description index
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        endBox(out, trex);
+        endBox(out, mvex);
+
+        endBox(out, moov);
+    }
+
+    private void writeSampleEntry(ByteBuffer out) {
+        int avc1 = beginBox(out, "avc1");
+        putZeros(out, 6);
+        out.putShort((short) 1);            // data reference index
+        putZeros(out, 16);
+        out.putShort((short) mWidth);
+        out.putShort((short) mHeight);
+        out.putInt(0x00480000);             // 72 dpi
+        out.putInt(0x00480000);
+        out.putInt(0);
+        out.putShort((short) 1);            // frame count
+        putZeros(out, 32);                  // compressor name
+        out.putShort((short) 0x0018);       // depth
+        out.putShort((short) -1);
+
+        // AVCDecoderConfigurationRecord
+        int avcC = beginBox(out, "avcC");
+        byte[] sps = mSps.get(0);
+        out.put((byte) 1);
+        out.put(sps[1]);                    // profile
+        out.put(sps[2]);                    // profile compatibility
+        out.put(sps[3]);                    // level
+        out.put((byte) 0xff);               // 4 byte NAL lengths
+        out.put((byte) (0xe0 | mSps.size()));
+        for (byte[] nal : mSps) {
+            out.putShort((short) nal.length);
+            out.put(nal);
+        }
+        out.put((byte) mPps.size());
+        for (byte[] nal : mPps) {
+            out.putShort((short) nal.length);
+            out.put(nal);
+        }
+        if ((sps[1] & 0xff) >= 100) {
+            // the high profiles repeat the chroma format and bit depths of the SPS
+            int[] chroma = NalUnitParser.parseSpsChromaFormat(sps);
+            out.put((byte) (0xfc | chroma[0]));
+            out.put((byte) (0xf8 | chroma[1]));
+            out.put((byte) (0xf8 | chroma[2]));
+            out.put((byte) 0);              // no SPS extension
+        }
+        endBox(out, avcC);
+        endBox(out, avc1);
+    }
+
+    private void write(ByteBuffer first, ByteBuffer second) throws IOException {
+        long written = 0;
+        if (second == null) {
+            while (first.hasRemaining()) {
+                written += mChannel.write(first);
+            }
+        } else {
+            mGather[0] = first;
+            mGather[1] = second;
+            while (second.hasRemaining()) {
+                written += mChannel.write(mGather);
+            }
+            mGather[0] = null;
+            mGather[1] = null;
+        }
+        mBytesWritten += written;
+    }
+
+    private void forceIfNeeded() throws IOException {
+        if (mForceEachFragment) {
+            mChannel.force(false);
+        }
+    }
+
+    private static void putMatrix(ByteBuffer out, int rotation) {
+        int a = 0x00010000;
+        int b = 0;
+        if (rotation == 90) {
+            a = 0;
+            b = 0x00010000;
+        } else if (rotation == 180) {
+            a = -0x00010000;
+        } else if (rotation == 270) {
+            a = 0;
+            b = -0x00010000;
+        }
+        out.putInt(a);
+        out.putInt(b);
+        out.putInt(0);
+        out.putInt(-b);
+        out.putInt(a);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(0x40000000);
+    }
+
+    private static void putString(ByteBuffer out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            out.put((byte) value.charAt(i));
+        }
+        out.put((byte) 0);
+    }
+
+    private static void putZeros(ByteBuffer out, int count) {
+        for (int i = 0; i < count; i++) {
+            out.put((byte) 0);
+        }
+    }
+
+    private static int beginBox(ByteBuffer out, String type) {
+        int start = out.position();
+        out.putInt(0);
+        out.putInt(fourcc(type));
+        return start;
+    }
+
+    private static int beginFullBox(ByteBuffer out, String type, int version, int flags) {
+        int start = beginBox(out, type);
+        out.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private static void endBox(ByteBuffer out, int start) {
+        out.putInt(start, out.position() - start);
+    }
+
+    private static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+}
@@ -0,0 +1,287 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A bounded pool of recycled frame buffers for the capture path.
+ *
+ * Every camera frame used to be copied into a freshly allocated byte array, which at 720p and
+ * 24-30fps creates tens of megabytes of garbage per second and causes GC pauses on the M400.
+ * Buffers are instead leased from this pool by the capture stage, handed through the frame
+ * queue and given back once their contents have been copied into the codec input buffer.
+ *
+ * The pool never grows past its hard cap. Once all buffers are allocated a steady-state
+ * recording performs no heap allocation per frame; when the cap is reached acquire() returns
+ * null and the caller drops the frame. Buffers held for longer than LEAK_TIMEOUT_MS are counted
+ * as leaked when the pool runs dry, and close() reports the buffers never returned.
+ *
+ * A frame shared between several consumers is retained once per extra consumer; it only goes
+ * back to the free list when the last of them releases it.
+ */
+public class FrameBufferPool {
+
+    private static final long LEAK_TIMEOUT_MS = 2000;
+
+    /**
+     * A single pooled frame buffer
+     */
+    public static class Frame {
+        /** Backing storage, sized for one NV12 frame of the pool geometry */
+        public final byte[] data;
+        /** View of data, preallocated so frames can be packed without wrapping per frame */
+        public final ByteBuffer buffer;
+        /** Number of valid bytes in data */
+        public int size;
+        /** Width of the packed image in pixels */
+        public final int width;
+        /** Height of the packed image in pixels */
+        public final int height;
+
+        private final FrameBufferPool mPool;
+        // read-only plane views handed to the consumers of a shared frame
+        private final ByteBuffer mY;
+        private final ByteBuffer mU;
+        private final ByteBuffer mV;
+        private int mRefCount;
+        private boolean mLeased;
+        private long mLeaseTimeMs;
+
+        private Frame(FrameBufferPool pool, int width, int height, int capacity) {
+            mPool = pool;
+            this.width = width;
+            this.height = height;
+            data = new byte[capacity];
+            buffer = ByteBuffer.wrap(data);
+            mY = buffer.asReadOnlyBuffer();
+            mU = mY.duplicate();
+            mU.position(width * height);
+            mV = mY.duplicate();
+            mV.position(width * height + 1);
+        }
+
+        /**
+         * Describes the packed NV12 image, for handing one frame to several consumers. The plane
+         * views are shared by every consumer and must only be read with absolute gets
+         * @param frame YuvFrame receiving the planes, its timestamps are left unchanged
+         * @return YuvFrame frame, with shared set to this
+         */
+        public YuvFrame describe(YuvFrame frame) {
+            frame.set(mY, width, mU, mV, width, 2, width, height, frame.timestampNs);
+            frame.shared = this;
+            return frame;
+        }
+
+        /**
+         * @return FrameBufferPool the pool the frame has to be released to
+         */
+        public FrameBufferPool getPool() {
+            return mPool;
+        }
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameSize;
+    private final Frame[] mFrames;
+    private final Frame[] mFree;
+    private int mAllocatedCount;
+    private int mFreeCount;
+    private int mLeasedCount;
+    private int mLeakedCount;
+
+    /**
+     * Creates a pool for frames of the given geometry
+     * @param width int width of the captured image in pixels
+     * @param height int height of the captured image in pixels
+     * @param maxFrames int hard cap on the number of buffers the pool will ever allocate
+     */
+    public FrameBufferPool(int width, int height, int maxFrames) {
+        if (width <= 0 || height <= 0 || maxFrames <= 0) {
+            throw new IllegalArgumentException("invalid pool geometry " + width + "x" + height + " x" + maxFrames);
+        }
+        mWidth = width;
+        mHeight = height;
+        mFrameSize = frameSize(width, height);
+        mFrames = new Frame[maxFrames];
+        mFree = new Frame[maxFrames];
+    }
+
+    /**
+     * Utility to compute the size of one YUV 4:2:0 frame
+     * @param width int width of the image in pixels
+     * @param height int height of the image in pixels
+     * @return int number of bytes in a packed NV12 frame
+     */
+    public static int frameSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * @return int width of the pooled frames in pixels
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return int height of the pooled frames in pixels
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return int the capacity in bytes of each pooled buffer
+     */
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    /**
+     * @return int the hard cap on the number of buffers
+     */
+    public int getMaxFrames() {
+        return mFrames.length;
+    }
+
+    /**
+     * @return int the number of buffers currently leased out
+     */
+    public synchronized int getLeasedCount() {
+        return mLeasedCount;
+    }
+
+    /**
+     * @return int the number of buffers allocated so far
+     */
+    public synchronized int getAllocatedCount() {
+        return mAllocatedCount;
+    }
+
+    /**
+     * Leases a buffer from the pool. Recycled buffers are preferred; a new one is only allocated
+     * while the pool is below its cap.
+     * @return Frame with size reset to 0, or null if every buffer is leased
+     */
+    public synchronized Frame acquire() {
+        Frame frame;
+        if (mFreeCount > 0) {
+            frame = mFree[--mFreeCount];
+            mFree[mFreeCount] = null;
+        } else if (mAllocatedCount < mFrames.length) {
+            frame = new Frame(this, mWidth, mHeight, mFrameSize);
+            mFrames[mAllocatedCount++] = frame;
+        } else {
+            checkForLeaks();
+            return null;
+        }
+        frame.mLeased = true;
+        frame.mRefCount = 1;
+        frame.mLeaseTimeMs = System.nanoTime() / 1000000;
+        frame.size = 0;
+        frame.buffer.clear();
+        mLeasedCount++;
+        return frame;
+    }
+
+    /**
+     * Adds a consumer to a leased buffer, which then needs one more release() to go back
+     * @param frame Frame previously returned by acquire() and not yet released
+     */
+    public synchronized void retain(Frame frame) {
+        if (frame.mPool != this || !frame.mLeased) {
+            throw new IllegalStateException("frame retained after release or not owned by this pool");
+        }
+        frame.mRefCount++;
+    }
+
+    /**
+     * Returns a leased buffer to the pool once every consumer has released it
+     * @param frame Frame previously returned by acquire()
+     */
+    public synchronized void release(Frame frame) {
+        if (frame == null) {
+            return;
+        }
+        if (frame.mPool != this || !frame.mLeased) {
+            throw new IllegalStateException("frame released twice or not owned by this pool");
+        }
+        if (--frame.mRefCount > 0) {
+            return;
+        }
+        frame.mLeased = false;
+        frame.size = 0;
+        mFree[mFreeCount++] = frame;
+        mLeasedCount--;
+    }
+
+    /**
+     * Counts the buffers that have been leased for longer than LEAK_TIMEOUT_MS
+     * @return int number of buffers that look leaked
+     */
+    public synchronized int checkForLeaks() {
+        long now = System.nanoTime() / 1000000;
+        int leaked = 0;
+        for (int i = 0; i < mAllocatedCount; i++) {
+            Frame frame = mFrames[i];
+            if (frame.mLeased && now - frame.mLeaseTimeMs > LEAK_TIMEOUT_MS) {
+                leaked++;
+            }
+        }
+        mLeakedCount = Math.max(mLeakedCount, leaked);
+        return leaked;
+    }
+
+    /**
+     * @return int the most buffers seen leaked at once by checkForLeaks()
+     */
+    public synchronized int getLeakedCount() {
+        return mLeakedCount;
+    }
+
+    /**
+     * Reports any buffers that were never returned. Called when recording stops
+     * @return int number of buffers still leased, 0 when every buffer came back
+     */
+    public synchronized int close() {
+        return mLeasedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mAllocatedCount + " of " + mFrames.length + " buffers of " + mFrameSize + " bytes allocated, "
+                + mLeasedCount + " leased, " + mLeakedCount + " leaked";
+    }
+}
@@ -0,0 +1,244 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decides which frames are given up when the encoder cannot keep up with the camera.
+ *
+ * With the async driver frames wait in a FrameRing, which the policy may trim from either end.
+ * The sync driver packs frames straight into codec input buffers, which cannot be taken back, so
+ * there only the admission and input timeout parts of the policy apply.
+ *
+ * Frames used to be lost in different ways depending on where the pipeline was congested, and the
+ * async queue blocked the camera thread. A policy makes that choice explicit and counts every
+ * frame it drops in FrameDropStats, so sustained overload degrades the recording predictably
+ * instead of stalling the camera HAL. Use one of the factory methods, or subclass to plug in
+ * another policy.
+ */
+public abstract class FrameDropPolicy {
+
+    // how often a blocked producer retries the queue
+    private static final long RETRY_INTERVAL_NS = 200000;
+
+    /**
+     * @return FrameDropPolicy keeping the queued frames and dropping the incoming one when full
+     */
+    public static FrameDropPolicy dropNewest() {
+        return new DropNewest();
+    }
+
+    /**
+     * @return FrameDropPolicy dropping the oldest queued frame to make room for the incoming one,
+     * keeping latency low at the cost of older frames
+     */
+    public static FrameDropPolicy dropOldest() {
+        return new DropOldest();
+    }
+
+    /**
+     * @param deadlineMs long longest time the producer waits for room, after which the incoming frame is dropped
+     * @return FrameDropPolicy waiting a bounded time for the encoder before dropping
+     */
+    public static FrameDropPolicy blockWithDeadline(long deadlineMs) {
+        return new BlockWithDeadline(deadlineMs);
+    }
+
+    /**
+     * @param targetFrameRate int highest frame rate let into the pipeline
+     * @return FrameDropPolicy thinning the captured frames down to the target rate, and dropping
+     * the incoming frame if the queue is still full
+     */
+    public static FrameDropPolicy decimate(int targetFrameRate) {
+        return new Decimate(targetFrameRate);
+    }
+
+    /**
+     * Decides whether a captured frame enters the pipeline at all. Admits every frame by default
+     * @param presentationTimeUs long presentation time of the frame
+     * @param stats FrameDropStats counting the frames refused
+     * @return true if the frame should be encoded
+     */
+    public boolean admit(long presentationTimeUs, FrameDropStats stats) {
+        return true;
+    }
+
+    /**
+     * Queues a frame, making room according to the policy when the queue is full
+     * @param queue FrameRing the frame is handed through, the caller must be its producer
+     * @param frame E frame to queue
+     * @param stats FrameDropStats counting the frames dropped
+     * @param <E> type of the queued frames
+     * @return E the frame dropped to resolve the overload, either frame itself or an older
+     * frame evicted from the queue, or null if nothing was dropped. The caller recycles it
+     */
+    public abstract <E> E offer(FrameRing<E> queue, E frame, FrameDropStats stats);
+
+    /**
+     * How long to wait for a codec input buffer when frames are fed straight to the encoder
+     * @param defaultTimeoutUs long timeout used when the policy has no deadline
+     * @return long timeout in microseconds for MediaCodec.dequeueInputBuffer()
+     */
+    public long getInputTimeoutUs(long defaultTimeoutUs) {
+        return defaultTimeoutUs;
+    }
+
+    /**
+     * @return int FrameDropStats reason recorded when no codec input buffer arrives within the timeout
+     */
+    public int getInputTimeoutReason() {
+        return FrameDropStats.REASON_NO_BUFFER;
+    }
+
+    /**
+     * Forgets any state from a previous recording
+     */
+    public void reset() {
+    }
+
+    private static class DropNewest extends FrameDropPolicy {
+        @Override
+        public <E> E offer(FrameRing<E> queue, E frame, FrameDropStats stats) {
+            if (queue.offer(frame)) {
+                return null;
+            }
+            stats.record(FrameDropStats.STAGE_QUEUE, FrameDropStats.REASON_DROP_NEWEST);
+            return frame;
+        }
+
+        @Override
+        public String toString() {
+            return "drop newest";
+        }
+    }
+
+    private static class DropOldest extends FrameDropPolicy {
+        @Override
+        public <E> E offer(FrameRing<E> queue, E frame, FrameDropStats stats) {
+            if (queue.offer(frame)) {
+                return null;
+            }
+            E oldest = queue.poll();
+            if (!queue.offer(frame)) {
+                // only the producer adds frames, so there is room once one has been removed
+                throw new IllegalStateException("frame queue has more than one producer");
+            }
+            if (oldest == null) {
+                // the consumer emptied the queue in the meantime
+                return null;
+            }
+            stats.record(FrameDropStats.STAGE_QUEUE, FrameDropStats.REASON_DROP_OLDEST);
+            return oldest;
+        }
+
+        @Override
+        public String toString() {
+            return "drop oldest";
+        }
+    }
+
+    private static class BlockWithDeadline extends FrameDropPolicy {
+        private final long mDeadlineNs;
+
+        BlockWithDeadline(long deadlineMs) {
+            mDeadlineNs = deadlineMs * 1000000;
+        }
+
+        @Override
+        public <E> E offer(FrameRing<E> queue, E frame, FrameDropStats stats) {
+            long deadline = System.nanoTime() + mDeadlineNs;
+            while (!queue.offer(frame)) {
+                if (System.nanoTime() - deadline >= 0) {
+                    stats.record(FrameDropStats.STAGE_QUEUE, FrameDropStats.REASON_DEADLINE);
+                    return frame;
+                }
+                LockSupport.parkNanos(RETRY_INTERVAL_NS);
+            }
+            return null;
+        }
+
+        @Override
+        public long getInputTimeoutUs(long defaultTimeoutUs) {
+            return Math.max(defaultTimeoutUs, mDeadlineNs / 1000);
+        }
+
+        @Override
+        public int getInputTimeoutReason() {
+            return FrameDropStats.REASON_DEADLINE;
+        }
+
+        @Override
+        public String toString() {
+            return "block with deadline " + mDeadlineNs / 1000000 + "ms";
+        }
+    }
+
+    private static class Decimate extends DropNewest {
+        private final long mIntervalUs;
+        private long mNextDueUs;
+        private boolean mStarted;
+
+        Decimate(int targetFrameRate) {
+            if (targetFrameRate <= 0) {
+                throw new IllegalArgumentException("invalid frame rate " + targetFrameRate);
+            }
+            mIntervalUs = 1000000L / targetFrameRate;
+        }
+
+        @Override
+        public boolean admit(long presentationTimeUs, FrameDropStats stats) {
+            if (mStarted && presentationTimeUs < mNextDueUs) {
+                stats.record(FrameDropStats.STAGE_CAPTURE, FrameDropStats.REASON_DECIMATED);
+                return false;
+            }
+            mNextDueUs = mStarted ? mNextDueUs + mIntervalUs : presentationTimeUs + mIntervalUs;
+            if (mNextDueUs <= presentationTimeUs) {
+                // fell behind after a gap, restart the schedule from this frame
+                mNextDueUs = presentationTimeUs + mIntervalUs;
+            }
+            mStarted = true;
+            return true;
+        }
+
+        @Override
+        public void reset() {
+            mStarted = false;
+        }
+
+        @Override
+        public String toString() {
+            return "decimate to " + 1000000L / mIntervalUs + "fps";
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the frames dropped by the recording pipeline, by the stage that dropped them and the
+ * reason. Counting is lock free and allocation free, and may be done from any thread.
+ */
+public class FrameDropStats {
+
+    /** Frames lost between the sensor and the ImageReader callback */
+    public static final int STAGE_CAPTURE = 0;
+    /** Frames dropped while handing them to the encoder thread */
+    public static final int STAGE_QUEUE = 1;
+    /** Frames dropped because the encoder had no input buffer */
+    public static final int STAGE_CODEC_INPUT = 2;
+    private static final String[] STAGE_NAMES = {"capture", "queue", "codec input"};
+
+    /** Skipped by acquireLatestImage(), inferred from gaps in the sensor timestamps */
+    public static final int REASON_READER_SKIPPED = 0;
+    /** No frame buffer or codec input buffer was available */
+    public static final int REASON_NO_BUFFER = 1;
+    /** The queue was full and the incoming frame was dropped */
+    public static final int REASON_DROP_NEWEST = 2;
+    /** The queue was full and the oldest queued frame was dropped */
+    public static final int REASON_DROP_OLDEST = 3;
+    /** The queue stayed full past the deadline */
+    public static final int REASON_DEADLINE = 4;
+    /** Dropped to bring the frame rate down to the target */
+    public static final int REASON_DECIMATED = 5;
+    /** Held back by the MotionGate as part of a static scene */
+    public static final int REASON_STATIC_SCENE = 6;
+    private static final String[] REASON_NAMES = {"skipped by reader", "no buffer", "drop newest",
+            "drop oldest", "deadline expired", "decimated", "static scene"};
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(STAGE_NAMES.length * REASON_NAMES.length);
+
+    /**
+     * Counts one dropped frame
+     * @param stage int one of the STAGE_ constants
+     * @param reason int one of the REASON_ constants
+     */
+    public void record(int stage, int reason) {
+        record(stage, reason, 1);
+    }
+
+    /**
+     * Counts dropped frames
+     * @param stage int one of the STAGE_ constants
+     * @param reason int one of the REASON_ constants
+     * @param frames long number of frames dropped
+     */
+    public void record(int stage, int reason, long frames) {
+        mCounts.addAndGet(stage * REASON_NAMES.length + reason, frames);
+    }
+
+    /**
+     * @param stage int one of the STAGE_ constants
+     * @param reason int one of the REASON_ constants
+     * @return long number of frames dropped by that stage for that reason
+     */
+    public long getCount(int stage, int reason) {
+        return mCounts.get(stage * REASON_NAMES.length + reason);
+    }
+
+    /**
+     * @return long number of frames dropped by all stages
+     */
+    public long getTotal() {
+        long total = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            total += mCounts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Clears all counts, called when a new recording starts
+     */
+    public void reset() {
+        for (int i = 0; i < mCounts.length(); i++) {
+            mCounts.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(getTotal()).append(" frames dropped");
+        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            for (int reason = 0; reason < REASON_NAMES.length; reason++) {
+                long count = getCount(stage, reason);
+                if (count > 0) {
+                    builder.append(", ").append(STAGE_NAMES[stage]).append('/').append(REASON_NAMES[reason])
+                            .append(": ").append(count);
+                }
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,137 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+/**
+ * Hands every captured frame to several FrameSinks, typically one EncoderDriver per output, so a
+ * full resolution recording and a low bitrate stream can be encoded from a single camera stream.
+ *
+ * The frame is packed once into a pooled NV12 buffer that all the sinks share: a sink that keeps
+ * it retains it from the pool instead of copying it, and it is recycled when the last of them
+ * releases it. Each output keeps its own queue and FrameDropPolicy, so a slow output only drops
+ * its own frames. Outputs holding on to many frames can empty the shared pool; the camera planes
+ * are then handed to the sinks as they are and each of them copies the frame into its own pool,
+ * which costs a copy per output but never a frame.
+ *
+ * The sinks are called on the source thread in the order given, the first one should be the
+ * output that matters most.
+ */
+public class FrameFanout implements FrameSink {
+
+    private final FrameSink[] mSinks;
+    private final FrameBufferPool mPool;
+    private final YuvFrame mSharedFrame = new YuvFrame();
+
+    private long mSharedCount;
+    private long mUnsharedCount;
+
+    /**
+     * @param width int width of the captured frames in pixels
+     * @param height int height of the captured frames in pixels
+     * @param maxFrames int number of frames that may be shared at once, at least the sum of the
+     *                  queue capacities of the outputs plus one for the frame being captured
+     * @param sinks FrameSink outputs receiving every frame
+     */
+    public FrameFanout(int width, int height, int maxFrames, FrameSink... sinks) {
+        if (sinks.length == 0) {
+            throw new IllegalArgumentException("no sink to fan out to");
+        }
+        mSinks = sinks.clone();
+        mPool = new FrameBufferPool(width, height, maxFrames);
+    }
+
+    /**
+     * Packs the frame into a shared buffer and hands it to every sink
+     * @param frame YuvFrame captured by the camera
+     */
+    @Override
+    public void onFrame(YuvFrame frame) {
+        FrameBufferPool.Frame shared = mPool.acquire();
+        if (shared == null) {
+            mUnsharedCount++;
+            for (FrameSink sink : mSinks) {
+                sink.onFrame(frame);
+            }
+            return;
+        }
+        shared.size = YuvPacker.pack(frame, shared.buffer);
+        shared.describe(mSharedFrame);
+        mSharedFrame.timestampNs = frame.timestampNs;
+        mSharedFrame.captureTimeNs = frame.captureTimeNs;
+        mSharedFrame.arrivalTimeNs = frame.arrivalTimeNs;
+        mSharedCount++;
+        try {
+            for (FrameSink sink : mSinks) {
+                sink.onFrame(mSharedFrame);
+            }
+        } finally {
+            // the sinks that kept the frame have retained it
+            mSharedFrame.clear();
+            mPool.release(shared);
+        }
+    }
+
+    @Override
+    public void onEndOfStream() {
+        for (FrameSink sink : mSinks) {
+            sink.onEndOfStream();
+        }
+    }
+
+    /**
+     * @return FrameBufferPool holding the shared frames
+     */
+    public FrameBufferPool getFramePool() {
+        return mPool;
+    }
+
+    /**
+     * @return long number of frames packed once and shared by the outputs
+     */
+    public long getSharedCount() {
+        return mSharedCount;
+    }
+
+    /**
+     * @return long number of frames handed over unpacked because the shared pool was empty
+     */
+    public long getUnsharedCount() {
+        return mUnsharedCount;
+    }
+
+    @Override
+    public String toString() {
+        return mSinks.length + " outputs, " + mSharedCount + " frames shared, " + mUnsharedCount
+                + " copied per output, pool: " + mPool;
+    }
+}
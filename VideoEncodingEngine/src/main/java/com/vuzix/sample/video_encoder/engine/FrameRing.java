@@ -0,0 +1,151 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free single-producer/single-consumer ring used to hand frames from the camera
+ * callback thread to the codec thread.
+ *
+ * Neither side ever blocks: offer() fails when the ring is full and poll() returns null when it
+ * is empty, so a stalled codec can no longer freeze the camera callbacks or the other way round.
+ * All slots are allocated up front. Exactly one thread may call offer(). poll() claims the head
+ * element with a compare-and-set, so besides the consumer the producer may also call it to evict
+ * the oldest element when the ring is full; size() and isEmpty() may be called from any thread.
+ * A polled slot is cleared, so the ring never keeps a consumed element reachable.
+ *
+ * @param <E> type of the elements handed through the ring
+ */
+public class FrameRing<E> {
+
+    private final AtomicReferenceArray<Object> mSlots;
+    private final int mMask;
+    private final int mCapacity;
+
+    // index of the next slot to read, claimed with compare-and-set
+    private final AtomicLong mHead = new AtomicLong();
+    // index of the next slot to write, only advanced by the producer
+    private final AtomicLong mTail = new AtomicLong();
+
+    // producer's last seen value of mHead, avoids a volatile read on every offer
+    private long mCachedHead;
+
+    /**
+     * Creates a ring holding at most capacity elements
+     * @param capacity int maximum number of queued elements
+     */
+    public FrameRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int slots = Integer.highestOneBit(capacity);
+        if (slots < capacity) {
+            slots <<= 1;
+        }
+        mSlots = new AtomicReferenceArray<Object>(slots);
+        mMask = slots - 1;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Adds an element at the tail of the ring. Producer thread only
+     * @param element E element to queue, must not be null
+     * @return true if queued, false if the ring is full
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException("null element");
+        }
+        long tail = mTail.get();
+        if (tail - mCachedHead >= mCapacity) {
+            mCachedHead = mHead.get();
+            if (tail - mCachedHead >= mCapacity) {
+                return false;
+            }
+        }
+        mSlots.lazySet((int) tail & mMask, element);
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Removes the element at the head of the ring. Called by the consumer, or by the producer to
+     * drop the oldest element
+     * @return E the oldest element, or null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        while (true) {
+            long head = mHead.get();
+            if (head >= mTail.get()) {
+                return null;
+            }
+            int index = (int) head & mMask;
+            E element = (E) mSlots.get(index);
+            if (mHead.compareAndSet(head, head + 1)) {
+                // once head has moved on the producer may already be reusing the slot, it is only
+                // cleared if it still holds the element, which nobody else can be offering
+                mSlots.compareAndSet(index, element, null);
+                return element;
+            }
+        }
+    }
+
+    /**
+     * @return int the number of queued elements, a snapshot when called off the owning threads
+     */
+    public int size() {
+        long head = mHead.get();
+        long size = mTail.get() - head;
+        if (size < 0) {
+            return 0;
+        }
+        return (int) Math.min(size, mCapacity);
+    }
+
+    /**
+     * @return true if nothing is queued
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return int the maximum number of queued elements
+     */
+    public int capacity() {
+        return mCapacity;
+    }
+}
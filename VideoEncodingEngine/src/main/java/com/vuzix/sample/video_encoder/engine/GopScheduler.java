@@ -0,0 +1,198 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+/**
+ * Decides when the encoder should start a new GOP, from the content rather than a fixed period.
+ *
+ * Every frame is analyzed by a SceneChangeDetector. A cut, or a scene that drifted away from the
+ * last sync frame, asks for a sync frame, unless the last one is less than minGopUs old: fast
+ * head motion produces one cut after the other and a sync frame for each would cost more than
+ * the poorly predicted P-frames it saves. A static scene gets a sync frame every maxGopUs only,
+ * so the encoder's own KEY_I_FRAME_INTERVAL is best set to maxGopUs too, as a backstop.
+ *
+ * onFrame() is called on the capture thread, onSyncFrame() on the output thread for every sync
+ * frame the encoder produced, whatever asked for it, so the bounds count from the actual sync
+ * frames. The analysis time of each frame is kept in a LatencyHistogram.
+ */
+public class GopScheduler {
+
+    public static final long DEFAULT_MIN_GOP_US = 1000000;
+    public static final long DEFAULT_MAX_GOP_US = 10000000;
+
+    /** No sync frame needed */
+    public static final int DECISION_NONE = 0;
+    /** Sync frame for a scene change */
+    public static final int DECISION_SCENE_CHANGE = 1;
+    /** Sync frame because the GOP reached its longest */
+    public static final int DECISION_MAX_GOP = 2;
+
+    private final SceneChangeDetector mDetector;
+    private final long mMinGopUs;
+    private final long mMaxGopUs;
+
+    // capture thread
+    private long mLastSyncUs = -1;
+    private long mMarkedOutputSyncUs = -1;
+    private final LatencyHistogram mAnalysisLatency = new LatencyHistogram();
+    private long mSceneChangeCount;
+    private long mMaxGopCount;
+    private long mSuppressedCount;
+
+    // output thread
+    private volatile long mOutputSyncUs = -1;
+
+    /**
+     * Creates a scheduler with the default detector and GOP bounds
+     */
+    public GopScheduler() {
+        this(new SceneChangeDetector(), DEFAULT_MIN_GOP_US, DEFAULT_MAX_GOP_US);
+    }
+
+    /**
+     * @param detector SceneChangeDetector analyzing the frames
+     * @param minGopUs long shortest GOP a scene change can cause, in microseconds
+     * @param maxGopUs long longest GOP, in microseconds
+     */
+    public GopScheduler(SceneChangeDetector detector, long minGopUs, long maxGopUs) {
+        if (minGopUs < 0 || maxGopUs < minGopUs) {
+            throw new IllegalArgumentException("invalid GOP bounds " + minGopUs + ", " + maxGopUs);
+        }
+        mDetector = detector;
+        mMinGopUs = minGopUs;
+        mMaxGopUs = maxGopUs;
+    }
+
+    /**
+     * Starts a new recording, its first frame is a sync frame
+     */
+    public void reset() {
+        mDetector.reset();
+        mLastSyncUs = -1;
+        mMarkedOutputSyncUs = -1;
+        mOutputSyncUs = -1;
+    }
+
+    /**
+     * Analyzes the next frame handed to the encoder. Call on the capture thread
+     * @param frame YuvFrame about to be encoded, only its Y plane is read
+     * @param presentationTimeUs long presentation time of the frame
+     * @return int DECISION_NONE, or why a sync frame should be requested for this frame
+     */
+    public int onFrame(YuvFrame frame, long presentationTimeUs) {
+        long startNs = System.nanoTime();
+        int change = mDetector.analyze(frame);
+        mAnalysisLatency.record(System.nanoTime() - startNs);
+
+        long outputSyncUs = mOutputSyncUs;
+        if (outputSyncUs != mMarkedOutputSyncUs) {
+            // a sync frame the encoder made on its own, drifts are measured from about there
+            mMarkedOutputSyncUs = outputSyncUs;
+            mLastSyncUs = Math.max(mLastSyncUs, outputSyncUs);
+            mDetector.markSyncFrame();
+        }
+        if (mLastSyncUs < 0) {
+            // the encoder starts with a sync frame
+            mLastSyncUs = presentationTimeUs;
+            return DECISION_NONE;
+        }
+
+        long gopUs = presentationTimeUs - mLastSyncUs;
+        int decision = DECISION_NONE;
+        if (gopUs >= mMaxGopUs) {
+            decision = DECISION_MAX_GOP;
+            mMaxGopCount++;
+        } else if (change != SceneChangeDetector.CHANGE_NONE) {
+            if (gopUs >= mMinGopUs) {
+                decision = DECISION_SCENE_CHANGE;
+                mSceneChangeCount++;
+            } else {
+                mSuppressedCount++;
+            }
+        }
+        if (decision != DECISION_NONE) {
+            mLastSyncUs = presentationTimeUs;
+            mDetector.markSyncFrame();
+        }
+        return decision;
+    }
+
+    /**
+     * Reports a sync frame produced by the encoder. Call on the output thread
+     * @param presentationTimeUs long presentation time of the sync frame
+     */
+    public void onSyncFrame(long presentationTimeUs) {
+        mOutputSyncUs = presentationTimeUs;
+    }
+
+    /**
+     * @return SceneChangeDetector analyzing the frames
+     */
+    public SceneChangeDetector getDetector() {
+        return mDetector;
+    }
+
+    /**
+     * @return long number of sync frames requested for a scene change
+     */
+    public long getSceneChangeCount() {
+        return mSceneChangeCount;
+    }
+
+    /**
+     * @return long number of sync frames requested because the GOP reached its longest
+     */
+    public long getMaxGopCount() {
+        return mMaxGopCount;
+    }
+
+    /**
+     * @return long number of scene changes ignored as less than the shortest GOP after a sync frame
+     */
+    public long getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
+    /**
+     * @return LatencyHistogram time taken to analyze each frame
+     */
+    public LatencyHistogram getAnalysisLatency() {
+        return mAnalysisLatency;
+    }
+
+    @Override
+    public String toString() {
+        return mSceneChangeCount + " scene changes, " + mMaxGopCount + " max GOP, " + mSuppressedCount
+                + " suppressed (" + mDetector + "), analysis " + mAnalysisLatency;
+    }
+}
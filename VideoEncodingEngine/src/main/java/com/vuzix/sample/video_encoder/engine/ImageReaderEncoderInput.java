@@ -0,0 +1,198 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraMetadata;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.MediaCodecInfo;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+/**
+ * Encoder input where the camera renders into an ImageReader and each frame is handed to a
+ * FrameSink, normally an EncoderDriver copying it into a codec input buffer. Slower than
+ * SurfaceEncoderInput, but lets the frames be processed on the CPU before they are encoded.
+ */
+public class ImageReaderEncoderInput implements EncoderInput, FrameSource {
+
+    private static final String TAG = "MediaCodec_App";
+
+    private final int mMaxImages;
+    private final Handler mHandler;
+    private final YuvFrame mFrame = new YuvFrame();
+    // set on the thread setting up the encoder, before the capture session delivers frames
+    private volatile FrameSink mSink;
+    private ImageReader mImageReader;
+    private int mTimestampSource = CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_UNKNOWN;
+
+    /**
+     * @param maxImages int number of images the reader may hold at once
+     * @param handler Handler of the thread the frames are delivered on
+     */
+    public ImageReaderEncoderInput(int maxImages, Handler handler) {
+        mMaxImages = maxImages;
+        mHandler = handler;
+    }
+
+    @Override
+    public void setFrameSink(FrameSink sink) {
+        mSink = sink;
+    }
+
+    /**
+     * Sets the clock of the image timestamps, so the time from exposure to delivery can be measured
+     * @param timestampSource int CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE of the camera
+     */
+    public void setTimestampSource(int timestampSource) {
+        mTimestampSource = timestampSource;
+    }
+
+    /**
+     * Utility to pick the color format from the capabilities of the codec
+     *
+     * @param codec CodecIndex.Entry describing the codec
+     * @return int representing the color format, 0 on failure
+     */
+    @Override
+    public int selectColorFormat(CodecIndex.Entry codec) {
+        for (int colorFormat : codec.colorFormats) {
+            if (isRecognizedFormat(colorFormat)) {
+                return colorFormat;
+            }
+        }
+        Log.e(TAG, "couldn't find a good color format for " + codec.name + " / " + codec.mimeType);
+        return 0;   // no supported color format, the caller tries the next codec
+    }
+
+    /**
+     * Utility to determine if the proposed color format is valid
+     * @param colorFormat int candidate for a color format identifier
+     * @return true if recognized as a valid format
+     */
+    private static boolean isRecognizedFormat(int colorFormat) {
+        // YuvPacker produces NV12, which is what the encoder calls YUV420SemiPlanar
+        return colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
+    }
+
+    @Override
+    public Surface createCaptureSurface(EncoderCodec encoder, int width, int height) {
+        mImageReader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, mMaxImages);
+        mImageReader.setOnImageAvailableListener(mOnImageAvailableListener, mHandler);
+        return mImageReader.getSurface();
+    }
+
+    /**
+     * Describes each captured image as a YuvFrame and hands it to the sink
+     */
+    private final ImageReader.OnImageAvailableListener mOnImageAvailableListener = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            long arrivalNs = System.nanoTime();
+            Image image = reader.acquireLatestImage();
+            if (image == null) {
+                return;
+            }
+            try {
+                Image.Plane[] planes = image.getPlanes();
+                mFrame.set(planes[0].getBuffer(), planes[0].getRowStride(),
+                        planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                        image.getWidth(), image.getHeight(), image.getTimestamp());
+                mFrame.arrivalTimeNs = arrivalNs;
+                mFrame.captureTimeNs = toNanoTime(image.getTimestamp(), arrivalNs);
+                mSink.onFrame(mFrame);
+            } finally {
+                mFrame.clear();
+                image.close();
+            }
+        }
+    };
+
+    /**
+     * @return ImageReader receiving the camera frames, null before createCaptureSurface()
+     */
+    public ImageReader getImageReader() {
+        return mImageReader;
+    }
+
+    /**
+     * Converts a sensor timestamp to the System.nanoTime() time base
+     * @param timestampNs long Image.getTimestamp()
+     * @param nowNs long System.nanoTime() at the time of the conversion
+     * @return long the capture time, or 0 if it cannot be compared with nowNs
+     */
+    private long toNanoTime(long timestampNs, long nowNs) {
+        long captureNs = timestampNs;
+        if (mTimestampSource == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME) {
+            // elapsedRealtimeNanos() also counts deep sleep, nanoTime() does not
+            captureNs -= SystemClock.elapsedRealtimeNanos() - System.nanoTime();
+        }
+        // an unknown source is roughly in the uptime base, which nanoTime() shares
+        if (captureNs <= 0 || captureNs > nowNs) {
+            return 0;
+        }
+        return captureNs;
+    }
+
+    /**
+     * Hands end of stream to the sink on the thread the frames are delivered on, behind the last
+     * onImageAvailable() already posted there, as the FrameSink contract requires
+     * @param encoder EncoderCodec receiving the frames
+     */
+    @Override
+    public void signalEndOfStream(EncoderCodec encoder) {
+        if (mHandler == null || !mHandler.post(mEndOfStreamRunnable)) {
+            // no frame thread to follow, or it has quit and delivers no more frames
+            mEndOfStreamRunnable.run();
+        }
+    }
+
+    private final Runnable mEndOfStreamRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mSink.onEndOfStream();
+        }
+    };
+
+    @Override
+    public void release() {
+        if (mImageReader != null) {
+            mImageReader.close();
+            mImageReader = null;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+/**
+ * A fixed-size histogram of latencies in nanoseconds.
+ *
+ * Values below 32ns get a bucket each, larger values are kept with 16 buckets per power of two,
+ * so every recorded value is known to within 6.25%. All buckets are allocated up front and
+ * record() never allocates. Not thread safe, the caller serializes access.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKET_COUNT;
+    private static final int BUCKET_COUNT = (63 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mSumNs;
+    private long mMinNs = Long.MAX_VALUE;
+    private long mMaxNs;
+
+    /**
+     * Adds one latency
+     * @param valueNs long latency in nanoseconds, negative values are counted as 0
+     */
+    public void record(long valueNs) {
+        if (valueNs < 0) {
+            valueNs = 0;
+        }
+        mCounts[bucketIndex(valueNs)]++;
+        mCount++;
+        mSumNs += valueNs;
+        if (valueNs < mMinNs) {
+            mMinNs = valueNs;
+        }
+        if (valueNs > mMaxNs) {
+            mMaxNs = valueNs;
+        }
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKET_COUNT + (int) (value >>> shift);
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long lower = (long) (index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * @param percentile double between 0 and 100
+     * @return long latency in nanoseconds that percentile of the values do not exceed, 0 when empty
+     */
+    public long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * mCount);
+        rank = Math.max(1, Math.min(mCount, rank));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), mMaxNs);
+            }
+        }
+        return mMaxNs;
+    }
+
+    /**
+     * @return long number of values recorded
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return long smallest value in nanoseconds, 0 when empty
+     */
+    public long getMin() {
+        return mCount == 0 ? 0 : mMinNs;
+    }
+
+    /**
+     * @return long largest value in nanoseconds
+     */
+    public long getMax() {
+        return mMaxNs;
+    }
+
+    /**
+     * @return long average value in nanoseconds, 0 when empty
+     */
+    public long getMean() {
+        return mCount == 0 ? 0 : mSumNs / mCount;
+    }
+
+    /**
+     * Forgets all values
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mSumNs = 0;
+        mMinNs = Long.MAX_VALUE;
+        mMaxNs = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + mCount + " p50=" + getPercentile(50) / 1000 + "us p99=" + getPercentile(99) / 1000
+                + "us max=" + mMaxNs / 1000 + "us";
+    }
+}
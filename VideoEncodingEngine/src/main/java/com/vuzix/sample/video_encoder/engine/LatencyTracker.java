@@ -0,0 +1,369 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Follows each frame from the sensor to the output file and collects the time spent in every
+ * stage of the pipeline in a LatencyHistogram.
+ *
+ * Frames are identified by their presentation time, which the codec carries from the input to
+ * the output buffer. Each frame is stamped, in System.nanoTime() time, when it reaches one of the
+ * STAMP_ points; a stage ends at a stamp and starts at the previous stamp the frame received, so
+ * a pipeline that skips a point (the sync driver has no queue) simply folds it into the next
+ * stage. When a frame is written the stage latencies and the total are recorded and its entry is
+ * freed. Frames that are dropped have to be discarded so their entry is reused.
+ *
+ * All memory is allocated up front and recording never allocates. Methods are synchronized, they
+ * are called a few times per frame from the capture, codec and output threads.
+ */
+public class LatencyTracker {
+
+    /** Exposure time reported by the sensor, converted to the System.nanoTime() time base */
+    public static final int STAMP_CAPTURE = 0;
+    /** The frame source received the frame */
+    public static final int STAMP_AVAILABLE = 1;
+    /** The frame was put in the queue to the codec thread */
+    public static final int STAMP_ENQUEUED = 2;
+    /** The codec thread took the frame from the queue */
+    public static final int STAMP_DEQUEUED = 3;
+    /** The frame was queued to the codec */
+    public static final int STAMP_CODEC_INPUT = 4;
+    /** The encoded frame came out of the codec */
+    public static final int STAMP_CODEC_OUTPUT = 5;
+    /** The encoded frame was written to the output */
+    public static final int STAMP_WRITTEN = 6;
+    private static final int STAMP_COUNT = 7;
+
+    /** Stage histograms are indexed by the stamp ending them, the total comes last */
+    private static final String[] STAGE_NAMES = {"capture", "sensor to callback", "pack and enqueue",
+            "queue wait", "codec input", "encode", "write", "total"};
+    /** Histogram index of the time from the first stamp of a frame until it is written */
+    public static final int STAGE_TOTAL = STAMP_COUNT;
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final int mMask;
+    private final long[] mPresentationTimesUs;
+    private final long[] mStamps;
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGE_TOTAL + 1];
+
+    private long mCompletedCount;
+    private long mDiscardedCount;
+    private long mEvictedCount;
+    private long mUnmatchedCount;
+    // from the request to record until the first frame was written, 0 when not recorded
+    private long mStartLatencyNs;
+    private String mStartOrigin;
+
+    /**
+     * Creates a tracker following up to 64 frames at once
+     */
+    public LatencyTracker() {
+        this(64);
+    }
+
+    /**
+     * @param maxFramesInFlight int frames that may be between the sensor and the output at once
+     */
+    public LatencyTracker(int maxFramesInFlight) {
+        // at most half full, so lookups stay short
+        int capacity = Integer.highestOneBit(Math.max(2, maxFramesInFlight) * 4 - 1);
+        mMask = capacity - 1;
+        mPresentationTimesUs = new long[capacity];
+        mStamps = new long[capacity * STAMP_COUNT];
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+        reset();
+    }
+
+    /**
+     * Starts following a frame
+     * @param presentationTimeUs long presentation time the frame is encoded with
+     * @param captureNs long STAMP_CAPTURE time, 0 when the sensor time base is unknown
+     * @param availableNs long STAMP_AVAILABLE time
+     */
+    public synchronized void begin(long presentationTimeUs, long captureNs, long availableNs) {
+        int slot = findFreeSlot(presentationTimeUs);
+        mPresentationTimesUs[slot] = presentationTimeUs;
+        int base = slot * STAMP_COUNT;
+        Arrays.fill(mStamps, base, base + STAMP_COUNT, 0);
+        mStamps[base + STAMP_CAPTURE] = captureNs;
+        mStamps[base + STAMP_AVAILABLE] = availableNs;
+    }
+
+    /**
+     * Records that a frame passed a point of the pipeline
+     * @param presentationTimeUs long presentation time of the frame
+     * @param stamp int one of the STAMP_ constants
+     * @param timeNs long System.nanoTime() when the frame passed the point
+     */
+    public synchronized void stamp(long presentationTimeUs, int stamp, long timeNs) {
+        int slot = findSlot(presentationTimeUs);
+        if (slot >= 0) {
+            mStamps[slot * STAMP_COUNT + stamp] = timeNs;
+        }
+    }
+
+    /**
+     * Stops following a frame that was dropped
+     * @param presentationTimeUs long presentation time of the frame
+     */
+    public synchronized void discard(long presentationTimeUs) {
+        int slot = findSlot(presentationTimeUs);
+        if (slot >= 0) {
+            mPresentationTimesUs[slot] = EMPTY;
+            mDiscardedCount++;
+        }
+    }
+
+    /**
+     * Records the stage latencies of a frame that has been written, and stops following it
+     * @param presentationTimeUs long presentation time of the encoded frame
+     * @param outputNs long STAMP_CODEC_OUTPUT time
+     * @param writtenNs long STAMP_WRITTEN time
+     * @return long time the frame spent in the codec in nanoseconds, -1 if not known
+     */
+    public synchronized long complete(long presentationTimeUs, long outputNs, long writtenNs) {
+        int slot = findSlot(presentationTimeUs);
+        if (slot < 0) {
+            mUnmatchedCount++;
+            return -1;
+        }
+        int base = slot * STAMP_COUNT;
+        mStamps[base + STAMP_CODEC_OUTPUT] = outputNs;
+        mStamps[base + STAMP_WRITTEN] = writtenNs;
+
+        long firstNs = 0;
+        long previousNs = 0;
+        for (int stamp = 0; stamp < STAMP_COUNT; stamp++) {
+            long timeNs = mStamps[base + stamp];
+            if (timeNs == 0) {
+                continue;
+            }
+            if (previousNs != 0) {
+                mHistograms[stamp].record(timeNs - previousNs);
+            } else {
+                firstNs = timeNs;
+            }
+            previousNs = timeNs;
+        }
+        mHistograms[STAGE_TOTAL].record(writtenNs - firstNs);
+        mPresentationTimesUs[slot] = EMPTY;
+        mCompletedCount++;
+        long inputNs = mStamps[base + STAMP_CODEC_INPUT];
+        return inputNs != 0 ? outputNs - inputNs : -1;
+    }
+
+    private int findSlot(long presentationTimeUs) {
+        int start = hash(presentationTimeUs);
+        for (int i = 0; i <= mMask; i++) {
+            int slot = (start + i) & mMask;
+            if (mPresentationTimesUs[slot] == presentationTimeUs) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int findFreeSlot(long presentationTimeUs) {
+        int start = hash(presentationTimeUs);
+        for (int i = 0; i <= mMask; i++) {
+            int slot = (start + i) & mMask;
+            long occupant = mPresentationTimesUs[slot];
+            if (occupant == EMPTY || occupant == presentationTimeUs) {
+                return slot;
+            }
+        }
+        // a frame that was dropped without being discarded, forget it
+        mEvictedCount++;
+        return start;
+    }
+
+    private int hash(long presentationTimeUs) {
+        long h = presentationTimeUs * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mMask;
+    }
+
+    /**
+     * @param stamp int STAMP_ constant ending the stage, or STAGE_TOTAL
+     * @return LatencyHistogram of the stage
+     */
+    public synchronized LatencyHistogram getHistogram(int stamp) {
+        return mHistograms[stamp];
+    }
+
+    /**
+     * @return long number of frames followed all the way to the output
+     */
+    public synchronized long getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    /**
+     * Forgets all frames and latencies, called when a new recording starts
+     */
+    public synchronized void reset() {
+        Arrays.fill(mPresentationTimesUs, EMPTY);
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        mCompletedCount = 0;
+        mDiscardedCount = 0;
+        mEvictedCount = 0;
+        mUnmatchedCount = 0;
+        mStartLatencyNs = 0;
+        mStartOrigin = null;
+    }
+
+    /**
+     * Records how long the recording took to start, reported with the stage latencies
+     * @param requestNs long System.nanoTime() when recording was requested, such as a button press
+     * @param firstFrameNs long System.nanoTime() when the first frame was written
+     * @param origin String how the encoder was started, such as "standby" or "cold"
+     */
+    public synchronized void setStartLatency(long requestNs, long firstFrameNs, String origin) {
+        mStartLatencyNs = firstFrameNs - requestNs;
+        mStartOrigin = origin;
+    }
+
+    /**
+     * @return long nanoseconds from the request to record to the first frame written, 0 if not recorded
+     */
+    public synchronized long getStartLatencyNs() {
+        return mStartLatencyNs;
+    }
+
+    /**
+     * Writes the stage latencies as a JSON object, times in microseconds
+     * @param writer Writer receiving the report
+     * @throws IOException if the writer fails
+     */
+    public synchronized void writeJson(Writer writer) throws IOException {
+        writer.write("{\n  \"completed\": " + mCompletedCount + ",\n  \"discarded\": " + mDiscardedCount
+                + ",\n  \"evicted\": " + mEvictedCount + ",\n  \"unmatched\": " + mUnmatchedCount);
+        if (mStartLatencyNs != 0) {
+            writer.write(",\n  \"start_to_first_frame_us\": " + mStartLatencyNs / 1000
+                    + ",\n  \"start_from\": \"" + mStartOrigin + "\"");
+        }
+        writer.write(",\n  \"stages\": [");
+        boolean first = true;
+        for (int stage = 1; stage < mHistograms.length; stage++) {
+            LatencyHistogram histogram = mHistograms[stage];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            writer.write(first ? "\n" : ",\n");
+            first = false;
+            writer.write("    {\"stage\": \"" + STAGE_NAMES[stage] + "\", \"count\": " + histogram.getCount()
+                    + ", \"p50_us\": " + histogram.getPercentile(50) / 1000
+                    + ", \"p90_us\": " + histogram.getPercentile(90) / 1000
+                    + ", \"p99_us\": " + histogram.getPercentile(99) / 1000
+                    + ", \"max_us\": " + histogram.getMax() / 1000
+                    + ", \"mean_us\": " + histogram.getMean() / 1000 + "}");
+        }
+        writer.write("\n  ]\n}\n");
+    }
+
+    /**
+     * Writes the stage latencies as CSV, one line per stage, times in microseconds. The start of
+     * the recording, when recorded, comes last as a stage of a single sample
+     * @param writer Writer receiving the report
+     * @throws IOException if the writer fails
+     */
+    public synchronized void writeCsv(Writer writer) throws IOException {
+        writer.write("stage,count,p50_us,p90_us,p99_us,max_us,mean_us\n");
+        for (int stage = 1; stage < mHistograms.length; stage++) {
+            LatencyHistogram histogram = mHistograms[stage];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            writer.write(STAGE_NAMES[stage] + "," + histogram.getCount()
+                    + "," + histogram.getPercentile(50) / 1000
+                    + "," + histogram.getPercentile(90) / 1000
+                    + "," + histogram.getPercentile(99) / 1000
+                    + "," + histogram.getMax() / 1000
+                    + "," + histogram.getMean() / 1000 + "\n");
+        }
+        if (mStartLatencyNs != 0) {
+            long startUs = mStartLatencyNs / 1000;
+            writer.write("start from " + mStartOrigin + ",1," + startUs + "," + startUs + "," + startUs
+                    + "," + startUs + "," + startUs + "\n");
+        }
+    }
+
+    /**
+     * Writes the JSON and CSV reports next to a recording, replacing its extension with
+     * _latency.json and _latency.csv
+     * @param mediaPath String path of the recorded file
+     * @throws IOException if a report cannot be written
+     */
+    public void writeReports(String mediaPath) throws IOException {
+        int extension = mediaPath.lastIndexOf('.');
+        String base = extension > mediaPath.lastIndexOf(File.separatorChar) ? mediaPath.substring(0, extension) : mediaPath;
+        Writer json = new FileWriter(base + "_latency.json");
+        try {
+            writeJson(json);
+        } finally {
+            json.close();
+        }
+        Writer csv = new FileWriter(base + "_latency.csv");
+        try {
+            writeCsv(csv);
+        } finally {
+            csv.close();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(mCompletedCount).append(" frames");
+        if (mStartLatencyNs != 0) {
+            builder.append(", start from ").append(mStartOrigin).append(' ').append(mStartLatencyNs / 1000000)
+                    .append("ms");
+        }
+        for (int stage = 1; stage < mHistograms.length; stage++) {
+            if (mHistograms[stage].getCount() > 0) {
+                builder.append(", ").append(STAGE_NAMES[stage]).append(' ').append(mHistograms[stage]);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,82 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reduces the luma plane of a frame to a coarse grid of block means, the cheap picture summary
+ * the content analysis works on. Each mean is averaged from at most SAMPLES x SAMPLES samples
+ * spread over its block, so the cost depends on the grid and not on the frame size.
+ */
+final class LumaGrid {
+
+    // samples averaged along each side of a block
+    static final int SAMPLES = 4;
+
+    private LumaGrid() {
+    }
+
+    /**
+     * Averages the luma of each block of the frame
+     * @param frame YuvFrame to reduce, only its Y plane is read with absolute gets
+     * @param columns int number of blocks across, at most the frame width
+     * @param rows int number of blocks down, at most the frame height
+     * @param blocks int[] receiving the means row by row, at least columns * rows long
+     */
+    static void reduce(YuvFrame frame, int columns, int rows, int[] blocks) {
+        ByteBuffer y = frame.y;
+        int base = y.position();
+        int rowStride = frame.yRowStride;
+        for (int row = 0; row < rows; row++) {
+            int top = row * frame.height / rows;
+            int bottom = (row + 1) * frame.height / rows;
+            int stepY = Math.max(1, (bottom - top) / SAMPLES);
+            for (int column = 0; column < columns; column++) {
+                int left = column * frame.width / columns;
+                int right = (column + 1) * frame.width / columns;
+                int stepX = Math.max(1, (right - left) / SAMPLES);
+                int sum = 0;
+                int samples = 0;
+                for (int sy = top + stepY / 2; sy < bottom; sy += stepY) {
+                    int rowBase = base + sy * rowStride;
+                    for (int sx = left + stepX / 2; sx < right; sx += stepX) {
+                        sum += y.get(rowBase + sx) & 0xff;
+                        samples++;
+                    }
+                }
+                blocks[row * columns + column] = sum / samples;
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * EncoderCodec backed by a platform MediaCodec.
+ */
+public class MediaCodecEncoder implements EncoderCodec {
+
+    private final MediaCodec mCodec;
+    private final Handler mCallbackHandler;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private final SampleInfo mCallbackInfo = new SampleInfo();
+    private Callback mCallback;
+
+    /**
+     * @param codecName String name of the encoder, as reported by MediaCodecInfo.getName()
+     * @param callbackHandler Handler of the thread the callbacks run on in asynchronous mode
+     * @throws IOException if the codec cannot be created
+     */
+    public MediaCodecEncoder(String codecName, Handler callbackHandler) throws IOException {
+        mCodec = MediaCodec.createByCodecName(codecName);
+        mCallbackHandler = callbackHandler;
+    }
+
+    /**
+     * @return MediaCodec wrapped by this encoder
+     */
+    public MediaCodec getMediaCodec() {
+        return mCodec;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public void configure(MediaFormat format) {
+        if (mCallback != null) {
+            mCodec.setCallback(new MediaCodec.Callback() {
+                @Override
+                public void onInputBufferAvailable(MediaCodec codec, int index) {
+                    mCallback.onInputBufferAvailable(index);
+                }
+
+                @Override
+                public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                    mCallbackInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+                    mCallback.onOutputBufferAvailable(index, mCallbackInfo);
+                }
+
+                @Override
+                public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                    mCallback.onError(e);
+                }
+
+                @Override
+                public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                    mCallback.onOutputFormatChanged(format);
+                }
+            }, mCallbackHandler);
+        }
+        mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return mCodec.createInputSurface();
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        mCodec.release();
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        Bundle parameters = new Bundle();
+        parameters.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mCodec.setParameters(parameters);
+    }
+
+    @Override
+    public void setVideoBitrate(int bitRate) {
+        Bundle parameters = new Bundle();
+        parameters.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        mCodec.setParameters(parameters);
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+        int index = mCodec.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        if (index >= 0) {
+            info.set(mBufferInfo.offset, mBufferInfo.size, mBufferInfo.presentationTimeUs, mBufferInfo.flags);
+        }
+        return index;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+}
@@ -0,0 +1,513 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+/**
+ * Keeps static scenes out of the encoder, to save encoding time, power and storage when nothing
+ * moves in front of the camera.
+ *
+ * The Y plane of each frame is reduced by LumaGrid to GRID_COLUMNS x GRID_ROWS block means and
+ * compared with the last frame encoded while there was motion. A block moved when its mean
+ * changed by more than blockThreshold luma levels, and the frame has motion when at least
+ * sensitivity of the blocks moved. Comparing with that frame rather than the previous one lets
+ * slow changes add up until they are worth recording.
+ *
+ * Frames are encoded from the first motion until holdUs after the last one. While the scene is
+ * static only one frame every keepAliveUs is encoded, so players and the segment writers still
+ * see the recording advance, or none at all with a keepAliveUs of 0. Every frame keeps the
+ * presentation time it was given, so the timeline of the recording stays that of the camera and
+ * a static stretch simply holds its last picture.
+ *
+ * Motion is only seen once it has started, so the last preRollFrames static frames are copied
+ * into buffers of their own and encoded right before the frame the motion was seen in. That
+ * costs one frame copy per static frame, much less than encoding it, and the buffers are only
+ * allocated at the first static frame. The keep-alive frames are then taken from the frames
+ * leaving the pre-roll rather than from the camera, so they never cut the pre-roll short and
+ * the presentation times handed to the encoder keep increasing.
+ *
+ * onFrame() and the pre-roll accessors are called on the capture thread. onSampleWritten() is
+ * called on the output thread and feeds the estimates of the time and storage saved.
+ */
+public class MotionGate {
+
+    public static final int GRID_COLUMNS = 48;
+    public static final int GRID_ROWS = 27;
+
+    /** Share of the blocks that have to move for the frame to have motion */
+    public static final float DEFAULT_SENSITIVITY = 0.02f;
+    /** Change of a block mean, in luma levels, above which the block moved */
+    public static final int DEFAULT_BLOCK_THRESHOLD = 12;
+    public static final long DEFAULT_HOLD_US = 3000000;
+    public static final long DEFAULT_KEEP_ALIVE_US = 1000000;
+    public static final int DEFAULT_PRE_ROLL_FRAMES = 12;
+
+    /** Static frame, not encoded now; it may still be encoded as pre-roll */
+    public static final int DECISION_SKIP = 0;
+    /** Encode the frame */
+    public static final int DECISION_ENCODE = 1;
+    /** Motion resumed: encode the pre-roll frames if there are any, then this one */
+    public static final int DECISION_RESUME = 2;
+    /** Static frame, kept as pre-roll: encode the keep-alive frame that left the pre-roll instead */
+    public static final int DECISION_KEEP_ALIVE = 3;
+
+    private final float mSensitivity;
+    private final int mBlockThreshold;
+    private final long mHoldUs;
+    private final long mKeepAliveUs;
+    private final int mPreRollFrames;
+
+    // capture thread
+    private int[] mBlocks = new int[GRID_COLUMNS * GRID_ROWS];
+    private int[] mReference = new int[GRID_COLUMNS * GRID_ROWS];
+    private int mWidth;
+    private int mHeight;
+    private int mColumns;
+    private int mRows;
+    private boolean mHasReference;
+    private boolean mMoving;
+    private long mLastMotionUs;
+    private long mLastEncodedUs;
+    private float mMotion;
+
+    // pre-roll frames, oldest first from mPreRollStart, and one more slot for a keep-alive frame
+    private FrameBufferPool mPreRollPool;
+    private final FrameBufferPool.Frame[] mPreRoll;
+    private final long[] mPreRollPtsUs;
+    private final long[] mPreRollTimestampNs;
+    private final long[] mPreRollCaptureNs;
+    private final long[] mPreRollArrivalNs;
+    private int mPreRollStart;
+    private int mPreRollCount;
+    private int mKeepAliveSlot = -1;
+
+    private long mFrameCount;
+    private long mFirstUs = -1;
+    private long mLastUs;
+    private long mEncodedCount;
+    private long mSkippedCount;
+    private long mKeepAliveCount;
+    private long mPreRollTotal;
+    private long mPauseCount;
+    private final LatencyHistogram mAnalysisLatency = new LatencyHistogram();
+
+    // output thread
+    private volatile long mSampleCount;
+    private volatile long mSampleBytes;
+    private volatile long mTimedSampleCount;
+    private volatile long mEncodeNs;
+
+    /**
+     * Creates a gate with the default sensitivity, hold time, keep-alive and pre-roll
+     */
+    public MotionGate() {
+        this(DEFAULT_SENSITIVITY, DEFAULT_BLOCK_THRESHOLD, DEFAULT_HOLD_US, DEFAULT_KEEP_ALIVE_US,
+                DEFAULT_PRE_ROLL_FRAMES);
+    }
+
+    /**
+     * @param sensitivity float share of the blocks, 0 to 1, that have to move for the frame to have motion
+     * @param blockThreshold int change of a block mean in luma levels above which the block moved
+     * @param holdUs long how long frames are still encoded after the last motion, in microseconds
+     * @param keepAliveUs long interval between the frames encoded in a static scene, 0 to encode none
+     * @param preRollFrames int number of static frames kept to be encoded before the motion, 0 for none
+     */
+    public MotionGate(float sensitivity, int blockThreshold, long holdUs, long keepAliveUs, int preRollFrames) {
+        if (sensitivity <= 0 || sensitivity > 1 || blockThreshold < 0 || holdUs < 0 || keepAliveUs < 0
+                || preRollFrames < 0) {
+            throw new IllegalArgumentException("invalid motion gate settings");
+        }
+        mSensitivity = sensitivity;
+        mBlockThreshold = blockThreshold;
+        mHoldUs = holdUs;
+        mKeepAliveUs = keepAliveUs;
+        mPreRollFrames = preRollFrames;
+        mPreRoll = new FrameBufferPool.Frame[preRollFrames + 1];
+        mPreRollPtsUs = new long[preRollFrames + 1];
+        mPreRollTimestampNs = new long[preRollFrames + 1];
+        mPreRollCaptureNs = new long[preRollFrames + 1];
+        mPreRollArrivalNs = new long[preRollFrames + 1];
+    }
+
+    /**
+     * Starts a new recording, its first frame is encoded. The pre-roll buffers are given back
+     */
+    public void reset() {
+        clearPreRoll();
+        releaseKeepAlive();
+        if (mPreRollPool != null) {
+            mPreRollPool.close();
+            mPreRollPool = null;
+        }
+        mWidth = 0;
+        mHeight = 0;
+        mHasReference = false;
+        mMoving = true;
+        mFrameCount = 0;
+        mFirstUs = -1;
+        mLastUs = 0;
+        mEncodedCount = 0;
+        mSkippedCount = 0;
+        mKeepAliveCount = 0;
+        mPreRollTotal = 0;
+        mPauseCount = 0;
+        mSampleCount = 0;
+        mSampleBytes = 0;
+        mTimedSampleCount = 0;
+        mEncodeNs = 0;
+    }
+
+    /**
+     * Decides whether the next frame is encoded. Call on the capture thread, for every frame in
+     * presentation order. After DECISION_RESUME the pre-roll frames, and after
+     * DECISION_KEEP_ALIVE the keep-alive frame, have to be encoded, or dropped, and then released
+     * before the next call
+     * @param frame YuvFrame captured by the camera, only valid during the call
+     * @param presentationTimeUs long presentation time of the frame
+     * @return int DECISION_SKIP, DECISION_ENCODE, DECISION_RESUME or DECISION_KEEP_ALIVE
+     */
+    public int onFrame(YuvFrame frame, long presentationTimeUs) {
+        long startNs = System.nanoTime();
+        if (frame.width != mWidth || frame.height != mHeight) {
+            mWidth = frame.width;
+            mHeight = frame.height;
+            mColumns = Math.min(GRID_COLUMNS, frame.width);
+            mRows = Math.min(GRID_ROWS, frame.height);
+            mHasReference = false;
+            // the pre-roll buffers are sized for the previous frames
+            discardPreRoll();
+            releaseKeepAlive();
+            mPreRollPool = null;
+        }
+        mFrameCount++;
+        if (mFirstUs < 0) {
+            mFirstUs = presentationTimeUs;
+        }
+        mLastUs = presentationTimeUs;
+        LumaGrid.reduce(frame, mColumns, mRows, mBlocks);
+
+        boolean motion;
+        if (!mHasReference) {
+            mHasReference = true;
+            mMotion = 0;
+            motion = true;
+        } else {
+            int count = mColumns * mRows;
+            int moved = 0;
+            int[] blocks = mBlocks;
+            int[] reference = mReference;
+            for (int i = 0; i < count; i++) {
+                if (Math.abs(blocks[i] - reference[i]) > mBlockThreshold) {
+                    moved++;
+                }
+            }
+            mMotion = (float) moved / count;
+            motion = mMotion >= mSensitivity;
+        }
+        if (motion) {
+            mLastMotionUs = presentationTimeUs;
+        }
+
+        int decision;
+        if (presentationTimeUs - mLastMotionUs <= mHoldUs) {
+            if (mMoving) {
+                decision = DECISION_ENCODE;
+            } else {
+                mMoving = true;
+                mPreRollTotal += mPreRollCount;
+                mEncodedCount += mPreRollCount;
+                decision = DECISION_RESUME;
+            }
+            // swapped rather than copied, keep-alive frames leave the reference alone so that
+            // slow changes keep adding up
+            int[] blocks = mReference;
+            mReference = mBlocks;
+            mBlocks = blocks;
+            mLastEncodedUs = presentationTimeUs;
+            mEncodedCount++;
+        } else {
+            if (mMoving) {
+                mMoving = false;
+                mPauseCount++;
+            }
+            if (mPreRollFrames > 0) {
+                decision = keepPreRoll(frame, presentationTimeUs);
+            } else if (mKeepAliveUs > 0 && presentationTimeUs - mLastEncodedUs >= mKeepAliveUs) {
+                mLastEncodedUs = presentationTimeUs;
+                mEncodedCount++;
+                mKeepAliveCount++;
+                decision = DECISION_ENCODE;
+            } else {
+                mSkippedCount++;
+                decision = DECISION_SKIP;
+            }
+        }
+        mAnalysisLatency.record(System.nanoTime() - startNs);
+        return decision;
+    }
+
+    private int keepPreRoll(YuvFrame frame, long presentationTimeUs) {
+        if (mPreRollPool == null) {
+            // twice the pre-roll, for the frames still retained by the encoder after a resume
+            mPreRollPool = new FrameBufferPool(frame.width, frame.height, (mPreRollFrames + 1) * 2);
+        }
+        // in case the previous one was not released
+        releaseKeepAlive();
+        int decision = DECISION_SKIP;
+        if (mPreRollCount == mPreRollFrames) {
+            int oldest = mPreRollStart;
+            long oldestUs = mPreRollPtsUs[oldest];
+            mPreRollStart = (oldest + 1) % mPreRoll.length;
+            mPreRollCount--;
+            if (mKeepAliveUs > 0 && oldestUs - mLastEncodedUs >= mKeepAliveUs) {
+                // left in its slot, which is not reused before releaseKeepAlive()
+                mKeepAliveSlot = oldest;
+                mLastEncodedUs = oldestUs;
+                mEncodedCount++;
+                mKeepAliveCount++;
+                decision = DECISION_KEEP_ALIVE;
+            } else {
+                releaseSlot(oldest);
+                mSkippedCount++;
+            }
+        }
+        FrameBufferPool.Frame pooled = mPreRollPool.acquire();
+        if (pooled == null) {
+            mSkippedCount++;
+            return decision;
+        }
+        FrameBufferPool.Frame shared = frame.shared;
+        if (shared != null && shared.size <= pooled.data.length) {
+            System.arraycopy(shared.data, 0, pooled.data, 0, shared.size);
+            pooled.size = shared.size;
+        } else {
+            pooled.size = YuvPacker.pack(frame, pooled.buffer);
+        }
+        int slot = (mPreRollStart + mPreRollCount) % mPreRoll.length;
+        mPreRoll[slot] = pooled;
+        mPreRollPtsUs[slot] = presentationTimeUs;
+        mPreRollTimestampNs[slot] = frame.timestampNs;
+        mPreRollCaptureNs[slot] = frame.captureTimeNs;
+        mPreRollArrivalNs[slot] = frame.arrivalTimeNs;
+        mPreRollCount++;
+        return decision;
+    }
+
+    private void releaseSlot(int slot) {
+        mPreRoll[slot].getPool().release(mPreRoll[slot]);
+        mPreRoll[slot] = null;
+    }
+
+    private void clearPreRoll() {
+        for (int i = 0; i < mPreRollCount; i++) {
+            releaseSlot((mPreRollStart + i) % mPreRoll.length);
+        }
+        mPreRollStart = 0;
+        mPreRollCount = 0;
+    }
+
+    private long describe(int slot, YuvFrame frame) {
+        FrameBufferPool.Frame pooled = mPreRoll[slot];
+        frame.timestampNs = mPreRollTimestampNs[slot];
+        pooled.describe(frame);
+        frame.captureTimeNs = mPreRollCaptureNs[slot];
+        frame.arrivalTimeNs = mPreRollArrivalNs[slot];
+        return mPreRollPtsUs[slot];
+    }
+
+    /**
+     * @return int number of pre-roll frames to encode after DECISION_RESUME
+     */
+    public int getPreRollCount() {
+        return mPreRollCount;
+    }
+
+    /**
+     * Describes a pre-roll frame, with the timestamps it was captured with. The frame is shared:
+     * a sink keeping it has to retain it from its pool
+     * @param index int 0 for the oldest frame, up to getPreRollCount() - 1
+     * @param frame YuvFrame receiving the planes and timestamps
+     * @return long presentation time of the frame
+     */
+    public long describePreRoll(int index, YuvFrame frame) {
+        return describe((mPreRollStart + index) % mPreRoll.length, frame);
+    }
+
+    /**
+     * Gives back the pre-roll frames once they have been handed to the encoder
+     */
+    public void releasePreRoll() {
+        clearPreRoll();
+    }
+
+    /**
+     * Describes the keep-alive frame to encode after DECISION_KEEP_ALIVE, shared like the
+     * pre-roll frames
+     * @param frame YuvFrame receiving the planes and timestamps
+     * @return long presentation time of the frame
+     */
+    public long describeKeepAlive(YuvFrame frame) {
+        return describe(mKeepAliveSlot, frame);
+    }
+
+    /**
+     * Gives back the keep-alive frame once it has been handed to the encoder
+     */
+    public void releaseKeepAlive() {
+        if (mKeepAliveSlot >= 0) {
+            releaseSlot(mKeepAliveSlot);
+            mKeepAliveSlot = -1;
+        }
+    }
+
+    /**
+     * Gives back the pre-roll frames without encoding them, when the recording ends
+     */
+    public void discardPreRoll() {
+        mSkippedCount += mPreRollCount;
+        clearPreRoll();
+    }
+
+    /**
+     * Reports a sample written to the output, for the estimates of what the skipped frames would
+     * have cost. Call on the output thread
+     * @param size int size of the encoded sample in bytes
+     * @param encodeNs long time the codec took for the frame, negative if unknown
+     */
+    public void onSampleWritten(int size, long encodeNs) {
+        mSampleCount++;
+        mSampleBytes += size;
+        if (encodeNs >= 0) {
+            mTimedSampleCount++;
+            mEncodeNs += encodeNs;
+        }
+    }
+
+    /**
+     * @return float share of the blocks that moved in the last frame, 0 to 1
+     */
+    public float getMotion() {
+        return mMotion;
+    }
+
+    /**
+     * @return true while frames are encoded, false while the scene is static
+     */
+    public boolean isMoving() {
+        return mMoving;
+    }
+
+    /**
+     * @return long number of frames analyzed
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return long number of frames handed to the encoder, keep-alive and pre-roll frames included
+     */
+    public long getEncodedCount() {
+        return mEncodedCount;
+    }
+
+    /**
+     * @return long number of frames that will not be encoded
+     */
+    public long getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    /**
+     * @return long number of frames encoded to keep a static recording alive
+     */
+    public long getKeepAliveCount() {
+        return mKeepAliveCount;
+    }
+
+    /**
+     * @return long number of static frames encoded as pre-roll of a motion
+     */
+    public long getPreRollTotal() {
+        return mPreRollTotal;
+    }
+
+    /**
+     * @return long number of times the scene turned static and the encoding paused
+     */
+    public long getPauseCount() {
+        return mPauseCount;
+    }
+
+    /**
+     * @return long time the camera looked at a static scene without it being encoded, in microseconds
+     */
+    public long getSkippedDurationUs() {
+        if (mFrameCount < 2) {
+            return 0;
+        }
+        return (mLastUs - mFirstUs) * mSkippedCount / (mFrameCount - 1);
+    }
+
+    /**
+     * @return long estimated bytes the skipped frames would have taken, at the mean size of the samples written
+     */
+    public long getSavedBytes() {
+        long samples = mSampleCount;
+        return samples == 0 ? 0 : mSampleBytes / samples * mSkippedCount;
+    }
+
+    /**
+     * @return long estimated codec time the skipped frames would have taken, at the mean time of the frames encoded
+     */
+    public long getSavedEncodeNs() {
+        long samples = mTimedSampleCount;
+        return samples == 0 ? 0 : mEncodeNs / samples * mSkippedCount;
+    }
+
+    /**
+     * @return LatencyHistogram time taken to analyze each frame
+     */
+    public LatencyHistogram getAnalysisLatency() {
+        return mAnalysisLatency;
+    }
+
+    @Override
+    public String toString() {
+        long percent = mFrameCount == 0 ? 0 : mSkippedCount * 100 / mFrameCount;
+        return mSkippedCount + " of " + mFrameCount + " frames skipped (" + percent + "%, "
+                + getSkippedDurationUs() / 1000 + "ms static), " + mKeepAliveCount + " keep-alive, "
+                + mPreRollTotal + " pre-roll, " + mPauseCount + " pauses; saved about "
+                + getSavedEncodeNs() / 1000000 + "ms encoding, " + getSavedBytes() / 1024 + "KB; analysis "
+                + mAnalysisLatency;
+    }
+}
@@ -0,0 +1,125 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * OutputWriter storing the samples in an MP4 file through MediaMuxer.
+ */
+public class MuxerOutputWriter implements OutputWriter {
+
+    private static final String TAG = "MediaCodec_App";
+
+    private final MediaMuxer mMuxer;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private boolean mStarted;
+
+    /**
+     * @param path String path of the MP4 file to create
+     * @param orientationHint int rotation in degrees the video is played back with
+     * @throws IOException if the file cannot be created
+     */
+    public MuxerOutputWriter(String path, int orientationHint) throws IOException {
+        mMuxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mMuxer.setOrientationHint(orientationHint);
+    }
+
+    /**
+     * Utility to create a unique filename for the captured video
+     * @param width - int width of the video
+     * @param height - int height of the video
+     * @return String filename
+     */
+    public static String getOutputMediaPath(int width, int height){
+        return getOutputMediaPath("VIDEO", width, height);
+    }
+
+    /**
+     * Utility to create a unique filename for a video kept apart from the recordings, whose
+     * VIDEO_ files are subject to the retention budget of MuxerSegmentFactory
+     * @param prefix - String start of the file name, such as "EVENT"
+     * @param width - int width of the video
+     * @param height - int height of the video
+     * @return String filename
+     */
+    public static String getOutputMediaPath(String prefix, int width, int height){
+        File mediaStorageDir = new File(
+                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM), "video_encoder");
+
+        if (!mediaStorageDir.exists()) {
+            if (!mediaStorageDir.mkdirs()) {
+                Log.e(TAG, "can not create the directory");
+            }
+        }
+
+        String timeStamp = String.valueOf(System.currentTimeMillis());
+
+        return (mediaStorageDir.getPath() + File.separator + prefix + "_" +timeStamp+"_"+width +"x"+height + ".mp4");
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        Log.d(TAG, "encoder output format changed: " + format);
+        return mMuxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+        mBufferInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+        mMuxer.writeSampleData(trackIndex, data, mBufferInfo);
+    }
+
+    @Override
+    public void release() {
+        if (mStarted) {
+            mMuxer.stop();
+            mStarted = false;
+        }
+        mMuxer.release();
+    }
+}
@@ -0,0 +1,171 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Stores each segment of a SegmentedOutputWriter in its own file, named after the recording
+ * with the segment number appended: VIDEO_<time>_<size>_0000.mp4, VIDEO_<time>_<size>_0001.mp4...
+ * The files are written by MediaMuxer, as fragmented MP4 by FragmentedMp4OutputWriter so that
+ * a segment interrupted by a crash remains playable, or as an MPEG-2 transport stream (.ts) by
+ * TsOutputWriter, which can also be played while it is being written.
+ *
+ * Retention applies to every recording in the output directory, VIDEO_<time>_<size>.mp4 single
+ * files and segments alike, so the files of earlier sessions and of the stream count against
+ * the same budget as the segments being written. Files with another prefix, such as saved
+ * events, are left alone.
+ */
+public class MuxerSegmentFactory implements SegmentedOutputWriter.SegmentFactory {
+
+    private static final String TAG = "MediaCodec_App";
+
+    /** MP4 written by MediaMuxer, playable once the segment is complete */
+    public static final int CONTAINER_MP4 = 0;
+    /** MP4 written a GOP at a time by FragmentedMp4OutputWriter */
+    public static final int CONTAINER_FRAGMENTED_MP4 = 1;
+    /** MPEG-2 transport stream written by TsOutputWriter */
+    public static final int CONTAINER_MPEG_TS = 2;
+
+    // VIDEO_<time>_<width>x<height>[_<segment>].mp4 or .ts, as named by getOutputMediaPath()
+    private static final Pattern RECORDING_NAME = Pattern.compile("VIDEO_\\d+_\\d+x\\d+(_\\d+)?\\.(mp4|ts)");
+
+    private final String mBasePath;
+    private final int mOrientationHint;
+    private final int mContainer;
+
+    /**
+     * @param mediaPath String path the recording would have as a single file
+     * @param orientationHint int rotation in degrees the video is played back with
+     */
+    public MuxerSegmentFactory(String mediaPath, int orientationHint) {
+        this(mediaPath, orientationHint, false);
+    }
+
+    /**
+     * @param mediaPath String path the recording would have as a single file
+     * @param orientationHint int rotation in degrees the video is played back with
+     * @param fragmented boolean true to write fragmented MP4 rather than use MediaMuxer
+     */
+    public MuxerSegmentFactory(String mediaPath, int orientationHint, boolean fragmented) {
+        this(mediaPath, orientationHint, fragmented ? CONTAINER_FRAGMENTED_MP4 : CONTAINER_MP4);
+    }
+
+    /**
+     * @param mediaPath String path the recording would have as a single file
+     * @param orientationHint int rotation in degrees the video is played back with, not stored in CONTAINER_MPEG_TS
+     * @param container int one of the CONTAINER_* values
+     */
+    public MuxerSegmentFactory(String mediaPath, int orientationHint, int container) {
+        if (container < CONTAINER_MP4 || container > CONTAINER_MPEG_TS) {
+            throw new IllegalArgumentException("invalid container " + container);
+        }
+        int extension = mediaPath.lastIndexOf('.');
+        mBasePath = extension > mediaPath.lastIndexOf(File.separatorChar) ? mediaPath.substring(0, extension) : mediaPath;
+        mOrientationHint = orientationHint;
+        mContainer = container;
+    }
+
+    /**
+     * @param index int number of the segment
+     * @return String path of the segment file
+     */
+    public String getSegmentPath(int index) {
+        return String.format(Locale.US, mContainer == CONTAINER_MPEG_TS ? "%s_%04d.ts" : "%s_%04d.mp4", mBasePath,
+                index);
+    }
+
+    @Override
+    public OutputWriter createSegment(int index) throws IOException {
+        String path = getSegmentPath(index);
+        Log.d(TAG, "recording segment " + path);
+        if (mContainer == CONTAINER_MPEG_TS) {
+            return new TsOutputWriter(path);
+        } else if (mContainer == CONTAINER_FRAGMENTED_MP4) {
+            return new FragmentedMp4OutputWriter(path, mOrientationHint);
+        }
+        return new MuxerOutputWriter(path, mOrientationHint);
+    }
+
+    @Override
+    public void deleteSegment(int index) {
+        File segment = new File(getSegmentPath(index));
+        if (!segment.delete()) {
+            Log.e(TAG, "can not delete " + segment);
+        }
+    }
+
+    @Override
+    public void deleteOldSegments(int currentIndex, int maxSegments) {
+        final File current = new File(getSegmentPath(currentIndex));
+        // created ahead by SegmentedOutputWriter.prepare()
+        final File next = new File(getSegmentPath(currentIndex + 1));
+        File[] recordings = current.getAbsoluteFile().getParentFile().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && RECORDING_NAME.matcher(file.getName()).matches();
+            }
+        });
+        if (recordings == null || recordings.length <= maxSegments) {
+            return;
+        }
+        Arrays.sort(recordings, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                int order = Long.compare(a.lastModified(), b.lastModified());
+                return order != 0 ? order : a.getName().compareTo(b.getName());
+            }
+        });
+        int kept = recordings.length;
+        for (int i = 0; i < recordings.length && kept > maxSegments; i++) {
+            File recording = recordings[i];
+            if (recording.getName().equals(current.getName()) || recording.getName().equals(next.getName())) {
+                continue;
+            }
+            Log.d(TAG, "deleting old recording " + recording);
+            if (recording.delete()) {
+                kept--;
+            } else {
+                Log.e(TAG, "can not delete " + recording);
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Finds the NAL units of an H.264 sample in Annex B form, as MediaCodec outputs it. The units
+ * are kept as offsets and sizes into the buffer, nothing is copied, and the arrays only grow
+ * the first time a sample holds more units than ever before.
+ *
+ * Not thread safe, one instance per writer.
+ */
+final class NalUnitParser {
+
+    static final int NAL_TYPE_IDR = 5;
+    static final int NAL_TYPE_SPS = 7;
+    static final int NAL_TYPE_PPS = 8;
+
+    private int[] mOffsets = new int[16];
+    private int[] mSizes = new int[16];
+    private int mCount;
+
+    /**
+     * Finds the NAL units between the position and the limit of data. A buffer without start
+     * code is taken as a single NAL unit
+     * @param data ByteBuffer holding the sample, its position and limit are left unchanged
+     * @return int number of NAL units found
+     */
+    int parse(ByteBuffer data) {
+        int limit = data.limit();
+        mCount = 0;
+        int start = findStartCode(data, data.position(), limit);
+        if (start < 0) {
+            add(data.position(), limit - data.position());
+            return mCount;
+        }
+        while (start >= 0) {
+            int nalStart = start + 3;
+            int next = findStartCode(data, nalStart, limit);
+            int nalEnd = next < 0 ? limit : next;
+            // drops the leading zero of a 4 byte start code, and trailing zero bytes
+            while (nalEnd > nalStart && data.get(nalEnd - 1) == 0) {
+                nalEnd--;
+            }
+            if (nalEnd > nalStart) {
+                add(nalStart, nalEnd - nalStart);
+            }
+            start = next;
+        }
+        return mCount;
+    }
+
+    /**
+     * @return int number of NAL units found by the last parse()
+     */
+    int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @param index int index of the NAL unit
+     * @return int offset of its header byte in the buffer
+     */
+    int getOffset(int index) {
+        return mOffsets[index];
+    }
+
+    /**
+     * @param index int index of the NAL unit
+     * @return int size of the NAL unit including its header byte
+     */
+    int getSize(int index) {
+        return mSizes[index];
+    }
+
+    /**
+     * @param data ByteBuffer that was parsed
+     * @param index int index of the NAL unit
+     * @return int nal_unit_type of the NAL unit
+     */
+    int getType(ByteBuffer data, int index) {
+        return data.get(mOffsets[index]) & 0x1f;
+    }
+
+    /**
+     * Copies one NAL unit, without start code, to out
+     * @param out ByteBuffer receiving the NAL unit at its position
+     * @param data ByteBuffer that was parsed, its position and limit are left unchanged
+     * @param index int index of the NAL unit
+     */
+    void put(ByteBuffer out, ByteBuffer data, int index) {
+        put(out, data, mOffsets[index], mSizes[index]);
+    }
+
+    /**
+     * Copies size bytes of data starting at offset to out
+     */
+    static void put(ByteBuffer out, ByteBuffer data, int offset, int size) {
+        int position = data.position();
+        int limit = data.limit();
+        data.limit(offset + size);
+        data.position(offset);
+        out.put(data);
+        data.limit(limit);
+        data.position(position);
+    }
+
+    /**
+     * Reads the chroma format and bit depths from an SPS, present in the high profiles only
+     * (profile_idc 100 and above). A truncated SPS reads as 4:2:0 8 bit
+     * @param sps byte[] SPS NAL unit including its header byte
+     * @return int[] chroma_format_idc, bit_depth_luma_minus8, bit_depth_chroma_minus8
+     */
+    static int[] parseSpsChromaFormat(byte[] sps) {
+        // the RBSP, without the emulation prevention bytes inserted after two zeros
+        byte[] rbsp = new byte[sps.length];
+        int size = 0;
+        int zeros = 0;
+        for (byte b : sps) {
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+            rbsp[size++] = b;
+        }
+        int[] fields = {1, 0, 0};
+        // header, profile_idc, constraint flags and level_idc
+        int[] bit = {32};
+        readUnsignedExpGolomb(rbsp, size, bit);     // seq_parameter_set_id
+        int chromaFormat = readUnsignedExpGolomb(rbsp, size, bit);
+        if (chromaFormat == 3) {
+            bit[0]++;                               // separate_colour_plane_flag
+        }
+        int lumaDepth = readUnsignedExpGolomb(rbsp, size, bit);
+        int chromaDepth = readUnsignedExpGolomb(rbsp, size, bit);
+        if (chromaDepth >= 0) {
+            fields[0] = chromaFormat;
+            fields[1] = lumaDepth;
+            fields[2] = chromaDepth;
+        }
+        return fields;
+    }
+
+    /**
+     * @return int ue(v) value at bit[0], advanced past it, -1 if the data ends before
+     */
+    private static int readUnsignedExpGolomb(byte[] data, int size, int[] bit) {
+        int leadingZeros = 0;
+        while (readBit(data, size, bit[0]++) == 0) {
+            if (++leadingZeros > 31) {
+                return -1;
+            }
+        }
+        if (bit[0] > size * 8) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < leadingZeros; i++) {
+            int b = readBit(data, size, bit[0]++);
+            if (b < 0) {
+                return -1;
+            }
+            value = (value << 1) | b;
+        }
+        return (1 << leadingZeros) - 1 + value;
+    }
+
+    private static int readBit(byte[] data, int size, int bit) {
+        if (bit >= size * 8) {
+            return -1;
+        }
+        return (data[bit >> 3] >> (7 - (bit & 7))) & 1;
+    }
+
+    private static int findStartCode(ByteBuffer data, int from, int limit) {
+        for (int i = from; i + 2 < limit; i++) {
+            if ((data.get(i + 2) & 0xff) > 1) {
+                // no start code can end at i + 2 or cover it
+                i += 2;
+            } else if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void add(int offset, int size) {
+        if (mCount == mOffsets.length) {
+            mOffsets = Arrays.copyOf(mOffsets, mCount * 2);
+            mSizes = Arrays.copyOf(mSizes, mCount * 2);
+        }
+        mOffsets[mCount] = offset;
+        mSizes[mCount] = size;
+        mCount++;
+    }
+}
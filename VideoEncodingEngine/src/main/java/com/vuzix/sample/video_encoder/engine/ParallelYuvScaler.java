@@ -0,0 +1,211 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * YuvScaler spread over several cores for the larger frames of secondary streams, thumbnails and
+ * analytics inputs.
+ *
+ * The destination rows are split into one stripe per thread of a small ForkJoinPool owned by the
+ * scaler, each stripe covering an even number of luma rows and the chroma rows they share, so
+ * the stripes write disjoint parts of the destination. The calling thread waits for the pool.
+ * The stripe tasks are created once and reinitialized for every frame, so scaling a frame
+ * allocates nothing. The output is identical to YuvScaler's whatever the number of threads.
+ *
+ * One frame is scaled at a time; scale() may be called from any thread but not concurrently.
+ * Call close() to stop the pool.
+ */
+public class ParallelYuvScaler {
+
+    private final ForkJoinPool mPool;
+    private final Stripe[] mStripes;
+    private final ScaleTask mScaleTask = new ScaleTask();
+
+    // the frame being scaled, published to the stripes by fork()
+    private YuvFrame mFrame;
+    private int mSrcX;
+    private int mSrcY;
+    private int mSrcWidth;
+    private int mSrcHeight;
+    private ByteBuffer mDst;
+    private int mBase;
+    private int mDstWidth;
+    private int mDstHeight;
+    private int mFilter;
+
+    /**
+     * @param threads int number of threads scaling a frame, 1 to scale on the calling thread only
+     */
+    public ParallelYuvScaler(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("invalid thread count " + threads);
+        }
+        // a single stripe is scaled on the calling thread, no pool needed
+        mPool = threads > 1 ? new ForkJoinPool(threads) : null;
+        mStripes = new Stripe[threads];
+        for (int i = 0; i < threads; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * @return int number of threads scaling a frame
+     */
+    public int getThreadCount() {
+        return mStripes.length;
+    }
+
+    /**
+     * Scales a frame at the current position of dst
+     * @param frame YuvFrame describing the planes of the source image
+     * @param dstWidth int width of the scaled image in pixels, even and at most the source width
+     * @param dstHeight int height of the scaled image in pixels, even and at most the source height
+     * @param dst ByteBuffer receiving the NV12 frame, its position is advanced
+     * @param filter int YuvScaler.FILTER_BOX or YuvScaler.FILTER_BILINEAR
+     * @return int number of bytes written
+     */
+    public synchronized int scale(YuvFrame frame, int dstWidth, int dstHeight, ByteBuffer dst, int filter) {
+        if (dstWidth == frame.width && dstHeight == frame.height) {
+            return YuvPacker.pack(frame, dst);
+        }
+        int size = YuvPacker.packedSize(dstWidth, dstHeight);
+        YuvScaler.checkGeometry(frame, dstWidth, dstHeight, dst, size);
+        return scaleStripes(frame, 0, 0, frame.width, frame.height, dstWidth, dstHeight, dst, filter, size);
+    }
+
+    /**
+     * Scales a region of a frame at the current position of dst, like YuvScaler does
+     * @param frame YuvFrame describing the planes of the source image
+     * @param crop CropRegion of the frame to scale, null for the whole frame
+     * @param dstWidth int width of the scaled image in pixels, even
+     * @param dstHeight int height of the scaled image in pixels, even
+     * @param dst ByteBuffer receiving the NV12 frame, its position is advanced
+     * @param filter int YuvScaler.FILTER_BOX or YuvScaler.FILTER_BILINEAR
+     * @return int number of bytes written
+     */
+    public synchronized int scale(YuvFrame frame, CropRegion crop, int dstWidth, int dstHeight, ByteBuffer dst,
+                                  int filter) {
+        if (crop == null) {
+            return scale(frame, dstWidth, dstHeight, dst, filter);
+        }
+        int size = YuvPacker.packedSize(dstWidth, dstHeight);
+        YuvScaler.checkCrop(frame, crop, dstWidth, dstHeight, dst, size);
+        return scaleStripes(frame, crop.x, crop.y, crop.width, crop.height, dstWidth, dstHeight, dst, filter, size);
+    }
+
+    private int scaleStripes(YuvFrame frame, int srcX, int srcY, int srcWidth, int srcHeight, int dstWidth,
+                             int dstHeight, ByteBuffer dst, int filter, int size) {
+        mFrame = frame;
+        mSrcX = srcX;
+        mSrcY = srcY;
+        mSrcWidth = srcWidth;
+        mSrcHeight = srcHeight;
+        mDst = dst;
+        mBase = dst.position();
+        mDstWidth = dstWidth;
+        mDstHeight = dstHeight;
+        mFilter = filter;
+
+        // stripes of whole chroma rows, the first ones one row taller when they do not divide
+        int chromaHeight = dstHeight / 2;
+        int row = 0;
+        for (int i = 0; i < mStripes.length; i++) {
+            int chromaRows = chromaHeight / mStripes.length + (i < chromaHeight % mStripes.length ? 1 : 0);
+            mStripes[i].mRowStart = row;
+            row += chromaRows * 2;
+            mStripes[i].mRowEnd = row;
+        }
+        try {
+            if (mPool == null) {
+                mStripes[0].scaleRows();
+            } else {
+                mScaleTask.reinitialize();
+                mPool.invoke(mScaleTask);
+            }
+        } finally {
+            mFrame = null;
+            mDst = null;
+        }
+        dst.position(mBase + size);
+        return size;
+    }
+
+    /**
+     * Stops the pool, scale() must not be called afterwards
+     */
+    public void close() {
+        if (mPool != null) {
+            mPool.shutdown();
+        }
+    }
+
+    /**
+     * Runs the stripes on the pool and joins them. Like Stripe, never serialized
+     */
+    @SuppressWarnings("serial")
+    private class ScaleTask extends RecursiveAction {
+        @Override
+        protected void compute() {
+            for (int i = 0; i < mStripes.length; i++) {
+                mStripes[i].reinitialize();
+            }
+            ForkJoinTask.invokeAll(mStripes);
+        }
+    }
+
+    /**
+     * Scales one range of destination rows
+     */
+    @SuppressWarnings("serial")
+    private class Stripe extends RecursiveAction {
+        private int mRowStart;
+        private int mRowEnd;
+
+        @Override
+        protected void compute() {
+            scaleRows();
+        }
+
+        private void scaleRows() {
+            if (mRowEnd > mRowStart) {
+                YuvScaler.scaleRows(mFrame, mSrcX, mSrcY, mSrcWidth, mSrcHeight, mDstWidth, mDstHeight, mDst, mBase,
+                        mFilter, mRowStart, mRowEnd);
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A circular store of the most recent encoded samples, kept off the Java heap.
+ *
+ * The sample data lives in one direct buffer and the sample table in fixed arrays, all
+ * allocated up front, so the footprint does not depend on the bitrate. Samples are evicted from
+ * the oldest end so that the store starts with the newest sync frame that is at least the
+ * retention window older than the newest sample: a saved clip covers the whole window and always
+ * starts on a sync frame. A bitrate spike that fills the store evicts early instead, shortening
+ * the window rather than growing the store.
+ *
+ * Not thread safe, all methods are called on the output thread.
+ */
+public class PreEventBuffer {
+
+    private final ByteBuffer mData;
+    private final ByteBuffer mWriteView;
+    private final ByteBuffer mReadView;
+    private final long mWindowUs;
+
+    // sample table, a ring of mCount entries starting at mFirst
+    private final long[] mPresentationTimesUs;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final int[] mFlags;
+    private int mFirst;
+    private int mCount;
+
+    // the data of the samples runs from the offset of the oldest one to mDataEnd, wrapping at
+    // the capacity when a sample does not fit before it
+    private int mDataEnd;
+    private long mBytesUsed;
+    private long mOversizedCount;
+
+    private final SampleInfo mInfo = new SampleInfo();
+
+    /**
+     * @param capacityBytes int size of the off-heap sample store
+     * @param maxSamples int number of samples the table can hold
+     * @param windowUs long how far back a saved clip should reach
+     */
+    public PreEventBuffer(int capacityBytes, int maxSamples, long windowUs) {
+        mData = ByteBuffer.allocateDirect(capacityBytes);
+        mWriteView = mData.duplicate();
+        mReadView = mData.duplicate();
+        mWindowUs = windowUs;
+        mPresentationTimesUs = new long[maxSamples];
+        mOffsets = new int[maxSamples];
+        mSizes = new int[maxSamples];
+        mFlags = new int[maxSamples];
+    }
+
+    /**
+     * Stores a copy of a sample, evicting the oldest ones as needed
+     * @param data ByteBuffer holding the sample between its position and limit, left unchanged
+     * @param info SampleInfo describing the sample
+     * @return true if stored, false if the sample is larger than the whole store
+     */
+    public boolean add(ByteBuffer data, SampleInfo info) {
+        int size = data.remaining();
+        if (size > mData.capacity()) {
+            mOversizedCount++;
+            return false;
+        }
+
+        int offset;
+        while ((offset = reserve(size)) < 0 || mCount == mPresentationTimesUs.length) {
+            // out of space or table entries, the window shrinks
+            evictOldest();
+        }
+
+        int position = data.position();
+        mWriteView.clear();
+        mWriteView.position(offset);
+        mWriteView.put(data);
+        data.position(position);
+        mDataEnd = offset + size;
+        mBytesUsed += size;
+
+        int slot = (mFirst + mCount) % mPresentationTimesUs.length;
+        mPresentationTimesUs[slot] = info.presentationTimeUs;
+        mOffsets[slot] = offset;
+        mSizes[slot] = size;
+        mFlags[slot] = info.flags;
+        mCount++;
+
+        trimToWindow(info.presentationTimeUs - mWindowUs);
+        return true;
+    }
+
+    /**
+     * @param size int bytes needed
+     * @return int offset where they fit without overwriting a stored sample, -1 if they do not
+     */
+    private int reserve(int size) {
+        if (mCount == 0) {
+            return 0;
+        }
+        int start = mOffsets[mFirst];
+        if (mDataEnd > start) {
+            if (mData.capacity() - mDataEnd >= size) {
+                return mDataEnd;
+            }
+            // skip the end of the store and wrap around
+            return start >= size ? 0 : -1;
+        }
+        return start - mDataEnd >= size ? mDataEnd : -1;
+    }
+
+    private void evictOldest() {
+        mBytesUsed -= mSizes[mFirst];
+        mFirst = (mFirst + 1) % mPresentationTimesUs.length;
+        mCount--;
+    }
+
+    /**
+     * Evicts everything before the newest sync frame that is not after the limit
+     * @param limitUs long presentation time the buffer should reach back to
+     */
+    private void trimToWindow(long limitUs) {
+        int evict = 0;
+        for (int i = 1; i < mCount; i++) {
+            int slot = (mFirst + i) % mPresentationTimesUs.length;
+            if (mPresentationTimesUs[slot] > limitUs) {
+                break;
+            }
+            if ((mFlags[slot] & SampleInfo.FLAG_KEY_FRAME) != 0) {
+                evict = i;
+            }
+        }
+        for (int i = 0; i < evict; i++) {
+            evictOldest();
+        }
+    }
+
+    /**
+     * @return int index in the sample ring of the oldest sync frame, -1 if there is none
+     */
+    private int findFirstKeyFrame() {
+        for (int i = 0; i < mCount; i++) {
+            if ((mFlags[(mFirst + i) % mPresentationTimesUs.length] & SampleInfo.FLAG_KEY_FRAME) != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the stored samples, starting with the oldest sync frame. The buffer keeps them
+     * @param writer OutputWriter that has been started
+     * @param trackIndex int track of the writer receiving the samples
+     * @return int number of samples written
+     * @throws IOException if the writer fails
+     */
+    public int writeTo(OutputWriter writer, int trackIndex) throws IOException {
+        int first = findFirstKeyFrame();
+        if (first < 0) {
+            return 0;
+        }
+        for (int i = first; i < mCount; i++) {
+            int slot = (mFirst + i) % mPresentationTimesUs.length;
+            mReadView.clear();
+            mReadView.position(mOffsets[slot]);
+            mReadView.limit(mOffsets[slot] + mSizes[slot]);
+            mInfo.set(mOffsets[slot], mSizes[slot], mPresentationTimesUs[slot], mFlags[slot]);
+            writer.writeSampleData(trackIndex, mReadView, mInfo);
+        }
+        return mCount - first;
+    }
+
+    /**
+     * @return long time covered by a clip saved now, from the oldest sync frame to the newest sample
+     */
+    public long getDurationUs() {
+        int first = findFirstKeyFrame();
+        if (first < 0) {
+            return 0;
+        }
+        int last = (mFirst + mCount - 1) % mPresentationTimesUs.length;
+        return mPresentationTimesUs[last] - mPresentationTimesUs[(mFirst + first) % mPresentationTimesUs.length];
+    }
+
+    /**
+     * @return int number of samples stored
+     */
+    public int getSampleCount() {
+        return mCount;
+    }
+
+    /**
+     * @return long bytes of sample data stored
+     */
+    public long getBytesUsed() {
+        return mBytesUsed;
+    }
+
+    /**
+     * @return long number of samples that were too large to store
+     */
+    public long getOversizedCount() {
+        return mOversizedCount;
+    }
+
+    /**
+     * Forgets all samples
+     */
+    public void clear() {
+        mFirst = 0;
+        mCount = 0;
+        mDataEnd = 0;
+        mBytesUsed = 0;
+    }
+
+    @Override
+    public String toString() {
+        return mCount + " samples, " + mBytesUsed + " of " + mData.capacity() + " bytes, "
+                + getDurationUs() / 1000 + "ms";
+    }
+}
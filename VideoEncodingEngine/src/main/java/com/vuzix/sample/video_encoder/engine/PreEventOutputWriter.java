@@ -0,0 +1,164 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * OutputWriter for event recording, like a body camera's "save the last 30 seconds".
+ *
+ * The encoder runs all the time and its samples are kept in a PreEventBuffer instead of being
+ * written. When an event starts, the buffered samples from the oldest retained sync frame are
+ * written to the event's writer and the following samples go to it live, so the saved clip runs
+ * seamlessly from before the trigger until the event ends. Samples keep going to the buffer during
+ * an event, so the next event has its own pre-roll.
+ *
+ * Only one video track is supported. startEvent() and endEvent() may be called from any thread,
+ * they take effect at the next sample.
+ */
+public class PreEventOutputWriter implements OutputWriter {
+
+    private final PreEventBuffer mBuffer;
+    private final AtomicReference<OutputWriter> mPendingEvent = new AtomicReference<OutputWriter>();
+    private volatile boolean mEndEventRequested;
+
+    private MediaFormat mFormat;
+    private OutputWriter mEvent;
+    private int mEventTrack;
+    // the clip must start on a sync frame, live samples are held back until there is one
+    private boolean mEventHasSyncFrame;
+
+    /**
+     * @param buffer PreEventBuffer holding the samples between events
+     */
+    public PreEventOutputWriter(PreEventBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * Starts saving a clip. The samples held by the buffer are written first
+     * @param eventWriter OutputWriter receiving the clip, not started yet
+     * @return false if an event is already pending, the writer is then not used
+     */
+    public boolean startEvent(OutputWriter eventWriter) {
+        if (!mPendingEvent.compareAndSet(null, eventWriter)) {
+            // the end requested for the event in progress still stands
+            return false;
+        }
+        mEndEventRequested = false;
+        return true;
+    }
+
+    /**
+     * Ends the clip being saved, does nothing when there is none
+     */
+    public void endEvent() {
+        if (mPendingEvent.get() != null) {
+            mEndEventRequested = true;
+        }
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (mFormat != null) {
+            throw new IllegalStateException("only one track is supported");
+        }
+        mFormat = format;
+        return 0;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) throws IOException {
+        if (mEndEventRequested && mEvent != null) {
+            closeEvent();
+        }
+        if (mEvent == null) {
+            OutputWriter pending = mPendingEvent.get();
+            if (pending != null) {
+                mEventTrack = pending.addTrack(mFormat);
+                pending.start();
+                mEventHasSyncFrame = mBuffer.writeTo(pending, mEventTrack) > 0;
+                mEvent = pending;
+            }
+        }
+
+        mBuffer.add(data, info);
+        if (mEvent != null) {
+            mEventHasSyncFrame |= (info.flags & SampleInfo.FLAG_KEY_FRAME) != 0;
+            if (mEventHasSyncFrame) {
+                mEvent.writeSampleData(mEventTrack, data, info);
+            }
+        }
+    }
+
+    private void closeEvent() {
+        mEvent.release();
+        mEvent = null;
+        mEndEventRequested = false;
+        mPendingEvent.set(null);
+    }
+
+    /**
+     * @return true while a clip is being saved
+     */
+    public boolean isEventActive() {
+        return mPendingEvent.get() != null;
+    }
+
+    /**
+     * @return PreEventBuffer holding the recent samples
+     */
+    public PreEventBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    @Override
+    public void release() {
+        if (mEvent != null) {
+            closeEvent();
+        }
+        // a pending event that never received a sample still owns its file
+        OutputWriter pending = mPendingEvent.getAndSet(null);
+        if (pending != null) {
+            pending.release();
+        }
+    }
+}
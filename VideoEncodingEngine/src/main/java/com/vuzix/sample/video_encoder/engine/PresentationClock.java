@@ -0,0 +1,196 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+/**
+ * Converts camera sensor timestamps (Image.getTimestamp(), nanoseconds) into encoder presentation
+ * times (microseconds) rebased to the start of the recording.
+ *
+ * Presentation times follow the sensor rather than a frame counter, so a camera running at a
+ * different rate than the encoder, or frames discarded by acquireLatestImage(), no longer make
+ * the recording run fast or slow. Small jitter around the expected frame interval is smoothed,
+ * steps larger than half a frame are taken as they are so the output never drifts away from the
+ * sensor clock, and the result is strictly increasing. Gaps of more than GAP_FACTOR frame
+ * intervals are counted as missing frames.
+ *
+ * Not thread safe, call from the capture thread only.
+ */
+public class PresentationClock {
+
+    // a delta this many frame intervals long is a gap in the capture
+    private static final double GAP_FACTOR = 1.5;
+    // weight of a new measurement in the frame interval estimate
+    private static final double INTERVAL_WEIGHT = 1.0 / 16;
+    // fraction of the jitter passed through to the output
+    private static final double JITTER_WEIGHT = 1.0 / 8;
+
+    private final long mNominalIntervalNs;
+
+    private long mBaseNs;
+    private long mLastSensorNs;
+    private long mLastOutputNs;
+    private long mLastOutputUs;
+    private double mIntervalNs;
+    private boolean mStarted;
+
+    private long mFrameCount;
+    private long mGapCount;
+    private long mMissingFrameCount;
+    private long mNonMonotonicCount;
+
+    /**
+     * @param nominalFrameRate int frame rate the camera is expected to run at, seeds the interval estimate
+     */
+    public PresentationClock(int nominalFrameRate) {
+        if (nominalFrameRate <= 0) {
+            throw new IllegalArgumentException("invalid frame rate " + nominalFrameRate);
+        }
+        mNominalIntervalNs = 1000000000L / nominalFrameRate;
+        reset();
+    }
+
+    /**
+     * Starts a new recording, the next timestamp becomes presentation time 0
+     */
+    public void reset() {
+        mStarted = false;
+        mIntervalNs = mNominalIntervalNs;
+        mBaseNs = 0;
+        mLastSensorNs = 0;
+        mLastOutputNs = 0;
+        mLastOutputUs = 0;
+        mFrameCount = 0;
+        mGapCount = 0;
+        mMissingFrameCount = 0;
+        mNonMonotonicCount = 0;
+    }
+
+    /**
+     * Maps the sensor timestamp of the next frame to its presentation time
+     * @param sensorTimestampNs long Image.getTimestamp() of the frame
+     * @return long presentation time in microseconds, strictly greater than the previous one
+     */
+    public long toPresentationTimeUs(long sensorTimestampNs) {
+        mFrameCount++;
+        if (!mStarted) {
+            mStarted = true;
+            mBaseNs = sensorTimestampNs;
+            mLastSensorNs = sensorTimestampNs;
+            mLastOutputNs = 0;
+            mLastOutputUs = 0;
+            return 0;
+        }
+
+        long deltaNs = sensorTimestampNs - mLastSensorNs;
+        mLastSensorNs = sensorTimestampNs;
+
+        if (deltaNs > GAP_FACTOR * mIntervalNs) {
+            mGapCount++;
+            mMissingFrameCount += Math.max(1, Math.round(deltaNs / mIntervalNs) - 1);
+        } else if (deltaNs > 0) {
+            mIntervalNs += (deltaNs - mIntervalNs) * INTERVAL_WEIGHT;
+        }
+
+        long actualNs = sensorTimestampNs - mBaseNs;
+        long predictedNs = mLastOutputNs + (long) mIntervalNs;
+        long errorNs = actualNs - predictedNs;
+        long outputNs;
+        if (Math.abs(errorNs) * 2 > mIntervalNs) {
+            // not jitter: a gap or a step of the sensor clock, follow the sensor
+            outputNs = actualNs;
+        } else {
+            outputNs = predictedNs + (long) (errorNs * JITTER_WEIGHT);
+        }
+
+        long outputUs = outputNs / 1000;
+        if (outputUs <= mLastOutputUs) {
+            mNonMonotonicCount++;
+            outputUs = mLastOutputUs + 1;
+            outputNs = outputUs * 1000;
+        }
+        mLastOutputNs = outputNs;
+        mLastOutputUs = outputUs;
+        return outputUs;
+    }
+
+    /**
+     * @return long presentation time one frame interval after the last frame, for end of stream
+     */
+    public long getNextPresentationTimeUs() {
+        if (!mStarted) {
+            return 0;
+        }
+        return mLastOutputUs + Math.max(1, (long) mIntervalNs / 1000);
+    }
+
+    /**
+     * @return long current estimate of the capture frame interval in microseconds
+     */
+    public long getFrameIntervalUs() {
+        return (long) mIntervalNs / 1000;
+    }
+
+    /**
+     * @return long number of frames mapped since the last reset
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return long number of gaps detected in the sensor timestamps
+     */
+    public long getGapCount() {
+        return mGapCount;
+    }
+
+    /**
+     * @return long estimated number of frames missing in those gaps
+     */
+    public long getMissingFrameCount() {
+        return mMissingFrameCount;
+    }
+
+    /**
+     * @return long number of timestamps that had to be pushed forward to stay monotonic
+     */
+    public long getNonMonotonicCount() {
+        return mNonMonotonicCount;
+    }
+
+    @Override
+    public String toString() {
+        return mFrameCount + " frames, interval " + getFrameIntervalUs() + "us, " + mGapCount + " gaps ("
+                + mMissingFrameCount + " frames missing), " + mNonMonotonicCount + " non monotonic";
+    }
+}
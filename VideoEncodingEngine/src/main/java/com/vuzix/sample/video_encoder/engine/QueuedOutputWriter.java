@@ -0,0 +1,401 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * OutputWriter handing the samples to another OutputWriter on a dedicated writer thread.
+ *
+ * Writing used to happen on the thread draining the codec, so a stall of the SD card or eMMC kept
+ * the codec output buffer, then all of them, and eventually stopped the encoder. Here each sample
+ * is copied into one of a fixed set of pooled direct buffers and queued, and the codec buffer is
+ * released right away. The writer thread drains the queue in batches, so a burst that piled up
+ * during a stall is written back to back with a single wakeup.
+ *
+ * When every pooled buffer is queued the storage is stalling, and the stall policy decides:
+ * STALL_POLICY_DROP_UNTIL_SYNC drops the sample and everything after it up to the next sync
+ * frame, requested from the encoder when one is set, so the file stays decodable and the encoder
+ * never waits. STALL_POLICY_BLOCK waits for a buffer, back-pressuring the encoder as before, for
+ * at most the block timeout, and STALL_POLICY_FAIL reports an IOException; so does BLOCK once
+ * its timeout has passed.
+ *
+ * release() writes what is queued, but waits for the writer thread only for the release timeout.
+ * A thread stuck in the storage is then left to release the writer when it returns, and the
+ * samples still queued are dropped.
+ *
+ * The buffers start at sampleCapacity bytes and grow to fit larger samples, sync frames mostly,
+ * so memory is bounded by the number of buffers times the largest sample. addTrack() and start()
+ * are passed through on the calling thread; a write error on the writer thread is thrown by the
+ * next writeSampleData(). Since the sample is only queued, the "write" stage of the latency
+ * tracker covers the copy and hand-off, getWriteLatency() covers the write itself.
+ */
+public class QueuedOutputWriter implements OutputWriter {
+
+    /** Drop samples up to the next sync frame when the queue is full */
+    public static final int STALL_POLICY_DROP_UNTIL_SYNC = 0;
+    /** Wait for the writer thread when the queue is full */
+    public static final int STALL_POLICY_BLOCK = 1;
+    /** Fail the write when the queue is full */
+    public static final int STALL_POLICY_FAIL = 2;
+
+    public static final long DEFAULT_BLOCK_TIMEOUT_MS = 1000;
+    public static final long DEFAULT_RELEASE_TIMEOUT_MS = 500;
+
+    // how long the output thread sleeps between checks for a free buffer with STALL_POLICY_BLOCK
+    private static final long BLOCK_WAIT_NS = 1000000;
+
+    /**
+     * A pooled copy of one sample
+     */
+    private static class Sample {
+        ByteBuffer data;
+        final SampleInfo info = new SampleInfo();
+        int trackIndex;
+        long queuedNs;
+    }
+
+    private final OutputWriter mWriter;
+    private final int mStallPolicy;
+    private EncoderCodec mEncoder;
+    private BitrateController mBitrateController;
+
+    // samples go to the writer thread through mQueue and come back through mFree
+    private final FrameRing<Sample> mQueue;
+    private final FrameRing<Sample> mFree;
+    private Thread mThread;
+    private volatile boolean mStopping;
+    private volatile IOException mError;
+    private long mBlockTimeoutNs = DEFAULT_BLOCK_TIMEOUT_MS * 1000000L;
+    private long mReleaseTimeoutNs = DEFAULT_RELEASE_TIMEOUT_MS * 1000000L;
+    // release() gave up on the writer thread, which releases the writer when it ends
+    private volatile boolean mAbandoned;
+    private volatile boolean mThreadEnded;
+    private final AtomicBoolean mWriterReleased = new AtomicBoolean();
+
+    // output thread only
+    private boolean mDroppingUntilSync;
+    private long mQueuedCount;
+    private long mDroppedCount;
+    private long mStallCount;
+    private long mQueueDepthSum;
+    private int mMaxQueueDepth;
+
+    // writer thread only, read once the thread has ended
+    private final LatencyHistogram mWriteLatency = new LatencyHistogram();
+    private final LatencyHistogram mQueueLatency = new LatencyHistogram();
+    private long mBatchCount;
+    private int mMaxBatchSize;
+
+    /**
+     * @param writer OutputWriter the samples are written to, only used on the writer thread once started
+     * @param queueSamples int number of pooled sample buffers, the most samples queued at once
+     * @param sampleCapacity int initial size of each buffer
+     * @param stallPolicy int one of the STALL_POLICY_* values
+     */
+    public QueuedOutputWriter(OutputWriter writer, int queueSamples, int sampleCapacity, int stallPolicy) {
+        if (stallPolicy < STALL_POLICY_DROP_UNTIL_SYNC || stallPolicy > STALL_POLICY_FAIL) {
+            throw new IllegalArgumentException("invalid stall policy " + stallPolicy);
+        }
+        mWriter = writer;
+        mStallPolicy = stallPolicy;
+        mQueue = new FrameRing<>(queueSamples);
+        mFree = new FrameRing<>(queueSamples);
+        for (int i = 0; i < queueSamples; i++) {
+            Sample sample = new Sample();
+            sample.data = ByteBuffer.allocateDirect(sampleCapacity);
+            mFree.offer(sample);
+        }
+    }
+
+    /**
+     * Lets STALL_POLICY_DROP_UNTIL_SYNC ask for a sync frame when it starts dropping, without it
+     * the samples are dropped up to the next regular I-frame
+     * @param encoder EncoderCodec producing the samples
+     */
+    public void setEncoder(EncoderCodec encoder) {
+        mEncoder = encoder;
+    }
+
+    /**
+     * Bounds the waits on the writer thread. Call before start()
+     * @param blockTimeoutMs long longest wait for a free buffer with STALL_POLICY_BLOCK, in milliseconds
+     * @param releaseTimeoutMs long longest wait in release() for the queued samples to be written, in milliseconds
+     */
+    public void setTimeouts(long blockTimeoutMs, long releaseTimeoutMs) {
+        if (blockTimeoutMs <= 0 || releaseTimeoutMs <= 0) {
+            throw new IllegalArgumentException("invalid timeouts " + blockTimeoutMs + ", " + releaseTimeoutMs);
+        }
+        mBlockTimeoutNs = blockTimeoutMs * 1000000L;
+        mReleaseTimeoutNs = releaseTimeoutMs * 1000000L;
+    }
+
+    /**
+     * Reports the queue fill and the write times to a bitrate controller, so a slow storage
+     * lowers the bitrate before it makes the writer drop samples
+     * @param controller BitrateController, may be null
+     */
+    public void setBitrateController(BitrateController controller) {
+        mBitrateController = controller;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mWriter.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mWriter.start();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeSamples();
+                mThreadEnded = true;
+                if (mAbandoned) {
+                    releaseWriter();
+                }
+            }
+        }, "Muxer Writer");
+        mThread.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) throws IOException {
+        IOException error = mError;
+        if (error != null) {
+            throw error;
+        }
+        boolean sync = (info.flags & SampleInfo.FLAG_KEY_FRAME) != 0;
+        if (mDroppingUntilSync) {
+            if (!sync) {
+                mDroppedCount++;
+                return;
+            }
+            mDroppingUntilSync = false;
+        }
+
+        Sample sample = mFree.poll();
+        if (sample == null) {
+            mStallCount++;
+            if (mStallPolicy == STALL_POLICY_FAIL) {
+                throw new IOException("storage stalled, " + mQueue.size() + " samples queued");
+            } else if (mStallPolicy == STALL_POLICY_BLOCK) {
+                long deadlineNs = System.nanoTime() + mBlockTimeoutNs;
+                while ((sample = mFree.poll()) == null) {
+                    if ((error = mError) != null) {
+                        throw error;
+                    }
+                    if (System.nanoTime() - deadlineNs >= 0) {
+                        throw new IOException("storage stalled for " + mBlockTimeoutNs / 1000000 + "ms, "
+                                + mQueue.size() + " samples queued");
+                    }
+                    LockSupport.parkNanos(BLOCK_WAIT_NS);
+                }
+            } else {
+                mDroppedCount++;
+                mDroppingUntilSync = true;
+                if (mEncoder != null) {
+                    mEncoder.requestSyncFrame();
+                }
+                return;
+            }
+        }
+
+        int size = data.remaining();
+        if (sample.data.capacity() < size) {
+            sample.data = ByteBuffer.allocateDirect(Integer.highestOneBit(size) << 1);
+        }
+        sample.data.clear();
+        sample.data.put(data.duplicate());
+        sample.data.flip();
+        sample.info.set(0, size, info.presentationTimeUs, info.flags);
+        sample.trackIndex = trackIndex;
+        sample.queuedNs = System.nanoTime();
+        mQueue.offer(sample);
+        LockSupport.unpark(mThread);
+
+        int depth = mQueue.size();
+        mQueuedCount++;
+        mQueueDepthSum += depth;
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, depth);
+        BitrateController controller = mBitrateController;
+        if (controller != null) {
+            controller.reportQueueFill(depth, mQueue.capacity());
+        }
+    }
+
+    /**
+     * Writes the queued samples, waits for the writer thread at most the release timeout and
+     * releases the writer. A writer thread still busy after the timeout releases it when it ends
+     */
+    @Override
+    public void release() {
+        Thread thread = mThread;
+        if (thread != null) {
+            mStopping = true;
+            LockSupport.unpark(thread);
+            long deadlineNs = System.nanoTime() + mReleaseTimeoutNs;
+            boolean interrupted = false;
+            long remainingNs;
+            while (thread.isAlive() && (remainingNs = deadlineNs - System.nanoTime()) > 0) {
+                try {
+                    thread.join(remainingNs / 1000000 + 1);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+            if (thread.isAlive()) {
+                mAbandoned = true;
+                // the thread may have ended before it could see the flag
+                if (mThreadEnded) {
+                    releaseWriter();
+                }
+                return;
+            }
+        }
+        releaseWriter();
+    }
+
+    /**
+     * Releases the writer once, from release() or from the writer thread it gave up on
+     */
+    private void releaseWriter() {
+        if (mWriterReleased.compareAndSet(false, true)) {
+            mWriter.release();
+        }
+    }
+
+    private void writeSamples() {
+        while (true) {
+            Sample sample = mQueue.poll();
+            if (sample == null) {
+                if (mStopping && mQueue.isEmpty()) {
+                    return;
+                }
+                LockSupport.park(this);
+                continue;
+            }
+            int batchSize = 0;
+            while (sample != null) {
+                write(sample);
+                mFree.offer(sample);
+                batchSize++;
+                sample = mQueue.poll();
+            }
+            mBatchCount++;
+            mMaxBatchSize = Math.max(mMaxBatchSize, batchSize);
+        }
+    }
+
+    private void write(Sample sample) {
+        if (mError != null || mAbandoned) {
+            // the writer failed already, or release() gave up on it: the samples only go back to the pool
+            return;
+        }
+        long startNs = System.nanoTime();
+        mQueueLatency.record(startNs - sample.queuedNs);
+        try {
+            mWriter.writeSampleData(sample.trackIndex, sample.data, sample.info);
+        } catch (IOException e) {
+            mError = e;
+        } catch (RuntimeException e) {
+            mError = new IOException(e);
+        }
+        long writeNs = System.nanoTime() - startNs;
+        mWriteLatency.record(writeNs);
+        BitrateController controller = mBitrateController;
+        if (controller != null) {
+            controller.reportWrite(sample.info.size, writeNs);
+        }
+    }
+
+    /**
+     * @return long number of samples handed to the writer thread
+     */
+    public long getQueuedCount() {
+        return mQueuedCount;
+    }
+
+    /**
+     * @return long number of samples dropped by STALL_POLICY_DROP_UNTIL_SYNC
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * @return long number of samples that found every buffer queued
+     */
+    public long getStallCount() {
+        return mStallCount;
+    }
+
+    /**
+     * @return int the most samples queued at once
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * @return LatencyHistogram time taken by each write on the writer thread, read after release()
+     */
+    public LatencyHistogram getWriteLatency() {
+        return mWriteLatency;
+    }
+
+    /**
+     * @return LatencyHistogram time each sample waited in the queue, read after release()
+     */
+    public LatencyHistogram getQueueLatency() {
+        return mQueueLatency;
+    }
+
+    @Override
+    public String toString() {
+        return mQueuedCount + " queued (depth mean " + (mQueuedCount > 0 ? mQueueDepthSum / mQueuedCount : 0)
+                + ", max " + mMaxQueueDepth + "), " + mStallCount + " stalls, " + mDroppedCount + " dropped, "
+                + mBatchCount + " batches (max " + mMaxBatchSize + "), write " + mWriteLatency
+                + ", queue wait " + mQueueLatency;
+    }
+}
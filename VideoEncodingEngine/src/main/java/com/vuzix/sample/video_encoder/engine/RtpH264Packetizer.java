@@ -0,0 +1,386 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Splits H.264 samples into RTP packets as described by RFC 6184, in non-interleaved mode.
+ *
+ * A NAL unit that fits a packet is sent as it is (single NAL unit packet), a larger one is cut
+ * into FU-A fragments, and SPS and PPS are aggregated into one STAP-A packet. The parameter sets
+ * are taken from the codec config sample, or setParameterSets(), and are sent again ahead of
+ * every sync frame that does not carry its own, so a viewer joining late can start decoding at
+ * the next I-frame. The marker bit is set on the last packet of each frame, the timestamp is the
+ * presentation time on the 90 kHz clock.
+ *
+ * The packets are produced one at a time into a buffer supplied by the caller: begin() takes a
+ * sample, then next() fills the buffer with each packet in turn. Nothing is allocated per sample
+ * or per packet, and the sample is read in place, so it must stay unchanged until next() returns
+ * false.
+ *
+ * Not thread safe, all methods are called on the output thread.
+ */
+public class RtpH264Packetizer {
+
+    /** Dynamic payload type announced for H.264 */
+    public static final int DEFAULT_PAYLOAD_TYPE = 96;
+    /** Fits an Ethernet or WLAN MTU of 1500 bytes with IP and UDP headers, and some headroom for tunnels */
+    public static final int DEFAULT_MAX_PACKET_SIZE = 1400;
+
+    static final int HEADER_SIZE = 12;
+    static final int CLOCK_RATE = 90000;
+
+    static final int NAL_TYPE_STAP_A = 24;
+    static final int NAL_TYPE_FU_A = 28;
+    static final int FU_START = 0x80;
+    static final int FU_END = 0x40;
+
+    private final int mMaxPacketSize;
+    private final int mPayloadType;
+    private final int mSsrc;
+    private final int mTimestampBase;
+    private int mSequenceNumber;
+
+    // SPS and PPS with a 2 byte size in front of each, the STAP-A payload without its header
+    private final ByteBuffer mParameterSets;
+    private int mParameterSetsNri;
+
+    // the sample being packetized
+    private final NalUnitParser mNalUnits = new NalUnitParser();
+    private ByteBuffer mData;
+    private int mNalCount;
+    private int mTimestamp;
+    private boolean mEndsFrame;
+    private boolean mSendParameterSets;
+    private int mNalIndex;
+    private int mFragmentOffset;
+
+    private long mPacketCount;
+    private long mFragmentedCount;
+    private long mAggregatedCount;
+
+    /**
+     * Creates a packetizer with the default packet size and payload type, and a random SSRC
+     */
+    public RtpH264Packetizer() {
+        this(DEFAULT_MAX_PACKET_SIZE, DEFAULT_PAYLOAD_TYPE, new Random().nextInt());
+    }
+
+    /**
+     * @param maxPacketSize int size of the largest RTP packet, header included
+     * @param payloadType int RTP payload type, 96 to 127
+     * @param ssrc int synchronization source identifying the stream
+     */
+    public RtpH264Packetizer(int maxPacketSize, int payloadType, int ssrc) {
+        if (maxPacketSize < HEADER_SIZE + 16) {
+            throw new IllegalArgumentException("packet size too small " + maxPacketSize);
+        }
+        if (payloadType < 0 || payloadType > 127) {
+            throw new IllegalArgumentException("invalid payload type " + payloadType);
+        }
+        mMaxPacketSize = maxPacketSize;
+        mPayloadType = payloadType;
+        mSsrc = ssrc;
+        // the RFC asks for random initial values, so that the stream is hard to spoof
+        Random random = new Random();
+        mTimestampBase = random.nextInt();
+        mSequenceNumber = random.nextInt(0x10000);
+        mParameterSets = ByteBuffer.allocate(maxPacketSize - HEADER_SIZE - 1);
+        // empty until the parameter sets are known
+        mParameterSets.flip();
+    }
+
+    /**
+     * Sets the parameter sets sent ahead of sync frames, replacing those seen before
+     * @param csd0 ByteBuffer csd-0 of the encoder output format, the SPS in Annex B form
+     * @param csd1 ByteBuffer csd-1 of the encoder output format, the PPS in Annex B form, may be null
+     * @throws IllegalArgumentException if the parameter sets do not fit one packet
+     */
+    public void setParameterSets(ByteBuffer csd0, ByteBuffer csd1) {
+        mParameterSets.clear();
+        mParameterSetsNri = 0;
+        addParameterSets(csd0);
+        if (csd1 != null) {
+            addParameterSets(csd1);
+        }
+        mParameterSets.flip();
+    }
+
+    private void addParameterSets(ByteBuffer data) {
+        int count = mNalUnits.parse(data);
+        for (int i = 0; i < count; i++) {
+            int type = mNalUnits.getType(data, i);
+            if (type != NalUnitParser.NAL_TYPE_SPS && type != NalUnitParser.NAL_TYPE_PPS) {
+                continue;
+            }
+            int size = mNalUnits.getSize(i);
+            if (mParameterSets.remaining() < 2 + size) {
+                throw new IllegalArgumentException("parameter sets larger than a packet");
+            }
+            mParameterSets.putShort((short) size);
+            mNalUnits.put(mParameterSets, data, i);
+            mParameterSetsNri = Math.max(mParameterSetsNri, data.get(mNalUnits.getOffset(i)) & 0x60);
+        }
+    }
+
+    /**
+     * @return boolean true once SPS and PPS are known
+     */
+    public boolean hasParameterSets() {
+        return mParameterSets.limit() > 0;
+    }
+
+    /**
+     * Starts packetizing a sample. A codec config sample replaces the parameter sets and is sent
+     * as a STAP-A, an empty sample produces no packet
+     * @param data ByteBuffer holding the sample in Annex B form between its position and limit
+     * @param info SampleInfo describing the sample
+     */
+    public void begin(ByteBuffer data, SampleInfo info) {
+        mData = data;
+        mTimestamp = mTimestampBase + (int) (info.presentationTimeUs * CLOCK_RATE / 1000000);
+        mNalIndex = 0;
+        mFragmentOffset = 0;
+        if ((info.flags & SampleInfo.FLAG_CODEC_CONFIG) != 0) {
+            mParameterSets.clear();
+            mParameterSetsNri = 0;
+            addParameterSets(data);
+            mParameterSets.flip();
+            // sent on its own, not as part of a frame
+            mNalCount = 0;
+            mSendParameterSets = hasParameterSets();
+            mEndsFrame = false;
+            return;
+        }
+        int count = data.hasRemaining() ? mNalUnits.parse(data) : 0;
+        mNalCount = count;
+        mEndsFrame = count > 0;
+        mSendParameterSets = false;
+        if ((info.flags & SampleInfo.FLAG_KEY_FRAME) != 0 && hasParameterSets()) {
+            mSendParameterSets = true;
+            for (int i = 0; i < count; i++) {
+                if (mNalUnits.getType(data, i) == NalUnitParser.NAL_TYPE_SPS) {
+                    mSendParameterSets = false;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the next packet of the sample
+     * @param packet ByteBuffer receiving the packet, cleared first and flipped once written, at
+     *               least getMaxPacketSize() bytes
+     * @return boolean false once every packet of the sample was written, packet is then empty
+     */
+    public boolean next(ByteBuffer packet) {
+        packet.clear();
+        if (mSendParameterSets) {
+            mSendParameterSets = false;
+            // ahead of the frame, or a config sample on its own: never the end of a frame
+            putHeader(packet, false);
+            packet.put((byte) (mParameterSetsNri | NAL_TYPE_STAP_A));
+            packet.put(mParameterSets.duplicate());
+            mAggregatedCount++;
+            return finish(packet);
+        }
+        int count = mNalCount;
+        if (mNalIndex >= count) {
+            packet.flip();
+            return false;
+        }
+
+        ByteBuffer data = mData;
+        int maxPayload = mMaxPacketSize - HEADER_SIZE;
+        int offset = mNalUnits.getOffset(mNalIndex);
+        int size = mNalUnits.getSize(mNalIndex);
+
+        if (mFragmentOffset == 0) {
+            int aggregated = countAggregated(data, maxPayload);
+            if (aggregated > 1) {
+                putHeader(packet, mEndsFrame && mNalIndex + aggregated == count);
+                int nri = 0;
+                int headerPosition = packet.position();
+                packet.put((byte) 0);
+                for (int i = mNalIndex; i < mNalIndex + aggregated; i++) {
+                    nri = Math.max(nri, data.get(mNalUnits.getOffset(i)) & 0x60);
+                    packet.putShort((short) mNalUnits.getSize(i));
+                    mNalUnits.put(packet, data, i);
+                }
+                packet.put(headerPosition, (byte) (nri | NAL_TYPE_STAP_A));
+                mNalIndex += aggregated;
+                mAggregatedCount++;
+                return finish(packet);
+            }
+            if (size <= maxPayload) {
+                putHeader(packet, mEndsFrame && mNalIndex == count - 1);
+                mNalUnits.put(packet, data, mNalIndex);
+                mNalIndex++;
+                return finish(packet);
+            }
+            // the NAL unit header is carried by the FU indicator and header
+            mFragmentOffset = 1;
+            mFragmentedCount++;
+        }
+
+        int nalHeader = data.get(offset) & 0xff;
+        int chunk = Math.min(size - mFragmentOffset, maxPayload - 2);
+        boolean end = mFragmentOffset + chunk == size;
+        putHeader(packet, end && mEndsFrame && mNalIndex == count - 1);
+        packet.put((byte) ((nalHeader & 0xe0) | NAL_TYPE_FU_A));
+        packet.put((byte) ((mFragmentOffset == 1 ? FU_START : 0) | (end ? FU_END : 0) | (nalHeader & 0x1f)));
+        NalUnitParser.put(packet, data, offset + mFragmentOffset, chunk);
+        if (end) {
+            mFragmentOffset = 0;
+            mNalIndex++;
+        } else {
+            mFragmentOffset += chunk;
+        }
+        return finish(packet);
+    }
+
+    /**
+     * @return int number of parameter set NAL units starting at mNalIndex that fit one STAP-A
+     */
+    private int countAggregated(ByteBuffer data, int maxPayload) {
+        int count = mNalCount;
+        int size = 1;
+        int aggregated = 0;
+        for (int i = mNalIndex; i < count; i++) {
+            int type = mNalUnits.getType(data, i);
+            if (type != NalUnitParser.NAL_TYPE_SPS && type != NalUnitParser.NAL_TYPE_PPS) {
+                break;
+            }
+            size += 2 + mNalUnits.getSize(i);
+            if (size > maxPayload) {
+                break;
+            }
+            aggregated++;
+        }
+        return aggregated;
+    }
+
+    private void putHeader(ByteBuffer packet, boolean marker) {
+        packet.put((byte) 0x80);                                    // version 2, no padding, extension or CSRC
+        packet.put((byte) ((marker ? 0x80 : 0) | mPayloadType));
+        packet.putShort((short) mSequenceNumber);
+        packet.putInt(mTimestamp);
+        packet.putInt(mSsrc);
+        mSequenceNumber = (mSequenceNumber + 1) & 0xffff;
+    }
+
+    private boolean finish(ByteBuffer packet) {
+        packet.flip();
+        mPacketCount++;
+        return true;
+    }
+
+    /**
+     * @return int size of the largest packet written by next()
+     */
+    public int getMaxPacketSize() {
+        return mMaxPacketSize;
+    }
+
+    /**
+     * @return int RTP payload type of the packets
+     */
+    public int getPayloadType() {
+        return mPayloadType;
+    }
+
+    /**
+     * @return int SSRC of the packets
+     */
+    public int getSsrc() {
+        return mSsrc;
+    }
+
+    /**
+     * @return String sprop-parameter-sets value of the SDP, the base64 parameter sets separated by commas
+     */
+    public String getSpropParameterSets() {
+        StringBuilder sprop = new StringBuilder();
+        ByteBuffer sets = mParameterSets.duplicate();
+        while (sets.remaining() > 2) {
+            byte[] nal = new byte[sets.getShort() & 0xffff];
+            sets.get(nal);
+            if (sprop.length() > 0) {
+                sprop.append(',');
+            }
+            sprop.append(Base64.getEncoder().encodeToString(nal));
+        }
+        return sprop.toString();
+    }
+
+    /**
+     * @return String profile-level-id value of the SDP, from the SPS, null before it is known
+     */
+    public String getProfileLevelId() {
+        if (mParameterSets.limit() < 6 || (mParameterSets.get(2) & 0x1f) != NalUnitParser.NAL_TYPE_SPS) {
+            return null;
+        }
+        // size, then the SPS: NAL header, profile_idc, constraint flags and level_idc
+        return String.format("%02x%02x%02x", mParameterSets.get(3), mParameterSets.get(4), mParameterSets.get(5));
+    }
+
+    /**
+     * @return long number of packets written
+     */
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    /**
+     * @return long number of NAL units cut into FU-A fragments
+     */
+    public long getFragmentedCount() {
+        return mFragmentedCount;
+    }
+
+    /**
+     * @return long number of STAP-A packets written
+     */
+    public long getAggregatedCount() {
+        return mAggregatedCount;
+    }
+
+    @Override
+    public String toString() {
+        return mPacketCount + " packets, " + mFragmentedCount + " fragmented NAL units, " + mAggregatedCount
+                + " STAP-A";
+    }
+}
@@ -0,0 +1,248 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * OutputWriter sending an H.264 track live as RTP over UDP, for viewing on a nearby workstation
+ * while recording.
+ *
+ * The samples are cut into packets by an RtpH264Packetizer and sent on a connected
+ * DatagramChannel. Every packet is built in the same direct buffer and sent before the next one
+ * is built, so nothing is allocated per sample or per packet and the channel does not copy the
+ * packet again on its way to the socket. There is no retransmission: a lost packet costs the
+ * viewer a broken frame until the next I-frame, so the encoder should use a short I-frame
+ * interval.
+ *
+ * A viewer that is not listening yet makes the host answer with ICMP port unreachable, which
+ * fails a later send; those sends are counted and the stream carries on. getSessionDescription()
+ * returns the SDP a player such as ffplay or VLC needs to open the stream. The parameter sets are
+ * sent in band ahead of every sync frame, so the SDP can be handed out before the track is added.
+ * The only android dependency is addTrack(MediaFormat); addAvcTrack() takes the parameter sets
+ * directly so the writer can run on a desktop JVM.
+ *
+ * Not thread safe, all methods are called on the output thread. Sends can block briefly while
+ * the socket buffer is full, so the writer is best wrapped in a QueuedOutputWriter.
+ */
+public class RtpOutputWriter implements OutputWriter {
+
+    private final DatagramChannel mChannel;
+    private final RtpH264Packetizer mPacketizer;
+    private final ByteBuffer mPacket;
+    private final int mDestinationPort;
+    private final String mDestinationAddress;
+
+    private boolean mTrackAdded;
+    private boolean mStarted;
+    private boolean mReleased;
+
+    private long mSampleCount;
+    private long mBytesSent;
+    private long mUnreachableCount;
+
+    /**
+     * Creates a writer sending packets of the default size to a viewer
+     * @param destination InetSocketAddress of the viewer, use a resolved address as this does no lookup
+     * @throws IOException if the socket cannot be opened
+     */
+    public RtpOutputWriter(InetSocketAddress destination) throws IOException {
+        this(openChannel(destination), new RtpH264Packetizer());
+    }
+
+    /**
+     * @param channel DatagramChannel connected to the viewer, closed by release()
+     * @param packetizer RtpH264Packetizer producing the packets
+     */
+    public RtpOutputWriter(DatagramChannel channel, RtpH264Packetizer packetizer) throws IOException {
+        if (!channel.isConnected()) {
+            throw new IllegalArgumentException("channel not connected");
+        }
+        InetSocketAddress destination = (InetSocketAddress) channel.getRemoteAddress();
+        mChannel = channel;
+        mPacketizer = packetizer;
+        mPacket = ByteBuffer.allocateDirect(packetizer.getMaxPacketSize());
+        mDestinationAddress = destination.getAddress().getHostAddress();
+        mDestinationPort = destination.getPort();
+    }
+
+    private static DatagramChannel openChannel(InetSocketAddress destination) throws IOException {
+        if (destination.isUnresolved()) {
+            throw new IllegalArgumentException("unresolved address " + destination);
+        }
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.connect(destination);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (!MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            throw new IllegalArgumentException("unsupported track " + mime);
+        }
+        return addAvcTrack(format.getByteBuffer("csd-0"), format.getByteBuffer("csd-1"));
+    }
+
+    /**
+     * Adds the H.264 track from its codec specific data
+     * @param csd0 ByteBuffer csd-0 of the encoder output format, the SPS in Annex B form
+     * @param csd1 ByteBuffer csd-1 of the encoder output format, the PPS in Annex B form, may be null
+     * @return int index of the track, always 0
+     */
+    public int addAvcTrack(ByteBuffer csd0, ByteBuffer csd1) {
+        if (mTrackAdded) {
+            throw new IllegalStateException("only one track is supported");
+        }
+        mPacketizer.setParameterSets(csd0, csd1);
+        if (!mPacketizer.hasParameterSets()) {
+            throw new IllegalArgumentException("codec specific data without SPS or PPS");
+        }
+        mTrackAdded = true;
+        return 0;
+    }
+
+    @Override
+    public void start() {
+        if (!mTrackAdded) {
+            throw new IllegalStateException("no track added");
+        }
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("writer hasn't started");
+        }
+        mPacketizer.begin(data, info);
+        while (mPacketizer.next(mPacket)) {
+            send(mPacket);
+        }
+        mSampleCount++;
+    }
+
+    private void send(ByteBuffer packet) throws IOException {
+        int size = packet.remaining();
+        try {
+            mChannel.write(packet);
+            mBytesSent += size;
+        } catch (PortUnreachableException e) {
+            // no viewer yet, the packet is lost like any other on UDP
+            mUnreachableCount++;
+        }
+    }
+
+    /**
+     * Closes the socket
+     */
+    @Override
+    public void release() {
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // nothing left to do with the socket
+        }
+    }
+
+    /**
+     * Describes the stream for the viewer, e.g. saved as stream.sdp and opened with
+     * ffplay -protocol_whitelist file,udp,rtp stream.sdp
+     * @return String SDP of the stream, with the parameter sets once the track is added
+     */
+    public String getSessionDescription() {
+        int payloadType = mPacketizer.getPayloadType();
+        String family = mDestinationAddress.indexOf(':') >= 0 ? "IP6" : "IP4";
+        StringBuilder sdp = new StringBuilder();
+        sdp.append("v=0\r\n");
+        sdp.append("o=- 0 0 IN ").append(family).append(' ').append(mDestinationAddress).append("\r\n");
+        sdp.append("s=Video Encoder\r\n");
+        sdp.append("c=IN ").append(family).append(' ').append(mDestinationAddress).append("\r\n");
+        sdp.append("t=0 0\r\n");
+        sdp.append("m=video ").append(mDestinationPort).append(" RTP/AVP ").append(payloadType).append("\r\n");
+        sdp.append("a=rtpmap:").append(payloadType).append(" H264/").append(RtpH264Packetizer.CLOCK_RATE)
+                .append("\r\n");
+        sdp.append("a=fmtp:").append(payloadType).append(" packetization-mode=1");
+        String profileLevelId = mPacketizer.getProfileLevelId();
+        if (profileLevelId != null) {
+            sdp.append(";profile-level-id=").append(profileLevelId);
+        }
+        if (mPacketizer.hasParameterSets()) {
+            sdp.append(";sprop-parameter-sets=").append(mPacketizer.getSpropParameterSets());
+        }
+        sdp.append("\r\n");
+        return sdp.toString();
+    }
+
+    /**
+     * @return RtpH264Packetizer producing the packets, for its counters
+     */
+    public RtpH264Packetizer getPacketizer() {
+        return mPacketizer;
+    }
+
+    /**
+     * @return long number of bytes sent, RTP headers included
+     */
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * @return long number of packets not sent because the viewer port was unreachable
+     */
+    public long getUnreachableCount() {
+        return mUnreachableCount;
+    }
+
+    @Override
+    public String toString() {
+        return mSampleCount + " samples, " + mBytesSent + " bytes, " + mPacketizer + ", " + mUnreachableCount
+                + " unreachable";
+    }
+}
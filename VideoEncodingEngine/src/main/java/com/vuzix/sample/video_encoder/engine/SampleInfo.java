@@ -0,0 +1,70 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+/**
+ * Describes one encoded sample, the engine's counterpart of MediaCodec.BufferInfo.
+ *
+ * The flag values match MediaCodec.BUFFER_FLAG_* so they can be copied across unchanged. One
+ * instance is reused for every output buffer of a codec.
+ */
+public class SampleInfo {
+
+    /** The sample is a sync frame */
+    public static final int FLAG_KEY_FRAME = 1;
+    /** The sample holds codec configuration data rather than media data */
+    public static final int FLAG_CODEC_CONFIG = 2;
+    /** The sample is the last one of the stream */
+    public static final int FLAG_END_OF_STREAM = 4;
+
+    /** Start of the sample in its buffer */
+    public int offset;
+    /** Number of bytes in the sample, may be 0 for the end of stream */
+    public int size;
+    /** Presentation time of the sample in microseconds */
+    public long presentationTimeUs;
+    /** Combination of the FLAG_* values */
+    public int flags;
+
+    /**
+     * Describes the next sample
+     * @return SampleInfo this sample
+     */
+    public SampleInfo set(int offset, int size, long presentationTimeUs, int flags) {
+        this.offset = offset;
+        this.size = size;
+        this.presentationTimeUs = presentationTimeUs;
+        this.flags = flags;
+        return this;
+    }
+}
@@ -0,0 +1,266 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+/**
+ * Tells scene changes apart from ordinary motion, from cheap statistics of the luma plane.
+ *
+ * The Y plane is reduced by LumaGrid to GRID_COLUMNS x GRID_ROWS block means, each averaged
+ * from at most 4 x 4 samples of its block, about 58000 reads for any frame size. Two measures are
+ * taken from the grid:
+ * - the mean absolute difference of the blocks against the previous frame, a subsampled block
+ *   SAD. A cut is a difference well above the recent average, so that steady motion such as
+ *   walking does not count;
+ * - a histogram of the block means, compared with the previous frame to catch cuts the SAD
+ *   misses, and with the frame of the last sync frame to catch a scene that drifted away
+ *   gradually, turning around for example.
+ *
+ * The arrays are allocated for the largest grid up front, so analyze() allocates nothing.
+ * Not thread safe, call from one thread.
+ */
+public class SceneChangeDetector {
+
+    /** Nothing worth a sync frame */
+    public static final int CHANGE_NONE = 0;
+    /** The picture changed abruptly from the previous frame */
+    public static final int CHANGE_CUT = 1;
+    /** The picture moved far from the one of the last sync frame */
+    public static final int CHANGE_DRIFT = 2;
+
+    public static final int GRID_COLUMNS = 80;
+    public static final int GRID_ROWS = 45;
+    private static final int HISTOGRAM_BINS = 32;
+
+    /** Share of the blocks that changed histogram bin from the previous frame for a cut */
+    public static final float DEFAULT_CUT_HISTOGRAM_DIFFERENCE = 0.4f;
+    /** Share of the blocks that changed histogram bin since the last sync frame for a drift */
+    public static final float DEFAULT_DRIFT_HISTOGRAM_DIFFERENCE = 0.5f;
+    /** Mean block difference, in luma levels, below which a frame is never a cut */
+    public static final int DEFAULT_MIN_BLOCK_DIFFERENCE = 20;
+    /** How many times the recent average the block difference has to be for a cut */
+    public static final float DEFAULT_DIFFERENCE_FACTOR = 3f;
+
+    // weight of a new frame in the average block difference
+    private static final float AVERAGE_WEIGHT = 1f / 8;
+
+    private final float mCutHistogramDifference;
+    private final float mDriftHistogramDifference;
+    private final int mMinBlockDifference;
+    private final float mDifferenceFactor;
+
+    private int[] mBlocks = new int[GRID_COLUMNS * GRID_ROWS];
+    private int[] mPreviousBlocks = new int[GRID_COLUMNS * GRID_ROWS];
+    private int[] mHistogram = new int[HISTOGRAM_BINS];
+    private int[] mPreviousHistogram = new int[HISTOGRAM_BINS];
+    private final int[] mSyncHistogram = new int[HISTOGRAM_BINS];
+
+    private int mWidth;
+    private int mHeight;
+    private int mColumns;
+    private int mRows;
+    private boolean mHasPrevious;
+    private float mAverageDifference;
+
+    private float mBlockDifference;
+    private float mCutDifference;
+    private float mDriftDifference;
+    private long mFrameCount;
+    private long mCutCount;
+    private long mDriftCount;
+
+    /**
+     * Creates a detector with the default thresholds
+     */
+    public SceneChangeDetector() {
+        this(DEFAULT_CUT_HISTOGRAM_DIFFERENCE, DEFAULT_DRIFT_HISTOGRAM_DIFFERENCE, DEFAULT_MIN_BLOCK_DIFFERENCE,
+                DEFAULT_DIFFERENCE_FACTOR);
+    }
+
+    /**
+     * @param cutHistogramDifference float share of the blocks, 0 to 1, that changed bin from the previous frame for a cut
+     * @param driftHistogramDifference float share of the blocks that changed bin since the last sync frame for a drift
+     * @param minBlockDifference int mean block difference in luma levels below which a frame is never a cut
+     * @param differenceFactor float how many times the recent average the block difference has to be for a cut
+     */
+    public SceneChangeDetector(float cutHistogramDifference, float driftHistogramDifference, int minBlockDifference,
+                               float differenceFactor) {
+        mCutHistogramDifference = cutHistogramDifference;
+        mDriftHistogramDifference = driftHistogramDifference;
+        mMinBlockDifference = minBlockDifference;
+        mDifferenceFactor = differenceFactor;
+    }
+
+    /**
+     * Forgets the previous frames, the next one is compared with nothing
+     */
+    public void reset() {
+        mHasPrevious = false;
+        mWidth = 0;
+        mHeight = 0;
+    }
+
+    /**
+     * Reduces the luma plane of the next frame and compares it with the previous ones
+     * @param frame YuvFrame to analyze, only its Y plane is read
+     * @return int CHANGE_NONE, CHANGE_CUT or CHANGE_DRIFT
+     */
+    public int analyze(YuvFrame frame) {
+        if (frame.width != mWidth || frame.height != mHeight) {
+            mWidth = frame.width;
+            mHeight = frame.height;
+            mColumns = Math.min(GRID_COLUMNS, frame.width);
+            mRows = Math.min(GRID_ROWS, frame.height);
+            mHasPrevious = false;
+        }
+        mFrameCount++;
+
+        // swapped rather than copied, the previous frame is overwritten
+        int[] blocks = mPreviousBlocks;
+        mPreviousBlocks = mBlocks;
+        mBlocks = blocks;
+        int[] histogram = mPreviousHistogram;
+        mPreviousHistogram = mHistogram;
+        mHistogram = histogram;
+        reduce(frame, blocks, histogram);
+
+        int count = mColumns * mRows;
+        if (!mHasPrevious) {
+            mHasPrevious = true;
+            System.arraycopy(histogram, 0, mSyncHistogram, 0, HISTOGRAM_BINS);
+            mAverageDifference = 0;
+            mBlockDifference = 0;
+            mCutDifference = 0;
+            mDriftDifference = 0;
+            return CHANGE_NONE;
+        }
+
+        long sum = 0;
+        int[] previous = mPreviousBlocks;
+        for (int i = 0; i < count; i++) {
+            sum += Math.abs(blocks[i] - previous[i]);
+        }
+        mBlockDifference = (float) sum / count;
+        mCutDifference = histogramDifference(histogram, mPreviousHistogram, count);
+        mDriftDifference = histogramDifference(histogram, mSyncHistogram, count);
+
+        boolean spike = mBlockDifference >= mMinBlockDifference
+                && mBlockDifference >= mDifferenceFactor * mAverageDifference;
+        if (spike || mCutDifference >= mCutHistogramDifference) {
+            // a cut does not raise the average, the next one is detected as easily
+            mCutCount++;
+            return CHANGE_CUT;
+        }
+        mAverageDifference += (mBlockDifference - mAverageDifference) * AVERAGE_WEIGHT;
+        if (mDriftDifference >= mDriftHistogramDifference) {
+            mDriftCount++;
+            return CHANGE_DRIFT;
+        }
+        return CHANGE_NONE;
+    }
+
+    /**
+     * Takes the last analyzed frame as the one of the last sync frame, drifts are measured from it
+     */
+    public void markSyncFrame() {
+        System.arraycopy(mHistogram, 0, mSyncHistogram, 0, HISTOGRAM_BINS);
+    }
+
+    private void reduce(YuvFrame frame, int[] blocks, int[] histogram) {
+        int count = mColumns * mRows;
+        LumaGrid.reduce(frame, mColumns, mRows, blocks);
+        for (int i = 0; i < HISTOGRAM_BINS; i++) {
+            histogram[i] = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            histogram[blocks[i] * HISTOGRAM_BINS >> 8]++;
+        }
+    }
+
+    /**
+     * @return float share of the blocks, 0 to 1, that would have to change bin to turn one histogram into the other
+     */
+    private static float histogramDifference(int[] a, int[] b, int count) {
+        int sum = 0;
+        for (int i = 0; i < HISTOGRAM_BINS; i++) {
+            sum += Math.abs(a[i] - b[i]);
+        }
+        return sum / (2f * count);
+    }
+
+    /**
+     * @return float mean difference of the blocks with the previous frame, in luma levels
+     */
+    public float getBlockDifference() {
+        return mBlockDifference;
+    }
+
+    /**
+     * @return float histogram difference with the previous frame, 0 to 1
+     */
+    public float getCutDifference() {
+        return mCutDifference;
+    }
+
+    /**
+     * @return float histogram difference with the frame of the last sync frame, 0 to 1
+     */
+    public float getDriftDifference() {
+        return mDriftDifference;
+    }
+
+    /**
+     * @return long number of frames analyzed
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return long number of cuts detected
+     */
+    public long getCutCount() {
+        return mCutCount;
+    }
+
+    /**
+     * @return long number of drifts detected
+     */
+    public long getDriftCount() {
+        return mDriftCount;
+    }
+
+    @Override
+    public String toString() {
+        return mFrameCount + " frames, " + mCutCount + " cuts, " + mDriftCount + " drifts";
+    }
+}
@@ -0,0 +1,214 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * OutputWriter splitting a recording into segments of bounded duration and size.
+ *
+ * A single file for a whole session grows without limit and is lost entirely if the app dies
+ * before it is finalized. Here a new segment is opened at the first sync frame after the current
+ * one is full, so every segment starts with an IDR frame and plays on its own, and the encoder
+ * keeps running across the cut. When a segment is due the encoder is asked for a sync frame so
+ * the cut does not wait for the next regular one. Only the newest recordings are kept, older ones
+ * are deleted by the factory, whichever session wrote them, so the device can record
+ * indefinitely within a fixed storage budget.
+ */
+public class SegmentedOutputWriter implements OutputWriter {
+
+    /**
+     * Creates and deletes the writers of the individual segments
+     */
+    public interface SegmentFactory {
+
+        /**
+         * @param index int number of the segment, starting at 0
+         * @return OutputWriter storing the segment
+         * @throws IOException if the segment cannot be created
+         */
+        OutputWriter createSegment(int index) throws IOException;
+
+        /**
+         * Deletes a segment that was prepared but never written
+         * @param index int number of the segment
+         */
+        void deleteSegment(int index);
+
+        /**
+         * Deletes the oldest finished recordings of the output, this session's segments as well
+         * as the files left by earlier ones, until at most maxSegments remain
+         * @param currentIndex int number of the segment being written, which is never deleted
+         * @param maxSegments int number of files kept, the one being written included
+         */
+        void deleteOldSegments(int currentIndex, int maxSegments);
+    }
+
+    private final SegmentFactory mFactory;
+    private final long mMaxDurationUs;
+    private final long mMaxBytes;
+    private final int mMaxSegments;
+    private EncoderCodec mEncoder;
+
+    private final List<MediaFormat> mFormats = new ArrayList<MediaFormat>();
+    private int[] mSegmentTracks = new int[0];
+    private OutputWriter mSegment;
+    private OutputWriter mNextSegment;
+    private int mSegmentIndex = -1;
+    private long mSegmentStartUs;
+    private long mSegmentBytes;
+    private boolean mSegmentEmpty;
+    private boolean mSyncFrameRequested;
+
+    /**
+     * @param factory SegmentFactory creating the segment writers
+     * @param maxDurationUs long duration after which a segment is cut, 0 for no limit
+     * @param maxBytes long size after which a segment is cut, 0 for no limit
+     * @param maxSegments int number of recordings kept in the output across sessions, 0 to keep them all
+     */
+    public SegmentedOutputWriter(SegmentFactory factory, long maxDurationUs, long maxBytes, int maxSegments) {
+        mFactory = factory;
+        mMaxDurationUs = maxDurationUs;
+        mMaxBytes = maxBytes;
+        mMaxSegments = maxSegments;
+    }
+
+    /**
+     * Lets the writer ask for a sync frame when a segment is due, without it segments are cut at
+     * the regular I-frame interval of the encoder
+     * @param encoder EncoderCodec producing the samples
+     */
+    public void setEncoder(EncoderCodec encoder) {
+        mEncoder = encoder;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        mFormats.add(format);
+        return mFormats.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        try {
+            openSegment();
+        } catch (IOException e) {
+            throw new IllegalStateException("can not create the first segment", e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) throws IOException {
+        if (!mSegmentEmpty && isSegmentFull(info.presentationTimeUs)) {
+            if ((info.flags & SampleInfo.FLAG_KEY_FRAME) != 0) {
+                mSegment.release();
+                openSegment();
+            } else if (!mSyncFrameRequested && mEncoder != null) {
+                mEncoder.requestSyncFrame();
+                mSyncFrameRequested = true;
+            }
+        }
+        if (mSegmentEmpty) {
+            mSegmentStartUs = info.presentationTimeUs;
+            mSegmentEmpty = false;
+        }
+        mSegment.writeSampleData(mSegmentTracks[trackIndex], data, info);
+        mSegmentBytes += info.size;
+    }
+
+    private boolean isSegmentFull(long presentationTimeUs) {
+        return (mMaxDurationUs > 0 && presentationTimeUs - mSegmentStartUs >= mMaxDurationUs)
+                || (mMaxBytes > 0 && mSegmentBytes >= mMaxBytes);
+    }
+
+    /**
+     * Creates the writer of the next segment ahead of time, so that the file already exists when
+     * the encoder delivers its output format. Optional, start() creates it otherwise
+     * @throws IOException if the segment cannot be created
+     */
+    public void prepare() throws IOException {
+        if (mNextSegment == null) {
+            mNextSegment = mFactory.createSegment(mSegmentIndex + 1);
+        }
+    }
+
+    private void openSegment() throws IOException {
+        mSegmentIndex++;
+        if (mNextSegment != null) {
+            mSegment = mNextSegment;
+            mNextSegment = null;
+        } else {
+            mSegment = mFactory.createSegment(mSegmentIndex);
+        }
+        if (mSegmentTracks.length != mFormats.size()) {
+            mSegmentTracks = new int[mFormats.size()];
+        }
+        for (int i = 0; i < mFormats.size(); i++) {
+            mSegmentTracks[i] = mSegment.addTrack(mFormats.get(i));
+        }
+        mSegment.start();
+        mSegmentBytes = 0;
+        mSegmentEmpty = true;
+        mSyncFrameRequested = false;
+
+        if (mMaxSegments > 0) {
+            mFactory.deleteOldSegments(mSegmentIndex, mMaxSegments);
+        }
+    }
+
+    /**
+     * @return int number of the segment being written, -1 before start()
+     */
+    public int getSegmentIndex() {
+        return mSegmentIndex;
+    }
+
+    @Override
+    public void release() {
+        if (mSegment != null) {
+            mSegment.release();
+            mSegment = null;
+        }
+        if (mNextSegment != null) {
+            // prepared but never written
+            mNextSegment.release();
+            mNextSegment = null;
+            mFactory.deleteSegment(mSegmentIndex + 1);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * EncoderDriver using the synchronous codec API.
+ *
+ * Frames are packed straight into a codec input buffer on the frame source thread, waiting for one
+ * at most as long as the FrameDropPolicy allows. A dedicated thread polls the codec for output,
+ * and queues end of stream once the codec has a free input buffer for it.
+ */
+public class SyncEncoderDriver extends EncoderDriver {
+
+    private static final long INPUT_TIMEOUT_USEC = 100;
+    private static final long OUTPUT_TIMEOUT_USEC = 10000;
+
+    private final SampleInfo mSampleInfo = new SampleInfo();
+    // presentation time of the last frame queued to the encoder
+    private volatile long mLastQueuedPtsUs;
+    private volatile boolean mEndOfStreamPending;
+    // only touched on the drain thread
+    private boolean mEndOfStreamQueued;
+
+    /**
+     * @param codec EncoderCodec encoding the frames, used without a callback
+     * @param writer OutputWriter storing the encoded samples
+     * @param dropPolicy FrameDropPolicy deciding what to give up when the codec falls behind
+     * @param frameRate int nominal frame rate of the camera
+     */
+    public SyncEncoderDriver(EncoderCodec codec, OutputWriter writer, FrameDropPolicy dropPolicy, int frameRate) {
+        super(codec, writer, dropPolicy, frameRate);
+    }
+
+    /**
+     * Starts the codec and the thread draining its output
+     */
+    @Override
+    public void start() {
+        super.start();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainEncoder();
+            }
+        }, "Encoder Drain").start();
+    }
+
+    @Override
+    protected void encodeFrame(YuvFrame frame, long presentationTimeUs) {
+        int inputBufIndex = mCodec.dequeueInputBuffer(mDropPolicy.getInputTimeoutUs(INPUT_TIMEOUT_USEC));
+
+        if (inputBufIndex >= 0) {
+            // pack the camera planes, or the zoomed region, straight into the codec input buffer
+            ByteBuffer inputBuf = mCodec.getInputBuffer(inputBufIndex);
+            inputBuf.clear();
+            int size = packFrame(frame, getCrop(), inputBuf);
+            mLatencyTracker.stamp(presentationTimeUs, LatencyTracker.STAMP_CODEC_INPUT, System.nanoTime());
+            requestScheduledSyncFrame(presentationTimeUs);
+            mCodec.queueInputBuffer(inputBufIndex, 0, size, presentationTimeUs, 0);
+            mLastQueuedPtsUs = presentationTimeUs;
+        } else {
+            mDropStats.record(FrameDropStats.STAGE_CODEC_INPUT, mDropPolicy.getInputTimeoutReason());
+            mLatencyTracker.discard(presentationTimeUs);
+        }
+    }
+
+    @Override
+    public void onEndOfStream() {
+        onCaptureEnded();
+        // queued by the drain thread, the frame source never waits for an input buffer to free up
+        mEndOfStreamPending = true;
+    }
+
+    /**
+     * Queues end of stream if the codec has an input buffer free. Runs on the drain thread, which
+     * tries again after every output poll until it succeeds or the stop timeout passes
+     */
+    private void queueEndOfStream() {
+        int inputBufIndex = mCodec.dequeueInputBuffer(0);
+        if (inputBufIndex >= 0) {
+            mCodec.queueInputBuffer(inputBufIndex, 0, 0, mLastQueuedPtsUs + 1, SampleInfo.FLAG_END_OF_STREAM);
+            mEndOfStreamQueued = true;
+        }
+    }
+
+    /**
+     * Retrieve the buffered video data, write it to the output, and release the buffers. Ends at
+     * the end of stream, or when the driver is released before it, such as an unused standby or
+     * a codec that missed the stop timeout
+     */
+    private void drainEncoder() {
+        try {
+            while (!isReleased()) {
+                if (mEndOfStreamPending && !mEndOfStreamQueued) {
+                    queueEndOfStream();
+                }
+                int encoderStatus = mCodec.dequeueOutputBuffer(mSampleInfo, OUTPUT_TIMEOUT_USEC);
+
+                if (encoderStatus == EncoderCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    handleOutputFormatChanged(mCodec.getOutputFormat());
+                } else if (encoderStatus >= 0) {
+                    if (handleOutputBuffer(encoderStatus, mSampleInfo)) {
+                        break;      // end of stream reached
+                    }
+                }
+                // INFO_TRY_AGAIN_LATER: no output available yet
+                // INFO_OUTPUT_BUFFERS_CHANGED: irrelevant, buffers are looked up by index
+            }
+        } catch (RuntimeException e) {
+            if (!isReleased()) {
+                // the codec throws once release() has stopped it, which is expected
+                notifyError(e);
+            }
+            return;
+        }
+        release();
+    }
+}
@@ -0,0 +1,487 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.media.MediaFormat;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * OutputWriter storing an H.264 track as an MPEG-2 transport stream, without MediaMuxer.
+ *
+ * A transport stream has no index to write at the end: PAT and PMT are repeated ahead of every
+ * sync frame, together with SPS and PPS when the frame does not carry them, and each frame is a
+ * PES packet of its own. So the file can be played, or tailed to a network sink, while it is
+ * still being written, and a reader can start at any I-frame. The PES packets carry the
+ * presentation time, PTS_DELAY ahead of the PCR sent with the first packet of every frame.
+ * Decode order is taken to be presentation order, which holds for the B frame free streams
+ * MediaCodec produces with the default profiles, so no DTS is written.
+ *
+ * The 188 byte packets are built in place in a direct batch buffer of batchPackets packets,
+ * straight from the codec buffer, and the batch is written with one call when it is full or
+ * when flushIntervalUs of video has been packetized since the last write. Nothing is allocated
+ * per sample or per packet, and what a crash can lose is bounded by the flush interval. The
+ * only android dependency is addTrack(MediaFormat); addAvcTrack() takes the parameter sets
+ * directly so the writer can run on a desktop JVM. Transport streams have no rotation, the
+ * orientation is not stored.
+ *
+ * Not thread safe, all methods are called on the output thread.
+ */
+public class TsOutputWriter implements OutputWriter {
+
+    public static final int PACKET_SIZE = 188;
+    /** About 64 KB, a good size for a single write to flash storage */
+    public static final int DEFAULT_BATCH_PACKETS = 348;
+    public static final long DEFAULT_FLUSH_INTERVAL_US = 500000;
+
+    static final int PID_PAT = 0x0000;
+    static final int PID_PMT = 0x1000;
+    static final int PID_VIDEO = 0x0100;
+    static final int STREAM_TYPE_H264 = 0x1b;
+    static final int STREAM_ID_VIDEO = 0xe0;
+
+    private static final int SYNC_BYTE = 0x47;
+    private static final int TIMESCALE = 90000;
+    // PTS run this far ahead of the PCR, time the decoder is given to receive a frame, 700 ms
+    private static final long PTS_DELAY = 63000;
+    private static final long TIMESTAMP_MASK = (1L << 33) - 1;
+    private static final int PROGRAM_NUMBER = 1;
+    private static final int TRANSPORT_STREAM_ID = 1;
+    private static final int NAL_TYPE_AUD = 9;
+    private static final byte[] ACCESS_UNIT_DELIMITER = {0, 0, 0, 1, NAL_TYPE_AUD, (byte) 0xf0};
+    private static final int PES_HEADER_SIZE = 14;
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        // CRC-32/MPEG-2: polynomial 0x04c11db7, not reflected, unlike java.util.zip.CRC32
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private final WritableByteChannel mChannel;
+    private final long mFlushIntervalUs;
+    private final ByteBuffer mBatch;
+
+    // SPS and PPS in Annex B form
+    private ByteBuffer mParameterSets;
+    // PES header, access unit delimiter and parameter sets of the frame being written
+    private ByteBuffer mPesHeader;
+    private final NalUnitParser mNalUnits = new NalUnitParser();
+
+    private boolean mTrackAdded;
+    private boolean mStarted;
+    private boolean mReleased;
+    private int mPatContinuity;
+    private int mPmtContinuity;
+    private int mVideoContinuity;
+    private long mFirstPresentationTimeUs = -1;
+    private long mLastFlushUs;
+
+    private long mPacketCount;
+    private long mBatchCount;
+    private long mBytesWritten;
+
+    /**
+     * Creates a writer with the default batch size and flush interval
+     * @param path String path of the .ts file to create
+     * @throws IOException if the file cannot be created
+     */
+    public TsOutputWriter(String path) throws IOException {
+        this(new FileOutputStream(path).getChannel(), DEFAULT_BATCH_PACKETS, DEFAULT_FLUSH_INTERVAL_US);
+    }
+
+    /**
+     * @param channel WritableByteChannel the stream is written to, a file or a socket, closed by release()
+     * @param batchPackets int number of packets collected before they are written
+     * @param flushIntervalUs long video duration after which the batch is written even if not full, 0 for every frame
+     */
+    public TsOutputWriter(WritableByteChannel channel, int batchPackets, long flushIntervalUs) {
+        if (batchPackets < 4) {
+            throw new IllegalArgumentException("batch too small " + batchPackets);
+        }
+        mChannel = channel;
+        mFlushIntervalUs = flushIntervalUs;
+        mBatch = ByteBuffer.allocateDirect(batchPackets * PACKET_SIZE);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (!MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            throw new IllegalArgumentException("unsupported track " + mime);
+        }
+        return addAvcTrack(format.getByteBuffer("csd-0"), format.getByteBuffer("csd-1"));
+    }
+
+    /**
+     * Adds the H.264 track from its codec specific data
+     * @param csd0 ByteBuffer csd-0 of the encoder output format, the SPS in Annex B form
+     * @param csd1 ByteBuffer csd-1 of the encoder output format, the PPS in Annex B form, may be null
+     * @return int index of the track, always 0
+     */
+    public int addAvcTrack(ByteBuffer csd0, ByteBuffer csd1) {
+        if (mTrackAdded) {
+            throw new IllegalStateException("only one track is supported");
+        }
+        int size = 0;
+        boolean sps = false;
+        boolean pps = false;
+        ByteBuffer[] csds = {csd0, csd1};
+        for (ByteBuffer csd : csds) {
+            if (csd == null) {
+                continue;
+            }
+            int count = mNalUnits.parse(csd);
+            for (int i = 0; i < count; i++) {
+                int type = mNalUnits.getType(csd, i);
+                sps |= type == NalUnitParser.NAL_TYPE_SPS;
+                pps |= type == NalUnitParser.NAL_TYPE_PPS;
+                size += 4 + mNalUnits.getSize(i);
+            }
+        }
+        if (!sps || !pps) {
+            throw new IllegalArgumentException("codec specific data without SPS or PPS");
+        }
+        mParameterSets = ByteBuffer.allocate(size);
+        for (ByteBuffer csd : csds) {
+            if (csd == null) {
+                continue;
+            }
+            int count = mNalUnits.parse(csd);
+            for (int i = 0; i < count; i++) {
+                mParameterSets.putInt(1);
+                mNalUnits.put(mParameterSets, csd, i);
+            }
+        }
+        mParameterSets.flip();
+        mPesHeader = ByteBuffer.allocate(PES_HEADER_SIZE + ACCESS_UNIT_DELIMITER.length + size);
+        mTrackAdded = true;
+        return 0;
+    }
+
+    /**
+     * Writes PAT and PMT, the stream is valid, though empty, from here on
+     */
+    @Override
+    public void start() {
+        if (!mTrackAdded) {
+            throw new IllegalStateException("no track added");
+        }
+        try {
+            putProgramTables();
+            flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("can not write the stream header", e);
+        }
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("writer hasn't started");
+        }
+        if ((info.flags & SampleInfo.FLAG_CODEC_CONFIG) != 0 || data.remaining() == 0) {
+            // the parameter sets are repeated ahead of each sync frame, and the end of stream carries no data
+            return;
+        }
+        if (mFirstPresentationTimeUs < 0) {
+            mFirstPresentationTimeUs = info.presentationTimeUs;
+            mLastFlushUs = info.presentationTimeUs;
+        }
+        long time = (info.presentationTimeUs - mFirstPresentationTimeUs) * TIMESCALE / 1000000;
+        // both wrap around after 26 hours, as the 33 bit fields do
+        long pcr = Math.max(0, time) & TIMESTAMP_MASK;
+        long pts = (pcr + PTS_DELAY) & TIMESTAMP_MASK;
+        boolean sync = (info.flags & SampleInfo.FLAG_KEY_FRAME) != 0;
+
+        if (sync) {
+            putProgramTables();
+        }
+
+        ByteBuffer header = mPesHeader;
+        header.clear();
+        header.putInt(0x000001 << 8 | STREAM_ID_VIDEO);
+        header.putShort((short) 0);                         // unbounded, allowed for video only
+        header.put((byte) 0x80);                            // marker bits, not scrambled
+        header.put((byte) 0x80);                            // PTS only
+        header.put((byte) 5);
+        putTimestamp(header, 0x20, pts);
+        if (!startsWithAccessUnitDelimiter(data)) {
+            header.put(ACCESS_UNIT_DELIMITER);
+        }
+        if (sync && !hasSequenceParameterSet(data)) {
+            header.put(mParameterSets.duplicate());
+        }
+        header.flip();
+
+        ByteBuffer payload = data.duplicate();
+        boolean first = true;
+        while (header.hasRemaining() || payload.hasRemaining()) {
+            putVideoPacket(header, payload, first, first ? pcr : -1, first && sync);
+            first = false;
+        }
+
+        if (info.presentationTimeUs - mLastFlushUs >= mFlushIntervalUs) {
+            flush();
+            mLastFlushUs = info.presentationTimeUs;
+        }
+    }
+
+    /**
+     * Writes the batch being collected and closes the stream
+     * @throws IllegalStateException if the last batch cannot be written
+     */
+    @Override
+    public void release() {
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+        try {
+            flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("can not write the last packets", e);
+        } finally {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // nothing left to do with the stream
+            }
+        }
+    }
+
+    /**
+     * @return long number of 188 byte packets written
+     */
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    /**
+     * @return long number of batches written to the channel
+     */
+    public long getBatchCount() {
+        return mBatchCount;
+    }
+
+    /**
+     * @return long number of bytes written to the channel
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    @Override
+    public String toString() {
+        return mPacketCount + " packets in " + mBatchCount + " batches, " + mBytesWritten + " bytes";
+    }
+
+    private boolean startsWithAccessUnitDelimiter(ByteBuffer data) {
+        int position = data.position();
+        int limit = data.limit();
+        for (int i = position; i < limit && i < position + 4; i++) {
+            if (data.get(i) == 1) {
+                return i + 1 < limit && (data.get(i + 1) & 0x1f) == NAL_TYPE_AUD;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasSequenceParameterSet(ByteBuffer data) {
+        int count = mNalUnits.parse(data);
+        for (int i = 0; i < count; i++) {
+            int type = mNalUnits.getType(data, i);
+            if (type == NalUnitParser.NAL_TYPE_SPS) {
+                return true;
+            } else if (type >= 1 && type <= 5) {
+                // parameter sets come before the first slice
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds one packet of the video PES, its payload taken from header first then from data
+     * @param pcr long program clock reference, -1 for none
+     * @param randomAccess boolean true on the first packet of a sync frame
+     */
+    private void putVideoPacket(ByteBuffer header, ByteBuffer data, boolean payloadStart, long pcr,
+                                boolean randomAccess) throws IOException {
+        ByteBuffer packet = mBatch;
+        nextPacket();
+        int adaptationSize = pcr >= 0 ? 8 : 0;
+        int remaining = header.remaining() + data.remaining();
+        int payloadSize = Math.min(remaining, PACKET_SIZE - 4 - adaptationSize);
+        // a short last packet is filled up with adaptation field stuffing
+        adaptationSize = PACKET_SIZE - 4 - payloadSize;
+
+        packet.put((byte) SYNC_BYTE);
+        packet.put((byte) ((payloadStart ? 0x40 : 0) | PID_VIDEO >> 8));
+        packet.put((byte) PID_VIDEO);
+        packet.put((byte) ((adaptationSize > 0 ? 0x30 : 0x10) | mVideoContinuity));
+        mVideoContinuity = (mVideoContinuity + 1) & 0x0f;
+        if (adaptationSize > 0) {
+            int end = packet.position() + adaptationSize;
+            packet.put((byte) (adaptationSize - 1));
+            if (adaptationSize > 1) {
+                packet.put((byte) ((randomAccess ? 0x40 : 0) | (pcr >= 0 ? 0x10 : 0)));
+                if (pcr >= 0) {
+                    packet.put((byte) (pcr >> 25));
+                    packet.put((byte) (pcr >> 17));
+                    packet.put((byte) (pcr >> 9));
+                    packet.put((byte) (pcr >> 1));
+                    packet.put((byte) ((pcr & 1) << 7 | 0x7e));     // 6 reserved bits, then the extension
+                    packet.put((byte) 0);
+                }
+                while (packet.position() < end) {
+                    packet.put((byte) 0xff);
+                }
+            }
+        }
+
+        int fromHeader = Math.min(header.remaining(), payloadSize);
+        if (fromHeader > 0) {
+            int limit = header.limit();
+            header.limit(header.position() + fromHeader);
+            packet.put(header);
+            header.limit(limit);
+        }
+        int fromData = payloadSize - fromHeader;
+        if (fromData > 0) {
+            int limit = data.limit();
+            data.limit(data.position() + fromData);
+            packet.put(data);
+            data.limit(limit);
+        }
+    }
+
+    private void putProgramTables() throws IOException {
+        ByteBuffer packet = mBatch;
+        int end = nextPacket() + PACKET_SIZE;
+        putSectionHeader(packet, PID_PAT, mPatContinuity);
+        mPatContinuity = (mPatContinuity + 1) & 0x0f;
+        int start = packet.position();
+        packet.put((byte) 0x00);                                    // table_id: program association
+        packet.putShort((short) (0xb000 | 13));                     // section syntax, section_length
+        packet.putShort((short) TRANSPORT_STREAM_ID);
+        packet.put((byte) 0xc1);                                    // version 0, current
+        packet.put((byte) 0);                                       // section_number
+        packet.put((byte) 0);                                       // last_section_number
+        packet.putShort((short) PROGRAM_NUMBER);
+        packet.putShort((short) (0xe000 | PID_PMT));
+        finishSection(packet, start, end);
+
+        end = nextPacket() + PACKET_SIZE;
+        putSectionHeader(packet, PID_PMT, mPmtContinuity);
+        mPmtContinuity = (mPmtContinuity + 1) & 0x0f;
+        start = packet.position();
+        packet.put((byte) 0x02);                                    // table_id: program map
+        packet.putShort((short) (0xb000 | 18));
+        packet.putShort((short) PROGRAM_NUMBER);
+        packet.put((byte) 0xc1);
+        packet.put((byte) 0);
+        packet.put((byte) 0);
+        packet.putShort((short) (0xe000 | PID_VIDEO));              // PCR_PID
+        packet.putShort((short) 0xf000);                            // program_info_length
+        packet.put((byte) STREAM_TYPE_H264);
+        packet.putShort((short) (0xe000 | PID_VIDEO));
+        packet.putShort((short) 0xf000);                            // ES_info_length
+        finishSection(packet, start, end);
+    }
+
+    private static void putSectionHeader(ByteBuffer packet, int pid, int continuity) {
+        packet.put((byte) SYNC_BYTE);
+        packet.put((byte) (0x40 | pid >> 8));
+        packet.put((byte) pid);
+        packet.put((byte) (0x10 | continuity));
+        packet.put((byte) 0);                                       // pointer_field
+    }
+
+    /**
+     * Appends the CRC of the section starting at start, and fills the packet up to end
+     */
+    private static void finishSection(ByteBuffer packet, int start, int end) {
+        int crc = 0xffffffff;
+        for (int i = start; i < packet.position(); i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ packet.get(i)) & 0xff];
+        }
+        packet.putInt(crc);
+        while (packet.position() < end) {
+            packet.put((byte) 0xff);
+        }
+    }
+
+    /**
+     * @param prefix int 4 bit prefix of the timestamp, 0x20 for a PTS alone
+     */
+    private static void putTimestamp(ByteBuffer out, int prefix, long timestamp) {
+        out.put((byte) (prefix | (timestamp >> 29) & 0x0e | 1));
+        out.putShort((short) ((timestamp >> 14) & 0xfffe | 1));
+        out.putShort((short) ((timestamp << 1) & 0xfffe | 1));
+    }
+
+    /**
+     * Makes room in the batch for one more packet, the batch is written first if full. The packet
+     * is then put at the position of the batch, exactly PACKET_SIZE bytes
+     * @return int position of the packet in the batch
+     */
+    private int nextPacket() throws IOException {
+        if (mBatch.remaining() < PACKET_SIZE) {
+            flush();
+        }
+        mPacketCount++;
+        return mBatch.position();
+    }
+
+    private void flush() throws IOException {
+        mBatch.flip();
+        if (mBatch.hasRemaining()) {
+            while (mBatch.hasRemaining()) {
+                mBytesWritten += mChannel.write(mBatch);
+            }
+            mBatchCount++;
+        }
+        mBatch.clear();
+    }
+}
@@ -0,0 +1,102 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A captured YUV 4:2:0 frame described by its planes and strides.
+ *
+ * This is the unit handed from a FrameSource to a FrameSink. It only refers to the plane
+ * buffers, which belong to the source and are valid for the duration of FrameSink.onFrame(), so
+ * one instance is reused for every frame. Keeping Android's Image out of the engine lets the
+ * encoding path run on a plain JVM with frames built in memory.
+ */
+public class YuvFrame {
+
+    /** Luma plane, pixel stride of 1 */
+    public ByteBuffer y;
+    /** Cb plane */
+    public ByteBuffer u;
+    /** Cr plane */
+    public ByteBuffer v;
+    /** Distance in bytes between luma rows */
+    public int yRowStride;
+    /** Distance in bytes between chroma rows */
+    public int uvRowStride;
+    /** Distance in bytes between chroma samples, 1 for planar, 2 for interleaved */
+    public int uvPixelStride;
+    /** Width of the image in pixels */
+    public int width;
+    /** Height of the image in pixels */
+    public int height;
+    /** Capture time of the frame in nanoseconds, as reported by the sensor */
+    public long timestampNs;
+    /** Capture time converted to the System.nanoTime() time base, 0 if the sensor clock is unknown */
+    public long captureTimeNs;
+    /** System.nanoTime() when the source received the frame, 0 if not measured */
+    public long arrivalTimeNs;
+    /**
+     * Packed frame the planes are views of when the frame is shared by several sinks, null when
+     * the planes belong to the source. A sink keeping it has to retain it from its pool
+     */
+    public FrameBufferPool.Frame shared;
+
+    /**
+     * Describes the next frame
+     * @return YuvFrame this frame
+     */
+    public YuvFrame set(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v, int uvRowStride,
+                        int uvPixelStride, int width, int height, long timestampNs) {
+        this.y = y;
+        this.yRowStride = yRowStride;
+        this.u = u;
+        this.v = v;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+        this.width = width;
+        this.height = height;
+        this.timestampNs = timestampNs;
+        return this;
+    }
+
+    /**
+     * Drops the references to the plane buffers once the source has recycled them
+     */
+    public void clear() {
+        y = null;
+        u = null;
+        v = null;
+        shared = null;
+    }
+}
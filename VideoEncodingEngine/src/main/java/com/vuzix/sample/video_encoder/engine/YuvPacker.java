@@ -0,0 +1,215 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs YUV_420_888 images into the NV12 (YUV420SemiPlanar) layout expected by the encoder.
+ *
+ * The planes are read directly from the camera image and written into the destination buffer, which may
+ * be a codec input buffer, so no copy of the frame is made. Row and pixel strides are honoured:
+ * when the planes are tightly packed each plane is moved with a single bulk copy, padded rows are
+ * copied one row at a time. Chroma that is not already NV12 is read a row at a time in bulk and
+ * interleaved in a scratch row. The planes are only read, the camera may hand them out locked for
+ * reading and to other consumers. Apart from the scratch row of each thread, no allocation is
+ * performed.
+ */
+public final class YuvPacker {
+
+    // frames are packed on the camera, codec and scaler threads
+    private static final ThreadLocal<byte[]> sScratch = new ThreadLocal<byte[]>();
+
+    private YuvPacker() {
+    }
+
+    /**
+     * Utility to compute the size of a packed NV12 frame
+     * @param width int width of the image in pixels
+     * @param height int height of the image in pixels
+     * @return int number of bytes written by pack()
+     */
+    public static int packedSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * Packs a captured frame at the current position of dst
+     * @param frame YuvFrame describing the planes of the image
+     * @param dst ByteBuffer receiving the NV12 frame, its position is advanced
+     * @return int number of bytes written
+     */
+    public static int pack(YuvFrame frame, ByteBuffer dst) {
+        return pack(frame.y, frame.yRowStride, frame.u, frame.v, frame.uvRowStride, frame.uvPixelStride,
+                frame.width, frame.height, dst);
+    }
+
+    /**
+     * Packs a YUV 4:2:0 frame described by its planes at the current position of dst.
+     * The source buffers are read from their current position and left unchanged.
+     *
+     * @param y ByteBuffer luma plane, pixel stride of 1
+     * @param yRowStride int distance in bytes between luma rows
+     * @param u ByteBuffer Cb plane
+     * @param v ByteBuffer Cr plane
+     * @param uvRowStride int distance in bytes between chroma rows
+     * @param uvPixelStride int distance in bytes between chroma samples, 1 for planar, 2 for interleaved
+     * @param width int width of the image in pixels
+     * @param height int height of the image in pixels
+     * @param dst ByteBuffer receiving the NV12 frame, its position is advanced
+     * @return int number of bytes written
+     */
+    public static int pack(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v,
+                           int uvRowStride, int uvPixelStride, int width, int height, ByteBuffer dst) {
+        int size = packedSize(width, height);
+        if (dst.remaining() < size) {
+            throw new IllegalArgumentException("destination holds " + dst.remaining() + " bytes, frame needs " + size);
+        }
+
+        copyPlane(y, yRowStride, width, height, dst);
+
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        if (uvPixelStride == 2 && isInterleavedCbCr(u, v, (chromaHeight - 1) * uvRowStride + width - 1)) {
+            // NV12 from the camera, U plane already holds Cb/Cr pairs: copy it as one plane of
+            // width bytes per row. The U plane ends one byte short, the last Cr comes from V.
+            int lastPosition = dst.position() + width * chromaHeight - 1;
+            copyPlane(u, uvRowStride, width, chromaHeight, dst, width * chromaHeight - 1);
+            dst.put(lastPosition, v.get(v.position() + (chromaHeight - 1) * uvRowStride + (chromaWidth - 1) * 2));
+            dst.position(lastPosition + 1);
+            return size;
+        }
+        // the last sample of a row ends the plane, an interleaved plane ends one byte short
+        int rowLength = (chromaWidth - 1) * uvPixelStride + 1;
+        byte[] scratch = getScratch(2 * rowLength + 2 * chromaWidth);
+        int packed = 2 * rowLength;
+        int uBase = u.position();
+        int vBase = v.position();
+        try {
+            for (int row = 0; row < chromaHeight; row++) {
+                int offset = row * uvRowStride;
+                u.position(uBase + offset);
+                u.get(scratch, 0, rowLength);
+                v.position(vBase + offset);
+                v.get(scratch, rowLength, rowLength);
+                int out = packed;
+                for (int in = 0; in < rowLength; in += uvPixelStride) {
+                    scratch[out++] = scratch[in];
+                    scratch[out++] = scratch[rowLength + in];
+                }
+                dst.put(scratch, packed, 2 * chromaWidth);
+            }
+        } finally {
+            u.position(uBase);
+            v.position(vBase);
+        }
+        return size;
+    }
+
+    /**
+     * @return byte[] scratch of the calling thread, of at least length bytes
+     */
+    private static byte[] getScratch(int length) {
+        byte[] scratch = sScratch.get();
+        if (scratch == null || scratch.length < length) {
+            scratch = new byte[length];
+            sScratch.set(scratch);
+        }
+        return scratch;
+    }
+
+    /**
+     * Copies rows of width bytes from a plane with the given row stride
+     */
+    private static void copyPlane(ByteBuffer src, int rowStride, int width, int rows, ByteBuffer dst) {
+        copyPlane(src, rowStride, width, rows, dst, width * rows);
+    }
+
+    /**
+     * Copies rows of width bytes from a plane, stopping after count bytes. Uses one bulk copy
+     * when the rows are not padded, otherwise one bulk copy per row.
+     */
+    private static void copyPlane(ByteBuffer src, int rowStride, int width, int rows, ByteBuffer dst, int count) {
+        int position = src.position();
+        int limit = src.limit();
+        try {
+            if (rowStride == width) {
+                src.limit(position + count);
+                dst.put(src);
+            } else {
+                int remaining = count;
+                for (int row = 0; row < rows && remaining > 0; row++) {
+                    int start = position + row * rowStride;
+                    int length = Math.min(width, remaining);
+                    src.limit(src.capacity());
+                    src.position(start);
+                    src.limit(start + length);
+                    dst.put(src);
+                    remaining -= length;
+                }
+            }
+        } finally {
+            src.limit(src.capacity());
+            src.position(position);
+            src.limit(limit);
+        }
+    }
+
+    /**
+     * Utility to check whether the U plane, read from its second byte, holds the V plane: then
+     * it is an NV12 chroma plane. True when both are views of one interleaved plane with Cr one
+     * byte after Cb, as camera HALs report NV12, whose identity a ByteBuffer does not expose. The
+     * planes are compared in bulk and never written.
+     * @param length int number of bytes of the V plane to compare
+     * @return true if the U plane can be copied as an NV12 chroma plane
+     */
+    private static boolean isInterleavedCbCr(ByteBuffer u, ByteBuffer v, int length) {
+        int uPosition = u.position();
+        int uLimit = u.limit();
+        int vPosition = v.position();
+        int vLimit = v.limit();
+        if (uLimit - uPosition < length || vLimit - vPosition < length) {
+            return false;
+        }
+        try {
+            u.position(uPosition + 1);
+            u.limit(uPosition + length);
+            v.limit(vPosition + length - 1);
+            return u.equals(v);
+        } finally {
+            u.limit(uLimit);
+            u.position(uPosition);
+            v.limit(vLimit);
+        }
+    }
+}
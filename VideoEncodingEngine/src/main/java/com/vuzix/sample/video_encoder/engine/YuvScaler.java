@@ -0,0 +1,286 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Downscales YUV 4:2:0 frames, NV12 or I420, into the NV12 layout expected by the encoder, or
+ * scales a CropRegion of them to the size of the video for digital zoom.
+ *
+ * FILTER_BOX averages the box of source samples each destination sample covers, which is cheap
+ * and does not alias at any ratio. FILTER_BILINEAR interpolates between the four nearest source
+ * samples, which is sharper for ratios below two but aliases beyond. Like YuvPacker the planes are
+ * read in place with their row and pixel strides and the result is written straight into the
+ * destination, which may be a codec input buffer; a crop only moves where the planes are read
+ * from, so it costs no copy of the frame. Only absolute gets and puts are used, so
+ * disjoint row ranges may be filled by different threads, see ParallelYuvScaler. No allocation
+ * is performed.
+ */
+public final class YuvScaler {
+
+    /** Average of the source samples covered by each destination sample */
+    public static final int FILTER_BOX = 0;
+    /** Interpolation between the four source samples nearest to each destination sample */
+    public static final int FILTER_BILINEAR = 1;
+
+    private YuvScaler() {
+    }
+
+    /**
+     * Scales a frame with FILTER_BOX at the current position of dst
+     * @param frame YuvFrame describing the planes of the source image
+     * @param dstWidth int width of the scaled image in pixels, even and at most the source width
+     * @param dstHeight int height of the scaled image in pixels, even and at most the source height
+     * @param dst ByteBuffer receiving the NV12 frame, its position is advanced
+     * @return int number of bytes written
+     */
+    public static int scale(YuvFrame frame, int dstWidth, int dstHeight, ByteBuffer dst) {
+        return scale(frame, dstWidth, dstHeight, dst, FILTER_BOX);
+    }
+
+    /**
+     * Scales a frame at the current position of dst
+     * @param frame YuvFrame describing the planes of the source image
+     * @param dstWidth int width of the scaled image in pixels, even and at most the source width
+     * @param dstHeight int height of the scaled image in pixels, even and at most the source height
+     * @param dst ByteBuffer receiving the NV12 frame, its position is advanced
+     * @param filter int FILTER_BOX or FILTER_BILINEAR
+     * @return int number of bytes written
+     */
+    public static int scale(YuvFrame frame, int dstWidth, int dstHeight, ByteBuffer dst, int filter) {
+        if (dstWidth == frame.width && dstHeight == frame.height) {
+            return YuvPacker.pack(frame, dst);
+        }
+        int size = YuvPacker.packedSize(dstWidth, dstHeight);
+        checkGeometry(frame, dstWidth, dstHeight, dst, size);
+        int base = dst.position();
+        scaleRows(frame, 0, 0, frame.width, frame.height, dstWidth, dstHeight, dst, base, filter, 0, dstHeight);
+        dst.position(base + size);
+        return size;
+    }
+
+    /**
+     * Scales a region of a frame at the current position of dst. The region may be smaller than
+     * the destination, as with a digital zoom, where FILTER_BILINEAR interpolates and FILTER_BOX
+     * repeats samples
+     * @param frame YuvFrame describing the planes of the source image
+     * @param crop CropRegion of the frame to scale, null for the whole frame
+     * @param dstWidth int width of the scaled image in pixels, even
+     * @param dstHeight int height of the scaled image in pixels, even
+     * @param dst ByteBuffer receiving the NV12 frame, its position is advanced
+     * @param filter int FILTER_BOX or FILTER_BILINEAR
+     * @return int number of bytes written
+     */
+    public static int scale(YuvFrame frame, CropRegion crop, int dstWidth, int dstHeight, ByteBuffer dst, int filter) {
+        if (crop == null) {
+            return scale(frame, dstWidth, dstHeight, dst, filter);
+        }
+        int size = YuvPacker.packedSize(dstWidth, dstHeight);
+        checkCrop(frame, crop, dstWidth, dstHeight, dst, size);
+        int base = dst.position();
+        scaleRows(frame, crop.x, crop.y, crop.width, crop.height, dstWidth, dstHeight, dst, base, filter,
+                0, dstHeight);
+        dst.position(base + size);
+        return size;
+    }
+
+    /**
+     * Utility to reject a destination that cannot hold the scaled frame
+     */
+    static void checkGeometry(YuvFrame frame, int dstWidth, int dstHeight, ByteBuffer dst, int size) {
+        if (dstWidth <= 0 || dstHeight <= 0 || dstWidth > frame.width || dstHeight > frame.height
+                || (dstWidth & 1) != 0 || (dstHeight & 1) != 0) {
+            throw new IllegalArgumentException("cannot scale " + frame.width + "x" + frame.height
+                    + " to " + dstWidth + "x" + dstHeight);
+        }
+        if (dst.remaining() < size) {
+            throw new IllegalArgumentException("destination holds " + dst.remaining() + " bytes, frame needs " + size);
+        }
+    }
+
+    /**
+     * Utility to reject a region outside the frame or a destination that cannot hold it scaled
+     */
+    static void checkCrop(YuvFrame frame, CropRegion crop, int dstWidth, int dstHeight, ByteBuffer dst, int size) {
+        if (!crop.fits(frame.width, frame.height) || dstWidth <= 0 || dstHeight <= 0
+                || (dstWidth & 1) != 0 || (dstHeight & 1) != 0) {
+            throw new IllegalArgumentException("cannot scale " + crop + " of " + frame.width + "x" + frame.height
+                    + " to " + dstWidth + "x" + dstHeight);
+        }
+        if (dst.remaining() < size) {
+            throw new IllegalArgumentException("destination holds " + dst.remaining() + " bytes, frame needs " + size);
+        }
+    }
+
+    /**
+     * Fills luma rows [rowStart, rowEnd) of the destination and the chroma rows they share, from
+     * a region of the frame with even edges. Samples outside the region are never read.
+     * rowStart and rowEnd must be even, except for rowEnd equal to the destination height
+     * @param base int position of the frame in dst
+     */
+    static void scaleRows(YuvFrame frame, int srcX, int srcY, int srcWidth, int srcHeight, int dstWidth,
+                          int dstHeight, ByteBuffer dst, int base, int filter, int rowStart, int rowEnd) {
+        int chromaBase = base + dstWidth * dstHeight;
+        int lumaOffset = srcY * frame.yRowStride + srcX;
+        int chromaOffset = srcY / 2 * frame.uvRowStride + srcX / 2 * frame.uvPixelStride;
+        int srcChromaWidth = srcWidth / 2;
+        int srcChromaHeight = srcHeight / 2;
+        int chromaWidth = dstWidth / 2;
+        int chromaHeight = dstHeight / 2;
+        int chromaStart = rowStart / 2;
+        int chromaEnd = (rowEnd + 1) / 2;
+        if (filter == FILTER_BILINEAR) {
+            bilinearPlane(frame.y, lumaOffset, frame.yRowStride, 1, srcWidth, srcHeight,
+                    dst, base, dstWidth, 1, dstWidth, dstHeight, rowStart, rowEnd);
+            bilinearPlane(frame.u, chromaOffset, frame.uvRowStride, frame.uvPixelStride, srcChromaWidth,
+                    srcChromaHeight, dst, chromaBase, dstWidth, 2, chromaWidth, chromaHeight, chromaStart, chromaEnd);
+            bilinearPlane(frame.v, chromaOffset, frame.uvRowStride, frame.uvPixelStride, srcChromaWidth,
+                    srcChromaHeight, dst, chromaBase + 1, dstWidth, 2, chromaWidth, chromaHeight, chromaStart,
+                    chromaEnd);
+        } else {
+            boxPlane(frame.y, lumaOffset, frame.yRowStride, 1, srcWidth, srcHeight,
+                    dst, base, dstWidth, 1, dstWidth, dstHeight, rowStart, rowEnd);
+            boxPlane(frame.u, chromaOffset, frame.uvRowStride, frame.uvPixelStride, srcChromaWidth,
+                    srcChromaHeight, dst, chromaBase, dstWidth, 2, chromaWidth, chromaHeight, chromaStart, chromaEnd);
+            boxPlane(frame.v, chromaOffset, frame.uvRowStride, frame.uvPixelStride, srcChromaWidth,
+                    srcChromaHeight, dst, chromaBase + 1, dstWidth, 2, chromaWidth, chromaHeight, chromaStart,
+                    chromaEnd);
+        }
+    }
+
+    /**
+     * Box filters rows [rowStart, rowEnd) of one plane. Sources are read from srcOffset past
+     * their position, destinations written from dstBase with the given strides
+     */
+    private static void boxPlane(ByteBuffer src, int srcOffset, int srcRowStride, int srcPixelStride, int srcWidth,
+                                 int srcHeight, ByteBuffer dst, int dstBase, int dstRowStride, int dstPixelStride,
+                                 int dstWidth, int dstHeight, int rowStart, int rowEnd) {
+        int srcBase = src.position() + srcOffset;
+        // box edges advance by srcWidth / dstWidth, the remainder carried without dividing
+        int stepX = srcWidth / dstWidth;
+        int stepRemainder = srcWidth % dstWidth;
+        for (int row = rowStart; row < rowEnd; row++) {
+            int sy0 = (int) ((long) row * srcHeight / dstHeight);
+            int sy1 = Math.max(sy0 + 1, (int) ((long) (row + 1) * srcHeight / dstHeight));
+            int out = dstBase + row * dstRowStride;
+            int sx0 = 0;
+            int remainder = 0;
+            for (int col = 0; col < dstWidth; col++) {
+                int next = sx0 + stepX;
+                remainder += stepRemainder;
+                if (remainder >= dstWidth) {
+                    remainder -= dstWidth;
+                    next++;
+                }
+                int sx1 = Math.max(sx0 + 1, next);
+                int sum = 0;
+                for (int sy = sy0; sy < sy1; sy++) {
+                    int offset = srcBase + sy * srcRowStride + sx0 * srcPixelStride;
+                    for (int sx = sx0; sx < sx1; sx++) {
+                        sum += src.get(offset) & 0xff;
+                        offset += srcPixelStride;
+                    }
+                }
+                int count = (sy1 - sy0) * (sx1 - sx0);
+                dst.put(out + col * dstPixelStride, (byte) ((sum + count / 2) / count));
+                sx0 = next;
+            }
+        }
+    }
+
+    /**
+     * Bilinear filters rows [rowStart, rowEnd) of one plane, with sample centres aligned and
+     * weights in 1/256. Sources are read from srcOffset past their position, destinations
+     * written from dstBase
+     */
+    private static void bilinearPlane(ByteBuffer src, int srcOffset, int srcRowStride, int srcPixelStride,
+                                      int srcWidth, int srcHeight, ByteBuffer dst, int dstBase, int dstRowStride,
+                                      int dstPixelStride, int dstWidth, int dstHeight, int rowStart, int rowEnd) {
+        int srcBase = src.position() + srcOffset;
+        // source x in 1/256 advances by 256 * srcWidth / dstWidth, the remainder carried
+        long stepNumerator = 256L * srcWidth;
+        int stepX = (int) (stepNumerator / dstWidth);
+        int stepRemainder = (int) (stepNumerator % dstWidth);
+        int firstX = (int) (128L * srcWidth / dstWidth);
+        int firstRemainder = (int) (128L * srcWidth % dstWidth);
+        for (int row = rowStart; row < rowEnd; row++) {
+            int fy = sourceCoordinate(row, srcHeight, dstHeight);
+            int sy0 = fy >> 8;
+            int wy = fy & 0xff;
+            int sy1 = Math.min(sy0 + 1, srcHeight - 1);
+            int row0 = srcBase + sy0 * srcRowStride;
+            int row1 = srcBase + sy1 * srcRowStride;
+            int out = dstBase + row * dstRowStride;
+            int centreX = firstX;
+            int remainder = firstRemainder;
+            // the two source columns blended vertically, reused while the destination samples
+            // fall between the same columns, as they mostly do when enlarging
+            int cachedX = -2;
+            int left = 0;
+            int right = 0;
+            for (int col = 0; col < dstWidth; col++) {
+                int fx = Math.max(0, centreX - 128);
+                centreX += stepX;
+                remainder += stepRemainder;
+                if (remainder >= dstWidth) {
+                    remainder -= dstWidth;
+                    centreX++;
+                }
+                int sx0 = fx >> 8;
+                int wx = fx & 0xff;
+                if (sx0 != cachedX) {
+                    int x1 = Math.min(sx0 + 1, srcWidth - 1) * srcPixelStride;
+                    if (sx0 == cachedX + 1) {
+                        left = right;
+                    } else {
+                        int x0 = sx0 * srcPixelStride;
+                        left = (src.get(row0 + x0) & 0xff) * (256 - wy) + (src.get(row1 + x0) & 0xff) * wy;
+                    }
+                    right = (src.get(row0 + x1) & 0xff) * (256 - wy) + (src.get(row1 + x1) & 0xff) * wy;
+                    cachedX = sx0;
+                }
+                dst.put(out + col * dstPixelStride, (byte) ((left * (256 - wx) + right * wx + 32768) >> 16));
+            }
+        }
+    }
+
+    /**
+     * Utility to map a destination sample to the source, centre to centre
+     * @return int source coordinate in 1/256 of a sample, clamped to the first sample
+     */
+    private static int sourceCoordinate(int index, int srcSize, int dstSize) {
+        long position = (2L * index + 1) * srcSize * 128 / dstSize - 128;
+        return (int) Math.max(0, position);
+    }
+}
@@ -0,0 +1,157 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BitrateControllerTest {
+
+    private static final long FRAME_NS = 33333333L;
+    private static final int MIN_BIT_RATE = 1500000;
+    private static final int MAX_BIT_RATE = 6000000;
+    private static final int WRITER_QUEUE = 8;
+
+    /**
+     * Encoder and storage at 30fps: every frame is bitrate / 30 bits, the storage writes at its
+     * capacity and the frames it has not written yet wait in a writer queue, which drops them
+     * when full
+     */
+    private static class Simulation {
+        final BitrateController controller = new BitrateController(MIN_BIT_RATE, MAX_BIT_RATE, MAX_BIT_RATE);
+        long nowNs;
+        double backlogBits;
+        long droppedFrames;
+        long decreasesWithinHold;
+        private long mLastDecreaseNs = -1;
+
+        void run(long durationNs, long storageBitRate) {
+            for (long end = nowNs + durationNs; nowNs < end; nowNs += FRAME_NS) {
+                int bitRate = controller.getBitRate();
+                double frameBits = bitRate / 30.0;
+                if (backlogBits + frameBits > WRITER_QUEUE * frameBits) {
+                    droppedFrames++;
+                } else {
+                    backlogBits += frameBits;
+                }
+                double written = Math.min(backlogBits, storageBitRate / 30.0);
+                backlogBits -= written;
+                if (written > 0) {
+                    controller.reportWrite((long) written / 8, (long) (written * 1e9 / storageBitRate));
+                }
+                controller.reportQueueFill((int) Math.ceil(backlogBits / frameBits), WRITER_QUEUE);
+                controller.reportEncodeLatency(20000000);
+                if (controller.evaluate(nowNs) && controller.getBitRate() < bitRate) {
+                    if (mLastDecreaseNs >= 0 && nowNs - mLastDecreaseNs < 1000000000L) {
+                        decreasesWithinHold++;
+                    }
+                    mLastDecreaseNs = nowNs;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void followsAStorageSlowdownAndRecovers() {
+        Simulation simulation = new Simulation();
+        simulation.run(10000000000L, 20000000);
+        assertEquals(MAX_BIT_RATE, simulation.controller.getBitRate());
+        assertEquals(0, simulation.controller.getDecreaseCount());
+
+        // the card slows down to half the bitrate: within a few seconds the bitrate fits it
+        simulation.run(3000000000L, 3000000);
+        assertTrue(simulation.controller.getBitRate() < 3000000);
+        long dropped = simulation.droppedFrames;
+        simulation.run(20000000000L, 3000000);
+        assertTrue(simulation.controller.getBitRate() >= MIN_BIT_RATE);
+        assertTrue(simulation.controller.getBitRate() < 3000000);
+        // settled: nothing more is dropped while the storage stays slow
+        assertEquals(dropped, simulation.droppedFrames);
+        assertEquals(0, simulation.decreasesWithinHold);
+
+        // the card is fast again: the bitrate climbs back slowly to the maximum
+        int slowBitRate = simulation.controller.getBitRate();
+        simulation.run(5000000000L, 20000000);
+        assertTrue(simulation.controller.getBitRate() <= slowBitRate + MAX_BIT_RATE / 20);
+        simulation.run(120000000000L, 20000000);
+        assertEquals(MAX_BIT_RATE, simulation.controller.getBitRate());
+        assertEquals(dropped, simulation.droppedFrames);
+    }
+
+    @Test
+    public void neverGoesBelowTheMinimum() {
+        Simulation simulation = new Simulation();
+        simulation.run(30000000000L, 500000);
+        assertEquals(MIN_BIT_RATE, simulation.controller.getBitRate());
+    }
+
+    @Test
+    public void slowCodecCutsTheBitrate() {
+        BitrateController controller = new BitrateController(MIN_BIT_RATE, MAX_BIT_RATE, MAX_BIT_RATE);
+        controller.setTargetLatencyNs(100000000);
+        controller.evaluate(0);
+        controller.reportEncodeLatency(150000000);
+        assertTrue(controller.evaluate(500000000));
+        assertEquals(MAX_BIT_RATE * 3 / 4, controller.getBitRate());
+        // held while the encoder rate control follows
+        controller.reportEncodeLatency(150000000);
+        assertFalse(controller.evaluate(1000000000));
+        controller.reportEncodeLatency(150000000);
+        assertTrue(controller.evaluate(1500000000));
+        assertEquals(2, controller.getDecreaseCount());
+    }
+
+    @Test
+    public void hysteresisBandKeepsTheBitrate() {
+        BitrateController controller = new BitrateController(MIN_BIT_RATE, MAX_BIT_RATE, 3000000);
+        controller.evaluate(0);
+        for (long nowNs = 500000000; nowNs < 30000000000L; nowNs += 500000000) {
+            // a third full: neither congested nor clear
+            controller.reportQueueFill(3, 9);
+            assertFalse(controller.evaluate(nowNs));
+        }
+        assertEquals(3000000, controller.getBitRate());
+    }
+
+    @Test
+    public void slowSinkCutsToItsCapacity() {
+        BitrateController controller = new BitrateController(MIN_BIT_RATE, MAX_BIT_RATE, MAX_BIT_RATE);
+        controller.evaluate(0);
+        controller.reportSinkBitRate(2000000);
+        assertTrue(controller.evaluate(500000000));
+        assertEquals(1600000, controller.getBitRate());
+    }
+}
@@ -0,0 +1,123 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds YuvFrames laid out as ImageReader delivers YUV_420_888 on most devices: NV12 with U
+ * and V as views of one interleaved plane
+ */
+final class CameraFrames {
+
+    private CameraFrames() {
+    }
+
+    /**
+     * @param nv12 byte[] packed NV12 image, copied into direct buffers
+     * @param width int width of the image in pixels
+     * @param height int height of the image in pixels
+     * @param timestampNs long sensor timestamp of the frame
+     * @return YuvFrame describing the image
+     */
+    static YuvFrame semiPlanar(byte[] nv12, int width, int height, long timestampNs) {
+        ByteBuffer y = ByteBuffer.allocateDirect(width * height);
+        y.put(nv12, 0, width * height);
+        y.clear();
+        ByteBuffer chroma = ByteBuffer.allocateDirect(width * height / 2);
+        chroma.put(nv12, width * height, width * height / 2);
+        chroma.clear();
+        ByteBuffer u = chroma.duplicate();
+        u.limit(chroma.capacity() - 1);
+        ByteBuffer v = chroma.duplicate();
+        v.position(1);
+        YuvFrame frame = new YuvFrame().set(y, width, u.slice(), v.slice(), width, 2, width, height, timestampNs);
+        frame.captureTimeNs = System.nanoTime();
+        frame.arrivalTimeNs = frame.captureTimeNs;
+        return frame;
+    }
+
+    /**
+     * @return byte[] NV12 image whose samples depend on their position and on seed
+     */
+    static byte[] pattern(int width, int height, int seed) {
+        byte[] nv12 = new byte[width * height * 3 / 2];
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                nv12[row * width + col] = (byte) (row * 3 + col * 5 + seed);
+            }
+        }
+        for (int row = 0; row < height / 2; row++) {
+            for (int col = 0; col < width; col++) {
+                nv12[width * height + row * width + col] = (byte) (row * 7 + col * 11 + seed * 3);
+            }
+        }
+        return nv12;
+    }
+
+    /**
+     * Reference 2:1 box filter of an NV12 image, each sample the rounded mean of four
+     */
+    static byte[] halve(byte[] nv12, int width, int height) {
+        int halfWidth = width / 2;
+        int halfHeight = height / 2;
+        byte[] half = new byte[halfWidth * halfHeight * 3 / 2];
+        for (int row = 0; row < halfHeight; row++) {
+            for (int col = 0; col < halfWidth; col++) {
+                int sum = 0;
+                for (int dy = 0; dy < 2; dy++) {
+                    for (int dx = 0; dx < 2; dx++) {
+                        sum += nv12[(2 * row + dy) * width + 2 * col + dx] & 0xff;
+                    }
+                }
+                half[row * halfWidth + col] = (byte) ((sum + 2) / 4);
+            }
+        }
+        int chroma = width * height;
+        int halfChroma = halfWidth * halfHeight;
+        for (int row = 0; row < halfHeight / 2; row++) {
+            for (int col = 0; col < halfWidth / 2; col++) {
+                for (int component = 0; component < 2; component++) {
+                    int sum = 0;
+                    for (int dy = 0; dy < 2; dy++) {
+                        for (int dx = 0; dx < 2; dx++) {
+                            sum += nv12[chroma + (2 * row + dy) * width + (2 * col + dx) * 2 + component] & 0xff;
+                        }
+                    }
+                    half[halfChroma + row * halfWidth + col * 2 + component] = (byte) ((sum + 2) / 4);
+                }
+            }
+        }
+        return half;
+    }
+}
@@ -0,0 +1,154 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CodecIndexTest {
+
+    private static final String AVC = "video/avc";
+    // MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar and Flexible
+    private static final int SEMI_PLANAR = 21;
+    private static final int FLEXIBLE = 0x7f420888;
+
+    private static CodecIndex.Entry encoder(String name, boolean hardware, int maxWidth, int maxFrameRate,
+                                            int... colorFormats) {
+        return new CodecIndex.Entry(name, AVC, hardware, colorFormats, new int[]{8, 512}, 0x7,
+                maxWidth, maxWidth * 9 / 16, maxFrameRate, 20000000);
+    }
+
+    private static CodecIndex index() {
+        List<CodecIndex.Entry> entries = new ArrayList<CodecIndex.Entry>();
+        entries.add(encoder("c2.android.avc.encoder", false, 1920, 60, SEMI_PLANAR, FLEXIBLE));
+        entries.add(encoder("OMX.qcom.video.encoder.avc", true, 3840, 60, SEMI_PLANAR, FLEXIBLE));
+        entries.add(encoder("OMX.small.avc", true, 1280, 30, SEMI_PLANAR));
+        entries.add(encoder("OMX.planar.avc", true, 3840, 60, 19));
+        entries.add(new CodecIndex.Entry("OMX.qcom.video.encoder.hevc", "video/hevc", true, new int[]{SEMI_PLANAR},
+                new int[0], 0x7, 3840, 2160, 60, 20000000));
+        return new CodecIndex("vuzix/m400/9:user", entries);
+    }
+
+    @Test
+    public void ranksSupportThenHardware() {
+        // 1080p: the small encoder cannot take it, the planar one lacks the color format
+        assertEquals(Arrays.asList("OMX.qcom.video.encoder.avc", "c2.android.avc.encoder", "OMX.small.avc",
+                "OMX.planar.avc"), names(index().rankEncoders(AVC, 1920, 1080, 30, SEMI_PLANAR)));
+        // portrait 720p fits the landscape limits of the small one
+        assertEquals(Arrays.asList("OMX.qcom.video.encoder.avc", "OMX.small.avc", "c2.android.avc.encoder",
+                "OMX.planar.avc"), names(index().rankEncoders(AVC, 720, 1280, 30, SEMI_PLANAR)));
+    }
+
+    @Test
+    public void measuredFrameRatesDemoteSlowEncoders() {
+        CodecIndex index = index();
+        // the hardware encoder failed, 0 fps, the software one keeps up
+        index.setMeasuredFrameRate("OMX.qcom.video.encoder.avc", 1280, 720, 0);
+        index.setMeasuredFrameRate("c2.android.avc.encoder", 1280, 720, 45);
+        index.setMeasuredFrameRate("OMX.small.avc", 1280, 720, 31);
+        assertEquals(Arrays.asList("OMX.small.avc", "c2.android.avc.encoder", "OMX.qcom.video.encoder.avc",
+                "OMX.planar.avc"), names(index.rankEncoders(AVC, 1280, 720, 30, SEMI_PLANAR)));
+        // measurements are per size
+        assertEquals(-1, index.getMeasuredFrameRate("OMX.qcom.video.encoder.avc", 640, 360), 0);
+        assertEquals("OMX.qcom.video.encoder.avc", index.rankEncoders(AVC, 640, 360, 30, SEMI_PLANAR).get(0).name);
+    }
+
+    @Test
+    public void measuredToKeepUpRanksAboveUnmeasured() {
+        CodecIndex index = index();
+        // only the software encoder was measured, the hardware ones are still unknown
+        index.setMeasuredFrameRate("c2.android.avc.encoder", 1280, 720, 45);
+        assertEquals(Arrays.asList("c2.android.avc.encoder", "OMX.qcom.video.encoder.avc", "OMX.small.avc",
+                "OMX.planar.avc"), names(index.rankEncoders(AVC, 1280, 720, 30, SEMI_PLANAR)));
+        // unmeasured still ranks above measured too slow
+        index.setMeasuredFrameRate("OMX.qcom.video.encoder.avc", 1280, 720, 12);
+        assertEquals(Arrays.asList("c2.android.avc.encoder", "OMX.small.avc", "OMX.qcom.video.encoder.avc",
+                "OMX.planar.avc"), names(index.rankEncoders(AVC, 1280, 720, 30, SEMI_PLANAR)));
+    }
+
+    @Test
+    public void fastestMeasuredBreaksTies() {
+        CodecIndex index = index();
+        index.setMeasuredFrameRate("OMX.qcom.video.encoder.avc", 1280, 720, 40);
+        index.setMeasuredFrameRate("OMX.small.avc", 1280, 720, 90);
+        assertEquals("OMX.small.avc", index.rankEncoders(AVC, 1280, 720, 30, SEMI_PLANAR).get(0).name);
+    }
+
+    @Test
+    public void surviveARoundTrip() throws IOException {
+        CodecIndex index = index();
+        index.setMeasuredFrameRate("OMX.small.avc", 1280, 720, 31.5f);
+        StringWriter saved = new StringWriter();
+        index.write(saved);
+
+        CodecIndex read = CodecIndex.read(new StringReader(saved.toString()));
+        assertEquals("vuzix/m400/9:user", read.getFingerprint());
+        assertEquals(5, read.getEntries().size());
+        CodecIndex.Entry entry = read.find(AVC, "omx.qcom.video.encoder.avc");
+        assertArrayEquals(new int[]{SEMI_PLANAR, FLEXIBLE}, entry.colorFormats);
+        assertArrayEquals(new int[]{8, 512}, entry.profileLevels);
+        assertEquals(3840, entry.maxWidth);
+        assertEquals(20000000, entry.maxBitRate);
+        assertEquals(31.5f, read.getMeasuredFrameRate("OMX.small.avc", 1280, 720), 0);
+        assertEquals(1, read.findEncoders("video/hevc").size());
+    }
+
+    @Test
+    public void damagedIndexIsNotRead() throws IOException {
+        StringWriter saved = new StringWriter();
+        index().write(saved);
+        String text = saved.toString();
+        assertNull(CodecIndex.read(new StringReader("")));
+        assertNull(CodecIndex.read(new StringReader("codec-index 1\n" + text.substring(text.indexOf('\n') + 1))));
+        assertNull(CodecIndex.read(new StringReader(text.replace("\t3840\t", "\tlarge\t"))));
+        assertNull(CodecIndex.read(new StringReader(text + "truncated\tline\n")));
+    }
+
+    private static List<String> names(List<CodecIndex.Entry> entries) {
+        List<String> names = new ArrayList<String>();
+        for (CodecIndex.Entry entry : entries) {
+            names.add(entry.name);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,176 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CropRegionTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 90;
+    private static final long FRAME_NS = 33333333L;
+
+    private final ExecutorService mCodecThread = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        mCodecThread.shutdownNow();
+    }
+
+    @Test
+    public void edgesAreEven() {
+        CropRegion crop = new CropRegion(21, 13, 97, 61);
+        assertEquals("96x60+20+12", crop.toString());
+        try {
+            new CropRegion(-2, 0, 10, 10);
+            fail("negative edge accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new CropRegion(0, 0, 1, 10);
+            fail("empty region accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void zoomKeepsTheAspectRatioInsideTheFrame() {
+        assertTrue(CropRegion.zoom(1280, 720, 1, 0.5f, 0.5f).isFullFrame(1280, 720));
+        assertEquals("640x360+320+180", CropRegion.zoom(1280, 720, 2, 0.5f, 0.5f).toString());
+        assertEquals("426x240+426+240", CropRegion.zoom(1280, 720, 3, 0.5f, 0.5f).toString());
+        // a centre too close to an edge moves the region back inside
+        assertEquals("640x360+640+0", CropRegion.zoom(1280, 720, 2, 0.9f, 0.1f).toString());
+        assertEquals("160x90+0+630", CropRegion.zoom(1280, 720, 8, 0f, 1f).toString());
+        for (float factor = 1; factor <= 8; factor += 0.25f) {
+            CropRegion crop = CropRegion.zoom(1280, 720, factor, 0.7f, 0.2f);
+            assertTrue(crop + " fits", crop.fits(1280, 720));
+            assertEquals(crop.toString(), 1280f / 720, (float) crop.width / crop.height, 0.03f);
+        }
+        assertFalse(new CropRegion(1000, 0, 640, 360).fits(1280, 720));
+        try {
+            CropRegion.zoom(1280, 720, 0.5f, 0.5f, 0.5f);
+            fail("zoom out accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void syncDriverEncodesTheRegionOfEachFrame() throws InterruptedException {
+        FakeEncoderCodec codec = new FakeEncoderCodec(null, WIDTH * HEIGHT * 3 / 2);
+        // waits for the drain thread to free an input buffer rather than dropping the frame
+        encodeZoomedFrames(codec, new SyncEncoderDriver(codec, new RecordingOutputWriter(),
+                FrameDropPolicy.blockWithDeadline(1000), 30), null);
+    }
+
+    @Test
+    public void asyncDriverEncodesTheRegionOfEachFrame() throws InterruptedException {
+        FakeEncoderCodec codec = new FakeEncoderCodec(mCodecThread, WIDTH * HEIGHT * 3 / 2);
+        ParallelYuvScaler scaler = new ParallelYuvScaler(2);
+        try {
+            encodeZoomedFrames(codec, new AsyncEncoderDriver(codec, new RecordingOutputWriter(),
+                    FrameDropPolicy.dropNewest(), 30, WIDTH, HEIGHT, 4, mCodecThread), scaler);
+        } finally {
+            scaler.close();
+        }
+    }
+
+    /**
+     * Changes the zoom on every frame, without reconfiguring the codec, and checks the codec is
+     * fed the region enlarged to the size of the video
+     */
+    private void encodeZoomedFrames(FakeEncoderCodec codec, EncoderDriver driver, ParallelYuvScaler scaler)
+            throws InterruptedException {
+        final CountDownLatch released = new CountDownLatch(1);
+        driver.setListener(new EncoderDriver.Listener() {
+            @Override
+            public void onEncoderReleased(EncoderDriver driver) {
+                released.countDown();
+            }
+
+            @Override
+            public void onEncoderError(EncoderDriver driver, Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        if (scaler != null) {
+            driver.setScaler(scaler, YuvScaler.FILTER_BOX);
+        }
+        driver.configure(new MediaFormat());
+        driver.start();
+        CropRegion[] crops = {
+                CropRegion.zoom(WIDTH, HEIGHT, 2, 0.5f, 0.5f),
+                CropRegion.zoom(WIDTH, HEIGHT, 3, 1, 1),
+                null,
+                new CropRegion(20, 10, 100, 60),
+                // does not fit the frames, the whole frame is encoded
+                new CropRegion(100, 0, 100, 60)};
+        for (int i = 0; i < crops.length; i++) {
+            byte[] image = CameraFrames.pattern(WIDTH, HEIGHT, i);
+            YuvFrame frame = CameraFrames.semiPlanar(image, WIDTH, HEIGHT, i * FRAME_NS);
+            driver.setCrop(crops[i]);
+            driver.onFrame(frame);
+            long deadlineNs = System.nanoTime() + 5000000000L;
+            while (codec.queuedFrames <= i && System.nanoTime() < deadlineNs) {
+                Thread.sleep(1);
+            }
+            assertEquals(i + 1, codec.queuedFrames);
+            byte[] expected = image;
+            if (crops[i] != null && crops[i].fits(WIDTH, HEIGHT)) {
+                ByteBuffer zoomed = ByteBuffer.allocate(WIDTH * HEIGHT * 3 / 2);
+                YuvScaler.scale(frame, crops[i], WIDTH, HEIGHT, zoomed, YuvScaler.FILTER_BILINEAR);
+                expected = zoomed.array();
+            }
+            assertArrayEquals("frame " + i + ", crop " + crops[i], expected, codec.lastInput);
+        }
+        driver.onEndOfStream();
+        assertTrue(released.await(5, TimeUnit.SECONDS));
+    }
+}
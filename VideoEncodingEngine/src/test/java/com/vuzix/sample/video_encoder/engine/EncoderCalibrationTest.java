@@ -0,0 +1,71 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EncoderCalibrationTest {
+
+    @Test
+    public void measuresTheEncoderThroughput() {
+        // an encoder taking 10ms per frame cannot exceed 100fps
+        FakeEncoderCodec codec = new FakeEncoderCodec(null, 64 * 48 * 3 / 2);
+        codec.frameDelayMs = 10;
+        float frameRate = EncoderCalibration.measureFrameRate(codec, new MediaFormat(), 64, 48, 30, 5000);
+        assertTrue("measured " + frameRate + "fps", frameRate > 20 && frameRate <= 100);
+        assertEquals(30, codec.queuedFrames);
+        assertTrue(codec.stopped);
+    }
+
+    @Test
+    public void stuckEncoderEndsAtTheTimeLimit() {
+        // the encoder takes the frames but never finishes one
+        FakeEncoderCodec codec = new FakeEncoderCodec(null, 64 * 48 * 3 / 2) {
+            @Override
+            public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+                return INFO_TRY_AGAIN_LATER;
+            }
+        };
+        long startNs = System.nanoTime();
+        float frameRate = EncoderCalibration.measureFrameRate(codec, new MediaFormat(), 64, 48, 30, 200);
+        long elapsedMs = (System.nanoTime() - startNs) / 1000000;
+        assertEquals(0, frameRate, 0);
+        assertTrue("took " + elapsedMs + "ms", elapsedMs >= 200 && elapsedMs < 2000);
+        assertTrue(codec.stopped);
+    }
+}
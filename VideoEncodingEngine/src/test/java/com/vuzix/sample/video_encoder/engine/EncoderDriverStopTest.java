@@ -0,0 +1,222 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EncoderDriverStopTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 36;
+    private static final int FRAMES = 30;
+    private static final long FRAME_NS = 33333333L;
+    private static final long STOP_TIMEOUT_MS = 500;
+
+    private final ExecutorService mCodecThread = Executors.newSingleThreadExecutor();
+    private final CountDownLatch mReleased = new CountDownLatch(1);
+    private FakeEncoderCodec mCodec;
+    private EncoderDriver mDriver;
+    private volatile boolean mCodecReleasedBeforeWriter;
+    private boolean mCodecThreadQuits;
+    private final RecordingOutputWriter mWriter = new RecordingOutputWriter() {
+        @Override
+        public void release() {
+            mCodecReleasedBeforeWriter = mCodec.released;
+            super.release();
+        }
+    };
+
+    @After
+    public void tearDown() {
+        mCodecThread.shutdownNow();
+    }
+
+    @Test
+    public void syncDriverStopsOnceDrained() throws InterruptedException {
+        stop(syncDriver(true), false);
+        checkDrained();
+    }
+
+    @Test
+    public void asyncDriverStopsOnceDrained() throws InterruptedException {
+        stop(asyncDriver(true), false);
+        checkDrained();
+    }
+
+    @Test
+    public void syncDriverGivesUpOnAStuckCodec() throws InterruptedException {
+        stop(syncDriver(false), false);
+        checkForced();
+    }
+
+    @Test
+    public void asyncDriverGivesUpOnAStuckCodec() throws InterruptedException {
+        stop(asyncDriver(false), false);
+        checkForced();
+    }
+
+    @Test
+    public void asyncDriverReleasesTheCodecOnceItsThreadHasQuit() throws InterruptedException {
+        mCodecThreadQuits = true;
+        stop(asyncDriver(true), false);
+        checkForced();
+    }
+
+    @Test
+    public void surfaceInputGivesUpOnAStuckCodec() throws InterruptedException {
+        stop(syncDriver(false), true);
+        checkForced();
+    }
+
+    private EncoderDriver syncDriver(boolean drains) {
+        mCodec = new FakeEncoderCodec(null, WIDTH * HEIGHT * 3 / 2);
+        mCodec.drainsEndOfStream = drains;
+        // waits for the drain thread to free an input buffer rather than dropping the frame
+        return new SyncEncoderDriver(mCodec, mWriter, FrameDropPolicy.blockWithDeadline(1000), 30);
+    }
+
+    private EncoderDriver asyncDriver(boolean drains) {
+        mCodec = new FakeEncoderCodec(mCodecThread, WIDTH * HEIGHT * 3 / 2);
+        mCodec.drainsEndOfStream = drains;
+        return new AsyncEncoderDriver(mCodec, mWriter, FrameDropPolicy.dropNewest(), 30, WIDTH, HEIGHT, 4,
+                mCodecThread);
+    }
+
+    /**
+     * Encodes a second of frames, then ends the capture through an input of the given kind
+     */
+    private void stop(final EncoderDriver driver, final boolean surface) throws InterruptedException {
+        mDriver = driver;
+        driver.setListener(new EncoderDriver.Listener() {
+            @Override
+            public void onEncoderReleased(EncoderDriver driver) {
+                mReleased.countDown();
+            }
+
+            @Override
+            public void onEncoderError(EncoderDriver driver, Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        driver.setStopTimeout(STOP_TIMEOUT_MS);
+        driver.configure(new MediaFormat());
+        driver.start();
+        byte[] image = CameraFrames.pattern(WIDTH, HEIGHT, 0);
+        for (int i = 0; i < FRAMES; i++) {
+            driver.onFrame(CameraFrames.semiPlanar(image, WIDTH, HEIGHT, i * FRAME_NS));
+            long deadlineNs = System.nanoTime() + 5000000000L;
+            while (mCodec.queuedFrames <= i && System.nanoTime() < deadlineNs) {
+                Thread.sleep(1);
+            }
+        }
+        assertEquals(FRAMES, mCodec.queuedFrames);
+        if (mCodecThreadQuits) {
+            // as the looper of a paused app, once the frames are encoded
+            long deadlineNs = System.nanoTime() + 5000000000L;
+            while (mWriter.samples.size() < FRAMES && System.nanoTime() < deadlineNs) {
+                Thread.sleep(1);
+            }
+            mCodecThread.shutdown();
+            assertTrue(mCodecThread.awaitTermination(5, TimeUnit.SECONDS));
+        }
+
+        driver.stop(new EncoderInput() {
+            @Override
+            public int selectColorFormat(CodecIndex.Entry codec) {
+                return 0;
+            }
+
+            @Override
+            public Surface createCaptureSurface(EncoderCodec encoder, int width, int height) {
+                return null;
+            }
+
+            @Override
+            public void signalEndOfStream(EncoderCodec encoder) {
+                // a surface ends in the codec, buffers through the driver
+                if (surface) {
+                    encoder.signalEndOfInputStream();
+                } else {
+                    driver.onEndOfStream();
+                }
+            }
+
+            @Override
+            public void release() {
+            }
+        });
+        assertTrue(driver.getState() >= EncoderDriver.STATE_STOPPING);
+        // a frame still in flight when the capture ended is not encoded
+        driver.onFrame(CameraFrames.semiPlanar(image, WIDTH, HEIGHT, FRAMES * FRAME_NS));
+        assertTrue(mReleased.await(5, TimeUnit.SECONDS));
+        assertEquals(FRAMES, mCodec.queuedFrames);
+        assertEquals(EncoderDriver.STATE_RELEASED, driver.getState());
+        assertTrue(mCodec.released);
+        assertTrue(mWriter.released);
+    }
+
+    private void checkDrained() {
+        assertFalse(mDriver.isStopForced());
+        assertTrue("closed after " + stopMs() + "ms", stopMs() < STOP_TIMEOUT_MS / 2);
+        assertEquals(FRAMES, mWriter.samples.size());
+    }
+
+    private void checkForced() {
+        assertTrue(mDriver.isStopForced());
+        // the codec has three quarters of the timeout to drain, the writer is closed within it
+        long stopMs = stopMs();
+        assertTrue("closed after " + stopMs + "ms", stopMs >= STOP_TIMEOUT_MS * 3 / 4 - 10 && stopMs <= STOP_TIMEOUT_MS);
+        // the codec is released first, so it cannot hand the writer samples while it is finalized
+        assertTrue(mCodecReleasedBeforeWriter);
+        // the samples the codec output before it wedged, short of those not yet drained
+        assertTrue(mWriter.samples.size() > FRAMES - FakeEncoderCodec.INPUT_BUFFERS);
+        assertTrue(mWriter.samples.size() <= FRAMES);
+    }
+
+    private long stopMs() {
+        return (mDriver.getWriterClosedTimeNs() - mDriver.getStopTimeNs()) / 1000000;
+    }
+}
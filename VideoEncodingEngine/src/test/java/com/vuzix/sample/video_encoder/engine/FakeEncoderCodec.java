@@ -0,0 +1,290 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EncoderCodec standing in for MediaCodec, in synchronous mode or, with an executor, in
+ * asynchronous mode with the callbacks run on it.
+ *
+ * Every input buffer comes back as the output buffer of the same index, holding the first
+ * bytes of the frame, and is free again once that output buffer is released. The first sample,
+ * every GOP-th one and the one after requestSyncFrame() are sync frames. A codec that does not
+ * drain ignores the end of stream, as a wedged hardware encoder does.
+ */
+class FakeEncoderCodec implements EncoderCodec {
+
+    static final int INPUT_BUFFERS = 4;
+    static final int GOP = 30;
+    private static final int SAMPLE_BYTES = 64;
+
+    private final Executor mExecutor;
+    private final int mInputBufferSize;
+    private final ByteBuffer[] mInput = new ByteBuffer[INPUT_BUFFERS];
+    private final ByteBuffer[] mOutput = new ByteBuffer[INPUT_BUFFERS + 1];
+    private final BlockingQueue<Integer> mFreeInput = new LinkedBlockingQueue<Integer>();
+    private final BlockingQueue<long[]> mPendingOutput = new LinkedBlockingQueue<long[]>();
+    private Callback mCallback;
+    private boolean mFormatReported;
+    private int mFrameCount;
+    private volatile boolean mSyncFrameRequested;
+
+    volatile boolean drainsEndOfStream = true;
+    volatile long frameDelayMs;
+    volatile boolean started;
+    volatile boolean stopped;
+    volatile boolean released;
+    volatile int syncFrameRequests;
+    volatile int bitRate;
+    volatile int queuedFrames;
+    volatile boolean endOfStreamQueued;
+    // copy of the last frame queued, for checking what the driver fed the codec
+    volatile byte[] lastInput;
+
+    /**
+     * A codec that only records the runtime requests it receives
+     */
+    FakeEncoderCodec() {
+        this(null, 0);
+    }
+
+    /**
+     * @param executor Executor running the callbacks in asynchronous mode, null for synchronous mode
+     * @param inputBufferSize int size of the input buffers, at least one NV12 frame
+     */
+    FakeEncoderCodec(Executor executor, int inputBufferSize) {
+        mExecutor = executor;
+        mInputBufferSize = inputBufferSize;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        if (mExecutor == null) {
+            throw new IllegalStateException("no executor for the callbacks");
+        }
+        mCallback = callback;
+    }
+
+    @Override
+    public void configure(MediaFormat format) {
+        for (int i = 0; i < INPUT_BUFFERS; i++) {
+            mInput[i] = ByteBuffer.allocateDirect(mInputBufferSize);
+            mOutput[i] = ByteBuffer.allocateDirect(SAMPLE_BYTES);
+        }
+        mOutput[INPUT_BUFFERS] = ByteBuffer.allocateDirect(SAMPLE_BYTES);
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return null;
+    }
+
+    @Override
+    public void start() {
+        started = true;
+        for (int i = 0; i < INPUT_BUFFERS; i++) {
+            freeInput(i);
+        }
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void release() {
+        released = true;
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        if (drainsEndOfStream) {
+            output(new long[]{INPUT_BUFFERS, 0, 0, SampleInfo.FLAG_END_OF_STREAM});
+        }
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        syncFrameRequests++;
+        mSyncFrameRequested = true;
+    }
+
+    @Override
+    public void setVideoBitrate(int bitRate) {
+        this.bitRate = bitRate;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        checkNotReleased();
+        try {
+            Integer index = mFreeInput.poll(timeoutUs, TimeUnit.MICROSECONDS);
+            return index != null ? index : INFO_TRY_AGAIN_LATER;
+        } catch (InterruptedException e) {
+            return INFO_TRY_AGAIN_LATER;
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        checkNotReleased();
+        return mInput[index];
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        checkNotReleased();
+        if ((flags & SampleInfo.FLAG_END_OF_STREAM) != 0) {
+            endOfStreamQueued = true;
+            if (drainsEndOfStream) {
+                output(new long[]{index, 0, presentationTimeUs, SampleInfo.FLAG_END_OF_STREAM});
+            }
+            return;
+        }
+        if (frameDelayMs > 0) {
+            try {
+                Thread.sleep(frameDelayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        ByteBuffer input = mInput[index].duplicate();
+        input.position(offset);
+        input.limit(offset + size);
+        byte[] copy = new byte[size];
+        input.get(copy);
+        lastInput = copy;
+
+        boolean sync = mFrameCount % GOP == 0 || mSyncFrameRequested;
+        mSyncFrameRequested = false;
+        mFrameCount++;
+        queuedFrames++;
+        ByteBuffer output = mOutput[index];
+        output.clear();
+        output.put(copy, 0, Math.min(size, SAMPLE_BYTES));
+        output(new long[]{index, output.position(), presentationTimeUs, sync ? SampleInfo.FLAG_KEY_FRAME : 0});
+    }
+
+    @Override
+    public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+        checkNotReleased();
+        if (!mFormatReported) {
+            mFormatReported = true;
+            return INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        try {
+            long[] sample = mPendingOutput.poll(timeoutUs, TimeUnit.MICROSECONDS);
+            if (sample == null) {
+                return INFO_TRY_AGAIN_LATER;
+            }
+            info.set(0, (int) sample[1], sample[2], (int) sample[3]);
+            return (int) sample[0];
+        } catch (InterruptedException e) {
+            return INFO_TRY_AGAIN_LATER;
+        }
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        checkNotReleased();
+        ByteBuffer output = mOutput[index].duplicate();
+        output.flip();
+        return output;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        if (index < INPUT_BUFFERS) {
+            freeInput(index);
+        }
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return null;
+    }
+
+    private void freeInput(final int index) {
+        if (mCallback == null) {
+            mFreeInput.add(index);
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!released) {
+                    mCallback.onInputBufferAvailable(index);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands out an output buffer, described by index, size, presentation time and flags
+     */
+    private void output(final long[] sample) {
+        if (mCallback == null) {
+            mPendingOutput.add(sample);
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (released) {
+                    return;
+                }
+                if (!mFormatReported) {
+                    mFormatReported = true;
+                    mCallback.onOutputFormatChanged(null);
+                }
+                mCallback.onOutputBufferAvailable((int) sample[0],
+                        new SampleInfo().set(0, (int) sample[1], sample[2], (int) sample[3]));
+            }
+        });
+    }
+
+    private void checkNotReleased() {
+        if (released) {
+            throw new IllegalStateException("codec released");
+        }
+    }
+}
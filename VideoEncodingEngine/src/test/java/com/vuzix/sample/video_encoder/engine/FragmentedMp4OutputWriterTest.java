@@ -0,0 +1,303 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FragmentedMp4OutputWriterTest {
+
+    private static final byte[] SPS_BASELINE = bytes(0, 0, 0, 1, 0x67, 0x42, 0xc0, 0x1f, 0x11, 0x22);
+    private static final byte[] SPS_HIGH = bytes(0, 0, 0, 1, 0x67, 0x64, 0x00, 0x1f, 0xac, 0xd9, 0x40,
+            0x50, 0x05, 0xbb, 0x01, 0x10, 0, 0, 3, 0, 0x10);
+    private static final byte[] PPS = bytes(0, 0, 0, 1, 0x68, 0xce, 0x3c, 0x80);
+    private static final byte[] AUD = bytes(0, 0, 0, 1, 0x09, 0xf0);
+
+    private static final long FRAME_US = 33333;
+    private static final int GOP = 10;
+    private static final int STAGING_BYTES = 4000;
+    private static final int STAGING_SAMPLES = 8;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private FragmentedMp4OutputWriter mWriter;
+    // the NAL unit payloads of every sample written, in order
+    private final List<byte[]> mSlices = new ArrayList<byte[]>();
+    private final Random mRandom = new Random(1);
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = mFolder.newFile("test.mp4");
+        FileChannel channel = FileChannel.open(mFile.toPath(), StandardOpenOption.WRITE);
+        mWriter = new FragmentedMp4OutputWriter(channel, 90, STAGING_BYTES, STAGING_SAMPLES, 2000000);
+    }
+
+    @Test
+    public void fragmentsParseAndHoldEverySample() throws IOException {
+        mWriter.addAvcTrack(640, 480, ByteBuffer.wrap(SPS_BASELINE), ByteBuffer.wrap(PPS));
+        mWriter.start();
+        SampleInfo info = new SampleInfo();
+        // codec config and an empty end of stream carry nothing for the file
+        mWriter.writeSampleData(0, ByteBuffer.wrap(SPS_BASELINE), info.set(0, SPS_BASELINE.length, 0,
+                SampleInfo.FLAG_CODEC_CONFIG));
+        for (int frame = 0; frame < 40; frame++) {
+            // frame 25 does not fit the staging buffer and is written straight through
+            write(frame, frame == 25 ? 6000 : 50 + mRandom.nextInt(300));
+        }
+        mWriter.writeSampleData(0, ByteBuffer.allocate(0), info.set(0, 0, 40 * FRAME_US, SampleInfo.FLAG_END_OF_STREAM));
+        mWriter.release();
+
+        byte[] file = Files.readAllBytes(mFile.toPath());
+        List<Box> top = Box.parse(file, 0, file.length);
+        assertEquals("ftyp", top.get(0).type);
+        assertEquals("moov", top.get(1).type);
+        Box moov = top.get(1);
+        assertEquals(1, moov.find(file, "mvex", "trex").size());
+        Box tkhd = moov.find(file, "trak", "tkhd").get(0);
+        assertEquals(640, ByteBuffer.wrap(file).getInt(tkhd.end() - 8) >>> 16);
+        assertEquals(480, ByteBuffer.wrap(file).getInt(tkhd.end() - 4) >>> 16);
+        assertEquals(mWriter.getFragmentCount() * 2 + 2, top.size());
+        assertEquals(file.length, mWriter.getBytesWritten());
+
+        assertEquals(40, checkFragments(file, top));
+    }
+
+    @Test
+    public void fileIsPlayableWhileBeingWritten() throws IOException {
+        mWriter.addAvcTrack(640, 480, ByteBuffer.wrap(SPS_BASELINE), ByteBuffer.wrap(PPS));
+        mWriter.start();
+        for (int frame = 0; frame < 25; frame++) {
+            write(frame, 100);
+        }
+        // as if the app died here: the fragments of the complete GOPs are on disk and parse
+        byte[] file = Files.readAllBytes(mFile.toPath());
+        List<Box> top = Box.parse(file, 0, file.length);
+        assertEquals(20, checkFragments(file, top));
+        mWriter.release();
+    }
+
+    @Test
+    public void highProfileRecordCarriesTheChromaFormat() throws IOException {
+        mWriter.addAvcTrack(1280, 720, ByteBuffer.wrap(SPS_HIGH), ByteBuffer.wrap(PPS));
+        mWriter.start();
+        mWriter.release();
+        byte[] file = Files.readAllBytes(mFile.toPath());
+        Box avcC = avcC(file);
+        int spsLength = SPS_HIGH.length - 4;
+        int ppsLength = PPS.length - 4;
+        assertEquals(8 + 6 + 2 + spsLength + 1 + 2 + ppsLength + 4, avcC.size);
+        assertEquals(0x64, file[avcC.offset + 9]);
+        // 4:2:0, 8 bit luma and chroma, no SPS extension
+        int tail = avcC.end() - 4;
+        assertArrayEquals(bytes(0xfd, 0xf8, 0xf8, 0x00),
+                new byte[]{file[tail], file[tail + 1], file[tail + 2], file[tail + 3]});
+    }
+
+    @Test
+    public void baselineRecordEndsAfterThePictureParameterSets() throws IOException {
+        mWriter.addAvcTrack(640, 480, ByteBuffer.wrap(SPS_BASELINE), ByteBuffer.wrap(PPS));
+        mWriter.start();
+        mWriter.release();
+        byte[] file = Files.readAllBytes(mFile.toPath());
+        Box avcC = avcC(file);
+        assertEquals(8 + 6 + 2 + SPS_BASELINE.length - 4 + 1 + 2 + PPS.length - 4, avcC.size);
+        assertEquals(0x42, file[avcC.offset + 9]);
+    }
+
+    /**
+     * Writes a frame as the encoder delivers it: an access unit delimiter and one slice of size
+     * bytes, in Annex B form, at an offset in its buffer
+     */
+    private void write(int frame, int size) throws IOException {
+        boolean sync = frame % GOP == 0;
+        byte[] slice = new byte[size + 1];
+        slice[0] = (byte) (sync ? 0x65 : 0x41);
+        for (int i = 1; i < slice.length; i++) {
+            // no zero bytes, so no start code can appear inside the slice
+            slice[i] = (byte) (1 + mRandom.nextInt(255));
+        }
+        mSlices.add(slice);
+        ByteBuffer data = ByteBuffer.allocate(AUD.length + 3 + slice.length + 8);
+        data.position(3);
+        data.put(AUD).put(bytes(0, 0, 1)).put(slice);
+        data.flip();
+        data.position(3);
+        int limit = data.limit();
+        SampleInfo info = new SampleInfo().set(3, data.remaining(), 1000000 + frame * FRAME_US,
+                sync ? SampleInfo.FLAG_KEY_FRAME : 0);
+        mWriter.writeSampleData(0, data, info);
+        assertEquals(3, data.position());
+        assertEquals(limit, data.limit());
+    }
+
+    /**
+     * Walks the moof/mdat pairs after moov and checks them against the samples written
+     * @return int number of samples found
+     */
+    private int checkFragments(byte[] file, List<Box> top) {
+        ByteBuffer buffer = ByteBuffer.wrap(file);
+        int sample = 0;
+        long decodeTime = 0;
+        int sequence = 0;
+        for (int i = 2; i < top.size(); i += 2) {
+            Box moof = top.get(i);
+            Box mdat = top.get(i + 1);
+            assertEquals("moof", moof.type);
+            assertEquals("mdat", mdat.type);
+            assertEquals(++sequence, buffer.getInt(moof.find(file, "mfhd").get(0).offset + 12));
+            assertEquals(decodeTime, buffer.getLong(moof.find(file, "traf", "tfdt").get(0).offset + 12));
+
+            Box trun = moof.find(file, "traf", "trun").get(0);
+            int count = buffer.getInt(trun.offset + 12);
+            assertEquals(mdat.offset + 8, moof.offset + buffer.getInt(trun.offset + 16));
+            assertEquals(trun.end(), trun.offset + 20 + count * 12);
+            int position = mdat.offset + 8;
+            for (int entry = 0; entry < count; entry++, sample++) {
+                int duration = buffer.getInt(trun.offset + 20 + entry * 12);
+                int size = buffer.getInt(trun.offset + 24 + entry * 12);
+                int flags = buffer.getInt(trun.offset + 28 + entry * 12);
+                assertTrue("duration " + duration, duration >= 2999 && duration <= 3000);
+                assertEquals(sample % GOP == 0, flags == 0x02000000);
+                // length prefixed access unit delimiter, then the slice
+                assertEquals(2, buffer.getInt(position));
+                assertEquals(0x09, file[position + 4]);
+                byte[] slice = mSlices.get(sample);
+                assertEquals(slice.length, buffer.getInt(position + 6));
+                byte[] stored = new byte[slice.length];
+                System.arraycopy(file, position + 10, stored, 0, stored.length);
+                assertArrayEquals("sample " + sample, slice, stored);
+                assertEquals(4 + 2 + 4 + slice.length, size);
+                position += size;
+                decodeTime += duration;
+            }
+            assertEquals(mdat.end(), position);
+        }
+        return sample;
+    }
+
+    private static Box avcC(byte[] file) {
+        Box moov = Box.parse(file, 0, file.length).get(1);
+        Box stsd = moov.find(file, "trak", "mdia", "minf", "stbl", "stsd").get(0);
+        // stsd holds one avc1 entry, whose child boxes follow its 78 bytes of fields
+        Box avc1 = Box.parse(file, stsd.offset + 16, stsd.end()).get(0);
+        assertEquals("avc1", avc1.type);
+        Box avcC = Box.parse(file, avc1.offset + 86, avc1.end()).get(0);
+        assertEquals("avcC", avcC.type);
+        return avcC;
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    /**
+     * An ISO BMFF box found in the file
+     */
+    private static class Box {
+        final String type;
+        final int offset;
+        final int size;
+
+        Box(String type, int offset, int size) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        int end() {
+            return offset + size;
+        }
+
+        /**
+         * Splits a range of the file into boxes, which must fill it exactly
+         */
+        static List<Box> parse(byte[] file, int start, int end) {
+            List<Box> boxes = new ArrayList<Box>();
+            ByteBuffer buffer = ByteBuffer.wrap(file);
+            int position = start;
+            while (position < end) {
+                int size = buffer.getInt(position);
+                String type = new String(file, position + 4, 4, Charset.forName("US-ASCII"));
+                assertTrue("box " + type + " at " + position + " of size " + size,
+                        size >= 8 && position + size <= end);
+                boxes.add(new Box(type, position, size));
+                position += size;
+            }
+            assertEquals(end, position);
+            return boxes;
+        }
+
+        /**
+         * @return List of the boxes found by following the path of container types from this one
+         */
+        List<Box> find(byte[] file, String... path) {
+            List<Box> found = new ArrayList<Box>();
+            found.add(this);
+            for (String type : path) {
+                List<Box> next = new ArrayList<Box>();
+                for (Box box : found) {
+                    for (Box child : parse(file, box.offset + 8, box.end())) {
+                        if (child.type.equals(type)) {
+                            next.add(child);
+                        }
+                    }
+                }
+                found = next;
+            }
+            return found;
+        }
+    }
+}
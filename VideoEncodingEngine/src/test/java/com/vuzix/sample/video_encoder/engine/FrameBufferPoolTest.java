@@ -0,0 +1,144 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class FrameBufferPoolTest {
+
+    @Test
+    public void acquireStopsAtTheCap() {
+        FrameBufferPool pool = new FrameBufferPool(64, 48, 3);
+        FrameBufferPool.Frame[] frames = new FrameBufferPool.Frame[3];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = pool.acquire();
+            assertNotNull(frames[i]);
+            assertEquals(64 * 48 * 3 / 2, frames[i].data.length);
+        }
+        assertNull(pool.acquire());
+        assertEquals(3, pool.getLeasedCount());
+
+        pool.release(frames[1]);
+        assertSame(frames[1], pool.acquire());
+        assertEquals(3, pool.getAllocatedCount());
+    }
+
+    @Test
+    public void steadyStateRecyclesWithoutAllocating() {
+        FrameBufferPool pool = new FrameBufferPool(64, 48, 4);
+        FrameBufferPool.Frame[] held = new FrameBufferPool.Frame[2];
+        for (int i = 0; i < 1000; i++) {
+            // two frames are in flight at any time, as with a frame queue between the stages
+            pool.release(held[i % 2]);
+            FrameBufferPool.Frame frame = pool.acquire();
+            assertNotNull(frame);
+            assertEquals(0, frame.size);
+            assertEquals(0, frame.buffer.position());
+            frame.size = 100;
+            frame.buffer.position(100);
+            held[i % 2] = frame;
+        }
+        assertEquals(2, pool.getAllocatedCount());
+        assertEquals(2, pool.close());
+        pool.release(held[0]);
+        pool.release(held[1]);
+        assertEquals(0, pool.close());
+    }
+
+    @Test
+    public void sharedFrameReturnsAfterTheLastRelease() {
+        FrameBufferPool pool = new FrameBufferPool(64, 48, 1);
+        FrameBufferPool.Frame frame = pool.acquire();
+        pool.retain(frame);
+        pool.release(frame);
+        assertNull(pool.acquire());
+        pool.release(frame);
+        assertSame(frame, pool.acquire());
+    }
+
+    @Test
+    public void doubleReleaseIsRejected() {
+        FrameBufferPool pool = new FrameBufferPool(64, 48, 2);
+        FrameBufferPool.Frame frame = pool.acquire();
+        pool.release(frame);
+        try {
+            pool.release(frame);
+            fail("second release accepted");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            pool.retain(frame);
+            fail("retain after release accepted");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void foreignFrameIsRejected() {
+        FrameBufferPool pool = new FrameBufferPool(64, 48, 2);
+        FrameBufferPool other = new FrameBufferPool(64, 48, 2);
+        try {
+            pool.release(other.acquire());
+            fail("frame of another pool accepted");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void describeExposesTheNv12Planes() {
+        FrameBufferPool pool = new FrameBufferPool(8, 4, 1);
+        FrameBufferPool.Frame frame = pool.acquire();
+        for (int i = 0; i < frame.data.length; i++) {
+            frame.data[i] = (byte) i;
+        }
+        YuvFrame yuv = new YuvFrame();
+        yuv.timestampNs = 1234;
+        frame.describe(yuv);
+
+        assertSame(frame, yuv.shared);
+        assertEquals(1234, yuv.timestampNs);
+        assertEquals(8, yuv.width);
+        assertEquals(4, yuv.height);
+        assertEquals(0, yuv.y.get(yuv.y.position()));
+        // interleaved chroma: U and V alternate after the 8x4 luma plane
+        assertEquals(32, yuv.u.get(yuv.u.position()));
+        assertEquals(33, yuv.v.get(yuv.v.position()));
+        assertEquals(2, yuv.uvPixelStride);
+    }
+}
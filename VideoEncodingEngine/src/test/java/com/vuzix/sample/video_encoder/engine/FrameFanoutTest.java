@@ -0,0 +1,150 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameFanoutTest {
+
+    private static final int WIDTH = 128;
+    private static final int HEIGHT = 72;
+    private static final int STREAM_WIDTH = 64;
+    private static final int STREAM_HEIGHT = 36;
+    private static final long FRAME_NS = 33333333L;
+
+    private final ExecutorService mRecordingThread = Executors.newSingleThreadExecutor();
+    private final ExecutorService mStreamThread = Executors.newSingleThreadExecutor();
+    private final CountDownLatch mReleased = new CountDownLatch(2);
+
+    private final EncoderDriver.Listener mListener = new EncoderDriver.Listener() {
+        @Override
+        public void onEncoderReleased(EncoderDriver driver) {
+            mReleased.countDown();
+        }
+
+        @Override
+        public void onEncoderError(EncoderDriver driver, Exception e) {
+            throw new AssertionError(e);
+        }
+    };
+
+    @After
+    public void tearDown() {
+        mRecordingThread.shutdownNow();
+        mStreamThread.shutdownNow();
+    }
+
+    @Test
+    public void bothOutputsEncodeEveryFrame() throws InterruptedException {
+        FakeEncoderCodec recordingCodec = new FakeEncoderCodec(mRecordingThread, WIDTH * HEIGHT * 3 / 2);
+        FakeEncoderCodec streamCodec = new FakeEncoderCodec(mStreamThread, WIDTH * HEIGHT * 3 / 2);
+        RecordingOutputWriter recording = new RecordingOutputWriter();
+        RecordingOutputWriter stream = new RecordingOutputWriter();
+        EncoderDriver recordingDriver = driver(recordingCodec, recording, WIDTH, HEIGHT, 4, mRecordingThread);
+        EncoderDriver streamDriver = driver(streamCodec, stream, STREAM_WIDTH, STREAM_HEIGHT, 4, mStreamThread);
+        FrameFanout fanout = new FrameFanout(WIDTH, HEIGHT, 4 + 4 + 1, recordingDriver, streamDriver);
+
+        byte[] image = null;
+        for (int i = 0; i < 60; i++) {
+            image = CameraFrames.pattern(WIDTH, HEIGHT, i);
+            fanout.onFrame(CameraFrames.semiPlanar(image, WIDTH, HEIGHT, i * FRAME_NS));
+            awaitQueued(recordingCodec, i + 1);
+            awaitQueued(streamCodec, i + 1);
+        }
+        fanout.onEndOfStream();
+        assertTrue(mReleased.await(5, TimeUnit.SECONDS));
+
+        assertEquals(60, recording.samples.size());
+        assertEquals(60, stream.samples.size());
+        assertEquals(60, fanout.getSharedCount());
+        assertEquals(0, fanout.getFramePool().getLeasedCount());
+        // the recording gets the frame as captured, the stream a 2:1 box filtered copy
+        assertArrayEquals(image, recordingCodec.lastInput);
+        assertArrayEquals(CameraFrames.halve(image, WIDTH, HEIGHT), streamCodec.lastInput);
+    }
+
+    @Test
+    public void slowOutputOnlyDropsItsOwnFrames() throws InterruptedException {
+        FakeEncoderCodec recordingCodec = new FakeEncoderCodec(mRecordingThread, WIDTH * HEIGHT * 3 / 2);
+        FakeEncoderCodec streamCodec = new FakeEncoderCodec(mStreamThread, WIDTH * HEIGHT * 3 / 2);
+        streamCodec.frameDelayMs = 20;
+        RecordingOutputWriter recording = new RecordingOutputWriter();
+        RecordingOutputWriter stream = new RecordingOutputWriter();
+        EncoderDriver recordingDriver = driver(recordingCodec, recording, WIDTH, HEIGHT, 4, mRecordingThread);
+        EncoderDriver streamDriver = driver(streamCodec, stream, STREAM_WIDTH, STREAM_HEIGHT, 2, mStreamThread);
+        FrameFanout fanout = new FrameFanout(WIDTH, HEIGHT, 4 + 2 + 1, recordingDriver, streamDriver);
+
+        for (int i = 0; i < 60; i++) {
+            fanout.onFrame(CameraFrames.semiPlanar(CameraFrames.pattern(WIDTH, HEIGHT, i), WIDTH, HEIGHT, i * FRAME_NS));
+            awaitQueued(recordingCodec, i + 1);
+        }
+        fanout.onEndOfStream();
+        assertTrue(mReleased.await(10, TimeUnit.SECONDS));
+
+        assertEquals(60, recording.samples.size());
+        assertEquals(0, recordingDriver.getDropStats().getTotal());
+        assertTrue(streamDriver.getDropStats().getTotal() > 0);
+        assertEquals(60, stream.samples.size() + streamDriver.getDropStats().getTotal());
+        assertEquals(0, fanout.getFramePool().getLeasedCount());
+    }
+
+    private EncoderDriver driver(FakeEncoderCodec codec, RecordingOutputWriter writer, int width, int height,
+                                 int queueCapacity, ExecutorService thread) {
+        EncoderDriver driver = new AsyncEncoderDriver(codec, writer, FrameDropPolicy.dropOldest(), 30,
+                width, height, queueCapacity, thread);
+        driver.setListener(mListener);
+        driver.configure(new MediaFormat());
+        driver.start();
+        return driver;
+    }
+
+    private static void awaitQueued(FakeEncoderCodec codec, int frames) throws InterruptedException {
+        long deadlineNs = System.nanoTime() + 5000000000L;
+        while (codec.queuedFrames < frames && System.nanoTime() < deadlineNs) {
+            Thread.sleep(1);
+        }
+        assertEquals(frames, codec.queuedFrames);
+    }
+}
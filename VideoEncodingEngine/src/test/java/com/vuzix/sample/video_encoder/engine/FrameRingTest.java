@@ -0,0 +1,159 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameRingTest {
+
+    private static final long STRESS_ELEMENTS = 200000;
+
+    @Test
+    public void holdsExactlyItsCapacity() {
+        // 5 is rounded up to 8 slots, but only 5 elements fit
+        FrameRing<Integer> ring = new FrameRing<Integer>(5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(5));
+        assertEquals(5, ring.size());
+        for (int round = 0; round < 20; round++) {
+            assertEquals(Integer.valueOf(round), ring.poll());
+            assertTrue(ring.offer(round + 5));
+        }
+        for (int i = 20; i < 25; i++) {
+            assertEquals(Integer.valueOf(i), ring.poll());
+        }
+        assertNull(ring.poll());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void nullIsRejected() {
+        new FrameRing<Object>(4).offer(null);
+    }
+
+    @Test
+    public void consumerSeesEveryElementInOrder() throws InterruptedException {
+        final FrameRing<Long> ring = new FrameRing<Long>(8);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long expected = 0;
+                while (expected < STRESS_ELEMENTS) {
+                    Long element = ring.poll();
+                    if (element == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    if (element != expected) {
+                        failure.set("expected " + expected + " got " + element);
+                        return;
+                    }
+                    expected++;
+                }
+            }
+        });
+        consumer.start();
+        for (long i = 0; i < STRESS_ELEMENTS; i++) {
+            Long element = i;
+            while (!ring.offer(element)) {
+                Thread.yield();
+            }
+        }
+        consumer.join(30000);
+        assertFalse(consumer.isAlive());
+        assertNull(failure.get());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void producerEvictionLosesNothing() throws InterruptedException {
+        // the producer drops the oldest element when full, as the drop-oldest policy does, while
+        // the consumer polls concurrently: every element is either consumed or evicted, once
+        final FrameRing<Long> ring = new FrameRing<Long>(5);
+        final AtomicBoolean producing = new AtomicBoolean(true);
+        final AtomicLong consumed = new AtomicLong();
+        final AtomicLong consumedSum = new AtomicLong();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long last = -1;
+                while (producing.get() || !ring.isEmpty()) {
+                    Long element = ring.poll();
+                    if (element == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    if (element <= last) {
+                        failure.set(element + " after " + last);
+                    }
+                    last = element;
+                    consumed.incrementAndGet();
+                    consumedSum.addAndGet(element);
+                }
+            }
+        });
+        consumer.start();
+        long evicted = 0;
+        long evictedSum = 0;
+        for (long i = 0; i < STRESS_ELEMENTS; i++) {
+            Long element = i;
+            if (!ring.offer(element)) {
+                Long oldest = ring.poll();
+                if (oldest != null) {
+                    evicted++;
+                    evictedSum += oldest;
+                }
+                assertTrue(ring.offer(element));
+            }
+        }
+        producing.set(false);
+        consumer.join(30000);
+        assertFalse(consumer.isAlive());
+        assertNull(failure.get());
+        assertEquals(STRESS_ELEMENTS, consumed.get() + evicted);
+        assertEquals(STRESS_ELEMENTS * (STRESS_ELEMENTS - 1) / 2, consumedSum.get() + evictedSum);
+    }
+}
@@ -0,0 +1,202 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GopSchedulerTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 180;
+    // the scenes are wider than the frame, to pan across
+    private static final int SCENE_WIDTH = 2 * WIDTH;
+    private static final long FRAME_US = 33333;
+
+    private final Random mNoise = new Random(5);
+    private final ByteBuffer mLuma = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+    private final YuvFrame mFrame = new YuvFrame();
+    private final byte[] mRoom = scene(1, 90);
+    private final byte[] mOtherRoom = scene(2, 150);
+
+    public GopSchedulerTest() {
+        // only the luma plane is analyzed
+        mFrame.set(mLuma, WIDTH, null, null, WIDTH, 2, WIDTH, HEIGHT, 0);
+    }
+
+    @Test
+    public void staticSceneOnlyReachesTheLongestGop() {
+        GopScheduler scheduler = new GopScheduler();
+        List<String> decisions = new ArrayList<String>();
+        for (int i = 0; i < 700; i++) {
+            show(mRoom, null, 0, 0);
+            decide(scheduler, i, decisions);
+        }
+        // 10 s GOPs, 300 frames fall just short of it
+        assertEquals(Arrays.asList("301 max", "602 max"), decisions);
+        assertEquals(0, scheduler.getSceneChangeCount());
+        assertEquals(0, scheduler.getDetector().getCutCount());
+    }
+
+    @Test
+    public void cutStartsAGop() {
+        GopScheduler scheduler = new GopScheduler();
+        List<String> decisions = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            // cut at 2 s, then back again too soon after for another GOP
+            show(i < 60 || i >= 75 ? mRoom : mOtherRoom, null, 0, 0);
+            decide(scheduler, i, decisions);
+        }
+        // the picture no longer matches the last sync frame, so the GOP ends once it is long enough
+        assertEquals(Arrays.asList("60 scene", "91 scene"), decisions);
+        assertEquals(2, scheduler.getDetector().getCutCount());
+        assertTrue(scheduler.getSuppressedCount() >= 1);
+    }
+
+    @Test
+    public void panIsNotACut() {
+        GopScheduler scheduler = new GopScheduler();
+        List<String> decisions = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            show(mRoom, null, 0, Math.min(i * 4, SCENE_WIDTH - WIDTH));
+            decide(scheduler, i, decisions);
+        }
+        assertEquals(new ArrayList<String>(), decisions);
+    }
+
+    @Test
+    public void gradualChangeStartsAGop() {
+        GopScheduler scheduler = new GopScheduler();
+        List<String> decisions = new ArrayList<String>();
+        for (int i = 0; i < 240; i++) {
+            // 4 s cross fade, no frame differs much from the previous one
+            show(mRoom, mOtherRoom, Math.max(0, Math.min(1, (i - 60) / 120f)), 0);
+            decide(scheduler, i, decisions);
+        }
+        assertEquals(1, decisions.size());
+        assertTrue(decisions.get(0), decisions.get(0).endsWith(" scene"));
+        int frame = Integer.parseInt(decisions.get(0).split(" ")[0]);
+        assertTrue("drift at " + frame, frame > 60 && frame < 180);
+        assertEquals(0, scheduler.getDetector().getCutCount());
+        assertEquals(1, scheduler.getDetector().getDriftCount());
+    }
+
+    @Test
+    public void syncFramesOfTheEncoderCount() {
+        GopScheduler scheduler = new GopScheduler();
+        List<String> decisions = new ArrayList<String>();
+        for (int i = 0; i < 500; i++) {
+            if (i == 150) {
+                // the encoder made one on its own at 5 s
+                scheduler.onSyncFrame(150 * FRAME_US);
+            }
+            show(mRoom, null, 0, 0);
+            decide(scheduler, i, decisions);
+        }
+        assertEquals(Arrays.asList("451 max"), decisions);
+    }
+
+    @Test
+    public void shortestGopHoldsAfterAnySyncFrame() {
+        GopScheduler scheduler = new GopScheduler(new SceneChangeDetector(), 1000000, 2000000);
+        List<String> decisions = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+                // cuts every half second, between two rooms
+            show(i / 15 % 2 == 0 ? mRoom : mOtherRoom, null, 0, 0);
+            decide(scheduler, i, decisions);
+        }
+        // 30 frames are just short of the shortest GOP, and frame 30 shows the room of the sync frame
+        assertEquals(Arrays.asList("45 scene", "90 scene"), decisions);
+        // the cuts in between, and the frames drifting from the sync frame meanwhile
+        assertTrue(scheduler.getSuppressedCount() >= 4);
+    }
+
+    private void decide(GopScheduler scheduler, int index, List<String> decisions) {
+        long presentationTimeUs = index * FRAME_US;
+        int decision = scheduler.onFrame(mFrame, presentationTimeUs);
+        if (decision != GopScheduler.DECISION_NONE) {
+            decisions.add(index + (decision == GopScheduler.DECISION_MAX_GOP ? " max" : " scene"));
+            // the requested sync frame comes out of the encoder
+            scheduler.onSyncFrame(presentationTimeUs);
+        }
+    }
+
+    /**
+     * Fills the luma plane with a part of a scene, or a mix of two, with sensor noise
+     */
+    private void show(byte[] scene, byte[] other, float mix, int offset) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int i = y * SCENE_WIDTH + x + offset;
+                float value = (scene[i] & 0xff) * (1 - mix) + (other == null ? 0 : (other[i] & 0xff) * mix);
+                int noisy = (int) value + mNoise.nextInt(7) - 3;
+                mLuma.put(y * WIDTH + x, (byte) Math.max(0, Math.min(255, noisy)));
+            }
+        }
+    }
+
+    /**
+     * @return byte[] smooth luma of a scene, soft blobs over a base level
+     */
+    private static byte[] scene(int seed, int base) {
+        Random random = new Random(seed);
+        double[][] blobs = new double[20][4];
+        for (double[] blob : blobs) {
+            blob[0] = random.nextInt(SCENE_WIDTH);
+            blob[1] = random.nextInt(HEIGHT);
+            blob[2] = 8 + random.nextInt(50);
+            blob[3] = random.nextInt(160) - 80;
+        }
+        byte[] scene = new byte[SCENE_WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < SCENE_WIDTH; x++) {
+                double value = base + 20 * Math.sin(x / 9.0) + 15 * Math.cos(y / 6.0);
+                for (double[] blob : blobs) {
+                    double dx = x - blob[0];
+                    double dy = y - blob[1];
+                    value += blob[3] * Math.exp(-(dx * dx + dy * dy) / (2 * blob[2] * blob[2]));
+                }
+                scene[y * SCENE_WIDTH + x] = (byte) Math.max(0, Math.min(255, (int) value));
+            }
+        }
+        return scene;
+    }
+}
@@ -0,0 +1,236 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MotionGateTest {
+
+    private static final int WIDTH = 96;
+    private static final int HEIGHT = 54;
+    private static final int SQUARE = 24;
+    private static final long FRAME_US = 33333;
+    private static final long FRAME_NS = 33333333L;
+    private static final long SECOND_US = 1000000;
+
+    private final ExecutorService mCodecThread = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        mCodecThread.shutdownNow();
+    }
+
+    @Test
+    public void staticSceneIsSkippedButKeptAlive() {
+        MotionGate gate = new MotionGate(0.02f, 12, SECOND_US, SECOND_US, 0);
+        gate.reset();
+        List<Integer> encoded = new ArrayList<Integer>();
+        for (int i = 0; i < 300; i++) {
+            int decision = gate.onFrame(frame(i, 0, -1), i * FRAME_US);
+            assertTrue(decision == MotionGate.DECISION_ENCODE || decision == MotionGate.DECISION_SKIP);
+            if (decision == MotionGate.DECISION_ENCODE) {
+                encoded.add(i);
+            }
+        }
+        // the first second is held, 30 frames fall just short of it
+        for (int i = 0; i <= 30; i++) {
+            assertEquals(i, (int) encoded.get(i));
+        }
+        // then a frame every second
+        assertTrue(encoded.size() > 31 + 7);
+        for (int i = 31; i < encoded.size(); i++) {
+            int interval = encoded.get(i) - encoded.get(i - 1);
+            assertTrue("interval " + interval, interval * FRAME_US >= SECOND_US && (interval - 1) * FRAME_US < SECOND_US);
+        }
+        assertFalse(gate.isMoving());
+        assertEquals(1, gate.getPauseCount());
+        assertEquals(encoded.size() - 31, gate.getKeepAliveCount());
+        assertEquals(300, gate.getEncodedCount() + gate.getSkippedCount());
+    }
+
+    @Test
+    public void motionResumesWithThePreRoll() {
+        MotionGate gate = new MotionGate(0.02f, 12, SECOND_US, SECOND_US, 5);
+        gate.reset();
+        byte[] still = scene(0, -1);
+        YuvFrame described = new YuvFrame();
+        ByteBuffer packed = ByteBuffer.allocate(WIDTH * HEIGHT * 3 / 2);
+        long lastKeepAliveUs = 30 * FRAME_US;
+        for (int i = 0; i < 100; i++) {
+            int decision = gate.onFrame(frame(i, 0, -1), i * FRAME_US);
+            if (decision == MotionGate.DECISION_KEEP_ALIVE) {
+                // taken from the frames leaving the pre-roll, a second apart
+                long keepAliveUs = gate.describeKeepAlive(described);
+                assertTrue(keepAliveUs - lastKeepAliveUs >= SECOND_US);
+                assertTrue(keepAliveUs <= (i - 5) * FRAME_US);
+                assertEquals(keepAliveUs / FRAME_US * FRAME_NS, described.timestampNs);
+                gate.releaseKeepAlive();
+                lastKeepAliveUs = keepAliveUs;
+            } else if (i > 30) {
+                assertEquals(MotionGate.DECISION_SKIP, decision);
+            }
+        }
+        assertTrue(gate.getKeepAliveCount() >= 2);
+
+        // something enters the picture
+        assertEquals(MotionGate.DECISION_RESUME, gate.onFrame(frame(100, 0, 10), 100 * FRAME_US));
+        assertTrue(gate.isMoving());
+        assertEquals(5, gate.getPreRollCount());
+        for (int i = 0; i < 5; i++) {
+            // the static frames right before, as they were captured
+            assertEquals((95 + i) * FRAME_US, gate.describePreRoll(i, described));
+            assertEquals((95 + i) * FRAME_NS, described.timestampNs);
+            packed.clear();
+            YuvPacker.pack(described, packed);
+            assertArrayEquals(still, packed.array());
+        }
+        gate.releasePreRoll();
+        assertEquals(0, gate.getPreRollCount());
+        for (int i = 101; i < 130; i++) {
+            assertEquals(MotionGate.DECISION_ENCODE, gate.onFrame(frame(i, 0, i % 60), i * FRAME_US));
+        }
+        assertEquals(130, gate.getEncodedCount() + gate.getSkippedCount());
+    }
+
+    @Test
+    public void slowChangesAddUp() {
+        MotionGate gate = new MotionGate(0.02f, 12, SECOND_US, 0, 0);
+        gate.reset();
+        int resumed = -1;
+        for (int i = 0; i < 120 && resumed < 0; i++) {
+            // one luma level brighter every frame from 2 s on, never a step of more than one level
+            int decision = gate.onFrame(frame(i, Math.max(0, i - 59), -1), i * FRAME_US);
+            if (decision == MotionGate.DECISION_RESUME) {
+                resumed = i;
+            }
+        }
+        // compared with the last frame held, 13 levels brighter
+        assertEquals(72, resumed);
+        // no keep-alive
+        assertEquals(31 + 1, gate.getEncodedCount());
+    }
+
+    @Test
+    public void driverStartsTheMotionWithASyncFrame() throws InterruptedException {
+        FakeEncoderCodec codec = new FakeEncoderCodec(mCodecThread, WIDTH * HEIGHT * 3 / 2);
+        RecordingOutputWriter writer = new RecordingOutputWriter();
+        EncoderDriver driver = new AsyncEncoderDriver(codec, writer, FrameDropPolicy.dropOldest(), 30, WIDTH, HEIGHT,
+                8, mCodecThread);
+        final CountDownLatch released = new CountDownLatch(1);
+        driver.setListener(new EncoderDriver.Listener() {
+            @Override
+            public void onEncoderReleased(EncoderDriver driver) {
+                released.countDown();
+            }
+
+            @Override
+            public void onEncoderError(EncoderDriver driver, Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        MotionGate gate = new MotionGate(0.02f, 12, SECOND_US / 2, 0, 5);
+        driver.setMotionGate(gate);
+        driver.configure(new MediaFormat());
+        driver.start();
+        for (int i = 0; i < 90; i++) {
+            byte[] image = scene(0, i < 60 ? -1 : i % 60);
+            driver.onFrame(CameraFrames.semiPlanar(image, WIDTH, HEIGHT, i * FRAME_NS));
+            long deadlineNs = System.nanoTime() + 5000000000L;
+            while (codec.queuedFrames < gate.getEncodedCount() && System.nanoTime() < deadlineNs) {
+                Thread.sleep(1);
+            }
+            assertEquals(gate.getEncodedCount(), codec.queuedFrames);
+        }
+        driver.onEndOfStream();
+        assertTrue(released.await(5, TimeUnit.SECONDS));
+
+        // half a second held, the 5 frames before the motion, then the motion
+        assertEquals(16 + 5 + 30, writer.samples.size());
+        assertEquals(90 - writer.samples.size(), driver.getDropStats().getTotal());
+        for (int i = 1; i < writer.samples.size(); i++) {
+            assertTrue(writer.presentationTimesUs.get(i) > writer.presentationTimesUs.get(i - 1));
+            // the codec makes one every 30 frames on its own, the driver asked for the one starting the pre-roll
+            assertEquals("sample " + i, i == 16 || i == 30, writer.isKeyFrame(i));
+        }
+        assertEquals(1, codec.syncFrameRequests);
+    }
+
+    /**
+     * @param brightness int luma added to the whole picture
+     * @param square int column of a bright square, in steps of 1/60 of the free width, -1 for none
+     */
+    private static YuvFrame frame(int index, int brightness, int square) {
+        return CameraFrames.semiPlanar(scene(brightness, square), WIDTH, HEIGHT, index * FRAME_NS);
+    }
+
+    /**
+     * @return byte[] NV12 picture of a smooth scene, optionally with a bright square in it
+     */
+    private static byte[] scene(int brightness, int square) {
+        byte[] nv12 = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                nv12[y * WIDTH + x] = (byte) (60 + brightness + (x + 2 * y) / 3);
+            }
+        }
+        if (square >= 0) {
+            int left = square * (WIDTH - SQUARE) / 60;
+            int top = (HEIGHT - SQUARE) / 2;
+            for (int y = top; y < top + SQUARE; y++) {
+                for (int x = left; x < left + SQUARE; x++) {
+                    nv12[y * WIDTH + x] = (byte) 250;
+                }
+            }
+        }
+        for (int i = WIDTH * HEIGHT; i < nv12.length; i++) {
+            nv12[i] = (byte) 128;
+        }
+        return nv12;
+    }
+}
@@ -0,0 +1,148 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ParallelYuvScalerTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 180;
+
+    // destination sizes: exact halves, a ratio that is not an integer, and an odd number of
+    // luma row pairs so the stripes are uneven
+    private static final int[][] SIZES = {{160, 90}, {106, 60}, {214, 118}, {64, 36}};
+
+    @Test
+    public void boxFilterHalvesExactly() {
+        byte[] image = randomImage();
+        YuvFrame frame = CameraFrames.semiPlanar(image, WIDTH, HEIGHT, 0);
+        ParallelYuvScaler scaler = new ParallelYuvScaler(3);
+        try {
+            assertArrayEquals(CameraFrames.halve(image, WIDTH, HEIGHT),
+                    scale(scaler, frame, null, WIDTH / 2, HEIGHT / 2, YuvScaler.FILTER_BOX));
+        } finally {
+            scaler.close();
+        }
+    }
+
+    @Test
+    public void matchesTheSingleThreadScaler() {
+        YuvFrame frame = CameraFrames.semiPlanar(randomImage(), WIDTH, HEIGHT, 0);
+        for (int threads = 1; threads <= 4; threads++) {
+            ParallelYuvScaler scaler = new ParallelYuvScaler(threads);
+            try {
+                for (int filter = YuvScaler.FILTER_BOX; filter <= YuvScaler.FILTER_BILINEAR; filter++) {
+                    for (int[] size : SIZES) {
+                        assertArrayEquals(threads + " threads, filter " + filter + ", " + size[0] + "x" + size[1],
+                                reference(frame, null, size[0], size[1], filter),
+                                scale(scaler, frame, null, size[0], size[1], filter));
+                    }
+                }
+            } finally {
+                scaler.close();
+            }
+        }
+    }
+
+    @Test
+    public void matchesTheSingleThreadScalerOnACrop() {
+        YuvFrame frame = CameraFrames.semiPlanar(randomImage(), WIDTH, HEIGHT, 0);
+        CropRegion crop = CropRegion.zoom(WIDTH, HEIGHT, 2.5f, 0.3f, 0.6f);
+        ParallelYuvScaler scaler = new ParallelYuvScaler(4);
+        try {
+            for (int filter = YuvScaler.FILTER_BOX; filter <= YuvScaler.FILTER_BILINEAR; filter++) {
+                // enlarged back to the frame size, and scaled down further
+                assertArrayEquals(reference(frame, crop, WIDTH, HEIGHT, filter),
+                        scale(scaler, frame, crop, WIDTH, HEIGHT, filter));
+                assertArrayEquals(reference(frame, crop, 64, 36, filter),
+                        scale(scaler, frame, crop, 64, 36, filter));
+            }
+        } finally {
+            scaler.close();
+        }
+    }
+
+    @Test
+    public void sameSizeIsPacked() {
+        byte[] image = randomImage();
+        ParallelYuvScaler scaler = new ParallelYuvScaler(2);
+        try {
+            assertArrayEquals(image, scale(scaler, CameraFrames.semiPlanar(image, WIDTH, HEIGHT, 0), null,
+                    WIDTH, HEIGHT, YuvScaler.FILTER_BILINEAR));
+        } finally {
+            scaler.close();
+        }
+    }
+
+    private static byte[] scale(ParallelYuvScaler scaler, YuvFrame frame, CropRegion crop, int width, int height,
+                                int filter) {
+        int size = YuvPacker.packedSize(width, height);
+        ByteBuffer dst = ByteBuffer.allocateDirect(size + 32);
+        dst.position(7);
+        assertEquals(size, scaler.scale(frame, crop, width, height, dst, filter));
+        assertEquals(7 + size, dst.position());
+        return copy(dst, 7, size);
+    }
+
+    private static byte[] reference(YuvFrame frame, CropRegion crop, int width, int height, int filter) {
+        int size = YuvPacker.packedSize(width, height);
+        ByteBuffer dst = ByteBuffer.allocate(size);
+        if (crop == null) {
+            YuvScaler.scale(frame, width, height, dst, filter);
+        } else {
+            YuvScaler.scale(frame, crop, width, height, dst, filter);
+        }
+        return copy(dst, 0, size);
+    }
+
+    private static byte[] copy(ByteBuffer buffer, int offset, int size) {
+        byte[] bytes = new byte[size];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] randomImage() {
+        byte[] image = new byte[WIDTH * HEIGHT * 3 / 2];
+        new Random(18).nextBytes(image);
+        return image;
+    }
+}
@@ -0,0 +1,146 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PreEventBufferTest {
+
+    private static final long FRAME_US = 33333;
+    private static final int GOP = 30;
+
+    private final SampleInfo mInfo = new SampleInfo();
+
+    @Test
+    public void keepsTheWindowFromASyncFrame() throws IOException {
+        PreEventBuffer buffer = new PreEventBuffer(1 << 20, 1000, 2000000);
+        for (int frame = 0; frame < 300; frame++) {
+            add(buffer, frame, 1000);
+            RecordingOutputWriter clip = save(buffer);
+            assertTrue("clip starts on a sync frame at frame " + frame, clip.isKeyFrame(0));
+            assertEquals(frame * FRAME_US, (long) clip.presentationTimesUs.get(clip.samples.size() - 1));
+            if (frame * FRAME_US >= 2000000 + GOP * FRAME_US) {
+                // at least the window, and less than one GOP more than it
+                assertTrue(buffer.getDurationUs() >= 2000000);
+                assertTrue(buffer.getDurationUs() < 2000000 + GOP * FRAME_US);
+            }
+        }
+        assertEquals(buffer.getSampleCount() * 1000L, buffer.getBytesUsed());
+    }
+
+    @Test
+    public void fullStoreShortensTheWindow() throws IOException {
+        // room for about 50 frames of 1000 bytes, with a sync frame every 30: the store wraps
+        // around many times and the clip loses its oldest GOP instead of growing
+        PreEventBuffer buffer = new PreEventBuffer(50 * 1000 + 500, 1000, 10000000);
+        for (int frame = 0; frame < 500; frame++) {
+            add(buffer, frame, 900 + frame % 7 * 30);
+            assertTrue(buffer.getBytesUsed() <= 50 * 1000 + 500);
+        }
+        RecordingOutputWriter clip = save(buffer);
+        assertTrue(clip.isKeyFrame(0));
+        long first = clip.presentationTimesUs.get(0) / FRAME_US;
+        assertEquals(0, first % GOP);
+        assertEquals(500 - first, clip.samples.size());
+        for (int i = 0; i < clip.samples.size(); i++) {
+            assertSample(clip.samples.get(i), (int) (first + i));
+        }
+    }
+
+    @Test
+    public void fullTableShortensTheWindow() throws IOException {
+        PreEventBuffer buffer = new PreEventBuffer(1 << 20, 40, 10000000);
+        for (int frame = 0; frame < 100; frame++) {
+            add(buffer, frame, 100);
+        }
+        // frames 60 to 99 are left, starting on a sync frame
+        assertEquals(40, buffer.getSampleCount());
+        RecordingOutputWriter clip = save(buffer);
+        assertEquals(60 * FRAME_US, (long) clip.presentationTimesUs.get(0));
+        assertEquals(40, clip.samples.size());
+    }
+
+    @Test
+    public void oversizedSampleIsRefused() {
+        PreEventBuffer buffer = new PreEventBuffer(1000, 10, 1000000);
+        assertFalse(add(buffer, 0, 1001));
+        assertEquals(1, buffer.getOversizedCount());
+        assertEquals(0, buffer.getSampleCount());
+        assertTrue(add(buffer, 0, 1000));
+    }
+
+    @Test
+    public void nothingIsSavedWithoutASyncFrame() throws IOException {
+        PreEventBuffer buffer = new PreEventBuffer(1 << 16, 100, 1000000);
+        add(buffer, 1, 100);
+        add(buffer, 2, 100);
+        assertEquals(0, save(buffer).samples.size());
+        assertEquals(0, buffer.getDurationUs());
+    }
+
+    /**
+     * Adds frame number frame, a sync frame every GOP frames, with its number in every byte
+     */
+    private boolean add(PreEventBuffer buffer, int frame, int size) {
+        ByteBuffer data = ByteBuffer.allocate(size + 8);
+        data.position(8);
+        for (int i = 0; i < size; i++) {
+            data.put((byte) frame);
+        }
+        data.position(8);
+        int flags = frame % GOP == 0 ? SampleInfo.FLAG_KEY_FRAME : 0;
+        boolean added = buffer.add(data, mInfo.set(8, size, frame * FRAME_US, flags));
+        assertEquals("sample data left unchanged", 8, data.position());
+        return added;
+    }
+
+    private static RecordingOutputWriter save(PreEventBuffer buffer) throws IOException {
+        RecordingOutputWriter clip = new RecordingOutputWriter();
+        clip.start();
+        assertEquals(buffer.writeTo(clip, 0), clip.samples.size());
+        return clip;
+    }
+
+    private static void assertSample(byte[] sample, int frame) {
+        for (byte b : sample) {
+            assertEquals("data of frame " + frame, (byte) frame, b);
+        }
+    }
+}
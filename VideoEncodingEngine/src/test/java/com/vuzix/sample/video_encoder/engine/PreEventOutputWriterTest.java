@@ -0,0 +1,142 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PreEventOutputWriterTest {
+
+    private static final long FRAME_US = 33333;
+    private static final int GOP = 30;
+
+    private PreEventOutputWriter mWriter;
+    private int mFrame;
+
+    @Before
+    public void setUp() {
+        mWriter = new PreEventOutputWriter(new PreEventBuffer(1 << 20, 1000, 2000000));
+        assertEquals(0, mWriter.addTrack(null));
+        mWriter.start();
+    }
+
+    @Test
+    public void eventRunsFromThePreRollToTheEnd() throws IOException {
+        write(100);
+        RecordingOutputWriter event = new RecordingOutputWriter();
+        assertTrue(mWriter.startEvent(event));
+        assertTrue(mWriter.isEventActive());
+        write(20);
+        mWriter.endEvent();
+        write(10);
+
+        assertTrue(event.released);
+        assertFalse(mWriter.isEventActive());
+        assertTrue(event.isKeyFrame(0));
+        // the pre-roll reaches back the 2s window from the newest sync frame before it
+        long firstUs = event.presentationTimesUs.get(0);
+        assertTrue(99 * FRAME_US - firstUs >= 2000000);
+        // then every frame up to the end request, without a gap or a repeat
+        for (int i = 0; i < event.samples.size(); i++) {
+            assertEquals(firstUs + i * FRAME_US, (long) event.presentationTimesUs.get(i));
+        }
+        assertEquals(119 * FRAME_US, (long) event.presentationTimesUs.get(event.samples.size() - 1));
+    }
+
+    @Test
+    public void secondStartIsRefusedWhileAnEventIsPending() throws IOException {
+        write(40);
+        RecordingOutputWriter first = new RecordingOutputWriter();
+        RecordingOutputWriter second = new RecordingOutputWriter();
+        assertTrue(mWriter.startEvent(first));
+        mWriter.endEvent();
+        // the refused start must not cancel the end requested for the first event
+        assertFalse(mWriter.startEvent(second));
+        // the first sample opens the event with its pre-roll, the next one closes it
+        write(2);
+        assertTrue(first.released);
+        assertFalse(second.started);
+        assertFalse(mWriter.isEventActive());
+    }
+
+    @Test
+    public void endWithoutAnEventIsIgnored() throws IOException {
+        write(40);
+        mWriter.endEvent();
+        RecordingOutputWriter event = new RecordingOutputWriter();
+        assertTrue(mWriter.startEvent(event));
+        write(5);
+        assertFalse(event.released);
+        assertTrue(mWriter.isEventActive());
+    }
+
+    @Test
+    public void pendingEventIsReleasedWithTheWriter() {
+        RecordingOutputWriter event = new RecordingOutputWriter();
+        assertTrue(mWriter.startEvent(event));
+        mWriter.release();
+        assertTrue(event.released);
+        assertFalse(event.started);
+    }
+
+    @Test
+    public void liveSamplesWaitForASyncFrame() throws IOException {
+        // an event started before any sync frame was buffered begins at the next one
+        mFrame = 1;
+        write(5);
+        mFrame = 10;
+        RecordingOutputWriter event = new RecordingOutputWriter();
+        assertTrue(mWriter.startEvent(event));
+        write(30);
+        assertTrue(event.isKeyFrame(0));
+        assertEquals(30 * FRAME_US, (long) event.presentationTimesUs.get(0));
+        assertEquals(10, event.samples.size());
+    }
+
+    private void write(int frames) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(200);
+        SampleInfo info = new SampleInfo();
+        for (int i = 0; i < frames; i++, mFrame++) {
+            data.clear();
+            int flags = mFrame % GOP == 0 ? SampleInfo.FLAG_KEY_FRAME : 0;
+            mWriter.writeSampleData(0, data, info.set(0, data.remaining(), mFrame * FRAME_US, flags));
+        }
+    }
+}
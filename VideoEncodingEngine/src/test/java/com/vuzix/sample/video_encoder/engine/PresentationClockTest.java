@@ -0,0 +1,138 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PresentationClockTest {
+
+    private static final long SENSOR_BASE_NS = 123456789000L;
+    private static final long FRAME_30FPS_NS = 33333333L;
+
+    @Test
+    public void jitteredTraceStaysOnTheSensorClock() {
+        // an hour at 30fps with 1.5ms of timestamp jitter and every 200th frame dropped
+        PresentationClock clock = new PresentationClock(30);
+        Random random = new Random(3);
+        long last = -1;
+        long maxErrorUs = 0;
+        double errorSumUs = 0;
+        double jitterSumUs = 0;
+        int measured = 0;
+        int dropped = 0;
+        for (int i = 0; i <= 30 * 3600; i++) {
+            long idealNs = i * FRAME_30FPS_NS;
+            long jitterNs = i == 0 ? 0 : (long) (random.nextGaussian() * 1500000);
+            long sensorNs = SENSOR_BASE_NS + idealNs + jitterNs;
+            if (i % 200 == 199) {
+                dropped++;
+                continue;
+            }
+            long ptsUs = clock.toPresentationTimeUs(sensorNs);
+            assertTrue("not increasing at frame " + i, ptsUs > last);
+            last = ptsUs;
+            if (i > 300) {
+                long errorUs = Math.abs(ptsUs - idealNs / 1000);
+                maxErrorUs = Math.max(maxErrorUs, errorUs);
+                errorSumUs += errorUs;
+                jitterSumUs += Math.abs(jitterNs) / 1000.0;
+                measured++;
+            }
+        }
+        // the jitter is smoothed, except right after a drop where the sensor time is taken as it
+        // is, and the output never drifts from the sensor clock over the hour
+        assertTrue("mean error " + errorSumUs / measured + "us", errorSumUs < jitterSumUs / 2);
+        assertTrue("max error " + maxErrorUs + "us", maxErrorUs < FRAME_30FPS_NS / 1000 / 4);
+        assertEquals(dropped, clock.getGapCount());
+        assertEquals(dropped, clock.getMissingFrameCount());
+        assertEquals(33333, clock.getFrameIntervalUs(), 1000);
+    }
+
+    @Test
+    public void cameraSlowerThanNominalKeepsRealDuration() {
+        // the camera delivers 24fps to an encoder configured for 30: ten seconds stay ten seconds
+        PresentationClock clock = new PresentationClock(30);
+        long ptsUs = 0;
+        for (int i = 0; i < 241; i++) {
+            ptsUs = clock.toPresentationTimeUs(SENSOR_BASE_NS + i * 41666667L);
+        }
+        assertEquals(10000000, ptsUs, 1000);
+        assertEquals(41667, clock.getFrameIntervalUs(), 500);
+    }
+
+    @Test
+    public void stallIsFollowedAndCounted() {
+        PresentationClock clock = new PresentationClock(30);
+        for (int i = 0; i < 30; i++) {
+            clock.toPresentationTimeUs(SENSOR_BASE_NS + i * FRAME_30FPS_NS);
+        }
+        // two seconds without frames, then capture resumes
+        long resumeNs = 29 * FRAME_30FPS_NS + 2000000000L;
+        long ptsUs = clock.toPresentationTimeUs(SENSOR_BASE_NS + resumeNs);
+        assertEquals(resumeNs / 1000, ptsUs);
+        assertEquals(1, clock.getGapCount());
+        assertEquals(59, clock.getMissingFrameCount());
+    }
+
+    @Test
+    public void repeatedTimestampStaysMonotonic() {
+        PresentationClock clock = new PresentationClock(30);
+        long first = clock.toPresentationTimeUs(SENSOR_BASE_NS);
+        long second = clock.toPresentationTimeUs(SENSOR_BASE_NS + FRAME_30FPS_NS);
+        long repeated = clock.toPresentationTimeUs(SENSOR_BASE_NS + FRAME_30FPS_NS);
+        long backwards = clock.toPresentationTimeUs(SENSOR_BASE_NS);
+        assertEquals(0, first);
+        assertTrue(second > first);
+        assertTrue(repeated > second);
+        assertTrue(backwards > repeated);
+        assertTrue(clock.getNonMonotonicCount() >= 1);
+        assertTrue(clock.getNextPresentationTimeUs() > backwards);
+    }
+
+    @Test
+    public void resetStartsAtZero() {
+        PresentationClock clock = new PresentationClock(30);
+        clock.toPresentationTimeUs(SENSOR_BASE_NS);
+        clock.toPresentationTimeUs(SENSOR_BASE_NS + FRAME_30FPS_NS);
+        clock.reset();
+        assertEquals(0, clock.getNextPresentationTimeUs());
+        assertEquals(0, clock.toPresentationTimeUs(SENSOR_BASE_NS + 5000000000L));
+        assertEquals(1, clock.getFrameCount());
+        assertEquals(0, clock.getGapCount());
+    }
+}
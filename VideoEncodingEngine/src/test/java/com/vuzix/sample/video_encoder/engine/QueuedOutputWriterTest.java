@@ -0,0 +1,241 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class QueuedOutputWriterTest {
+
+    private static final int GOP = 10;
+
+    private final ByteBuffer mData = ByteBuffer.allocate(4096);
+    private final SampleInfo mInfo = new SampleInfo();
+
+    /**
+     * Writer whose first write waits until the gate is opened, like a storage stalling
+     */
+    private static class StalledOutputWriter extends RecordingOutputWriter {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger writes = new AtomicInteger();
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+            entered.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.writeSampleData(trackIndex, data, info);
+            writes.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void writesEverySampleInOrder() throws IOException {
+        RecordingOutputWriter writer = new RecordingOutputWriter();
+        QueuedOutputWriter queued = new QueuedOutputWriter(writer, 4, 64, QueuedOutputWriter.STALL_POLICY_BLOCK);
+        assertEquals(0, queued.addTrack(null));
+        queued.start();
+        for (int frame = 0; frame < 200; frame++) {
+            // samples larger than the pooled buffers make them grow
+            write(queued, frame, frame % GOP == 0 ? 3000 : 100);
+        }
+        queued.release();
+
+        assertTrue(writer.released);
+        assertEquals(200, queued.getQueuedCount());
+        assertEquals(0, queued.getDroppedCount());
+        assertEquals(200, writer.samples.size());
+        for (int frame = 0; frame < 200; frame++) {
+            assertSample(writer, frame, frame);
+        }
+        assertEquals(200, queued.getWriteLatency().getCount());
+    }
+
+    @Test
+    public void stallDropsUntilTheNextSyncFrame() throws Exception {
+        StalledOutputWriter writer = new StalledOutputWriter();
+        FakeEncoderCodec encoder = new FakeEncoderCodec();
+        QueuedOutputWriter queued = new QueuedOutputWriter(writer, 4, 256, QueuedOutputWriter.STALL_POLICY_DROP_UNTIL_SYNC);
+        queued.setEncoder(encoder);
+        queued.addTrack(null);
+        queued.start();
+
+        write(queued, 0, 100);
+        assertTrue(writer.entered.await(5, TimeUnit.SECONDS));
+        // the writer holds frame 0, frames 1 to 3 fill the other buffers, then frames are
+        // dropped and a sync frame is asked for
+        for (int frame = 1; frame < GOP; frame++) {
+            write(queued, frame, 100);
+        }
+        assertEquals(6, queued.getDroppedCount());
+        assertEquals(1, queued.getStallCount());
+        assertEquals(1, encoder.syncFrameRequests);
+
+        // once the queued frames are written their buffers are free again
+        writer.gate.countDown();
+        long deadlineNs = System.nanoTime() + 5000000000L;
+        while (writer.writes.get() < 4 && System.nanoTime() < deadlineNs) {
+            Thread.sleep(1);
+        }
+        for (int frame = GOP; frame < GOP + 3; frame++) {
+            write(queued, frame, 100);
+        }
+        queued.release();
+
+        int[] expected = {0, 1, 2, 3, 10, 11, 12};
+        assertEquals(expected.length, writer.samples.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertSample(writer, i, expected[i]);
+        }
+    }
+
+    @Test
+    public void failPolicyReportsTheStall() throws Exception {
+        StalledOutputWriter writer = new StalledOutputWriter();
+        QueuedOutputWriter queued = new QueuedOutputWriter(writer, 2, 256, QueuedOutputWriter.STALL_POLICY_FAIL);
+        queued.addTrack(null);
+        queued.start();
+        write(queued, 0, 100);
+        assertTrue(writer.entered.await(5, TimeUnit.SECONDS));
+        write(queued, 1, 100);
+        try {
+            write(queued, 2, 100);
+            fail("stall not reported");
+        } catch (IOException expected) {
+        }
+        writer.gate.countDown();
+        queued.release();
+        assertEquals(2, writer.samples.size());
+    }
+
+    @Test
+    public void blockAndReleaseGiveUpOnAStuckWriter() throws Exception {
+        StalledOutputWriter writer = new StalledOutputWriter();
+        QueuedOutputWriter queued = new QueuedOutputWriter(writer, 2, 256, QueuedOutputWriter.STALL_POLICY_BLOCK);
+        queued.setTimeouts(100, 100);
+        queued.addTrack(null);
+        queued.start();
+        write(queued, 0, 100);
+        assertTrue(writer.entered.await(5, TimeUnit.SECONDS));
+        write(queued, 1, 100);
+
+        long startNs = System.nanoTime();
+        try {
+            write(queued, 2, 100);
+            fail("blocked without a timeout");
+        } catch (IOException expected) {
+        }
+        long blockedMs = (System.nanoTime() - startNs) / 1000000;
+        assertTrue("blocked for " + blockedMs + "ms", blockedMs >= 100 && blockedMs < 1000);
+
+        startNs = System.nanoTime();
+        queued.release();
+        long releaseMs = (System.nanoTime() - startNs) / 1000000;
+        assertTrue("release took " + releaseMs + "ms", releaseMs >= 100 && releaseMs < 1000);
+        assertFalse(writer.released);
+
+        // once the storage returns the writer thread releases the writer, the queued sample is dropped
+        writer.gate.countDown();
+        long deadlineNs = System.nanoTime() + 5000000000L;
+        while (!writer.released && System.nanoTime() < deadlineNs) {
+            Thread.sleep(5);
+        }
+        assertTrue(writer.released);
+        assertEquals(1, writer.samples.size());
+    }
+
+    @Test
+    public void writeErrorIsThrownByTheNextWrite() throws Exception {
+        RecordingOutputWriter writer = new RecordingOutputWriter() {
+            @Override
+            public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+                throw new IllegalStateException("storage removed");
+            }
+        };
+        QueuedOutputWriter queued = new QueuedOutputWriter(writer, 4, 256, QueuedOutputWriter.STALL_POLICY_BLOCK);
+        queued.addTrack(null);
+        queued.start();
+        write(queued, 0, 100);
+        long deadlineNs = System.nanoTime() + 5000000000L;
+        try {
+            while (System.nanoTime() < deadlineNs) {
+                write(queued, 1, 100);
+                Thread.sleep(5);
+            }
+            fail("write error not reported");
+        } catch (IOException expected) {
+        }
+        queued.release();
+        assertTrue(writer.released);
+    }
+
+    /**
+     * Writes frame number frame with size bytes of its number, through a buffer that is reused,
+     * so the queued copy must not depend on it
+     */
+    private void write(OutputWriter writer, int frame, int size) throws IOException {
+        mData.clear();
+        for (int i = 0; i < size; i++) {
+            mData.put((byte) frame);
+        }
+        mData.flip();
+        int flags = frame % GOP == 0 ? SampleInfo.FLAG_KEY_FRAME : 0;
+        writer.writeSampleData(0, mData, mInfo.set(0, size, frame * 33333L, flags));
+        mData.clear();
+        while (mData.hasRemaining()) {
+            mData.put((byte) -1);
+        }
+    }
+
+    private static void assertSample(RecordingOutputWriter writer, int sample, int frame) {
+        assertEquals(frame * 33333L, (long) writer.presentationTimesUs.get(sample));
+        assertEquals(frame % GOP == 0, writer.isKeyFrame(sample));
+        for (byte b : writer.samples.get(sample)) {
+            assertEquals("data of frame " + frame, (byte) frame, b);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * OutputWriter keeping a copy of every sample it is given, for checking what reached a file
+ */
+class RecordingOutputWriter implements OutputWriter {
+
+    final List<byte[]> samples = new ArrayList<byte[]>();
+    final List<Long> presentationTimesUs = new ArrayList<Long>();
+    final List<Integer> flags = new ArrayList<Integer>();
+    int trackCount;
+    volatile boolean started;
+    volatile boolean released;
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (started) {
+            throw new IllegalStateException("track added after start");
+        }
+        return trackCount++;
+    }
+
+    @Override
+    public void start() {
+        started = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+        if (!started || released) {
+            throw new IllegalStateException("sample written while not started");
+        }
+        byte[] copy = new byte[data.remaining()];
+        data.duplicate().get(copy);
+        samples.add(copy);
+        presentationTimesUs.add(info.presentationTimeUs);
+        flags.add(info.flags);
+    }
+
+    @Override
+    public void release() {
+        released = true;
+    }
+
+    boolean isKeyFrame(int sample) {
+        return (flags.get(sample) & SampleInfo.FLAG_KEY_FRAME) != 0;
+    }
+}
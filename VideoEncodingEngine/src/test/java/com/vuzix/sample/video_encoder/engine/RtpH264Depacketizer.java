@@ -0,0 +1,265 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reassembles the H.264 frames of an RTP stream, the receiving side of RtpH264Packetizer.
+ *
+ * Single NAL unit, STAP-A and FU-A packets (RFC 6184, non-interleaved mode) are turned back into
+ * an Annex B access unit with 4 byte start codes, which is complete when the packet with the
+ * marker bit arrives. Packets are expected in order, as they arrive on a local network: a gap
+ * in the sequence numbers discards the frame being assembled, and a frame whose marker packet
+ * was lost is discarded when the next timestamp starts.
+ *
+ * Used by the tests to check a stream received on a DatagramChannel. Not thread safe.
+ */
+class RtpH264Depacketizer {
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private final ByteBuffer mAccessUnit;
+    private int mTimestamp;
+    private boolean mAssembling;
+    private boolean mCorrupt;
+    private boolean mInFragment;
+    private int mExpectedSequenceNumber = -1;
+    private boolean mComplete;
+
+    private long mPacketCount;
+    private long mLostCount;
+    private long mFrameCount;
+    private long mDiscardedCount;
+
+    /**
+     * @param maxAccessUnitSize int size of the largest frame that can be reassembled
+     */
+    public RtpH264Depacketizer(int maxAccessUnitSize) {
+        mAccessUnit = ByteBuffer.allocate(maxAccessUnitSize);
+    }
+
+    /**
+     * Adds one received packet
+     * @param packet ByteBuffer holding the RTP packet between its position and limit, consumed
+     * @return boolean true when the packet completed a frame, available from getAccessUnit()
+     *         until the next call
+     */
+    public boolean push(ByteBuffer packet) {
+        if (mComplete) {
+            mComplete = false;
+            mAccessUnit.clear();
+            mAssembling = false;
+        }
+        mPacketCount++;
+        if (packet.remaining() < RtpH264Packetizer.HEADER_SIZE + 1 || (packet.get(packet.position()) & 0xc0) != 0x80) {
+            // not RTP version 2
+            mDiscardedCount++;
+            return false;
+        }
+
+        int start = packet.position();
+        int first = packet.get(start) & 0xff;
+        int second = packet.get(start + 1) & 0xff;
+        int sequenceNumber = packet.getShort(start + 2) & 0xffff;
+        int timestamp = packet.getInt(start + 4);
+        boolean marker = (second & 0x80) != 0;
+        int end = packet.limit();
+        if ((first & 0x20) != 0) {
+            // padding, its length is the last byte
+            end -= packet.get(end - 1) & 0xff;
+        }
+        int payload = start + RtpH264Packetizer.HEADER_SIZE + 4 * (first & 0x0f);
+        if ((first & 0x10) != 0 && payload + 4 <= end) {
+            // header extension, its length in 32 bit words follows the profile specific id
+            payload += 4 + 4 * (packet.getShort(payload + 2) & 0xffff);
+        }
+        packet.position(end);
+        if (payload >= end) {
+            mDiscardedCount++;
+            return false;
+        }
+
+        boolean lost = mExpectedSequenceNumber >= 0 && sequenceNumber != mExpectedSequenceNumber;
+        if (lost) {
+            mLostCount += (sequenceNumber - mExpectedSequenceNumber) & 0xffff;
+        }
+        mExpectedSequenceNumber = (sequenceNumber + 1) & 0xffff;
+
+        if (mAssembling && timestamp != mTimestamp) {
+            // the marker packet of the previous frame never came
+            mFrameCount++;
+            mDiscardedCount++;
+            mAccessUnit.clear();
+            mAssembling = false;
+        }
+        if (!mAssembling) {
+            mAssembling = true;
+            mTimestamp = timestamp;
+            mCorrupt = false;
+            mInFragment = false;
+        }
+        // the lost packets may as well have been the start of this frame
+        mCorrupt |= lost;
+
+        if (!mCorrupt) {
+            mCorrupt = !depacketize(packet, payload, end);
+        }
+
+        if (!marker) {
+            return false;
+        }
+        mFrameCount++;
+        if (mCorrupt) {
+            mDiscardedCount++;
+            mAccessUnit.clear();
+            mAssembling = false;
+            return false;
+        }
+        mAccessUnit.flip();
+        mComplete = true;
+        return true;
+    }
+
+    /**
+     * @return boolean false if the payload could not be added
+     */
+    private boolean depacketize(ByteBuffer packet, int payload, int end) {
+        int nalHeader = packet.get(payload) & 0xff;
+        int type = nalHeader & 0x1f;
+        if (type >= 1 && type <= 23) {
+            return !mInFragment && putNalUnit(packet, payload, end - payload, true);
+        } else if (type == RtpH264Packetizer.NAL_TYPE_STAP_A) {
+            if (mInFragment) {
+                return false;
+            }
+            int position = payload + 1;
+            while (position + 2 <= end) {
+                int size = packet.getShort(position) & 0xffff;
+                position += 2;
+                if (size == 0 || position + size > end || !putNalUnit(packet, position, size, true)) {
+                    return false;
+                }
+                position += size;
+            }
+            return true;
+        } else if (type == RtpH264Packetizer.NAL_TYPE_FU_A) {
+            if (end - payload < 3) {
+                return false;
+            }
+            int fuHeader = packet.get(payload + 1) & 0xff;
+            boolean startFragment = (fuHeader & RtpH264Packetizer.FU_START) != 0;
+            if (startFragment == mInFragment) {
+                // a start inside a fragmented unit, or a continuation without start
+                return false;
+            }
+            if (startFragment) {
+                if (mAccessUnit.remaining() < START_CODE.length + 1) {
+                    return false;
+                }
+                mAccessUnit.put(START_CODE);
+                mAccessUnit.put((byte) ((nalHeader & 0xe0) | (fuHeader & 0x1f)));
+                mInFragment = true;
+            }
+            if (!putNalUnit(packet, payload + 2, end - payload - 2, false)) {
+                return false;
+            }
+            if ((fuHeader & RtpH264Packetizer.FU_END) != 0) {
+                mInFragment = false;
+            }
+            return true;
+        }
+        // STAP-B, MTAP and FU-B belong to the interleaved mode
+        return false;
+    }
+
+    private boolean putNalUnit(ByteBuffer packet, int offset, int size, boolean startCode) {
+        if (mAccessUnit.remaining() < size + (startCode ? START_CODE.length : 0)) {
+            return false;
+        }
+        if (startCode) {
+            mAccessUnit.put(START_CODE);
+        }
+        NalUnitParser.put(mAccessUnit, packet, offset, size);
+        return true;
+    }
+
+    /**
+     * @return ByteBuffer the frame completed by the last push(), in Annex B form between its
+     *         position and limit
+     */
+    public ByteBuffer getAccessUnit() {
+        return mAccessUnit;
+    }
+
+    /**
+     * @return int RTP timestamp of the frame completed by the last push()
+     */
+    public int getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return long number of packets pushed
+     */
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    /**
+     * @return long number of packets missing from the sequence numbers
+     */
+    public long getLostCount() {
+        return mLostCount;
+    }
+
+    /**
+     * @return long number of frames seen, complete or not
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return long number of frames and packets discarded as incomplete or malformed
+     */
+    public long getDiscardedCount() {
+        return mDiscardedCount;
+    }
+
+    @Override
+    public String toString() {
+        return mPacketCount + " packets (" + mLostCount + " lost), " + mFrameCount + " frames, " + mDiscardedCount
+                + " discarded";
+    }
+}
@@ -0,0 +1,264 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RtpLoopbackTest {
+
+    private static final int FRAMES = 60;
+    private static final int GOP = 15;
+
+    private final Random mRandom = new Random(7);
+    private final byte[] mSps = nalUnit(7, 12);
+    private final byte[] mPps = nalUnit(8, 5);
+    private final List<byte[]> mSamples = new ArrayList<byte[]>();
+    private final List<byte[]> mExpected = new ArrayList<byte[]>();
+    private DatagramChannel mReceiver;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < FRAMES; i++) {
+            if (i % GOP == 0) {
+                byte[] idr = nalUnit(5, 3000 + mRandom.nextInt(20000));
+                if (i == 2 * GOP) {
+                    // the encoder may repeat the parameter sets itself
+                    byte[] sei = nalUnit(6, 20);
+                    mSamples.add(annexB(mSps, mPps, sei, idr));
+                    mExpected.add(accessUnit(mSps, mPps, sei, idr));
+                } else {
+                    mSamples.add(annexB(idr));
+                    mExpected.add(accessUnit(mSps, mPps, idr));
+                }
+            } else {
+                byte[] slice = nalUnit(1, 50 + mRandom.nextInt(i % 4 == 0 ? 5000 : 1300));
+                if (i % 5 == 0) {
+                    // exactly fills a single NAL unit packet
+                    byte[] full = nalUnit(1, RtpH264Packetizer.DEFAULT_MAX_PACKET_SIZE - RtpH264Packetizer.HEADER_SIZE);
+                    mSamples.add(annexB(slice, full));
+                    mExpected.add(accessUnit(slice, full));
+                } else {
+                    mSamples.add(annexB(slice));
+                    mExpected.add(accessUnit(slice));
+                }
+            }
+        }
+        mReceiver = DatagramChannel.open();
+        mReceiver.bind(new InetSocketAddress("127.0.0.1", 0));
+        mReceiver.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20);
+        mReceiver.configureBlocking(false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mReceiver.close();
+    }
+
+    @Test
+    public void framesComeBackIntact() throws IOException {
+        RtpOutputWriter writer = new RtpOutputWriter((InetSocketAddress) mReceiver.getLocalAddress());
+        writer.addAvcTrack(ByteBuffer.wrap(annexB(mSps)), ByteBuffer.wrap(annexB(mPps)));
+        writer.start();
+        assertTrue(writer.getSessionDescription().contains("a=rtpmap:96 H264/90000"));
+
+        RtpH264Depacketizer depacketizer = new RtpH264Depacketizer(100000);
+        List<byte[]> received = new ArrayList<byte[]>();
+        SampleInfo info = new SampleInfo();
+        ByteBuffer config = ByteBuffer.wrap(annexB(mSps, mPps));
+        writer.writeSampleData(0, config, info.set(0, config.remaining(), 0, SampleInfo.FLAG_CODEC_CONFIG));
+        for (int i = 0; i < FRAMES; i++) {
+            // a direct buffer with the sample past its start, as the codec hands them out
+            byte[] sample = mSamples.get(i);
+            ByteBuffer data = ByteBuffer.allocateDirect(sample.length + 8);
+            data.position(8);
+            data.put(sample);
+            data.position(8);
+            writer.writeSampleData(0, data, info.set(8, sample.length, i * 33333L,
+                    i % GOP == 0 ? SampleInfo.FLAG_KEY_FRAME : 0));
+            assertEquals(8, data.position());
+            // loopback delivers at once, read before the socket buffer fills
+            receive(depacketizer, received);
+        }
+        ByteBuffer end = ByteBuffer.allocate(0);
+        writer.writeSampleData(0, end, info.set(0, 0, FRAMES * 33333L, SampleInfo.FLAG_END_OF_STREAM));
+        receive(depacketizer, received);
+        writer.release();
+
+        assertEquals(FRAMES, received.size());
+        // the codec config shares the timestamp of the first frame, so arrives as part of it
+        assertArrayEquals(concat(accessUnit(mSps, mPps), mExpected.get(0)), received.get(0));
+        for (int i = 1; i < FRAMES; i++) {
+            assertArrayEquals("frame " + i, mExpected.get(i), received.get(i));
+        }
+        assertEquals(0, depacketizer.getLostCount());
+        assertEquals(0, depacketizer.getDiscardedCount());
+        assertEquals(depacketizer.getPacketCount(), writer.getPacketizer().getPacketCount());
+        assertTrue(writer.getPacketizer().getFragmentedCount() > 0);
+        assertTrue(writer.getPacketizer().getAggregatedCount() >= FRAMES / GOP);
+    }
+
+    @Test
+    public void lostPacketDiscardsOnlyItsFrame() {
+        RtpH264Packetizer packetizer = new RtpH264Packetizer(1400, 96, 1234);
+        packetizer.setParameterSets(ByteBuffer.wrap(annexB(mSps)), ByteBuffer.wrap(annexB(mPps)));
+        RtpH264Depacketizer depacketizer = new RtpH264Depacketizer(100000);
+        ByteBuffer packet = ByteBuffer.allocate(1400);
+        SampleInfo info = new SampleInfo();
+        List<Integer> frames = new ArrayList<Integer>();
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] sample = mSamples.get(i);
+            packetizer.begin(ByteBuffer.wrap(sample), info.set(0, sample.length, i * 33333L,
+                    i % GOP == 0 ? SampleInfo.FLAG_KEY_FRAME : 0));
+            boolean first = true;
+            while (packetizer.next(packet)) {
+                if (i == 4 && first) {
+                    // the first FU-A fragment of frame 4 is lost
+                    first = false;
+                    continue;
+                }
+                if (depacketizer.push(packet)) {
+                    frames.add(i);
+                    assertArrayEquals(mExpected.get(i), bytes(depacketizer.getAccessUnit()));
+                }
+            }
+        }
+        assertEquals(FRAMES - 1, frames.size());
+        assertFalse(frames.contains(4));
+        assertEquals(1, depacketizer.getLostCount());
+        assertEquals(1, depacketizer.getDiscardedCount());
+    }
+
+    @Test
+    public void sendsWithoutAViewer() throws IOException {
+        DatagramChannel closed = DatagramChannel.open();
+        closed.bind(new InetSocketAddress("127.0.0.1", 0));
+        InetSocketAddress nobody = (InetSocketAddress) closed.getLocalAddress();
+        closed.close();
+
+        RtpOutputWriter writer = new RtpOutputWriter(nobody);
+        writer.addAvcTrack(ByteBuffer.wrap(annexB(mSps)), ByteBuffer.wrap(annexB(mPps)));
+        writer.start();
+        SampleInfo info = new SampleInfo();
+        for (int i = 0; i < 20; i++) {
+            byte[] sample = mSamples.get(i);
+            writer.writeSampleData(0, ByteBuffer.wrap(sample), info.set(0, sample.length, i * 33333L,
+                    i % GOP == 0 ? SampleInfo.FLAG_KEY_FRAME : 0));
+        }
+        writer.release();
+        assertTrue(writer.getUnreachableCount() > 0);
+    }
+
+    private void receive(RtpH264Depacketizer depacketizer, List<byte[]> frames) throws IOException {
+        ByteBuffer packet = ByteBuffer.allocateDirect(2000);
+        while (mReceiver.receive(packet) != null) {
+            packet.flip();
+            assertTrue(packet.remaining() <= RtpH264Packetizer.DEFAULT_MAX_PACKET_SIZE);
+            if (depacketizer.push(packet)) {
+                frames.add(bytes(depacketizer.getAccessUnit()));
+            }
+            packet.clear();
+        }
+    }
+
+    private byte[] nalUnit(int type, int size) {
+        byte[] nalUnit = new byte[size];
+        nalUnit[0] = (byte) (0x60 | type);
+        for (int i = 1; i < size; i++) {
+            // no zero bytes, so no start code emulation
+            nalUnit[i] = (byte) (1 + mRandom.nextInt(255));
+        }
+        return nalUnit;
+    }
+
+    /**
+     * @return byte[] NAL units as the encoder writes them, with 4 and 3 byte start codes in turn
+     */
+    private static byte[] annexB(byte[]... nalUnits) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < nalUnits.length; i++) {
+            if (i % 2 == 0) {
+                out.write(0);
+            }
+            out.write(0);
+            out.write(0);
+            out.write(1);
+            out.write(nalUnits[i], 0, nalUnits[i].length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return byte[] NAL units as the depacketizer returns them, with 4 byte start codes
+     */
+    private static byte[] accessUnit(byte[]... nalUnits) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] nalUnit : nalUnits) {
+            out.write(0);
+            out.write(0);
+            out.write(0);
+            out.write(1);
+            out.write(nalUnit, 0, nalUnit.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
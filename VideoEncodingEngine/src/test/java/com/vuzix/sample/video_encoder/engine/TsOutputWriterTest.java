@@ -0,0 +1,345 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TsOutputWriterTest {
+
+    private static final byte[] AUD = {0, 0, 0, 1, 0x09, (byte) 0xf0};
+    private static final int FRAMES = 90;
+    private static final int GOP = 30;
+    private static final long FRAME_US = 33333;
+    private static final long START_US = 1000;
+    // the PTS runs 0.7 s ahead of the PCR
+    private static final long PTS_DELAY = 63000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(3);
+    private final byte[] mSps = startCode(nalUnit(7, 14));
+    private final byte[] mPps = startCode(nalUnit(8, 4));
+    private final List<byte[]> mSamples = new ArrayList<byte[]>();
+    // the elementary stream expected in each PES packet
+    private final List<byte[]> mExpected = new ArrayList<byte[]>();
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] sample;
+            if (i == GOP) {
+                // the encoder repeats the parameter sets itself
+                sample = concat(mSps, mPps, startCode(nalUnit(5, 40000)));
+                mExpected.add(concat(AUD, sample));
+            } else if (i % GOP == 0) {
+                sample = startCode(nalUnit(5, 20000 + mRandom.nextInt(30000)));
+                mExpected.add(concat(AUD, mSps, mPps, sample));
+            } else if (i == 45) {
+                // with its own access unit delimiter
+                sample = concat(AUD, startCode(nalUnit(1, 700)));
+                mExpected.add(sample);
+            } else {
+                // frame 7 exactly fills a packet after the PES header and the PCR
+                sample = startCode(nalUnit(1, i == 7 ? 184 - 8 - 14 - 6 - 4 : 1 + mRandom.nextInt(4000)));
+                mExpected.add(concat(AUD, sample));
+            }
+            mSamples.add(sample);
+        }
+        mFile = mFolder.newFile("test.ts");
+    }
+
+    @Test
+    public void streamParsesAndHoldsEveryFrame() throws IOException {
+        TsOutputWriter writer = open(TsOutputWriter.DEFAULT_FLUSH_INTERVAL_US);
+        for (int i = 0; i < FRAMES; i++) {
+            write(writer, i);
+        }
+        SampleInfo info = new SampleInfo();
+        writer.writeSampleData(0, ByteBuffer.allocate(0), info.set(0, 0, START_US + FRAMES * FRAME_US,
+                SampleInfo.FLAG_END_OF_STREAM));
+        writer.release();
+
+        byte[] stream = Files.readAllBytes(mFile.toPath());
+        assertEquals(stream.length, writer.getBytesWritten());
+        assertEquals(stream.length / TsOutputWriter.PACKET_SIZE, writer.getPacketCount());
+        // a batch of 16 packets, or half a second of video
+        assertTrue(writer.getBatchCount() < writer.getPacketCount() / 8);
+        Demuxer demuxer = new Demuxer(stream);
+        // once at the start, then before every I-frame
+        assertEquals(1 + FRAMES / GOP, demuxer.tableCount);
+        checkFrames(demuxer.frames, FRAMES);
+    }
+
+    @Test
+    public void fileIsPlayableWhileBeingWritten() throws IOException {
+        TsOutputWriter writer = open(0);
+        for (int i = 0; i <= 40; i++) {
+            write(writer, i);
+        }
+        // without a flush interval every frame is on disk as it is written
+        checkFrames(new Demuxer(Files.readAllBytes(mFile.toPath())).frames, 41);
+        writer.release();
+    }
+
+    private TsOutputWriter open(long flushIntervalUs) throws IOException {
+        FileChannel channel = FileChannel.open(mFile.toPath(), StandardOpenOption.WRITE);
+        TsOutputWriter writer = new TsOutputWriter(channel, 16, flushIntervalUs);
+        writer.addAvcTrack(ByteBuffer.wrap(mSps), ByteBuffer.wrap(mPps));
+        writer.start();
+        // the codec config is known from the track already
+        ByteBuffer config = ByteBuffer.wrap(concat(mSps, mPps));
+        writer.writeSampleData(0, config, new SampleInfo().set(0, config.remaining(), START_US,
+                SampleInfo.FLAG_CODEC_CONFIG));
+        return writer;
+    }
+
+    private void write(TsOutputWriter writer, int frame) throws IOException {
+        // a direct buffer with the sample past its start, as the codec hands them out
+        byte[] sample = mSamples.get(frame);
+        ByteBuffer data = ByteBuffer.allocateDirect(sample.length + 5);
+        data.position(5);
+        data.put(sample);
+        data.position(5);
+        writer.writeSampleData(0, data, new SampleInfo().set(5, sample.length, START_US + frame * FRAME_US,
+                frame % GOP == 0 ? SampleInfo.FLAG_KEY_FRAME : 0));
+        assertEquals(5, data.position());
+        assertEquals(sample.length + 5, data.limit());
+    }
+
+    private void checkFrames(List<Frame> frames, int count) {
+        assertEquals(count, frames.size());
+        for (int i = 0; i < count; i++) {
+            Frame frame = frames.get(i);
+            assertArrayEquals("frame " + i, mExpected.get(i), frame.stream);
+            boolean key = i % GOP == 0;
+            assertEquals("random access " + i, key, frame.randomAccess);
+            // PAT and PMT just ahead of every I-frame, so a reader can start there
+            assertEquals("tables " + i, key, frame.afterTables);
+            // the clock starts at the first frame
+            long pts = PTS_DELAY + i * FRAME_US * 9 / 100;
+            assertEquals("pts " + i, pts, frame.pts);
+            assertEquals("pcr " + i, pts - PTS_DELAY, frame.pcr);
+        }
+    }
+
+    private byte[] nalUnit(int type, int size) {
+        byte[] nalUnit = new byte[size];
+        nalUnit[0] = (byte) (0x60 | type);
+        for (int i = 1; i < size; i++) {
+            // no zero bytes, so no start code emulation
+            nalUnit[i] = (byte) (1 + mRandom.nextInt(255));
+        }
+        return nalUnit;
+    }
+
+    private static byte[] startCode(byte[] nalUnit) {
+        return concat(new byte[]{0, 0, 0, 1}, nalUnit);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static class Frame {
+        long pts;
+        long pcr = -1;
+        boolean randomAccess;
+        boolean afterTables;
+        byte[] stream;
+    }
+
+    /**
+     * Reads the video PES packets back from a transport stream, checking the packet headers,
+     * continuity counters and table CRCs on the way.
+     */
+    private static class Demuxer {
+
+        final List<Frame> frames = new ArrayList<Frame>();
+        int tableCount;
+
+        private final int[] mContinuity = new int[0x2000];
+        private int mPmtPid = -1;
+        private int mVideoPid = -1;
+        private boolean mPat;
+        private boolean mPmt;
+
+        Demuxer(byte[] stream) {
+            assertEquals(0, stream.length % TsOutputWriter.PACKET_SIZE);
+            Arrays.fill(mContinuity, -1);
+            ByteArrayOutputStream pes = null;
+            Frame frame = null;
+            for (int offset = 0; offset < stream.length; offset += TsOutputWriter.PACKET_SIZE) {
+                int end = offset + TsOutputWriter.PACKET_SIZE;
+                assertEquals(0x47, stream[offset]);
+                boolean unitStart = (stream[offset + 1] & 0x40) != 0;
+                int pid = ((stream[offset + 1] & 0x1f) << 8) | (stream[offset + 2] & 0xff);
+                int adaptation = (stream[offset + 3] >> 4) & 3;
+                if ((adaptation & 1) != 0) {
+                    int continuity = stream[offset + 3] & 0x0f;
+                    if (mContinuity[pid] >= 0) {
+                        assertEquals("continuity of " + pid, (mContinuity[pid] + 1) & 0x0f, continuity);
+                    }
+                    mContinuity[pid] = continuity;
+                }
+                int position = offset + 4;
+                boolean randomAccess = false;
+                long pcr = -1;
+                if ((adaptation & 2) != 0) {
+                    int length = stream[position] & 0xff;
+                    if (length > 0) {
+                        int flags = stream[position + 1] & 0xff;
+                        randomAccess = (flags & 0x40) != 0;
+                        int stuffing = position + 2;
+                        if ((flags & 0x10) != 0) {
+                            pcr = (uint32(stream, position + 2) << 1) | ((stream[position + 6] & 0xff) >> 7);
+                            stuffing += 6;
+                        }
+                        for (int i = stuffing; i < position + 1 + length; i++) {
+                            assertEquals((byte) 0xff, stream[i]);
+                        }
+                    }
+                    position += 1 + length;
+                }
+                assertTrue(position <= end);
+
+                if (pid == TsOutputWriter.PID_PAT || pid == mPmtPid) {
+                    readTable(stream, pid, unitStart, position);
+                    continue;
+                }
+                assertEquals(mVideoPid, pid);
+                if (unitStart) {
+                    if (frame != null) {
+                        readPes(frame, pes.toByteArray());
+                        frames.add(frame);
+                    }
+                    frame = new Frame();
+                    frame.randomAccess = randomAccess;
+                    frame.pcr = pcr;
+                    frame.afterTables = mPat && mPmt;
+                    mPat = false;
+                    mPmt = false;
+                    pes = new ByteArrayOutputStream();
+                } else {
+                    assertFalse(randomAccess);
+                }
+                pes.write(stream, position, end - position);
+            }
+            if (frame != null) {
+                readPes(frame, pes.toByteArray());
+                frames.add(frame);
+            }
+        }
+
+        private void readTable(byte[] stream, int pid, boolean unitStart, int position) {
+            assertTrue(unitStart);
+            // skip the pointer field
+            position += 1 + (stream[position] & 0xff);
+            int sectionLength = ((stream[position + 1] & 0x0f) << 8) | (stream[position + 2] & 0xff);
+            assertEquals("crc of " + pid, 0, crc(stream, position, 3 + sectionLength));
+            if (pid == TsOutputWriter.PID_PAT) {
+                assertEquals(0, stream[position]);
+                mPmtPid = ((stream[position + 10] & 0x1f) << 8) | (stream[position + 11] & 0xff);
+                mPat = true;
+            } else {
+                assertEquals(2, stream[position]);
+                assertEquals(TsOutputWriter.STREAM_TYPE_H264, stream[position + 12]);
+                mVideoPid = ((stream[position + 13] & 0x1f) << 8) | (stream[position + 14] & 0xff);
+                int pcrPid = ((stream[position + 8] & 0x1f) << 8) | (stream[position + 9] & 0xff);
+                assertEquals(mVideoPid, pcrPid);
+                assertTrue(mPat);
+                mPmt = true;
+                tableCount++;
+            }
+        }
+
+        private static void readPes(Frame frame, byte[] pes) {
+            assertEquals(1, uint32(pes, 0) >> 8);
+            assertEquals(TsOutputWriter.STREAM_ID_VIDEO, pes[3] & 0xff);
+            // PTS only, with its marker bits
+            assertEquals(0x80, pes[7] & 0xc0);
+            assertEquals(0x21, pes[9] & 0xf1);
+            assertEquals(1, pes[11] & 1);
+            assertEquals(1, pes[13] & 1);
+            frame.pts = (((pes[9] >> 1) & 7L) << 30) | ((uint16(pes, 10) >> 1) << 15) | (uint16(pes, 12) >> 1);
+            frame.stream = Arrays.copyOfRange(pes, 9 + (pes[8] & 0xff), pes.length);
+        }
+
+        private static long uint32(byte[] bytes, int offset) {
+            return (uint16(bytes, offset) << 16) | uint16(bytes, offset + 2);
+        }
+
+        private static long uint16(byte[] bytes, int offset) {
+            return ((bytes[offset] & 0xffL) << 8) | (bytes[offset + 1] & 0xffL);
+        }
+
+        /**
+         * @return int MPEG-2 CRC-32 of the bytes, 0 when they end with their own CRC
+         */
+        private static int crc(byte[] bytes, int offset, int length) {
+            int crc = -1;
+            for (int i = offset; i < offset + length; i++) {
+                crc ^= (bytes[i] & 0xff) << 24;
+                for (int bit = 0; bit < 8; bit++) {
+                    crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+                }
+            }
+            return crc;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class YuvPackerTest {
+
+    private static final int LAYOUT_NV12 = 0;
+    private static final int LAYOUT_NV21 = 1;
+    private static final int LAYOUT_I420 = 2;
+    // U and V in separate buffers, each sample followed by a byte of something else
+    private static final int LAYOUT_SPLIT = 3;
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 36;
+
+    private final byte[] mY = new byte[WIDTH * HEIGHT];
+    private final byte[] mU = new byte[WIDTH * HEIGHT / 4];
+    private final byte[] mV = new byte[WIDTH * HEIGHT / 4];
+
+    public YuvPackerTest() {
+        Random random = new Random(1);
+        random.nextBytes(mY);
+        random.nextBytes(mU);
+        random.nextBytes(mV);
+    }
+
+    @Test
+    public void packsTightPlanes() {
+        for (int layout = LAYOUT_NV12; layout <= LAYOUT_I420; layout++) {
+            check(cameraFrame(layout, WIDTH, layout == LAYOUT_I420 ? WIDTH / 2 : WIDTH, false));
+        }
+    }
+
+    @Test
+    public void packsPaddedRows() {
+        // row strides rounded up as camera HALs do, the last row of each plane is not padded
+        for (int layout = LAYOUT_NV12; layout <= LAYOUT_I420; layout++) {
+            check(cameraFrame(layout, 80, layout == LAYOUT_I420 ? 48 : 80, false));
+        }
+    }
+
+    @Test
+    public void packsReadOnlyPlanes() {
+        // the camera planes are only read
+        for (int layout = LAYOUT_NV12; layout <= LAYOUT_I420; layout++) {
+            check(cameraFrame(layout, 80, layout == LAYOUT_I420 ? 48 : 80, true));
+        }
+    }
+
+    @Test
+    public void packsSeparatePlanesWithAPixelStrideOfTwo() {
+        check(cameraFrame(LAYOUT_SPLIT, WIDTH, WIDTH, false));
+        check(cameraFrame(LAYOUT_SPLIT, 80, 80, true));
+    }
+
+    @Test
+    public void rejectsSmallDestination() {
+        YuvFrame frame = cameraFrame(LAYOUT_NV12, WIDTH, WIDTH, false);
+        try {
+            YuvPacker.pack(frame, ByteBuffer.allocate(YuvPacker.packedSize(WIDTH, HEIGHT) - 1));
+            fail("short destination accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private void check(YuvFrame frame) {
+        int size = YuvPacker.packedSize(WIDTH, HEIGHT);
+        ByteBuffer dst = ByteBuffer.allocate(size + 16);
+        dst.position(5);
+        int yLimit = frame.y.limit();
+
+        assertEquals(size, YuvPacker.pack(frame, dst));
+        assertEquals(5 + size, dst.position());
+        for (int i = 0; i < mY.length; i++) {
+            assertEquals("luma " + i, mY[i], dst.get(5 + i));
+        }
+        int chroma = 5 + mY.length;
+        for (int i = 0; i < mU.length; i++) {
+            assertEquals("Cb " + i, mU[i], dst.get(chroma + 2 * i));
+            assertEquals("Cr " + i, mV[i], dst.get(chroma + 2 * i + 1));
+        }
+        // the source planes are left as they were
+        assertEquals(0, frame.y.position());
+        assertEquals(yLimit, frame.y.limit());
+        assertEquals(0, frame.u.position());
+    }
+
+    /**
+     * Lays the test image out as an ImageReader would: direct buffers, the given row strides,
+     * and for the semi-planar layouts U and V as views of one interleaved plane
+     */
+    private YuvFrame cameraFrame(int layout, int yRowStride, int uvRowStride, boolean readOnly) {
+        int chromaWidth = WIDTH / 2;
+        int chromaHeight = HEIGHT / 2;
+        ByteBuffer y = ByteBuffer.allocateDirect(yRowStride * (HEIGHT - 1) + WIDTH);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                y.put(row * yRowStride + col, mY[row * WIDTH + col]);
+            }
+        }
+        ByteBuffer u;
+        ByteBuffer v;
+        int pixelStride;
+        if (layout == LAYOUT_I420) {
+            pixelStride = 1;
+            u = ByteBuffer.allocateDirect(uvRowStride * (chromaHeight - 1) + chromaWidth);
+            v = ByteBuffer.allocateDirect(u.capacity());
+            for (int row = 0; row < chromaHeight; row++) {
+                for (int col = 0; col < chromaWidth; col++) {
+                    u.put(row * uvRowStride + col, mU[row * chromaWidth + col]);
+                    v.put(row * uvRowStride + col, mV[row * chromaWidth + col]);
+                }
+            }
+        } else if (layout == LAYOUT_SPLIT) {
+            pixelStride = 2;
+            u = ByteBuffer.allocateDirect(uvRowStride * (chromaHeight - 1) + WIDTH - 1);
+            v = ByteBuffer.allocateDirect(u.capacity());
+            for (int i = 0; i < u.capacity(); i++) {
+                u.put(i, (byte) 0x55);
+                v.put(i, (byte) 0xaa);
+            }
+            for (int row = 0; row < chromaHeight; row++) {
+                for (int col = 0; col < chromaWidth; col++) {
+                    u.put(row * uvRowStride + 2 * col, mU[row * chromaWidth + col]);
+                    v.put(row * uvRowStride + 2 * col, mV[row * chromaWidth + col]);
+                }
+            }
+        } else {
+            pixelStride = 2;
+            ByteBuffer plane = ByteBuffer.allocateDirect(uvRowStride * (chromaHeight - 1) + WIDTH);
+            byte[] first = layout == LAYOUT_NV12 ? mU : mV;
+            byte[] second = layout == LAYOUT_NV12 ? mV : mU;
+            for (int row = 0; row < chromaHeight; row++) {
+                for (int col = 0; col < chromaWidth; col++) {
+                    plane.put(row * uvRowStride + 2 * col, first[row * chromaWidth + col]);
+                    plane.put(row * uvRowStride + 2 * col + 1, second[row * chromaWidth + col]);
+                }
+            }
+            ByteBuffer head = plane.duplicate();
+            head.limit(plane.capacity() - 1);
+            ByteBuffer tail = plane.duplicate();
+            tail.position(1);
+            u = layout == LAYOUT_NV12 ? head.slice() : tail.slice();
+            v = layout == LAYOUT_NV12 ? tail.slice() : head.slice();
+        }
+        if (readOnly) {
+            y = y.asReadOnlyBuffer();
+            u = u.asReadOnlyBuffer();
+            v = v.asReadOnlyBuffer();
+        }
+        return new YuvFrame().set(y, yRowStride, u, v, uvRowStride, pixelStride, WIDTH, HEIGHT, 0);
+    }
+}
@@ -0,0 +1,319 @@
+/*'*****************************************************************************
+Copyright (c) 2018, Vuzix Corporation
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+*  Redistributions of source code must retain the above copyright
+   notice, this list of conditions and the following disclaimer.
+
+*  Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+
+*  Neither the name of Vuzix Corporation nor the names of
+   its contributors may be used to endorse or promote products derived
+   from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE,
+EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*'*****************************************************************************/
+
+package com.vuzix.sample.video_encoder.engine;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class YuvScalerTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 90;
+
+    private static final int LAYOUT_NV12 = 0;
+    private static final int LAYOUT_NV21 = 1;
+    private static final int LAYOUT_I420 = 2;
+    private static final int LAYOUT_PADDED = 3;
+
+    private static final CropRegion[] CROPS = {
+            CropRegion.zoom(WIDTH, HEIGHT, 2, 0.5f, 0.5f),
+            CropRegion.zoom(WIDTH, HEIGHT, 1.5f, 0.9f, 0.1f),
+            CropRegion.zoom(WIDTH, HEIGHT, 4, 0.3f, 0.7f),
+            new CropRegion(21, 13, 97, 61),
+            CropRegion.zoom(WIDTH, HEIGHT, 8, 1, 1)};
+    // enlarged, the size of the region, and reduced with a ratio that is not an integer
+    private static final int[][] SIZES = {{WIDTH, HEIGHT}, {64, 36}, {106, 60}};
+
+    private final byte[] mCard = testCard();
+
+    @Test
+    public void cropMatchesTheReferenceFilters() {
+        for (CropRegion crop : CROPS) {
+            for (int[] size : SIZES) {
+                for (int filter = YuvScaler.FILTER_BOX; filter <= YuvScaler.FILTER_BILINEAR; filter++) {
+                    byte[] scaled = scale(frame(LAYOUT_NV12), crop, size[0], size[1], filter);
+                    String name = crop + " to " + size[0] + "x" + size[1] + ", filter " + filter;
+                    // the bilinear weights are in 1/256, which at a sharp edge costs more than the rounding
+                    int tolerance = filter == YuvScaler.FILTER_BILINEAR ? 2 : 1;
+                    assertTrue(name, maxDifference(scaled, reference(crop, size[0], size[1], filter)) <= tolerance);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void everyPlaneLayoutScalesAlike() {
+        for (CropRegion crop : CROPS) {
+            for (int filter = YuvScaler.FILTER_BOX; filter <= YuvScaler.FILTER_BILINEAR; filter++) {
+                byte[] expected = scale(frame(LAYOUT_NV12), crop, 106, 60, filter);
+                for (int layout = LAYOUT_NV21; layout <= LAYOUT_PADDED; layout++) {
+                    assertArrayEquals(crop + ", layout " + layout, expected,
+                            scale(frame(layout), crop, 106, 60, filter));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void cropIsTheRegionScaledAlone() {
+        CropRegion crop = new CropRegion(20, 10, 120, 68);
+        byte[] region = new byte[crop.width * crop.height * 3 / 2];
+        for (int row = 0; row < crop.height; row++) {
+            System.arraycopy(mCard, (crop.y + row) * WIDTH + crop.x, region, row * crop.width, crop.width);
+        }
+        for (int row = 0; row < crop.height / 2; row++) {
+            System.arraycopy(mCard, WIDTH * HEIGHT + (crop.y / 2 + row) * WIDTH + crop.x,
+                    region, crop.width * crop.height + row * crop.width, crop.width);
+        }
+        YuvFrame alone = CameraFrames.semiPlanar(region, crop.width, crop.height, 0);
+        for (int filter = YuvScaler.FILTER_BOX; filter <= YuvScaler.FILTER_BILINEAR; filter++) {
+            assertArrayEquals(scale(alone, null, 80, 44, filter), scale(frame(LAYOUT_NV12), crop, 80, 44, filter));
+        }
+    }
+
+    @Test
+    public void zoomMatchesTheGoldenImages() throws IOException {
+        // the images hold NV12 frames, the chroma rows below the luma, as written by this scaler
+        // once checked against the reference filters; they pin the rounding down exactly
+        assertArrayEquals(golden("zoom2_centre.pgm", WIDTH, HEIGHT),
+                scale(frame(LAYOUT_NV12), CropRegion.zoom(WIDTH, HEIGHT, 2, 0.5f, 0.5f), WIDTH, HEIGHT,
+                        YuvScaler.FILTER_BILINEAR));
+        assertArrayEquals(golden("zoom3_corner.pgm", WIDTH, HEIGHT),
+                scale(frame(LAYOUT_NV12), CropRegion.zoom(WIDTH, HEIGHT, 3, 1, 1), WIDTH, HEIGHT,
+                        YuvScaler.FILTER_BILINEAR));
+        assertArrayEquals(golden("region_reduced.pgm", 64, 36),
+                scale(frame(LAYOUT_NV12), new CropRegion(30, 20, 100, 60), 64, 36, YuvScaler.FILTER_BOX));
+    }
+
+    @Test
+    public void enlargedRampStaysARamp() {
+        // a horizontal luma ramp zoomed in 4 times is interpolated, not repeated in steps
+        byte[] ramp = mCard.clone();
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                ramp[row * WIDTH + col] = (byte) col;
+            }
+        }
+        byte[] scaled = scale(CameraFrames.semiPlanar(ramp, WIDTH, HEIGHT, 0), new CropRegion(40, 22, 40, 22),
+                WIDTH, HEIGHT, YuvScaler.FILTER_BILINEAR);
+        for (int col = 4; col < WIDTH - 4; col++) {
+            double expected = 40 + (col + 0.5) / 4 - 0.5;
+            assertEquals("column " + col, expected, scaled[HEIGHT / 2 * WIDTH + col] & 0xff, 0.5);
+        }
+    }
+
+    private static byte[] scale(YuvFrame frame, CropRegion crop, int width, int height, int filter) {
+        ByteBuffer dst = ByteBuffer.allocate(width * height * 3 / 2 + 7);
+        dst.position(7);
+        assertEquals(width * height * 3 / 2, YuvScaler.scale(frame, crop, width, height, dst, filter));
+        assertEquals(dst.capacity(), dst.position());
+        byte[] scaled = new byte[width * height * 3 / 2];
+        System.arraycopy(dst.array(), 7, scaled, 0, scaled.length);
+        return scaled;
+    }
+
+    /**
+     * @return byte[] the region scaled sample by sample, averaging the covered area for the box
+     *         filter and interpolating between sample centres for the bilinear one
+     */
+    private byte[] reference(CropRegion crop, int width, int height, int filter) {
+        byte[] scaled = new byte[width * height * 3 / 2];
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                scaled[row * width + col] = (byte) sample(0, WIDTH, 1, crop.x, crop.y, crop.width, crop.height,
+                        width, height, col, row, filter);
+            }
+        }
+        for (int row = 0; row < height / 2; row++) {
+            for (int col = 0; col < width / 2; col++) {
+                for (int component = 0; component < 2; component++) {
+                    scaled[width * height + row * width + 2 * col + component] = (byte) sample(
+                            WIDTH * HEIGHT + component, WIDTH, 2, crop.x / 2, crop.y / 2, crop.width / 2,
+                            crop.height / 2, width / 2, height / 2, col, row, filter);
+                }
+            }
+        }
+        return scaled;
+    }
+
+    private int sample(int base, int rowStride, int pixelStride, int x, int y, int width, int height,
+                       int dstWidth, int dstHeight, int col, int row, int filter) {
+        if (filter == YuvScaler.FILTER_BILINEAR) {
+            double sx = Math.max(0, (col + 0.5) * width / dstWidth - 0.5);
+            double sy = Math.max(0, (row + 0.5) * height / dstHeight - 0.5);
+            int x0 = (int) sx;
+            int y0 = (int) sy;
+            int x1 = Math.min(x0 + 1, width - 1);
+            int y1 = Math.min(y0 + 1, height - 1);
+            double wx = sx - x0;
+            double wy = sy - y0;
+            double top = (1 - wx) * at(base, rowStride, pixelStride, x + x0, y + y0)
+                    + wx * at(base, rowStride, pixelStride, x + x1, y + y0);
+            double bottom = (1 - wx) * at(base, rowStride, pixelStride, x + x0, y + y1)
+                    + wx * at(base, rowStride, pixelStride, x + x1, y + y1);
+            return (int) Math.round((1 - wy) * top + wy * bottom);
+        }
+        int x0 = (int) ((long) col * width / dstWidth);
+        int x1 = Math.max(x0 + 1, (int) ((long) (col + 1) * width / dstWidth));
+        int y0 = (int) ((long) row * height / dstHeight);
+        int y1 = Math.max(y0 + 1, (int) ((long) (row + 1) * height / dstHeight));
+        double sum = 0;
+        for (int j = y0; j < y1; j++) {
+            for (int i = x0; i < x1; i++) {
+                sum += at(base, rowStride, pixelStride, x + i, y + j);
+            }
+        }
+        return (int) Math.round(sum / ((x1 - x0) * (y1 - y0)));
+    }
+
+    private int at(int base, int rowStride, int pixelStride, int x, int y) {
+        return mCard[base + y * rowStride + x * pixelStride] & 0xff;
+    }
+
+    private static int maxDifference(byte[] a, byte[] b) {
+        assertEquals(a.length, b.length);
+        int max = 0;
+        for (int i = 0; i < a.length; i++) {
+            max = Math.max(max, Math.abs((a[i] & 0xff) - (b[i] & 0xff)));
+        }
+        return max;
+    }
+
+    /**
+     * @return YuvFrame of the test card with its planes laid out as the camera may deliver them
+     */
+    private YuvFrame frame(int layout) {
+        if (layout == LAYOUT_NV12) {
+            return CameraFrames.semiPlanar(mCard, WIDTH, HEIGHT, 0);
+        }
+        int stride = layout == LAYOUT_PADDED ? WIDTH + 32 : WIDTH;
+        ByteBuffer y = ByteBuffer.allocateDirect(stride * HEIGHT);
+        for (int row = 0; row < HEIGHT; row++) {
+            y.position(row * stride);
+            y.put(mCard, row * WIDTH, WIDTH);
+        }
+        y.clear();
+        int chroma = WIDTH * HEIGHT;
+        if (layout == LAYOUT_I420) {
+            ByteBuffer u = ByteBuffer.allocateDirect(chroma / 4);
+            ByteBuffer v = ByteBuffer.allocateDirect(chroma / 4);
+            for (int i = 0; i < chroma / 4; i++) {
+                u.put(i, mCard[chroma + 2 * i]);
+                v.put(i, mCard[chroma + 2 * i + 1]);
+            }
+            return new YuvFrame().set(y, stride, u, v, WIDTH / 2, 1, WIDTH, HEIGHT, 0);
+        }
+        ByteBuffer interleaved = ByteBuffer.allocateDirect(stride * HEIGHT / 2);
+        for (int row = 0; row < HEIGHT / 2; row++) {
+            for (int col = 0; col < WIDTH / 2; col++) {
+                byte u = mCard[chroma + row * WIDTH + 2 * col];
+                byte v = mCard[chroma + row * WIDTH + 2 * col + 1];
+                // NV21 has V first
+                boolean vFirst = layout == LAYOUT_NV21;
+                interleaved.put(row * stride + 2 * col, vFirst ? v : u);
+                interleaved.put(row * stride + 2 * col + 1, vFirst ? u : v);
+            }
+        }
+        ByteBuffer first = interleaved.duplicate();
+        ByteBuffer second = interleaved.duplicate();
+        second.position(1);
+        second = second.slice();
+        return layout == LAYOUT_NV21
+                ? new YuvFrame().set(y, stride, second, first, stride, 2, WIDTH, HEIGHT, 0)
+                : new YuvFrame().set(y, stride, first, second, stride, 2, WIDTH, HEIGHT, 0);
+    }
+
+    /**
+     * @return byte[] NV12 test card: checkers, a ramp and rings in luma, ramps in chroma, computed
+     *         exactly so the golden images do not depend on the floating point library
+     */
+    static byte[] testCard() {
+        byte[] nv12 = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                int value;
+                if (row < HEIGHT / 2) {
+                    value = (col / 10 + row / 9) % 2 == 0 ? 200 : 50;
+                } else if (col < WIDTH / 2) {
+                    value = 16 + col * 3;
+                } else {
+                    int dx = col - WIDTH * 3 / 4;
+                    int dy = row - HEIGHT * 3 / 4;
+                    // Math.sqrt is correctly rounded, so its floor is exact
+                    value = (int) Math.sqrt(dx * dx + dy * dy) / 4 % 2 == 0 ? 235 : 16;
+                }
+                nv12[row * WIDTH + col] = (byte) value;
+            }
+        }
+        for (int row = 0; row < HEIGHT / 2; row++) {
+            for (int col = 0; col < WIDTH / 2; col++) {
+                nv12[WIDTH * HEIGHT + row * WIDTH + 2 * col] = (byte) (col * 255 / (WIDTH / 2 - 1));
+                nv12[WIDTH * HEIGHT + row * WIDTH + 2 * col + 1] = (byte) (row * 255 / (HEIGHT / 2 - 1));
+            }
+        }
+        return nv12;
+    }
+
+    /**
+     * @return byte[] NV12 frame read from a binary PGM resource, width wide and 3/2 height high
+     */
+    private byte[] golden(String name, int width, int height) throws IOException {
+        InputStream in = getClass().getResourceAsStream(name);
+        assertNotNull(name, in);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        byte[] file = out.toByteArray();
+        byte[] header = ("P5\n" + width + " " + height * 3 / 2 + "\n255\n").getBytes(Charset.forName("US-ASCII"));
+        assertArrayEquals(name, header, Arrays.copyOf(file, header.length));
+        return Arrays.copyOfRange(file, header.length, file.length);
+    }
+}
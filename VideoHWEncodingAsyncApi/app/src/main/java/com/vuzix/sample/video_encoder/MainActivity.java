@@ -37,25 +37,21 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
-import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CaptureRequest;
-import android.media.Image;
-import android.media.ImageReader;
-import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.os.Bundle;
-import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.util.Log;
+import android.view.KeyEvent;
 import android.view.Surface;
 import android.view.TextureView;
 import android.view.View;
@@ -63,14 +59,45 @@ import android.view.WindowManager;
 import android.widget.Button;
 import android.widget.Toast;
 
-import java.io.File;
+import com.vuzix.sample.video_encoder.engine.AsyncEncoderDriver;
+import com.vuzix.sample.video_encoder.engine.BitrateController;
+import com.vuzix.sample.video_encoder.engine.CodecIndex;
+import com.vuzix.sample.video_encoder.engine.CodecSelector;
+import com.vuzix.sample.video_encoder.engine.CropRegion;
+import com.vuzix.sample.video_encoder.engine.EncoderDriver;
+import com.vuzix.sample.video_encoder.engine.EncoderInput;
+import com.vuzix.sample.video_encoder.engine.FrameDropPolicy;
+import com.vuzix.sample.video_encoder.engine.FrameFanout;
+import com.vuzix.sample.video_encoder.engine.FrameSink;
+import com.vuzix.sample.video_encoder.engine.GopScheduler;
+import com.vuzix.sample.video_encoder.engine.ImageReaderEncoderInput;
+import com.vuzix.sample.video_encoder.engine.MediaCodecEncoder;
+import com.vuzix.sample.video_encoder.engine.MotionGate;
+import com.vuzix.sample.video_encoder.engine.MuxerOutputWriter;
+import com.vuzix.sample.video_encoder.engine.MuxerSegmentFactory;
+import com.vuzix.sample.video_encoder.engine.OutputWriter;
+import com.vuzix.sample.video_encoder.engine.ParallelYuvScaler;
+import com.vuzix.sample.video_encoder.engine.PreEventBuffer;
+import com.vuzix.sample.video_encoder.engine.PreEventOutputWriter;
+import com.vuzix.sample.video_encoder.engine.QueuedOutputWriter;
+import com.vuzix.sample.video_encoder.engine.RtpOutputWriter;
+import com.vuzix.sample.video_encoder.engine.SceneChangeDetector;
+import com.vuzix.sample.video_encoder.engine.SegmentedOutputWriter;
+import com.vuzix.sample.video_encoder.engine.SurfaceEncoderInput;
+import com.vuzix.sample.video_encoder.engine.YuvScaler;
+
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This sample shows how to use the hardware encoder for H.264 video encoding. Using the hardware
@@ -86,10 +113,11 @@ public class MainActivity extends Activity implements RotationListener.rotationC
     private Button mRecordButton;
     private TextureView mTextureView;
     private String mCameraId;
+    private int mSensorTimestampSource = CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_UNKNOWN;
     protected CameraDevice mCameraDevice;
     protected CameraCaptureSession mCameraCaptureSessions;
     protected CaptureRequest.Builder mCaptureRequestBuilder;
-    private ImageReader mImageReader;
+    private EncoderInput mEncoderInput;
     private RotationListener mRotationListener;
 
 
@@ -99,31 +127,109 @@ public class MainActivity extends Activity implements RotationListener.rotationC
     private HandlerThread mBackgroundPreviewThread;
     private Handler mBackgroundCodecHandler;
     private HandlerThread mBackgroundCodecThread;
+    private Handler mBackgroundStreamHandler;
+    private HandlerThread mBackgroundStreamThread;
 
     private static final int REQUEST_CAMERA_PERMISSION = 200;
     // parameters for the encoder
     private static final int FRAME_RATE = 24;               // 24fps
     private static final int IFRAME_INTERVAL = 5;           // 5 seconds between I-frames
+    // in INPUT_MODE_BUFFER the GOPs follow the scene instead: an I-frame on a scene change, at
+    // least MIN_GOP_MS after the previous one, and at least every MAX_GOP_SEC in a static scene
+    private static final boolean SCENE_CHANGE_GOP = true;
+    private static final int MIN_GOP_MS = 1000;
+    private static final int MAX_GOP_SEC = 10;
+    // in INPUT_MODE_BUFFER the recording can skip static scenes: frames are encoded while
+    // something moves and MOTION_HOLD_MS after, then only one every MOTION_KEEP_ALIVE_MS; the
+    // MOTION_PRE_ROLL_MS before the motion was seen is encoded with it, within the frame queue
+    private static final boolean MOTION_GATE = false;
+    private static final float MOTION_SENSITIVITY = MotionGate.DEFAULT_SENSITIVITY;
+    private static final int MOTION_HOLD_MS = 3000;
+    private static final int MOTION_KEEP_ALIVE_MS = 1000;
+    private static final int MOTION_PRE_ROLL_MS = 250;
+    // loop recording: files of at most a minute or 64MB, the newest hour of recordings in the
+    // output directory is kept, earlier sessions and the stream included
+    private static final int SEGMENT_DURATION_SEC = 60;
+    private static final long SEGMENT_MAX_BYTES = 64L * 1024 * 1024;
+    private static final int MAX_SEGMENTS = 60;
+    // samples queued to the writer thread, 2s of storage stall before frames are dropped
+    private static final int WRITER_QUEUE_SAMPLES = 2 * FRAME_RATE;
+    // the configured bitrate is lowered down to a quarter of it while the pipeline falls behind
+    private static final boolean ADAPTIVE_BITRATE = true;
     private static final int MAX_QUEUE_ELEMENTS = 8;
+    // record video size and bitrate
+    private static final int ENCODE_WIDTH = 1280;
+    private static final int ENCODE_HEIGHT = 720;
+    private static final int ENCODE_BIT_RATE = 6164000;
+    // the encoder is prepared and started while previewing, Record only switches the capture session
+    private static final boolean WARM_STANDBY = true;
+    // the file is closed at most STOP_TIMEOUT_MS after the capture ends, even when the encoder
+    // never drains its last frames
+    private static final int STOP_TIMEOUT_MS = 2000;
+    // a low bitrate 360p copy for remote viewing, encoded from the same frames in INPUT_MODE_BUFFER
+    private static final boolean STREAM_OUTPUT = true;
+    private static final int STREAM_WIDTH = 640;
+    private static final int STREAM_HEIGHT = 360;
+    private static final int STREAM_BIT_RATE = 800000;
+    // sends the stream live as RTP over UDP to a viewer at this numeric address instead of writing
+    // it to a file, e.g. "192.168.1.20"; the SDP to open it with is logged when it is prepared
+    private static final String STREAM_RTP_ADDRESS = null;
+    private static final int STREAM_RTP_PORT = 5004;
+    // threads scaling the frames of the stream down
+    private static final int STREAM_SCALER_THREADS = 2;
+    private static final int STREAM_QUEUE_ELEMENTS = 4;
+    // in INPUT_MODE_BUFFER the up and down keys zoom into the centre of the frames, by ZOOM_STEP
+    // up to MAX_ZOOM; the region is cropped and enlarged while packing, with ZOOM_SCALER_THREADS
+    private static final float ZOOM_STEP = 1.25f;
+    private static final float MAX_ZOOM = 4f;
+    private static final int ZOOM_SCALER_THREADS = 2;
+
+    // how the camera frames reach the encoder
+    public static final int INPUT_MODE_BUFFER = 0;          // copied through ByteBuffers, allows CPU processing
+    public static final int INPUT_MODE_SURFACE = 1;         // rendered by the camera into the encoder surface
+
+    // how the encoded frames are stored
+    public static final int RECORD_MODE_CONTINUOUS = 0;     // everything, in rolling segments
+    public static final int RECORD_MODE_PRE_EVENT = 1;      // only clips saved with a long press, with pre-roll
+    private static final int PRE_EVENT_SEC = 30;            // pre-roll of the saved clips
+    // RECORD_MODE_PRE_EVENT keeps the encoder running into a PRE_EVENT_SEC buffer and only saves
+    // the clips started and ended with a long press on the record button
+    private static final int RECORD_MODE = RECORD_MODE_CONTINUOUS;
+    // how the files are written: MP4 by MediaMuxer, fragmented MP4 (moof/mdat per GOP, playable
+    // after a crash) or MPEG-TS (playable while being written, .ts files)
+    private static final int CONTAINER = MuxerSegmentFactory.CONTAINER_FRAGMENTED_MP4;
 
     private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
-    private static final String ENCODER = "OMX.qcom.video.encoder.avc"; // HW encoder
-    //private static final String ENCODER = "OMX.google.h264.encoder";  // SW encoder
-
-    private MediaCodec mEncoder;
-    private MediaMuxer mMuxer;
-    private MediaFormat mEncoderFormat = null;
-
-    private LinkedList<byte[]> mBytesQueue;
-    private final Object mBytesQueueLock = new Object();
-    private int mQueueElementCount;
-
+    // the encoder is chosen by CodecIndex.rankEncoders(), from capabilities and a calibration run
+
+    private EncoderDriver mEncoderDriver;
+    // reports the recording of mEncoderDriver, each encoder gets its own
+    private RecordingListener mEncoderListener;
+    // the session recording with mEncoderDriver, until it is closed
+    private RecordingSessionCallback mRecordingSession;
+    private EncoderDriver mStreamDriver;
+    private ParallelYuvScaler mStreamScaler;
+    private ParallelYuvScaler mZoomScaler;
+    // digital zoom, 1 for the whole frame; changed on the UI thread
+    private volatile float mZoom = 1f;
+    // the encoder setup below is only touched on the preview thread
+    private Surface mEncoderSurface;
+    private CodecIndex.Entry mEncoderCodec;
+    // encoders of the recording that failed to configure or start, skipped until the app is
+    // resumed again; a hardware encoder may only have been held by another app
+    private final Set<String> mFailedEncoders = new HashSet<String>();
+    private int mEncoderInputMode;
+    private boolean mEncoderRecording;
+    private long mStopClickNs;
+    private volatile boolean mResumed;
+    // what to give up when the encoder falls behind the camera
+    private FrameDropPolicy mDropPolicy = FrameDropPolicy.dropNewest();
+
+    private int mInputMode = INPUT_MODE_BUFFER;
+    private PreEventOutputWriter mPreEventWriter;
+    private MuxerSegmentFactory mEventFactory;
+    private int mEventCount;
     private boolean mVideoRecording = false;
-    private boolean mMuxerStarted;
-    private boolean mCaptureSessionStopped;
-
-    private int mTrackIndex;
-    private long mFramesIndex;
 
     /**
      * Setup the view when created
@@ -141,18 +247,33 @@ public class MainActivity extends Activity implements RotationListener.rotationC
                 onRecordOrStopClick();
             }
         });
+        mRecordButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                return onSaveEventLongClick();
+            }
+        });
         mRotationListener = new RotationListener();
+
+        // loads the codec index, or builds it after a system update, before a recording needs it
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                CodecSelector.getIndex(getApplicationContext());
+            }
+        }, "Codec Index").start();
     }
 
     private void onRecordOrStopClick() {
         if(!mVideoRecording) {
             setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LOCKED);
-            recordVideo();
+            recordVideo(mInputMode);
             mRecordButton.setText(R.string.stop);
             mVideoRecording = true;
         }
         else{
             try {
+                mStopClickNs = System.nanoTime();
                 mCameraCaptureSessions.abortCaptures();
                 mCameraCaptureSessions.close();
                 createCameraPreview();
@@ -165,6 +286,33 @@ public class MainActivity extends Activity implements RotationListener.rotationC
         }
     }
 
+    /**
+     * Starts or ends saving a clip when recording in RECORD_MODE_PRE_EVENT
+     * @return true if the long click was consumed
+     */
+    private boolean onSaveEventLongClick() {
+        PreEventOutputWriter preEventWriter = mPreEventWriter;
+        if (!mVideoRecording || preEventWriter == null) {
+            return false;
+        }
+        if (preEventWriter.isEventActive()) {
+            preEventWriter.endEvent();
+            Toast.makeText(MainActivity.this, "Event saved", Toast.LENGTH_SHORT).show();
+            return true;
+        }
+        try {
+            OutputWriter eventWriter = mEventFactory.createSegment(mEventCount++);
+            if (!preEventWriter.startEvent(eventWriter)) {
+                eventWriter.release();
+                return true;
+            }
+            Toast.makeText(MainActivity.this, "Saving event", Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
     /**
      * Creates required background threads. Called when we resume
      */
@@ -182,6 +330,16 @@ public class MainActivity extends Activity implements RotationListener.rotationC
         mBackgroundCodecThread = new HandlerThread("Codec Thread");
         mBackgroundCodecThread.start();
         mBackgroundCodecHandler = new Handler(mBackgroundCodecThread.getLooper());
+
+        //The thread of the stream encoder, so it never holds up the recording
+        mBackgroundStreamThread = new HandlerThread("Stream Codec Thread");
+        mBackgroundStreamThread.start();
+        mBackgroundStreamHandler = new Handler(mBackgroundStreamThread.getLooper());
+
+        //the threads scaling the frames of the stream
+        mStreamScaler = new ParallelYuvScaler(STREAM_SCALER_THREADS);
+        //the threads enlarging the zoomed region of the recording
+        mZoomScaler = new ParallelYuvScaler(ZOOM_SCALER_THREADS);
     }
 
     /**
@@ -191,6 +349,7 @@ public class MainActivity extends Activity implements RotationListener.rotationC
         mBackgroundPreviewThread.quitSafely();
         mBackgroundThread.quitSafely();
         mBackgroundCodecThread.quitSafely();
+        mBackgroundStreamThread.quitSafely();
 
         try {
             mBackgroundPreviewThread.join();
@@ -206,6 +365,16 @@ public class MainActivity extends Activity implements RotationListener.rotationC
             mBackgroundCodecThread.join();
             mBackgroundCodecThread = null;
             mBackgroundCodecHandler = null;
+
+            mBackgroundStreamThread.join();
+            mBackgroundStreamThread = null;
+            mBackgroundStreamHandler = null;
+
+            //the frames have all been scaled once the threads feeding the encoders are done
+            mStreamScaler.close();
+            mStreamScaler = null;
+            mZoomScaler.close();
+            mZoomScaler = null;
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -213,22 +382,52 @@ public class MainActivity extends Activity implements RotationListener.rotationC
 
     /**
      * Start to record the video, setup the preview and video stream for camera
-     * Setup the image reader to receive the captured images
+     * The encoder setup runs on the preview thread, from a warm standby when one is ready
+     *
+     * @param inputMode int INPUT_MODE_BUFFER to copy frames through an image reader, or
+     *                  INPUT_MODE_SURFACE to have the camera render into the encoder
      */
-    protected void recordVideo() {
+    protected void recordVideo(final int inputMode) {
         if(null == mCameraDevice) {
             Log.e(TAG, "mCameraDevice is null");
             return;
         }
+        final long recordClickNs = System.nanoTime();
+        mBackgroundPreviewHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                startRecording(inputMode, recordClickNs);
+            }
+        });
+    }
+
+    /**
+     * Switches the camera to the recording session. A warm encoder is used as it is, otherwise the
+     * encoder is configured and started while the camera configures the session
+     * @param inputMode int INPUT_MODE_BUFFER or INPUT_MODE_SURFACE
+     * @param recordClickNs long System.nanoTime() when Record was pressed
+     */
+    private void startRecording(int inputMode, long recordClickNs) {
+        // the encoder of the previous recording may still be draining, it is no standby
+        boolean standby = mEncoderDriver != null && !mEncoderRecording;
+        if (standby && mEncoderInputMode != inputMode) {
+            releaseStandbyEncoder();
+            standby = false;
+        }
+        if (!standby) {
+            // a fallback replaces the input surface, so it has to happen before the session
+            if (!prepareEncoderInput(inputMode) || (inputMode == INPUT_MODE_SURFACE && !startEncoder())) {
+                releaseEncoderInput();
+                reportNoEncoder();
+                return;
+            }
+        }
+        mEncoderRecording = true;
+        RecordingSessionCallback sessionCallback = new RecordingSessionCallback(mEncoderInput);
 
         try {
-            final int encodeWidth =1280;        // record video size
-            final int encodeHeight =720;       // record video size
-            final int encodeBitRate = 6164000; // Mbps
-
             List<Surface> outputSurfaces = new ArrayList<Surface>();
-            mImageReader = ImageReader.newInstance(encodeWidth, encodeHeight, ImageFormat.YUV_420_888, 2);
-            outputSurfaces.add(mImageReader.getSurface());
+            outputSurfaces.add(mEncoderSurface);
 
             SurfaceTexture texture = mTextureView.getSurfaceTexture();
             texture.setDefaultBufferSize(640, 360); // preview size
@@ -236,327 +435,592 @@ public class MainActivity extends Activity implements RotationListener.rotationC
             outputSurfaces.add(previewSurface);
 
             mCaptureRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
-            mCaptureRequestBuilder.addTarget(mImageReader.getSurface());
+            mCaptureRequestBuilder.addTarget(mEncoderSurface);
             mCaptureRequestBuilder.addTarget(previewSurface);
 
-            mImageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
-
-                boolean first = true;
-
-                @Override
-                public void onImageAvailable(ImageReader reader) {
-                    Image image = reader.acquireLatestImage();
-                    if(image!=null){
-                        ByteBuffer bufferY = image.getPlanes()[0].getBuffer();
-                        ByteBuffer bufferU = image.getPlanes()[1].getBuffer();
-
-                        byte[] bytes = new byte[bufferY.capacity() + bufferU.capacity()];
-                        bufferY.get(bytes, 0, bufferY.capacity());
-                        bufferU.get(bytes, bufferY.capacity(), bufferU.capacity());
-
-                        synchronized (mBytesQueueLock) {
-                            mBytesQueue.add(bytes);
-                            mFramesIndex++;
-                            mQueueElementCount++;
-
-                            if (mQueueElementCount >= MAX_QUEUE_ELEMENTS) {
-                                try {
-                                    mBytesQueueLock.wait();
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                            } else {
-                                mBytesQueueLock.notifyAll();
-                            }
-                        }
-
-                        //begin to start encoder once receive the first captured image
-                        if(first) {
-                            first = false;
-                            mBackgroundHandler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    startEncoder();
-                                }
-                            });
-                        }
-                        image.close();
-                    }
-                }
-            }, mBackgroundHandler);
-
-            mCameraDevice.createCaptureSession(outputSurfaces, new CameraCaptureSession.StateCallback() {
-                @Override
-                public void onConfigured(CameraCaptureSession session) {
-                    mCameraCaptureSessions = session;
-                    mCaptureSessionStopped = false;
-                    //After the camera capture session is created, call prepare HW Encoder
-                    prepareEncoder( encodeWidth, encodeHeight, encodeBitRate);
-                    updatePreview();
-
-                }
-                @Override
-                public void onConfigureFailed(CameraCaptureSession session) {
-                }
-                @Override
-                public void onClosed(CameraCaptureSession session) {
-                    synchronized (mBytesQueueLock) {
-                        mCaptureSessionStopped = true;
-                        mBytesQueueLock.notifyAll();
-                    }
-                }
-            }, mBackgroundPreviewHandler);
+            mCameraDevice.createCaptureSession(outputSurfaces, sessionCallback, mBackgroundPreviewHandler);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
+        if (!standby && inputMode != INPUT_MODE_SURFACE) {
+            // the camera configures the session in the meantime
+            if (!startEncoder()) {
+                mEncoderRecording = false;
+                releaseEncoderInput();
+                reportNoEncoder();
+                return;
+            }
+        }
+        // a fallback in startEncoder() may have replaced the encoder the session was created with
+        sessionCallback.mDriver = mEncoderDriver;
+        mEncoderListener.setRecordStart(recordClickNs, standby);
+        mRecordingSession = sessionCallback;
     }
 
     /**
-     * Utility to prepare and configure the encoder parameters
-     * Need to call startEncoder() once receive the first captured image in image reader
-     *
-     * @param width int width of the video image in pixels
-     * @param height int height of the video image in pixels
-     * @param bitRate int rate of the encoder in bits per second
+     * Switches the camera to the recording and stops the encoder once the recording session is
+     * closed. Runs on the preview thread, after startRecording() has set the encoder
      */
-    private void prepareEncoder(int width, int height, int bitRate){
-
-        mMuxerStarted = false;
-        mTrackIndex = -1;
-        mFramesIndex = 0;
-
-        try {
-            mMuxer = new MediaMuxer(getOutputMediaPath(width, height), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-            mMuxer.setOrientationHint(getImageRotationDegrees(false));
+    private class RecordingSessionCallback extends CameraCaptureSession.StateCallback {
+        private final EncoderInput mInput;
+        // null if no encoder could be started, the session is then replaced by the preview
+        private EncoderDriver mDriver;
+        private boolean mStopped;
+
+        RecordingSessionCallback(EncoderInput input) {
+            mInput = input;
+        }
 
-            mEncoderFormat = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
-            int colorFormat = selectColorFormat(Objects.requireNonNull(selectCodec()));
+        @Override
+        public void onConfigured(CameraCaptureSession session) {
+            if (mDriver == null) {
+                createCameraPreview();
+                return;
+            }
+            mCameraCaptureSessions = session;
+            updatePreview();
+        }
 
-            mEncoderFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                    colorFormat);
-            mEncoderFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-            mEncoderFormat.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-            mEncoderFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+        @Override
+        public void onConfigureFailed(CameraCaptureSession session) {
+            if (mDriver == null) {
+                // the abandoned encoder input took the session down with it
+                createCameraPreview();
+            }
+        }
 
-            mBytesQueue = new LinkedList<byte[]>();
-            mQueueElementCount = 0;
-            mEncoder = MediaCodec.createByCodecName(Objects.requireNonNull(selectCodec()).getName());
+        @Override
+        public void onClosed(CameraCaptureSession session) {
+            stopEncoder();
+        }
 
-        }catch(IOException e) {
-            e.printStackTrace();
+        /**
+         * Ends the recording once, when the session is closed or the app paused. The encoder
+         * drains and the file is closed within the stop timeout
+         */
+        void stopEncoder() {
+            if (mDriver == null || mStopped) {
+                return;
+            }
+            mStopped = true;
+            if (mRecordingSession == this) {
+                mRecordingSession = null;
+            }
+            mDriver.stop(mInput);
         }
     }
 
     /**
-     * Utility to start the HW encoder,set the Callback to handle the input and output for the MediaCodec
-     * This method need to be called once receive the first captured image in image reader
+     * Releases the input of an encoder that could not be set up. Runs on the preview thread
      */
-    void startEncoder(){
-
-        mEncoder.setCallback(new MediaCodec.Callback(){
+    private void releaseEncoderInput() {
+        if (mEncoderInput != null) {
+            mEncoderInput.release();
+            mEncoderInput = null;
+        }
+        mEncoderSurface = null;
+    }
 
+    /**
+     * Tells the user that no encoder can record, and returns to the preview if recording was
+     * requested
+     */
+    private void reportNoEncoder() {
+        runOnUiThread(new Runnable() {
             @Override
-            public void onOutputFormatChanged(MediaCodec codec,MediaFormat format) {
-
-                if (mMuxerStarted) {
-                    throw new RuntimeException("format changed twice");
+            public void run() {
+                Toast.makeText(MainActivity.this, "No encoder can record " + ENCODE_WIDTH + "x" + ENCODE_HEIGHT,
+                        Toast.LENGTH_LONG).show();
+                if (mVideoRecording) {
+                    mRecordButton.setText(R.string.record);
+                    mVideoRecording = false;
+                    setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_SENSOR_LANDSCAPE);
                 }
-
-                MediaFormat newFormat = codec.getOutputFormat();
-                Log.d(TAG, "encoder output format changed: " + newFormat);
-
-                mTrackIndex = mMuxer.addTrack(newFormat);
-                mMuxer.start();
-                mMuxerStarted = true;
             }
+        });
+    }
 
-            @Override
-            public void onInputBufferAvailable(MediaCodec codec, int index) {
-
-                long ptsUsec = computePresentationTime(mFramesIndex);
-                byte[] inputBytes = null;
-
-                synchronized (mBytesQueueLock) {
-                    inputBytes = mBytesQueue.poll();
-                    mQueueElementCount --;
-
-                    if(mQueueElementCount == 0){
-                        try {
-                            mBytesQueueLock.wait();
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                    }else{
-                        if(mQueueElementCount <0)
-                            mQueueElementCount = 0;
-                        mBytesQueueLock.notifyAll();
-                    }
-                }
-
-                if( inputBytes != null && inputBytes.length > 0 && index >=0 ){
-                    ByteBuffer input = codec.getInputBuffer(index);
-                    input.clear();
-                    input.put(inputBytes);
-                    if(mCaptureSessionStopped){
+    /**
+     * Creates the encoder input, configures the encoder and creates its capture surface, without
+     * starting the encoder
+     * @param inputMode int INPUT_MODE_BUFFER or INPUT_MODE_SURFACE
+     * @return false if no encoder could be configured
+     */
+    private boolean prepareEncoderInput(int inputMode) {
+        if (inputMode == INPUT_MODE_SURFACE) {
+            mEncoderInput = new SurfaceEncoderInput();
+        } else {
+            ImageReaderEncoderInput imageReaderInput = new ImageReaderEncoderInput(2, mBackgroundHandler);
+            imageReaderInput.setTimestampSource(mSensorTimestampSource);
+            mEncoderInput = imageReaderInput;
+        }
+        mEncoderInputMode = inputMode;
 
-                        codec.queueInputBuffer(index, 0, 0, ptsUsec, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                    }else
-                        codec.queueInputBuffer(index, 0, inputBytes.length, ptsUsec, 0);
-                }
-            }
+        mEncoderSurface = null;
+        return prepareEncoder(ENCODE_WIDTH, ENCODE_HEIGHT, ENCODE_BIT_RATE);
+    }
 
-            @Override
-            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+    /**
+     * Prepares and starts an encoder while previewing, so that Record only has to switch the
+     * capture session. Runs on the preview thread
+     */
+    private void warmUpEncoder() {
+        if (!WARM_STANDBY || !mResumed || mEncoderDriver != null || mCameraDevice == null) {
+            return;
+        }
+        long startNs = System.nanoTime();
+        if (!prepareEncoderInput(mInputMode) || !startEncoder()) {
+            // reported when recording is requested, which tries the encoders again
+            Log.e(TAG, "no encoder for the standby");
+            releaseEncoderInput();
+            return;
+        }
+        Log.d(TAG, "encoder on standby in " + (System.nanoTime() - startNs) / 1000000 + "ms");
+    }
 
-                if(!mMuxerStarted){
-                    throw new RuntimeException("muxer hasn't started");
-                }
+    /**
+     * Releases the standby encoder, if any and not recording. Runs on the preview thread
+     */
+    private void releaseStandbyEncoder() {
+        if (mEncoderDriver == null || mEncoderRecording) {
+            return;
+        }
+        mEncoderDriver.release();
+        mEncoderDriver = null;
+        mEncoderSurface = null;
+        if (mStreamDriver != null) {
+            mStreamDriver.release();
+            mStreamDriver = null;
+        }
+    }
 
-                ByteBuffer outputBuffer = codec.getOutputBuffer(index);
+    /**
+     * Runs a task on the preview thread, where the encoder is set up
+     * @param task Runnable to run
+     */
+    private void postToPreviewThread(Runnable task) {
+        Handler handler = mBackgroundPreviewHandler;
+        if (handler != null) {
+            handler.post(task);
+        }
+    }
 
-                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // The codec config data was pulled out and fed to the muxer when we got
-                    // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
-                    Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                    codec.releaseOutputBuffer(index, false);
-                    return;
+    /**
+     * Utility to prepare and configure the best encoder and its output, and to create the capture
+     * surface. An encoder that fails is skipped for the next one in CodecIndex.rankEncoders()
+     * order. Need to call startEncoder() once the encoder surface has been created
+     *
+     * @param width int width of the video image in pixels
+     * @param height int height of the video image in pixels
+     * @param bitRate int rate of the encoder in bits per second
+     * @return false if no encoder could be configured, none is then set
+     */
+    private boolean prepareEncoder(int width, int height, int bitRate){
+        // the index is loaded at startup, so no codec is enumerated on the way to recording
+        long lookupNs = System.nanoTime();
+        int inputColorFormat = mEncoderInputMode == INPUT_MODE_SURFACE
+                ? MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface
+                : MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
+        List<CodecIndex.Entry> candidates = CodecSelector.getIndex(this).rankEncoders(MIME_TYPE, width, height,
+                FRAME_RATE, inputColorFormat);
+        Log.d(TAG, "codec lookup took " + (System.nanoTime() - lookupNs) / 1000 + "us: " + candidates);
+
+        for (CodecIndex.Entry codec : candidates) {
+            if (mFailedEncoders.contains(codec.name)) {
+                continue;
+            }
+            int colorFormat = mEncoderInput.selectColorFormat(codec);
+            if (colorFormat == 0) {
+                continue;
+            }
+            try {
+                prepareEncoder(codec, colorFormat, width, height, bitRate);
+                // the image reader outlives a fallback, the capture session keeps rendering into it
+                if (mEncoderSurface == null || mEncoderInputMode == INPUT_MODE_SURFACE) {
+                    mEncoderSurface = mEncoderInput.createCaptureSurface(mEncoderDriver.getCodec(), width, height);
                 }
-                if (info.size != 0) {
-                    if(mMuxer!=null) {
-                        outputBuffer.position(info.offset);
-                        outputBuffer.limit(info.offset + info.size);
+                mEncoderCodec = codec;
+                Log.d(TAG, "encoding with " + codec);
+                return true;
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, codec.name + " failed to configure, trying the next encoder", e);
+                mFailedEncoders.add(codec.name);
+                discardEncoder();
+            }
+        }
+        Log.e(TAG, "no encoder can record " + MIME_TYPE + " at " + width + "x" + height);
+        return false;
+    }
 
-                        mMuxer.writeSampleData(mTrackIndex, outputBuffer, info);
-                        Log.d(TAG, "sent " + info.size + " bytes to muxer");
-                    }
-                }
-                codec.releaseOutputBuffer(index, false);
-                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    Log.d(TAG, "end of stream reached");
-                    mMuxerStarted = false;
-                    mCaptureSessionStopped = false;
-                    releaseEncoder();
+    /**
+     * Utility to prepare and configure one encoder and its output
+     *
+     * @param codec CodecIndex.Entry encoder to use
+     * @param colorFormat int color format of the frames
+     * @param width int width of the video image in pixels
+     * @param height int height of the video image in pixels
+     * @param bitRate int rate of the encoder in bits per second
+     * @throws IOException if the codec cannot be created
+     */
+    private void prepareEncoder(CodecIndex.Entry codec, int colorFormat, int width, int height, int bitRate)
+            throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                colorFormat);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        boolean sceneChangeGop = SCENE_CHANGE_GOP && mEncoderInput instanceof ImageReaderEncoderInput;
+        // with the scheduler the encoder's own I-frames are only a backstop
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, sceneChangeGop ? MAX_GOP_SEC : IFRAME_INTERVAL);
+
+        MediaCodecEncoder encoder = new MediaCodecEncoder(codec.name, mBackgroundCodecHandler);
+        String outputPath = MuxerOutputWriter.getOutputMediaPath(width, height);
+        OutputWriter writer;
+        if (RECORD_MODE == RECORD_MODE_PRE_EVENT) {
+            // fixed footprint: the pre-roll at the nominal bitrate, plus half again for spikes
+            int capacity = (int) ((long) bitRate / 8 * PRE_EVENT_SEC * 3 / 2);
+            PreEventBuffer buffer = new PreEventBuffer(capacity, FRAME_RATE * PRE_EVENT_SEC * 2, PRE_EVENT_SEC * 1000000L);
+            mPreEventWriter = new PreEventOutputWriter(buffer);
+            // saved events are not loop recordings, the retention budget must not delete them
+            mEventFactory = new MuxerSegmentFactory(MuxerOutputWriter.getOutputMediaPath("EVENT", width, height),
+                    getImageRotationDegrees(false), CONTAINER);
+            mEventCount = 0;
+            writer = mPreEventWriter;
+        } else {
+            mPreEventWriter = null;
+            SegmentedOutputWriter segmentedWriter = new SegmentedOutputWriter(
+                    new MuxerSegmentFactory(outputPath, getImageRotationDegrees(false), CONTAINER),
+                    SEGMENT_DURATION_SEC * 1000000L, SEGMENT_MAX_BYTES, MAX_SEGMENTS);
+            // segments are cut on a sync frame, requested from the encoder when one is due
+            segmentedWriter.setEncoder(encoder);
+            // the first file is created now rather than when the first frame is encoded
+            segmentedWriter.prepare();
+            writer = segmentedWriter;
+        }
+        // a storage stall drops samples up to the next sync frame instead of stopping the encoder
+        QueuedOutputWriter queuedWriter = new QueuedOutputWriter(writer, WRITER_QUEUE_SAMPLES,
+                bitRate / 8 / FRAME_RATE * 2, QueuedOutputWriter.STALL_POLICY_DROP_UNTIL_SYNC);
+        queuedWriter.setEncoder(encoder);
+        writer = queuedWriter;
+        BitrateController bitrateController = null;
+        if (ADAPTIVE_BITRATE) {
+            bitrateController = new BitrateController(bitRate / 4, bitRate, bitRate);
+            queuedWriter.setBitrateController(bitrateController);
+        }
+        mEncoderDriver = new AsyncEncoderDriver(encoder, writer, mDropPolicy, FRAME_RATE,
+                width, height, MAX_QUEUE_ELEMENTS, mCodecExecutor);
+        // the previous recording may still be draining, its listener keeps its own input and output
+        mEncoderListener = new RecordingListener(mEncoderInput, outputPath, queuedWriter);
+        mEncoderDriver.setListener(mEncoderListener);
+        mEncoderDriver.setStopTimeout(STOP_TIMEOUT_MS);
+        mEncoderDriver.setBitrateController(bitrateController);
+        if (sceneChangeGop) {
+            mEncoderDriver.setGopScheduler(new GopScheduler(new SceneChangeDetector(), MIN_GOP_MS * 1000L,
+                    MAX_GOP_SEC * 1000000L));
+        }
+        if (MOTION_GATE && mEncoderInput instanceof ImageReaderEncoderInput) {
+            // only the recording is gated, the stream stays live
+            mEncoderDriver.setMotionGate(new MotionGate(MOTION_SENSITIVITY, MotionGate.DEFAULT_BLOCK_THRESHOLD,
+                    MOTION_HOLD_MS * 1000L, MOTION_KEEP_ALIVE_MS * 1000L, FRAME_RATE * MOTION_PRE_ROLL_MS / 1000));
+        }
+        mStreamDriver = null;
+        if (mEncoderInput instanceof ImageReaderEncoderInput) {
+            // a zoomed region is enlarged bilinearly, whatever the filter
+            mEncoderDriver.setScaler(mZoomScaler, YuvScaler.FILTER_BILINEAR);
+            FrameSink sink = mEncoderDriver;
+            if (STREAM_OUTPUT) {
+                try {
+                    mStreamDriver = prepareStreamEncoder(codec, colorFormat);
+                } catch (IOException | RuntimeException e) {
+                    // the stream is optional, its failure does not count against the recording's encoder
+                    Log.e(TAG, "stream encoder failed to configure, recording without it", e);
                 }
             }
-
-            @Override
-            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
-
+            if (mStreamDriver != null) {
+                // each frame is packed once and shared, the stream scales it on its own thread
+                sink = new FrameFanout(width, height, MAX_QUEUE_ELEMENTS + STREAM_QUEUE_ELEMENTS + 1,
+                        mEncoderDriver, mStreamDriver);
             }
-        }, mBackgroundCodecHandler);
-
-        mEncoder.configure(mEncoderFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mEncoder.start();
+            ((ImageReaderEncoderInput) mEncoderInput).setFrameSink(sink);
+            applyZoom(mZoom);
+        }
+        // the callback is set and the codec configured before the input surface is created
+        mEncoderDriver.configure(format);
     }
 
     /**
-     * Utility to convert frame index to millisecond timestamp
-     * @param frameIndex long index of the frame number
-     * @return long corresponding millisecond value
+     * Releases encoders that failed to configure or start, without reporting a finished recording
      */
-    private long computePresentationTime(long frameIndex) {
-        return 132 + frameIndex * 1000000 / FRAME_RATE;
+    private void discardEncoder() {
+        if (mEncoderDriver != null) {
+            mEncoderDriver.setListener(null);
+            mEncoderDriver.release();
+            mEncoderDriver = null;
+        }
+        if (mStreamDriver != null) {
+            mStreamDriver.setListener(null);
+            mStreamDriver.release();
+            mStreamDriver = null;
+        }
+        if (mEncoderInputMode == INPUT_MODE_SURFACE) {
+            // the input surface belongs to the codec
+            mEncoderInput.release();
+            mEncoderSurface = null;
+        }
     }
 
     /**
-     * Utility to create a unique filename for the captured video
-     * @param width - int width of the video
-     * @param height - int height of the video
-     * @return String filename
+     * Utility to prepare and configure the encoder of the low resolution stream. It has its own
+     * codec thread, frame queue and writer, and drops the oldest frames when it falls behind, so
+     * it never holds up the recording
+     *
+     * @param codec CodecIndex.Entry encoder of the recording
+     * @param colorFormat int color format of the frames
+     * @return EncoderDriver configured, not started
      */
-    private String getOutputMediaPath(int width, int height){
-        File mediaStorageDir = new File(
-                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM), "video_encoder");
-
-        if (!mediaStorageDir.exists()) {
-            if (!mediaStorageDir.mkdirs()) {
-                Log.e(TAG, "can not create the directory");
-            }
+    private EncoderDriver prepareStreamEncoder(CodecIndex.Entry codec, int colorFormat) throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, STREAM_WIDTH, STREAM_HEIGHT);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, STREAM_BIT_RATE);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        // a viewer joining late waits at most a second for a picture
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+
+        MediaCodecEncoder encoder = new MediaCodecEncoder(codec.name, mBackgroundStreamHandler);
+        OutputWriter writer;
+        if (STREAM_RTP_ADDRESS != null) {
+            // RTP carries no orientation, the viewer rotates the picture itself
+            RtpOutputWriter rtpWriter = new RtpOutputWriter(
+                    new InetSocketAddress(InetAddress.getByName(STREAM_RTP_ADDRESS), STREAM_RTP_PORT));
+            Log.i(TAG, "stream SDP:\n" + rtpWriter.getSessionDescription());
+            writer = rtpWriter;
+        } else {
+            // segmented like the recording and under the same retention budget; without prepare()
+            // the first file is only created when the stream delivers its first frame, so a
+            // discarded standby leaves nothing behind
+            SegmentedOutputWriter segmentedWriter = new SegmentedOutputWriter(
+                    new MuxerSegmentFactory(MuxerOutputWriter.getOutputMediaPath(STREAM_WIDTH, STREAM_HEIGHT),
+                            getImageRotationDegrees(false), CONTAINER),
+                    SEGMENT_DURATION_SEC * 1000000L, SEGMENT_MAX_BYTES, MAX_SEGMENTS);
+            segmentedWriter.setEncoder(encoder);
+            writer = segmentedWriter;
         }
-
-        String timeStamp = String.valueOf(System.currentTimeMillis());
-
-        return (mediaStorageDir.getPath() + File.separator + "VIDEO_" +timeStamp+"_"+width +"x"+height + ".mp4").toString();
+        QueuedOutputWriter queuedWriter = new QueuedOutputWriter(writer, WRITER_QUEUE_SAMPLES,
+                STREAM_BIT_RATE / 8 / FRAME_RATE * 2, QueuedOutputWriter.STALL_POLICY_DROP_UNTIL_SYNC);
+        queuedWriter.setEncoder(encoder);
+        EncoderDriver driver = new AsyncEncoderDriver(encoder, queuedWriter, FrameDropPolicy.dropOldest(), FRAME_RATE,
+                STREAM_WIDTH, STREAM_HEIGHT, STREAM_QUEUE_ELEMENTS, mStreamExecutor);
+        driver.setListener(mStreamListener);
+        driver.setStopTimeout(STOP_TIMEOUT_MS);
+        driver.setScaler(mStreamScaler, YuvScaler.FILTER_BOX);
+        try {
+            driver.configure(format);
+        } catch (RuntimeException e) {
+            driver.setListener(null);
+            driver.release();
+            throw e;
+        }
+        return driver;
     }
 
     /**
-     * Utility to converts the mime type string into a codec info class
-     *
-     * @return MediaCodecInfo matching selected mimeType, or null
+     * Crops the frames of the encoders to the centre region of the zoom factor, the stream shows
+     * the same region as the recording. Runs on the preview thread
+     * @param zoom float zoom factor, 1 for the whole frame
      */
-    private static MediaCodecInfo selectCodec() {
-        int numCodecs = MediaCodecList.getCodecCount();
-        for (int i = 0; i < numCodecs; i++) {
-            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+    private void applyZoom(float zoom) {
+        if (mEncoderDriver == null || !(mEncoderInput instanceof ImageReaderEncoderInput)) {
+            return;
+        }
+        // the camera frames have the size of the recording
+        CropRegion crop = zoom > 1f ? CropRegion.zoom(ENCODE_WIDTH, ENCODE_HEIGHT, zoom, 0.5f, 0.5f) : null;
+        mEncoderDriver.setCrop(crop);
+        if (mStreamDriver != null) {
+            mStreamDriver.setCrop(crop);
+        }
+    }
 
-            if (!codecInfo.isEncoder()) {
+    /**
+     * Utility to start the encoders, ahead of the capture session. An encoder of the recording that
+     * fails to start is replaced by the next one in rank order; in INPUT_MODE_SURFACE this has to
+     * happen before the capture session renders into its input surface. A stream that fails to
+     * start is dropped, the recording goes on without it
+     * @return false if no encoder could be started, none is then set
+     */
+    private boolean startEncoder() {
+        while (mEncoderDriver != null) {
+            try {
+                mEncoderDriver.start();
+            } catch (RuntimeException e) {
+                Log.e(TAG, mEncoderCodec.name + " failed to start, trying the next encoder", e);
+                mFailedEncoders.add(mEncoderCodec.name);
+                discardEncoder();
+                prepareEncoder(ENCODE_WIDTH, ENCODE_HEIGHT, ENCODE_BIT_RATE);
                 continue;
             }
-
-            String[] types = codecInfo.getSupportedTypes();
-            String codecName = codecInfo.getName();
-            for (String type : types) {
-                if (type.equalsIgnoreCase(MainActivity.MIME_TYPE) && codecName.equalsIgnoreCase(ENCODER)) {
-                    return codecInfo;
+            if (mStreamDriver != null) {
+                try {
+                    mStreamDriver.start();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "stream encoder failed to start, recording without it", e);
+                    mStreamDriver.setListener(null);
+                    mStreamDriver.release();
+                    mStreamDriver = null;
+                    // the frames go to the recording alone
+                    ((ImageReaderEncoderInput) mEncoderInput).setFrameSink(mEncoderDriver);
                 }
             }
+            return true;
         }
-        return null;
+        return false;
     }
 
     /**
-     * Utility to converts the codec info and mime type string into color format
-     *
-     * @param codecInfo MediaCodecInfo describing the codec
-     * @return int representing the color format, 0 on failure
+     * Runs the encoder driver tasks on the thread of the codec callbacks
      */
-    private static int selectColorFormat(MediaCodecInfo codecInfo) {
-        MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(MainActivity.MIME_TYPE);
-        for (int i = 0; i < capabilities.colorFormats.length; i++) {
-            int colorFormat = capabilities.colorFormats[i];
-            if (isRecognizedFormat(colorFormat)) {
-                return colorFormat;
+    private final Executor mCodecExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            Handler handler = mBackgroundCodecHandler;
+            if (handler == null || !handler.post(command)) {
+                // the driver then releases the codec itself
+                throw new RejectedExecutionException("codec thread has quit");
             }
         }
-        Log.e(TAG, "couldn't find a good color format for " + codecInfo.getName() + " / " + MainActivity.MIME_TYPE);
-        return 0;   // not reached
-    }
+    };
 
     /**
-     * Utility to determine if the proposed color format is valid
-     * @param colorFormat int candidate for a color format identifier
-     * @return true if recognized as a valid format
+     * Runs the stream encoder driver tasks on the thread of its codec callbacks
      */
-    private static boolean isRecognizedFormat(int colorFormat) {
-        // these are the formats we know how to handle for this test
-        return colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
-    }
+    private final Executor mStreamExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            Handler handler = mBackgroundStreamHandler;
+            if (handler == null || !handler.post(command)) {
+                // the driver then releases the codec itself
+                throw new RejectedExecutionException("codec thread has quit");
+            }
+        }
+    };
+
+    /**
+     * Reports the stream once its encoder is done, the capture side belongs to the recording
+     */
+    private final EncoderDriver.Listener mStreamListener = new EncoderDriver.Listener() {
+        @Override
+        public void onEncoderReleased(EncoderDriver driver) {
+            if (driver.getFirstSampleTimeNs() != 0) {
+                Log.d(TAG, "stream drop policy " + driver.getDropPolicy() + ": " + driver.getDropStats());
+                Log.d(TAG, "stream latency: " + driver.getLatencyTracker());
+            }
+            if (driver.isStopForced()) {
+                Log.w(TAG, "stream closed by the stop timeout, its last frames are missing");
+            }
+        }
+
+        @Override
+        public void onEncoderError(EncoderDriver driver, Exception e) {
+            Log.e(TAG, "stream encoder error", e);
+        }
+    };
 
     /**
-     * Releases encoder resources.
+     * Releases the capture side and reports the session once the encoder is done. Each encoder of
+     * the recording has its own, as the next recording may start while this one still drains
      */
-    private void releaseEncoder() {
-        Log.d(TAG, "releasing encoder objects");
+    private class RecordingListener implements EncoderDriver.Listener {
+        private final EncoderInput mInput;
+        private final String mOutputPath;
+        private final QueuedOutputWriter mQueuedWriter;
+        // set when the encoder starts recording, a standby encoder released unused has none
+        private volatile long mRecordClickNs;
+        private volatile boolean mFromStandby;
+        private final CountDownLatch mReleased = new CountDownLatch(1);
+
+        RecordingListener(EncoderInput input, String outputPath, QueuedOutputWriter queuedWriter) {
+            mInput = input;
+            mOutputPath = outputPath;
+            mQueuedWriter = queuedWriter;
+        }
 
-        if (mImageReader != null) {
-            mImageReader.close();
-            mImageReader = null;
+        /**
+         * Records how the recording of this encoder was started
+         * @param recordClickNs long System.nanoTime() when Record was pressed
+         * @param fromStandby boolean true if the encoder was warm when Record was pressed
+         */
+        void setRecordStart(long recordClickNs, boolean fromStandby) {
+            mRecordClickNs = recordClickNs;
+            mFromStandby = fromStandby;
         }
 
-        if (mEncoder != null) {
-            mEncoder.stop();
-            mEncoder.release();
-            mEncoder = null;
+        /**
+         * Waits for the encoder to be released and its file closed
+         * @param timeoutMs long time to wait at most, in milliseconds
+         * @return boolean false if the encoder was still not released
+         * @throws InterruptedException if interrupted while waiting
+         */
+        boolean awaitRelease(long timeoutMs) throws InterruptedException {
+            return mReleased.await(timeoutMs, TimeUnit.MILLISECONDS);
         }
 
-        if (mMuxer != null) {
-            mMuxer.stop();
-            mMuxer.release();
-            mMuxer = null;
+        @Override
+        public void onEncoderReleased(final EncoderDriver driver) {
+            Log.d(TAG, "releasing encoder objects");
+            if (driver.getFirstSampleTimeNs() != 0) {
+                Log.d(TAG, "time to first frame: " + (driver.getFirstSampleTimeNs() - mRecordClickNs) / 1000000
+                        + "ms from " + (mFromStandby ? "standby" : "cold"));
+                // kept in the latency report, to compare standby and cold starts across releases
+                driver.getLatencyTracker().setStartLatency(mRecordClickNs, driver.getFirstSampleTimeNs(),
+                        mFromStandby ? "standby" : "cold");
+            }
+            if (driver.getWriterClosedTimeNs() != 0) {
+                Log.d(TAG, "stop to file closed: " + (driver.getWriterClosedTimeNs() - mStopClickNs) / 1000000
+                        + "ms, " + (driver.getWriterClosedTimeNs() - driver.getStopTimeNs()) / 1000000
+                        + "ms after the capture ended" + (driver.isStopForced() ? ", forced by the stop timeout" : ""));
+            }
+            Log.d(TAG, "writer: " + mQueuedWriter);
+            Log.d(TAG, "bitrate: " + driver.getBitrateController());
+            if (driver.getGopScheduler() != null) {
+                Log.d(TAG, "GOP: " + driver.getGopScheduler());
+            }
+            if (driver.getMotionGate() != null) {
+                Log.d(TAG, "motion gate: " + driver.getMotionGate());
+            }
+            if (mInput != null) {
+                mInput.release();
+            }
+            if (mInput instanceof ImageReaderEncoderInput && driver.getFirstSampleTimeNs() != 0) {
+                Log.d(TAG, "capture timing: " + driver.getPresentationClock());
+                Log.d(TAG, "drop policy " + driver.getDropPolicy() + ": " + driver.getDropStats());
+                Log.d(TAG, "latency: " + driver.getLatencyTracker());
+                try {
+                    // next to the video, to follow capture to disk latency across releases
+                    driver.getLatencyTracker().writeReports(mOutputPath);
+                } catch (IOException e) {
+                    Log.e(TAG, "can not write the latency report", e);
+                }
+                Log.d(TAG, "frame pool: " + ((AsyncEncoderDriver) driver).getFramePool());
+            }
+            mReleased.countDown();
+            // the next recording starts from a warm encoder again
+            postToPreviewThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mEncoderDriver == driver) {
+                        mEncoderDriver = null;
+                        mStreamDriver = null;
+                        mEncoderSurface = null;
+                        mEncoderRecording = false;
+                    }
+                    warmUpEncoder();
+                }
+            });
         }
 
-        mQueueElementCount = 0;
-        mBytesQueue.clear();
+        @Override
+        public void onEncoderError(EncoderDriver driver, Exception e) {
+            Log.e(TAG, "encoder error", e);
+        }
     }
 
     /**
@@ -578,6 +1042,7 @@ public class MainActivity extends Activity implements RotationListener.rotationC
                     }
                     mCameraCaptureSessions = session;
                     updatePreview();
+                    warmUpEncoder();
                 }
                 @Override
                 public void onConfigureFailed(CameraCaptureSession cameraCaptureSession) {
@@ -597,6 +1062,10 @@ public class MainActivity extends Activity implements RotationListener.rotationC
         Log.d(TAG, "is camera open");
         try {
             mCameraId = manager.getCameraIdList()[0];
+            Integer timestampSource = manager.getCameraCharacteristics(mCameraId).get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            if (timestampSource != null) {
+                mSensorTimestampSource = timestampSource;
+            }
             // Add permission for camera, let user grant the permission
             if (checkSelfPermission(Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED && checkSelfPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
                 requestPermissions(new String[]{Manifest.permission.CAMERA, Manifest.permission.WRITE_EXTERNAL_STORAGE}, REQUEST_CAMERA_PERMISSION);
@@ -645,6 +1114,16 @@ public class MainActivity extends Activity implements RotationListener.rotationC
     public void onRotationChanged(int newRotation) {
         Log.i(TAG, "New device orientation " + Integer.toString(newRotation) );
         updatePreview();
+        if (!mVideoRecording) {
+            // the standby encoder was set up with the previous orientation
+            postToPreviewThread(new Runnable() {
+                @Override
+                public void run() {
+                    releaseStandbyEncoder();
+                    warmUpEncoder();
+                }
+            });
+        }
     }
 
     private int getImageRotationDegrees(boolean invert) {
@@ -670,17 +1149,50 @@ public class MainActivity extends Activity implements RotationListener.rotationC
             mCameraDevice.close();
             mCameraDevice = null;
         }
-        if (null != mImageReader) {
-            mImageReader.close();
-            mImageReader = null;
+    }
+
+    /**
+     * Zooms in with the up key and out with the down key, in INPUT_MODE_BUFFER
+     * @param keyCode int the key pressed
+     * @param event KeyEvent describing the key press
+     * @return true if the key was consumed
+     */
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        if (mInputMode == INPUT_MODE_BUFFER
+                && (keyCode == KeyEvent.KEYCODE_DPAD_UP || keyCode == KeyEvent.KEYCODE_DPAD_DOWN)) {
+            float zoom = keyCode == KeyEvent.KEYCODE_DPAD_UP ? mZoom * ZOOM_STEP : mZoom / ZOOM_STEP;
+            final float newZoom = Math.max(1f, Math.min(MAX_ZOOM, zoom));
+            mZoom = newZoom;
+            Log.d(TAG, "zoom " + newZoom + "x");
+            postToPreviewThread(new Runnable() {
+                @Override
+                public void run() {
+                    applyZoom(newZoom);
+                }
+            });
+            return true;
         }
+        return super.onKeyDown(keyCode, event);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
         Log.e(TAG, "onResume");
+        mResumed = true;
+        // the preview thread that uses it is not running yet
+        mFailedEncoders.clear();
         startBackgroundThread();
+        // measures the encoders after a system update. On the preview thread, ahead of the
+        // standby and any recording, so no other encoder of the app runs while they are timed
+        postToPreviewThread(new Runnable() {
+            @Override
+            public void run() {
+                CodecSelector.calibrate(getApplicationContext(), MIME_TYPE, ENCODE_WIDTH, ENCODE_HEIGHT,
+                        FRAME_RATE, ENCODE_BIT_RATE);
+            }
+        });
 
         mTextureView = (TextureView) findViewById(R.id.texture);
 
@@ -713,11 +1225,56 @@ public class MainActivity extends Activity implements RotationListener.rotationC
     protected void onPause() {
         mRotationListener.stop();
         Log.e(TAG, "onPause");
+        mResumed = false;
+        stopEncoders();
+        if (mVideoRecording) {
+            mRecordButton.setText(R.string.record);
+            mVideoRecording = false;
+            setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_SENSOR_LANDSCAPE);
+        }
         closeCamera();
         stopBackgroundThread();
         super.onPause();
     }
 
+    /**
+     * Releases the standby encoder and ends the recording, the codec is not held while in the
+     * background. Waits at most the stop timeout for the file to be closed, while the threads the
+     * encoders run on are still running. The stream stops with the recording, at the end of the
+     * frames they share
+     */
+    private void stopEncoders() {
+        final RecordingListener[] recording = new RecordingListener[1];
+        final CountDownLatch stopped = new CountDownLatch(1);
+        postToPreviewThread(new Runnable() {
+            @Override
+            public void run() {
+                releaseStandbyEncoder();
+                if (mEncoderDriver != null && mEncoderRecording) {
+                    // stopping, or already draining after Stop was pressed
+                    recording[0] = mEncoderListener;
+                    if (mRecordingSession != null) {
+                        mRecordingSession.stopEncoder();
+                    }
+                    // the next recording starts afresh on resume, its release may come too late
+                    mEncoderDriver = null;
+                    mStreamDriver = null;
+                    mEncoderSurface = null;
+                    mEncoderRecording = false;
+                }
+                stopped.countDown();
+            }
+        });
+        try {
+            if (stopped.await(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS) && recording[0] != null
+                    && !recording[0].awaitRelease(STOP_TIMEOUT_MS)) {
+                Log.e(TAG, "recording not finalized within the stop timeout");
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
         if (requestCode == REQUEST_CAMERA_PERMISSION) {